@@ -6,6 +6,7 @@ import org.whispersystems.libsignal.IdentityKey;
 import team.catgirl.collar.api.http.CollarFeature;
 import team.catgirl.collar.api.http.CollarVersion;
 import team.catgirl.collar.api.http.DiscoverResponse;
+import team.catgirl.collar.api.location.LocationFanOut;
 import team.catgirl.collar.api.http.HttpException;
 import team.catgirl.collar.api.session.Player;
 import team.catgirl.collar.client.CollarException.ConnectionException;
@@ -33,19 +34,27 @@ import team.catgirl.collar.http.Request;
 import team.catgirl.collar.http.Response;
 import team.catgirl.collar.http.WebSocket;
 import team.catgirl.collar.http.WebSocketListener;
+import team.catgirl.collar.io.BufferPool;
 import team.catgirl.collar.protocol.PacketIO;
 import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.protocol.codec.BinaryPacketCodec;
 import team.catgirl.collar.protocol.devices.DeviceRegisteredResponse;
 import team.catgirl.collar.protocol.devices.RegisterDeviceResponse;
 import team.catgirl.collar.protocol.identity.IdentifyRequest;
 import team.catgirl.collar.protocol.identity.IdentifyResponse;
-import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
+import team.catgirl.collar.protocol.session.RenewSessionTicketRequest;
+import team.catgirl.collar.protocol.session.ResumeSessionChallengeResponse;
+import team.catgirl.collar.protocol.session.ResumeSessionFailedResponse;
+import team.catgirl.collar.protocol.session.ResumeSessionRequest;
+import team.catgirl.collar.protocol.session.ResumeSessionResponse;
 import team.catgirl.collar.protocol.session.SessionFailedResponse;
 import team.catgirl.collar.protocol.session.SessionFailedResponse.MojangVerificationFailedResponse;
 import team.catgirl.collar.protocol.session.SessionFailedResponse.PrivateIdentityMismatchResponse;
+import team.catgirl.collar.protocol.session.SessionFailedResponse.ServerBusyResponse;
 import team.catgirl.collar.protocol.session.SessionFailedResponse.SessionErrorResponse;
 import team.catgirl.collar.protocol.session.StartSessionRequest;
+import team.catgirl.collar.protocol.session.SessionTicketResponse;
 import team.catgirl.collar.protocol.session.StartSessionResponse;
 import team.catgirl.collar.protocol.signal.ResendPreKeysResponse;
 import team.catgirl.collar.protocol.signal.SendPreKeysRequest;
@@ -65,10 +74,15 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static team.catgirl.collar.http.Request.url;
 
@@ -92,6 +106,21 @@ public final class Collar {
     private final Supplier<ClientIdentityStore> identityStoreSupplier;
     private final Ticks ticks;
     private final ContentCiphers recordCiphers;
+    private volatile boolean binaryCodec;
+    /** Names of the features the server advertised when the client last connected **/
+    private volatile Set<String> serverFeatures = Collections.emptySet();
+    /** Ticket to resume the session with after the connection drops **/
+    private volatile SessionTicket sessionTicket;
+    /** Groups that were being shared with when the connection dropped, restored when the session is resumed **/
+    private volatile Map<UUID, LocationFanOut> resumableSharing = Collections.emptyMap();
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff();
+    private final ScheduledExecutorService reconnects = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "collar-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Reconnect scheduled after the server was too busy to start the session **/
+    private volatile ScheduledFuture<?> reconnect;
 
     private Collar(CollarConfiguration configuration) throws IOException {
         this.configuration = configuration;
@@ -99,6 +128,7 @@ public final class Collar {
         this.identityStoreSupplier = () -> identityStore;
         Consumer<ProtocolRequest> sender = request -> this.sender.accept(request);
         this.ticks = configuration.ticks;
+        this.ticks.subscribe(this::renewSessionTicket);
         this.recordCiphers = new ContentCiphers();
         this.apis = new ArrayList<>();
         this.sdhtApi = new SDHTApi(this, identityStoreSupplier, sender, recordCiphers, this.ticks, this.configuration.homeDirectory.dhtState());
@@ -111,7 +141,9 @@ public final class Collar {
                 groupsApi,
                 sdhtApi,
                 configuration.playerLocation,
-                configuration.entitiesSupplier);
+                configuration.entitiesSupplier,
+                configuration.locationPublishing,
+                this::hasServerFeature);
         this.texturesApi = new TexturesApi(this, identityStoreSupplier, sender);
         this.identityApi = new IdentityApi(this, identityStoreSupplier, sender);
         this.messagingApi = new MessagingApi(this, identityStoreSupplier, sender);
@@ -142,17 +174,55 @@ public final class Collar {
      * Connect to server
      */
     public void connect() {
-        checkServerCompatibility(configuration);
+        cancelReconnect();
+        DiscoverResponse discoverResponse = checkServerCompatibility(configuration);
+        binaryCodec = findFeature(discoverResponse, "protocol:binary_codec")
+                .map(feature -> Objects.equals(BinaryPacketCodec.VERSION, feature.value))
+                .orElse(false);
+        serverFeatures = discoverResponse.features.stream().map(feature -> feature.name).collect(Collectors.toSet());
         String url = UrlBuilder.fromUrl(configuration.collarServerURL).withPath("/api/1/listen").toString();
         LOGGER.log(Level.INFO, "Connecting to server " + url);
-        webSocket = Http.client().webSocket(Request.url(url).ws(), new CollarWebSocket(this));
+        webSocket = Http.client().webSocket(Request.url(url).ws(), new CollarWebSocket(this), configuration.pingIntervalMillis, configuration.peerTimeoutMillis);
         changeState(State.CONNECTING);
     }
 
     /**
-     * Disconnect from server
+     * Disconnect from server. The session will not be resumed when connecting again.
      */
     public void disconnect() {
+        cancelReconnect();
+        sessionTicket = null;
+        closeConnection();
+    }
+
+    /**
+     * Connect again once the server is expected to have capacity to start the session
+     * @param retryAfterMillis the server asked the client to wait
+     */
+    private void scheduleReconnect(long retryAfterMillis) {
+        long delay = reconnectBackoff.nextDelay(retryAfterMillis);
+        LOGGER.log(Level.INFO, "Server is busy. Reconnecting in " + delay + "ms");
+        cancelReconnect();
+        reconnect = reconnects.schedule(() -> {
+            reconnect = null;
+            try {
+                connect();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Could not reconnect", e);
+                configuration.listener.onError(this, e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelReconnect() {
+        ScheduledFuture<?> scheduled = reconnect;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            reconnect = null;
+        }
+    }
+
+    private void closeConnection() {
         if (this.webSocket != null) {
             LOGGER.log(Level.INFO, "Disconnected");
             this.webSocket.close();
@@ -244,8 +314,14 @@ public final class Collar {
         State previousState = this.state;
         if (previousState != state) {
             this.state = state;
+            if (previousState == State.CONNECTED && state == State.DISCONNECTED) {
+                resumableSharing = locationApi.sharing();
+            }
+            if (state == State.CONNECTED) {
+                reconnectBackoff.reset();
+            }
             if (previousState != null && previousState != State.DISCONNECTED && state == State.DISCONNECTED) {
-                disconnect();
+                closeConnection();
             }
             if (previousState == null) {
                 LOGGER.log(Level.INFO, "client in state " + state);
@@ -274,6 +350,17 @@ public final class Collar {
         return new Player(identity().id(), configuration.sessionSupplier.get().toPlayer());
     }
 
+    /**
+     * Ask for a new session ticket before the current one expires
+     */
+    private void renewSessionTicket() {
+        SessionTicket ticket = sessionTicket;
+        if (state == State.CONNECTED && ticket != null && ticket.shouldRenew(System.currentTimeMillis())) {
+            sessionTicket = ticket.renewRequested();
+            sender.accept(new RenewSessionTicketRequest(identity()));
+        }
+    }
+
     private void assertConnected() {
         if (state != State.CONNECTED) {
             throw new IllegalStateException("Cannot use the API until client is CONNECTED");
@@ -283,8 +370,9 @@ public final class Collar {
     /**
      * Test that the client version is supported by the server and that the client is configured correctly for its features
      * @param configuration of the client
+     * @return discovery response
      */
-    private static void checkServerCompatibility(CollarConfiguration configuration) {
+    private static DiscoverResponse checkServerCompatibility(CollarConfiguration configuration) {
         DiscoverResponse response;
         try {
             response = Http.client().execute(url(UrlBuilder.fromUrl(configuration.collarServerURL).withPath("/api/discover")).get(), Response.json(DiscoverResponse.class));
@@ -313,6 +401,15 @@ public final class Collar {
         findFeature(response, "groups:locations").orElseThrow(() -> new IllegalStateException("Server does not support groups:locations"));
         findFeature(response, "groups:waypoints").orElseThrow(() -> new IllegalStateException("Server does not support groups:waypoints"));
         findFeature(response, "profile:friends").orElseThrow(() -> new IllegalStateException("Server does not support profile:friends"));
+        return response;
+    }
+
+    /**
+     * @param feature name
+     * @return whether the server advertised the feature when the client last connected
+     */
+    private boolean hasServerFeature(String feature) {
+        return serverFeatures.contains(feature);
     }
 
     private static Optional<CollarFeature> findFeature(DiscoverResponse response, String feature) {
@@ -341,8 +438,9 @@ public final class Collar {
 
     class CollarWebSocket implements WebSocketListener {
         private final ObjectMapper mapper = Utils.messagePackMapper();
+        /** {@link WebSocket#send(ByteBuffer)} copies the message so buffers can be released as soon as it returns **/
+        private final BufferPool buffers = new BufferPool(Short.MAX_VALUE, 2);
         private final Collar collar;
-        private KeepAlive keepAlive;
         private volatile ServerIdentity serverIdentity;
 
         public CollarWebSocket(Collar collar) {
@@ -359,14 +457,15 @@ public final class Collar {
                 sendRequest(webSocket, request);
             };
             LOGGER.log(Level.INFO, "Connection established");
-            if (SignalClientIdentityStore.hasIdentityStore(configuration.homeDirectory)) {
+            SessionTicket ticket = sessionTicket;
+            if (identityStore != null && ticket != null && ticket.canResume(configuration.sessionSupplier.get().toPlayer(), System.currentTimeMillis())) {
+                LOGGER.log(Level.INFO, "Resuming session with server");
+                sendRequest(webSocket, new ResumeSessionRequest(identityStore.currentIdentity(), ticket.ticket));
+            } else if (SignalClientIdentityStore.hasIdentityStore(configuration.homeDirectory)) {
                 identityStore = getOrCreateIdentityKeyStore(webSocket, null);
             } else {
                 sendRequest(webSocket, IdentifyRequest.unknown());
             }
-            // Start the keep alive
-            this.keepAlive = new KeepAlive(this, webSocket);
-            this.keepAlive.start(null);
         }
 
         private ResettableClientIdentityStore getOrCreateIdentityKeyStore(WebSocket webSocket, UUID owner) {
@@ -390,9 +489,6 @@ public final class Collar {
         @Override
         public void onClose(WebSocket webSocket, int code, String message) {
             LOGGER.log(Level.SEVERE, "Closed socket: " + message);
-            if (this.keepAlive != null) {
-                this.keepAlive.stop();
-            }
             configuration.listener.onError(collar, new ConnectionException("Connection closed: " + message));
             if (state != State.DISCONNECTED) {
                 collar.changeState(State.DISCONNECTED);
@@ -435,10 +531,6 @@ public final class Collar {
                     }
                     StartSessionRequest request = new StartSessionRequest(identity, session, serverId);
                     sendRequest(webSocket, request);
-                    keepAlive.stop();
-                    keepAlive.start(identity);
-                } else if (resp instanceof KeepAliveResponse) {
-                    LOGGER.log(Level.INFO, "KeepAliveResponse received");
                 } else if (resp instanceof RegisterDeviceResponse) {
                     RegisterDeviceResponse registerDeviceResponse = (RegisterDeviceResponse)resp;
                     LOGGER.log(Level.INFO, "RegisterDeviceResponse received with registration url " + ((RegisterDeviceResponse) resp).approvalUrl);
@@ -479,13 +571,40 @@ public final class Collar {
                         LOGGER.log(Level.INFO, "SessionFailedResponse Reason: " + ((SessionErrorResponse) resp).reason);
                     }
                     collar.changeState(State.DISCONNECTED);
+                    if (resp instanceof ServerBusyResponse) {
+                        collar.scheduleReconnect(((ServerBusyResponse) resp).retryAfterMillis);
+                    }
                 } else if (resp instanceof IsTrustedRelationshipResponse) {
                     LOGGER.log(Level.INFO, "Server has confirmed a trusted relationship with the client");
                     if (resp.identity == null) {
                         throw new IllegalStateException("sever identity was null");
                     }
                     this.serverIdentity = resp.identity;
+                    resumableSharing = Collections.emptyMap();
                     collar.changeState(State.CONNECTED);
+                } else if (resp instanceof ResumeSessionChallengeResponse) {
+                    SessionTicket ticket = sessionTicket;
+                    if (ticket == null) {
+                        LOGGER.log(Level.INFO, "Session ticket was discarded. Identifying with server");
+                        identityStore = getOrCreateIdentityKeyStore(webSocket, null);
+                    } else {
+                        byte[] challenge = ((ResumeSessionChallengeResponse) resp).challenge;
+                        sendRequest(webSocket, new ResumeSessionRequest(identityStore.currentIdentity(), ticket.ticket, challenge, identityStore.sign(challenge)));
+                    }
+                } else if (resp instanceof ResumeSessionResponse) {
+                    LOGGER.log(Level.INFO, "Server has resumed the session");
+                    this.serverIdentity = resp.identity;
+                    Map<UUID, LocationFanOut> sharing = resumableSharing;
+                    resumableSharing = Collections.emptyMap();
+                    collar.changeState(State.CONNECTED);
+                    locationApi.resumeSharing(sharing);
+                } else if (resp instanceof ResumeSessionFailedResponse) {
+                    LOGGER.log(Level.INFO, "Server could not resume the session. Identifying with server");
+                    sessionTicket = null;
+                    resumableSharing = Collections.emptyMap();
+                    identityStore = getOrCreateIdentityKeyStore(webSocket, null);
+                } else if (resp instanceof SessionTicketResponse) {
+                    sessionTicket = SessionTicket.from((SessionTicketResponse) resp, configuration.sessionSupplier.get().toPlayer(), System.currentTimeMillis());
                 } else if (resp instanceof IsUntrustedRelationshipResponse) {
                     LOGGER.log(Level.INFO, "Server has declared the client as untrusted. Consumer should reset the identity store and reconnect.");
                     collar.changeState(State.DISCONNECTED);
@@ -516,25 +635,29 @@ public final class Collar {
         }
 
         public void sendRequest(WebSocket webSocket, ProtocolRequest req) {
-            PacketIO packetIO = identityStore == null ? new PacketIO(mapper, null) : new PacketIO(mapper, identityStore.createCypher());
-            byte[] bytes;
+            PacketIO packetIO = new PacketIO(mapper, identityStore == null ? null : identityStore.createCypher(), binaryCodec);
+            ByteBuffer buffer;
             if (state == State.CONNECTED) {
                 try {
                     if (identityStore == null) {
                         throw new IllegalStateException("identity store should be available by the time the client is CONNECTED");
                     }
-                    bytes = packetIO.encodeEncrypted(serverIdentity, req);
+                    buffer = packetIO.encodeEncrypted(serverIdentity, req, buffers);
                 } catch (IOException | CipherException e) {
                     throw new IllegalStateException(e);
                 }
             } else {
                 try {
-                    bytes = packetIO.encodePlain(req);
+                    buffer = packetIO.encodePlain(req, buffers);
                 } catch (IOException e) {
                     throw new IllegalStateException(e);
                 }
             }
-            webSocket.send(ByteBuffer.wrap(bytes));
+            try {
+                webSocket.send(buffer);
+            } finally {
+                buffers.release(buffer);
+            }
         }
     }
 
@@ -3,6 +3,7 @@ package team.catgirl.collar.client;
 import com.google.common.base.MoreObjects;
 import team.catgirl.collar.api.entities.Entity;
 import team.catgirl.collar.api.location.Location;
+import team.catgirl.collar.client.api.location.LocationPublishing;
 import team.catgirl.collar.client.debug.DebugConfiguration;
 import team.catgirl.collar.client.minecraft.Ticks;
 import team.catgirl.collar.security.mojang.MinecraftSession;
@@ -31,6 +32,11 @@ public final class CollarConfiguration {
     public final CollarListener listener;
     public final Ticks ticks;
     public final boolean debugMode;
+    public final LocationPublishing locationPublishing;
+    /** Interval between WebSocket pings sent to the server when nothing else has been sent **/
+    public final long pingIntervalMillis;
+    /** Time the server can go without sending anything before the connection is closed **/
+    public final long peerTimeoutMillis;
 
     private CollarConfiguration(Supplier<Location> playerLocation,
                                 Supplier<MinecraftSession> sessionSupplier,
@@ -38,7 +44,10 @@ public final class CollarConfiguration {
                                 HomeDirectory homeDirectory,
                                 DebugConfiguration debugConfiguration, URL collarServerURL,
                                 CollarListener listener,
-                                Ticks ticks) {
+                                Ticks ticks,
+                                LocationPublishing locationPublishing,
+                                long pingIntervalMillis,
+                                long peerTimeoutMillis) {
         this.playerLocation = playerLocation;
         this.sessionSupplier = sessionSupplier;
         this.entitiesSupplier = entitiesSupplier;
@@ -48,6 +57,9 @@ public final class CollarConfiguration {
         this.listener = listener;
         this.ticks = ticks;
         this.debugMode = homeDirectory.debugFile().exists();
+        this.locationPublishing = locationPublishing;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.peerTimeoutMillis = peerTimeoutMillis;
     }
 
     public final static class Builder {
@@ -58,6 +70,9 @@ public final class CollarConfiguration {
         private File homeDirectory;
         private URL collarServerURL;
         private Ticks ticks;
+        private LocationPublishing locationPublishing = LocationPublishing.defaults();
+        private long pingIntervalMillis = 10000;
+        private long peerTimeoutMillis = 30000;
 
         public Builder() {}
 
@@ -163,6 +178,32 @@ public final class CollarConfiguration {
             return this;
         }
 
+        /**
+         * Controls how often the players location is sent while sharing it
+         * @param locationPublishing settings
+         * @return builder
+         */
+        public Builder withLocationPublishing(LocationPublishing locationPublishing) {
+            this.locationPublishing = locationPublishing;
+            return this;
+        }
+
+        /**
+         * Controls how dead connections are detected. The server pings the client regularly, so the connection is
+         * closed when nothing has been received from the server for peerTimeoutMillis
+         * @param pingIntervalMillis between pings sent to the server when nothing else has been sent
+         * @param peerTimeoutMillis to wait for anything from the server before closing the connection
+         * @return builder
+         */
+        public Builder withPing(long pingIntervalMillis, long peerTimeoutMillis) {
+            if (pingIntervalMillis <= 0 || peerTimeoutMillis <= pingIntervalMillis) {
+                throw new IllegalArgumentException("pingIntervalMillis must be positive and less than peerTimeoutMillis");
+            }
+            this.pingIntervalMillis = pingIntervalMillis;
+            this.peerTimeoutMillis = peerTimeoutMillis;
+            return this;
+        }
+
         /**
          * Builds the new configuration
          * @return configuration of the collar client
@@ -185,7 +226,7 @@ public final class CollarConfiguration {
                 LOGGER.log(Level.WARNING, "Location features are disabled. Consumer did not provide a player position supplier");
                 return Location.UNKNOWN;
             });
-            return new CollarConfiguration(playerPosition, sessionSupplier, entitiesSupplier, homeDirectory, debugging, collarServerURL, listener, ticks);
+            return new CollarConfiguration(playerPosition, sessionSupplier, entitiesSupplier, homeDirectory, debugging, collarServerURL, listener, ticks, locationPublishing, pingIntervalMillis, peerTimeoutMillis);
         }
     }
 }
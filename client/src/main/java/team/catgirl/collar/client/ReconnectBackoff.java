@@ -0,0 +1,41 @@
+package team.catgirl.collar.client;
+
+import java.util.Random;
+
+/**
+ * Delays reconnecting after the server turned the client away, doubling the delay each time it happens again and
+ * adding jitter so that clients turned away together do not all reconnect together
+ */
+final class ReconnectBackoff {
+    private static final long MAX_DELAY_MILLIS = 2 * 60 * 1000;
+    private static final int MAX_DOUBLINGS = 5;
+
+    private final Random random;
+    private int attempts;
+
+    ReconnectBackoff() {
+        this(new Random());
+    }
+
+    ReconnectBackoff(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @param retryAfterMillis the server asked the client to wait
+     * @return time to wait before reconnecting, never less than retryAfterMillis
+     */
+    synchronized long nextDelay(long retryAfterMillis) {
+        long base = Math.max(retryAfterMillis, Math.min(MAX_DELAY_MILLIS, retryAfterMillis << Math.min(attempts, MAX_DOUBLINGS)));
+        attempts++;
+        long jitter = base / 2;
+        return jitter > 0 ? base + (long) (random.nextDouble() * jitter) : base;
+    }
+
+    /**
+     * Called once connected so the next time the client is turned away it only waits as long as the server asks
+     */
+    synchronized void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,58 @@
+package team.catgirl.collar.client;
+
+import team.catgirl.collar.protocol.session.SessionTicketResponse;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+/**
+ * Ticket issued by the server that lets the client resume its session after reconnecting
+ */
+final class SessionTicket {
+    final byte[] ticket;
+    /** Player the session was started for. A ticket cannot be used after the player changes server **/
+    final MinecraftPlayer player;
+    final long renewAt;
+    final long expiresAt;
+
+    private SessionTicket(byte[] ticket, MinecraftPlayer player, long renewAt, long expiresAt) {
+        this.ticket = ticket;
+        this.player = player;
+        this.renewAt = renewAt;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Tickets are renewed half way through their lifetime. The lifetime is measured from when the ticket was
+     * received so that the client and server clocks do not need to agree.
+     * @param response containing the ticket
+     * @param player of the session
+     * @param now time the ticket was received
+     * @return ticket
+     */
+    static SessionTicket from(SessionTicketResponse response, MinecraftPlayer player, long now) {
+        return new SessionTicket(response.ticket, player, now + response.lifetimeMillis / 2, now + response.lifetimeMillis);
+    }
+
+    /**
+     * @param player the session would be resumed for
+     * @param now time
+     * @return true if the ticket can be used to resume a session for the player
+     */
+    boolean canResume(MinecraftPlayer player, long now) {
+        return now < expiresAt && this.player.equals(player);
+    }
+
+    /**
+     * @param now time
+     * @return true if a new ticket should be requested
+     */
+    boolean shouldRenew(long now) {
+        return now >= renewAt && now < expiresAt;
+    }
+
+    /**
+     * @return the same ticket, which will not ask to be renewed again
+     */
+    SessionTicket renewRequested() {
+        return new SessionTicket(ticket, player, expiresAt, expiresAt);
+    }
+}
@@ -1,11 +1,14 @@
 package team.catgirl.collar.client.api.location;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 import team.catgirl.collar.api.entities.Entity;
-import team.catgirl.collar.api.entities.EntityType;
 import team.catgirl.collar.api.groups.Group;
 import team.catgirl.collar.api.location.Location;
+import team.catgirl.collar.api.location.LocationFanOut;
 import team.catgirl.collar.api.session.Player;
 import team.catgirl.collar.api.waypoints.Waypoint;
 import team.catgirl.collar.client.Collar;
@@ -34,20 +37,52 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class LocationApi extends AbstractApi<LocationListener> {
 
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    /** Publish to groups nobody is listening to every 5 seconds, so that new listeners see the location **/
+    private static final int UNHEARD_PUBLISH_TICKS = 20 * 5;
+    /** Server feature for {@link UpdateNearbyDeltaRequest} **/
+    private static final String NEARBY_DELTA_FEATURE = "groups:nearby_delta";
+    /** Server feature for {@link SubscribeToLocationsRequest} and {@link UnsubscribeFromLocationsRequest} **/
+    private static final String SUBSCRIPTIONS_FEATURE = "groups:location_subscriptions";
+    /** Server feature for {@link UpdateLocationsRequest} **/
+    private static final String UPDATE_LOCATIONS_FEATURE = "groups:update_locations";
+    /** Server feature saying every client can read locations written by {@link Location#serializeCompact(byte[])} **/
+    private static final String LOCATION_V2_FEATURE = "groups:location_v2";
+
     private final HashSet<UUID> groupsSharingWith = new HashSet<>();
-    private final ConcurrentHashMap<Player, Location> playerLocations = new ConcurrentHashMap<>();
+    /** Members of each group in {@link #groupsSharingWith} that receive the location **/
+    private final Map<UUID, LocationFanOut> sharingFanOuts = new HashMap<>();
+    /** Groups the server said nobody is receiving our location from **/
+    private final Set<UUID> unheardGroups = ConcurrentHashMap.newKeySet();
+    /** Groups we receive locations from. Empty until {@link #subscribeTo(Group)} is first called **/
+    private final Set<UUID> subscribedGroups = ConcurrentHashMap.newKeySet();
+    /** Groups unsubscribed from, so that being subscribed to no groups is restored after reconnecting **/
+    private final Set<UUID> unsubscribedGroups = ConcurrentHashMap.newKeySet();
+    private int sharingTicks;
+    /** Reused for every location sent, which is only done from the client tick **/
+    private final byte[] locationBuffer = new byte[Location.COMPACT_SERIALIZED_SIZE];
+    private final ConcurrentHashMap<Player, TrackedLocation> playerLocations = new ConcurrentHashMap<>();
     private final ConcurrentMap<UUID, Waypoint> privateWaypoints = new ConcurrentHashMap<>();
     private final ConcurrentMap<UUID, Map<UUID, Waypoint>> groupWaypoints = new ConcurrentHashMap<>();
     private final Supplier<Location> locationSupplier;
     private final LocationUpdater updater;
+    private final LocationPublisher publisher;
+    private final boolean deadReckoning;
     private final NearbyUpdater nearbyUpdater;
     private final SDHTApi sdhtApi;
     private final SDHTListenerImpl sdhtListener;
+    /** Tests if the server advertised a feature when the client connected **/
+    private final Predicate<String> serverFeatures;
+    /** sha256 of entity ids, kept while the entity is likely to still be nearby **/
+    private final Cache<Integer, byte[]> nearbyHashes = CacheBuilder.newBuilder()
+            .maximumSize(NearbyUpdater.MAX_NEARBY_PLAYERS * 4)
+            .build();
 
     public LocationApi(Collar collar,
                        Supplier<ClientIdentityStore> identityStoreSupplier,
@@ -56,9 +91,14 @@ public class LocationApi extends AbstractApi<LocationListener> {
                        GroupsApi groupsApi,
                        SDHTApi sdhtApi,
                        Supplier<Location> locationSupplier,
-                       Supplier<Set<Entity>> entityListSupplier) {
+                       Supplier<Set<Entity>> entityListSupplier,
+                       LocationPublishing publishing,
+                       Predicate<String> serverFeatures) {
         super(collar, identityStoreSupplier, sender);
         this.locationSupplier = locationSupplier;
+        this.serverFeatures = serverFeatures;
+        this.publisher = new LocationPublisher(publishing);
+        this.deadReckoning = publishing.deadReckoning;
         this.updater = new LocationUpdater(this, ticks);
         this.nearbyUpdater = new NearbyUpdater(entityListSupplier, this, ticks);
         groupsApi.subscribe(new GroupListenerImpl());
@@ -72,7 +112,10 @@ public class LocationApi extends AbstractApi<LocationListener> {
      * @return players to their locations
      */
     public Map<Player, Location> playerLocations() {
-        return new HashMap<>(playerLocations);
+        long now = System.currentTimeMillis();
+        Map<Player, Location> locations = new HashMap<>();
+        playerLocations.forEach((player, tracked) -> locations.put(player, deadReckoning ? tracked.estimate(now) : tracked.latest));
+        return locations;
     }
 
     /**
@@ -96,17 +139,55 @@ public class LocationApi extends AbstractApi<LocationListener> {
     }
 
     /**
-     * Start sharing your coordinates with a group
+     * Only receive the locations of players sharing with the groups you subscribe to, e.g. while a map of the group is
+     * open. Until this is first called, the locations of players sharing with every group you are in are received.
+     * Servers that do not support subscriptions keep sending the locations shared with every group.
+     * @param group to receive locations from
+     */
+    public void subscribeTo(Group group) {
+        subscribedGroups.add(group.id);
+        unsubscribedGroups.remove(group.id);
+        if (serverFeatures.test(SUBSCRIPTIONS_FEATURE)) {
+            sender.accept(new SubscribeToLocationsRequest(identity(), group.id));
+        }
+    }
+
+    /**
+     * Stop receiving the locations of players sharing with a group
+     * @param group to stop receiving locations from
+     */
+    public void unsubscribeFrom(Group group) {
+        subscribedGroups.remove(group.id);
+        unsubscribedGroups.add(group.id);
+        if (serverFeatures.test(SUBSCRIPTIONS_FEATURE)) {
+            sender.accept(new UnsubscribeFromLocationsRequest(identity(), group.id));
+        }
+    }
+
+    /**
+     * Start sharing your coordinates with every member of a group
      * @param group to share with
      */
     public void startSharingWith(Group group) {
+        startSharingWith(group, LocationFanOut.ALL);
+    }
+
+    /**
+     * Start sharing your coordinates with a group
+     * @param group to share with
+     * @param fanOut members of the group that receive your coordinates
+     */
+    public void startSharingWith(Group group, LocationFanOut fanOut) {
         // Start sharing
         if (!this.updater.isRunning()) {
             this.updater.start();
         }
         synchronized (this) {
             groupsSharingWith.add(group.id);
-            sender.accept(new StartSharingLocationRequest(identity(), group.id));
+            sharingFanOuts.put(group.id, fanOut);
+            sender.accept(new StartSharingLocationRequest(identity(), group.id, fanOut));
+            // Members of the group receive the location straight away rather than when the player next moves
+            publisher.reset();
             if (!updater.isRunning()) {
                 updater.start();
             }
@@ -126,6 +207,35 @@ public class LocationApi extends AbstractApi<LocationListener> {
         fireListener("onStoppedSharingLocation", listener -> listener.onStoppedSharingLocation(collar, this, group));
     }
 
+    /**
+     * @return the groups you are sharing your coordinates with and who in each group receives them
+     */
+    public Map<UUID, LocationFanOut> sharing() {
+        synchronized (this) {
+            return new HashMap<>(sharingFanOuts);
+        }
+    }
+
+    /**
+     * Carry on sharing your coordinates after Collar has resumed the session.
+     * The server does not restore sharing when it resumes the session, so sharing is started again with each group.
+     * @param sharing returned by {@link #sharing()} before the connection dropped
+     */
+    public void resumeSharing(Map<UUID, LocationFanOut> sharing) {
+        if (sharing.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            groupsSharingWith.addAll(sharing.keySet());
+            sharingFanOuts.putAll(sharing);
+            sharing.forEach((groupId, fanOut) -> sender.accept(new StartSharingLocationRequest(identity(), groupId, fanOut)));
+            publisher.reset();
+            if (!updater.isRunning()) {
+                updater.start();
+            }
+        }
+    }
+
     /**
      * Tests if you are currently sharing with the group
      * @param group to test
@@ -213,62 +323,142 @@ public class LocationApi extends AbstractApi<LocationListener> {
                 updater.stop();
             }
             groupsSharingWith.remove(group.id);
+            sharingFanOuts.remove(group.id);
+            unheardGroups.remove(group.id);
         }
     }
 
     void publishLocation() {
         if (!groupsSharingWith.isEmpty()) {
             Location location = locationSupplier.get();
-            byte[] bytes = location.serialize();
+            boolean publish = publisher.shouldPublish(location);
+            boolean publishUnheard = sharingTicks++ % UNHEARD_PUBLISH_TICKS == 0;
+            if (!publish && !publishUnheard) {
+                return;
+            }
+            // Serialized once and encrypted for each group. Older clients can only read version 1 locations
+            byte[] bytes;
+            if (serverFeatures.test(LOCATION_V2_FEATURE)) {
+                location.serializeCompact(locationBuffer);
+                bytes = locationBuffer;
+            } else {
+                bytes = location.serialize();
+            }
+            Map<UUID, byte[]> locations = new LinkedHashMap<>();
             groupsSharingWith.forEach(groupId -> {
+                if (unheardGroups.contains(groupId) ? !publishUnheard : !publish) {
+                    return;
+                }
                 collar.groups().findGroupById(groupId).ifPresent(group -> {
-                    byte[] encryptedBytes;
                     try {
-                        encryptedBytes = identityStore().createCypher().crypt(identity(), group, bytes);
+                        locations.put(groupId, identityStore().createCypher().crypt(identity(), group, bytes));
                     } catch (CipherException e) {
                         throw new IllegalStateException(e);
                     }
-                    sender.accept(new UpdateLocationRequest(identity(), groupId, encryptedBytes));
                 });
             });
+            if (locations.size() == 1 || !serverFeatures.test(UPDATE_LOCATIONS_FEATURE)) {
+                // Older servers are sent the location for each group on its own
+                locations.forEach((groupId, encrypted) -> sender.accept(new UpdateLocationRequest(identity(), groupId, encrypted)));
+            } else if (!locations.isEmpty()) {
+                // Sent in as few packets as possible so it is only encrypted and decrypted once by the transport
+                Map<UUID, byte[]> batch = new LinkedHashMap<>();
+                for (Map.Entry<UUID, byte[]> entry : locations.entrySet()) {
+                    batch.put(entry.getKey(), entry.getValue());
+                    if (batch.size() == UpdateLocationsRequest.MAX_GROUPS) {
+                        sender.accept(new UpdateLocationsRequest(identity(), batch));
+                        batch = new LinkedHashMap<>();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    sender.accept(new UpdateLocationsRequest(identity(), batch));
+                }
+            }
         }
     }
 
-    void publishNearby(Set<Entity> entities) {
-        Set<String> nearbyHashes = entities.stream().filter(entity -> entity.isTypeOf(EntityType.PLAYER))
-                .limit(200)
-                .map(entity -> Hashing.sha256().hashString(entity.id.toString(), StandardCharsets.UTF_8).toString())
-                .collect(Collectors.toSet());
+    void publishNearby(Set<Integer> players) {
+        Set<String> nearbyHashes = new HashSet<>();
+        for (Integer player : players) {
+            nearbyHashes.add(HEX.encode(nearbyHash(player)));
+        }
         sender.accept(new UpdateNearbyRequest(identity(), nearbyHashes));
     }
 
+    /**
+     * @return whether the server accepts {@link UpdateNearbyDeltaRequest}. Older servers are always sent every nearby player.
+     */
+    boolean canPublishNearbyDelta() {
+        return serverFeatures.test(NEARBY_DELTA_FEATURE);
+    }
+
+    void publishNearbyDelta(Set<Integer> added, Set<Integer> removed) {
+        sender.accept(new UpdateNearbyDeltaRequest(identity(), nearbyHashes(added), nearbyHashes(removed)));
+    }
+
+    private byte[] nearbyHashes(Set<Integer> players) {
+        byte[] hashes = new byte[players.size() * UpdateNearbyDeltaRequest.HASH_LENGTH];
+        int offset = 0;
+        for (Integer player : players) {
+            System.arraycopy(nearbyHash(player), 0, hashes, offset, UpdateNearbyDeltaRequest.HASH_LENGTH);
+            offset += UpdateNearbyDeltaRequest.HASH_LENGTH;
+        }
+        return hashes;
+    }
+
+    private byte[] nearbyHash(Integer player) {
+        byte[] hash = nearbyHashes.getIfPresent(player);
+        if (hash == null) {
+            hash = Hashing.sha256().hashString(player.toString(), StandardCharsets.UTF_8).asBytes();
+            nearbyHashes.put(player, hash);
+        }
+        return hash;
+    }
+
+    private void updatePlayerLocation(LocationUpdatedResponse response) {
+        synchronized (this) {
+            collar.groups().findGroupById(response.group).ifPresent(group -> {
+                Location location;
+                if (response.location == null) {
+                    // Stopped sharing
+                    location = Location.UNKNOWN;
+                } else {
+                    try {
+                        byte[] decryptedBytes = identityStore().createCypher().decrypt(response.sender, group, response.location);
+                        location = new Location(decryptedBytes);
+                    } catch (IOException | CipherException e) {
+                        throw new IllegalStateException("could not decrypt location sent by " + response.sender);
+                    }
+                }
+                if (location.equals(Location.UNKNOWN)) {
+                    // Remove if stooped sharing
+                    playerLocations.remove(response.player);
+                } else {
+                    // Update the location
+                    long now = System.currentTimeMillis();
+                    playerLocations.compute(response.player, (player, tracked) -> tracked == null ? TrackedLocation.of(location, now) : tracked.update(location, now));
+                }
+                fireListener("onLocationUpdated", listener -> listener.onLocationUpdated(collar, this, response.player, location));
+            });
+        }
+    }
+
     @Override
     public boolean handleResponse(ProtocolResponse resp) {
         if (resp instanceof LocationUpdatedResponse) {
-            LocationUpdatedResponse response = (LocationUpdatedResponse) resp;
-            synchronized (this) {
-                collar.groups().findGroupById(response.group).ifPresent(group -> {
-                    Location location;
-                    if (response.location == null) {
-                        // Stopped sharing
-                        location = Location.UNKNOWN;
-                    } else {
-                        try {
-                            byte[] decryptedBytes = identityStore().createCypher().decrypt(response.sender, group, response.location);
-                            location = new Location(decryptedBytes);
-                        } catch (IOException | CipherException e) {
-                            throw new IllegalStateException("could not decrypt location sent by " + response.sender);
-                        }
-                    }
-                    if (location.equals(Location.UNKNOWN)) {
-                        // Remove if stooped sharing
-                        playerLocations.remove(response.player);
-                    } else {
-                        // Update the location
-                        playerLocations.put(response.player, location);
-                    }
-                    fireListener("onLocationUpdated", listener -> listener.onLocationUpdated(collar, this, response.player, location));
-                });
+            updatePlayerLocation((LocationUpdatedResponse) resp);
+            return true;
+        } else if (resp instanceof LocationsUpdatedResponse) {
+            LocationsUpdatedResponse response = (LocationsUpdatedResponse) resp;
+            response.updates.forEach(this::updatePlayerLocation);
+            return true;
+        } else if (resp instanceof LocationSubscribersResponse) {
+            LocationSubscribersResponse response = (LocationSubscribersResponse) resp;
+            if (response.listening) {
+                unheardGroups.remove(response.group);
+                publisher.reset();
+            } else {
+                unheardGroups.add(response.group);
             }
             return true;
         } else if (resp instanceof GetWaypointsResponse) {
@@ -296,10 +486,19 @@ public class LocationApi extends AbstractApi<LocationListener> {
         if (state == Collar.State.CONNECTED) {
             nearbyUpdater.start();
             sender.accept(new GetWaypointsRequest(identity()));
+            if (serverFeatures.test(SUBSCRIPTIONS_FEATURE)) {
+                subscribedGroups.forEach(groupId -> sender.accept(new SubscribeToLocationsRequest(identity(), groupId)));
+                if (subscribedGroups.isEmpty()) {
+                    // Unsubscribing again tells the server to send nothing rather than every group's locations
+                    unsubscribedGroups.stream().findFirst().ifPresent(groupId -> sender.accept(new UnsubscribeFromLocationsRequest(identity(), groupId)));
+                }
+            }
         } else if (state == Collar.State.DISCONNECTED) {
             synchronized (this) {
                 playerLocations.clear();
                 groupsSharingWith.clear();
+                sharingFanOuts.clear();
+                unheardGroups.clear();
             }
             nearbyUpdater.stop();
         }
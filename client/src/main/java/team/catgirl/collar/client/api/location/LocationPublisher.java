@@ -0,0 +1,69 @@
+package team.catgirl.collar.client.api.location;
+
+import team.catgirl.collar.api.location.Location;
+
+/**
+ * Decides on each client tick whether the player's location should be sent
+ */
+final class LocationPublisher {
+
+    private static final int TICKS_PER_SECOND = 20;
+
+    private final double minDistanceSquared;
+    private final int maxUpdatesPerSecond;
+    /** Credits carried over between ticks, enough for one update without building up a burst while standing still **/
+    private final int maxCredits;
+    private final int heartbeatTicks;
+    private Location published;
+    private int ticksSincePublished;
+    /** Each tick earns maxUpdatesPerSecond credits and each update costs a second's worth of ticks **/
+    private int credits;
+
+    LocationPublisher(LocationPublishing settings) {
+        this.minDistanceSquared = settings.minDistance * settings.minDistance;
+        this.maxUpdatesPerSecond = settings.maxUpdatesPerSecond;
+        this.maxCredits = TICKS_PER_SECOND + settings.maxUpdatesPerSecond - 1;
+        this.heartbeatTicks = settings.heartbeatSeconds * TICKS_PER_SECOND;
+        this.credits = TICKS_PER_SECOND;
+    }
+
+    /**
+     * Called once per tick
+     * @param location of the player
+     * @return whether to send the location
+     */
+    boolean shouldPublish(Location location) {
+        ticksSincePublished++;
+        credits = Math.min(credits + maxUpdatesPerSecond, maxCredits);
+        boolean publish;
+        if (published == null) {
+            publish = true;
+        } else if (credits < TICKS_PER_SECOND) {
+            publish = false;
+        } else {
+            publish = published.dimension != location.dimension
+                    || distanceSquared(published, location) >= minDistanceSquared
+                    || ticksSincePublished >= heartbeatTicks;
+        }
+        if (publish) {
+            published = location;
+            ticksSincePublished = 0;
+            credits = Math.max(credits - TICKS_PER_SECOND, 0);
+        }
+        return publish;
+    }
+
+    /**
+     * Send the location on the next tick, e.g. when someone new will receive it
+     */
+    void reset() {
+        published = null;
+    }
+
+    static double distanceSquared(Location from, Location to) {
+        double x = to.x - from.x;
+        double y = to.y - from.y;
+        double z = to.z - from.z;
+        return x * x + y * y + z * z;
+    }
+}
@@ -0,0 +1,41 @@
+package team.catgirl.collar.client.api.location;
+
+/**
+ * Controls how often your location is sent to the groups you are sharing with.
+ * Your location is sent when you move far enough or change dimension, no more than {@link #maxUpdatesPerSecond} times
+ * a second, and every {@link #heartbeatSeconds} while standing still.
+ */
+public final class LocationPublishing {
+
+    /** Blocks moved before your location is sent again **/
+    public final double minDistance;
+    /** Maximum number of times a second your location is sent **/
+    public final int maxUpdatesPerSecond;
+    /** Seconds between sending your location while standing still **/
+    public final int heartbeatSeconds;
+    /** Whether {@link LocationApi#playerLocations()} estimates where players are between their updates **/
+    public final boolean deadReckoning;
+
+    public LocationPublishing(double minDistance, int maxUpdatesPerSecond, int heartbeatSeconds, boolean deadReckoning) {
+        if (minDistance < 0) {
+            throw new IllegalArgumentException("minDistance must not be negative");
+        }
+        if (maxUpdatesPerSecond < 1 || maxUpdatesPerSecond > 20) {
+            throw new IllegalArgumentException("maxUpdatesPerSecond must be between 1 and 20");
+        }
+        if (heartbeatSeconds < 1) {
+            throw new IllegalArgumentException("heartbeatSeconds must be positive");
+        }
+        this.minDistance = minDistance;
+        this.maxUpdatesPerSecond = maxUpdatesPerSecond;
+        this.heartbeatSeconds = heartbeatSeconds;
+        this.deadReckoning = deadReckoning;
+    }
+
+    /**
+     * @return send after moving half a block, up to 5 times a second, and every 5 seconds while standing still
+     */
+    public static LocationPublishing defaults() {
+        return new LocationPublishing(0.5, 5, 5, false);
+    }
+}
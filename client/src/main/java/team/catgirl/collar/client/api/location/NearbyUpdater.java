@@ -1,6 +1,7 @@
 package team.catgirl.collar.client.api.location;
 
 import team.catgirl.collar.api.entities.Entity;
+import team.catgirl.collar.api.entities.EntityType;
 import team.catgirl.collar.client.minecraft.Ticks;
 import team.catgirl.collar.client.minecraft.Ticks.TickListener;
 
@@ -9,13 +10,23 @@ import java.util.Set;
 import java.util.function.Supplier;
 
 /**
- * Updates nearby player states without sending coordinates to the server
+ * Updates nearby player states without sending coordinates to the server.
+ * Only the players that came into or went out of view are sent, with the full set of players sent periodically
+ * in case the server's view has drifted. Servers that do not accept the changes are sent the full set every time.
  */
 public final class NearbyUpdater implements TickListener {
 
+    /** Maximum number of nearby players sent to the server **/
+    static final int MAX_NEARBY_PLAYERS = 200;
+    /** Send the full set of nearby players every 30 seconds **/
+    private static final int RESYNC_TICKS = 20 * 30;
+
     private final Supplier<Set<Entity>> entitySuppliers;
     private final LocationApi locationApi;
-    private final Set<Entity> entities = new HashSet<>();
+    /** Entity ids of the nearby players last sent to the server **/
+    private final Set<Integer> players = new HashSet<>();
+    private int ticksSinceResync;
+    private boolean resync;
     private volatile boolean update = false;
 
     public NearbyUpdater(Supplier<Set<Entity>> entitySuppliers, LocationApi locationApi, Ticks ticks) {
@@ -29,21 +40,42 @@ public final class NearbyUpdater implements TickListener {
         if (!update) {
             return;
         }
-        Set<Entity> entities = entitySuppliers.get();
-        if (!this.entities.equals(entities)) {
-            locationApi.publishNearby(entities);
-            this.entities.clear();
-            this.entities.addAll(entities);
+        Set<Integer> current = new HashSet<>();
+        for (Entity entity : entitySuppliers.get()) {
+            if (current.size() >= MAX_NEARBY_PLAYERS) {
+                break;
+            }
+            if (entity.isTypeOf(EntityType.PLAYER)) {
+                current.add(entity.id);
+            }
+        }
+        ticksSinceResync++;
+        if (current.equals(players) && (current.isEmpty() || ticksSinceResync < RESYNC_TICKS)) {
+            return;
+        }
+        if (resync || ticksSinceResync >= RESYNC_TICKS || !locationApi.canPublishNearbyDelta()) {
+            locationApi.publishNearby(current);
+            resync = false;
+            ticksSinceResync = 0;
+        } else {
+            Set<Integer> added = new HashSet<>(current);
+            added.removeAll(players);
+            Set<Integer> removed = new HashSet<>(players);
+            removed.removeAll(current);
+            locationApi.publishNearbyDelta(added, removed);
         }
+        players.clear();
+        players.addAll(current);
     }
 
     public void start() {
-        entities.clear();
+        players.clear();
+        resync = true;
         update = true;
     }
 
     public void stop() {
-        entities.clear();
+        players.clear();
         update = false;
     }
 }
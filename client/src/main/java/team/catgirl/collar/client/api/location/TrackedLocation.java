@@ -0,0 +1,65 @@
+package team.catgirl.collar.client.api.location;
+
+import team.catgirl.collar.api.location.Location;
+
+/**
+ * The last two locations received from a player, used to estimate where they are between updates
+ */
+final class TrackedLocation {
+
+    /** Players are only moved along their last heading for up to a second after their last update **/
+    static final long MAX_EXTRAPOLATION_MILLIS = 1000;
+    /** Blocks between an estimate and the location received for it before the player's last heading is dropped **/
+    static final double MAX_ESTIMATE_ERROR = 1;
+
+    private final Location previous;
+    private final long previousAt;
+    final Location latest;
+    private final long latestAt;
+
+    private TrackedLocation(Location previous, long previousAt, Location latest, long latestAt) {
+        this.previous = previous;
+        this.previousAt = previousAt;
+        this.latest = latest;
+        this.latestAt = latestAt;
+    }
+
+    static TrackedLocation of(Location location, long receivedAt) {
+        return new TrackedLocation(null, 0, location, receivedAt);
+    }
+
+    /**
+     * @param location received
+     * @param receivedAt time received in milliseconds
+     * @return tracked location with the new location as the latest
+     */
+    TrackedLocation update(Location location, long receivedAt) {
+        Location estimated = estimate(receivedAt);
+        if (estimated != latest && (estimated.dimension != location.dimension
+                || LocationPublisher.distanceSquared(estimated, location) > MAX_ESTIMATE_ERROR * MAX_ESTIMATE_ERROR)) {
+            // The player stopped or turned, so the estimate overshot. Anchor on where they are until they move again
+            return of(location, receivedAt);
+        }
+        return new TrackedLocation(latest, latestAt, location, receivedAt);
+    }
+
+    /**
+     * @param now time in milliseconds
+     * @return estimated location, moving the player along the heading between their last two locations
+     */
+    Location estimate(long now) {
+        long elapsed = latestAt - previousAt;
+        if (previous == null || previous.dimension != latest.dimension || elapsed <= 0) {
+            return latest;
+        }
+        double scale = (double) Math.min(now - latestAt, MAX_EXTRAPOLATION_MILLIS) / elapsed;
+        if (scale <= 0) {
+            return latest;
+        }
+        return new Location(
+                latest.x + (latest.x - previous.x) * scale,
+                latest.y + (latest.y - previous.y) * scale,
+                latest.z + (latest.z - previous.z) * scale,
+                latest.dimension);
+    }
+}
@@ -35,6 +35,13 @@ public interface ClientIdentityStore {
      */
     boolean isTrustedIdentity(Identity identity);
 
+    /**
+     * Signs the message with the identity key so the server can tell it came from the holder of {@link #currentIdentity()}
+     * @param message to sign
+     * @return signature
+     */
+    byte[] sign(byte[] message);
+
     /**
      * Trusts the identity
      * @param owner identity
@@ -39,6 +39,11 @@ public class ResettableClientIdentityStore implements ClientIdentityStore {
         return currentIdentityStore.isTrustedIdentity(identity);
     }
 
+    @Override
+    public byte[] sign(byte[] message) {
+        return currentIdentityStore.sign(message);
+    }
+
     @Override
     public void trustIdentity(Identity owner, byte[] preKeyBundle) {
         currentIdentityStore.trustIdentity(owner, preKeyBundle);
@@ -2,6 +2,7 @@ package team.catgirl.collar.client.security.signal;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.whispersystems.libsignal.*;
+import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.groups.GroupSessionBuilder;
 import org.whispersystems.libsignal.groups.SenderKeyName;
 import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
@@ -80,6 +81,15 @@ public final class SignalClientIdentityStore implements ClientIdentityStore {
         return store.isTrustedIdentity(signalProtocolAddressFrom(identity), identityKeyFrom(identity), null);
     }
 
+    @Override
+    public byte[] sign(byte[] message) {
+        try {
+            return Curve.calculateSignature(store.getIdentityKeyPair().getPrivateKey(), message);
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException("bad key", e);
+        }
+    }
+
     @Override
     public void trustIdentity(Identity owner, byte[] preKeyBundle) {
         if (isTrustedIdentity(owner)) {
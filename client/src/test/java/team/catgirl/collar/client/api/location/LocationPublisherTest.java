@@ -0,0 +1,91 @@
+package team.catgirl.collar.client.api.location;
+
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.location.Dimension;
+import team.catgirl.collar.api.location.Location;
+
+public class LocationPublisherTest {
+
+    private final LocationPublisher publisher = new LocationPublisher(new LocationPublishing(1, 5, 5, false));
+
+    @Test
+    public void standingStillOnlySendsHeartbeat() {
+        Location location = new Location(0d, 64d, 0d, Dimension.OVERWORLD);
+        int published = 0;
+        for (int tick = 0; tick < 20 * 60; tick++) {
+            if (publisher.shouldPublish(location)) {
+                published++;
+            }
+        }
+        // The first location then one every 5 seconds of the remaining 55 seconds
+        Assert.assertEquals(1 + 11, published);
+    }
+
+    @Test
+    public void movingIsRateLimited() {
+        int published = 0;
+        for (int tick = 0; tick < 20; tick++) {
+            if (publisher.shouldPublish(new Location((double) tick * 10, 64d, 0d, Dimension.OVERWORLD))) {
+                published++;
+            }
+        }
+        Assert.assertEquals(5, published);
+    }
+
+    @Test
+    public void rateLimitIsNotRoundedToWholeTicks() {
+        LocationPublisher publisher = new LocationPublisher(new LocationPublishing(1, 7, 5, false));
+        int published = 0;
+        for (int tick = 0; tick < 20 * 10; tick++) {
+            if (publisher.shouldPublish(new Location((double) tick * 10, 64d, 0d, Dimension.OVERWORLD))) {
+                published++;
+            }
+        }
+        Assert.assertEquals(7 * 10, published);
+    }
+
+    @Test
+    public void smallMovementsAndDimensionChanges() {
+        Assert.assertTrue(publisher.shouldPublish(new Location(0d, 64d, 0d, Dimension.OVERWORLD)));
+        skipTicks();
+        Assert.assertFalse(publisher.shouldPublish(new Location(0.5d, 64d, 0d, Dimension.OVERWORLD)));
+        Assert.assertTrue(publisher.shouldPublish(new Location(1d, 64d, 0d, Dimension.OVERWORLD)));
+        skipTicks();
+        Assert.assertTrue(publisher.shouldPublish(new Location(1d, 64d, 0d, Dimension.NETHER)));
+        publisher.reset();
+        Assert.assertTrue(publisher.shouldPublish(new Location(1d, 64d, 0d, Dimension.NETHER)));
+    }
+
+    @Test
+    public void deadReckoningFollowsLastHeading() {
+        TrackedLocation tracked = TrackedLocation.of(new Location(0d, 64d, 0d, Dimension.OVERWORLD), 1000)
+                .update(new Location(2d, 64d, 0d, Dimension.OVERWORLD), 1200);
+        Assert.assertEquals(3d, tracked.estimate(1300).x, 0.0001);
+        Assert.assertEquals("only extrapolated for a second", 12d, tracked.estimate(5000).x, 0.0001);
+        tracked = tracked.update(new Location(2d, 64d, 0d, Dimension.NETHER), 1400);
+        Assert.assertEquals(2d, tracked.estimate(1500).x, 0.0001);
+    }
+
+    @Test
+    public void deadReckoningReanchorsAfterOvershooting() {
+        TrackedLocation tracked = TrackedLocation.of(new Location(0d, 64d, 0d, Dimension.OVERWORLD), 0)
+                .update(new Location(2d, 64d, 0d, Dimension.OVERWORLD), 200);
+        Assert.assertEquals(12d, tracked.estimate(5000).x, 0.0001);
+        // The player stopped shortly after their last update and the heartbeat says where
+        tracked = tracked.update(new Location(3d, 64d, 0d, Dimension.OVERWORLD), 5000);
+        Assert.assertEquals(3d, tracked.estimate(5200).x, 0.0001);
+        // Once they move again they are extrapolated from where they stopped
+        tracked = tracked.update(new Location(5d, 64d, 0d, Dimension.OVERWORLD), 5400);
+        Assert.assertEquals(5.5d, tracked.estimate(5500).x, 0.0001);
+        // Small errors keep the heading
+        tracked = tracked.update(new Location(7.5d, 64d, 0d, Dimension.OVERWORLD), 5800);
+        Assert.assertEquals(8.125d, tracked.estimate(5900).x, 0.0001);
+    }
+
+    private void skipTicks() {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(publisher.shouldPublish(new Location(100d, 64d, 0d, Dimension.END)));
+        }
+    }
+}
@@ -4,51 +4,44 @@ import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.Bucket4j;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.*;
-import team.catgirl.collar.api.http.RequestContext;
-import team.catgirl.collar.api.profiles.Profile;
-import team.catgirl.collar.api.profiles.ProfileService.UpdateProfileRequest;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
 import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.io.BufferPool;
 import team.catgirl.collar.protocol.PacketIO;
 import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
-import team.catgirl.collar.protocol.devices.RegisterDeviceResponse;
-import team.catgirl.collar.protocol.identity.IdentifyRequest;
-import team.catgirl.collar.protocol.identity.IdentifyResponse;
-import team.catgirl.collar.protocol.keepalive.KeepAliveRequest;
-import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
-import team.catgirl.collar.protocol.session.SessionFailedResponse.MojangVerificationFailedResponse;
-import team.catgirl.collar.protocol.session.SessionFailedResponse.PrivateIdentityMismatchResponse;
-import team.catgirl.collar.protocol.session.StartSessionRequest;
-import team.catgirl.collar.protocol.session.StartSessionResponse;
+import team.catgirl.collar.protocol.session.SessionFailedResponse.ServerBusyResponse;
 import team.catgirl.collar.protocol.signal.ResendPreKeysResponse;
-import team.catgirl.collar.protocol.signal.SendPreKeysRequest;
-import team.catgirl.collar.protocol.signal.SendPreKeysResponse;
-import team.catgirl.collar.protocol.trust.CheckTrustRelationshipRequest;
-import team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse;
-import team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse.IsTrustedRelationshipResponse;
-import team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse.IsUntrustedRelationshipResponse;
 import team.catgirl.collar.security.ClientIdentity;
-import team.catgirl.collar.security.ServerIdentity;
-import team.catgirl.collar.security.TokenGenerator;
+import team.catgirl.collar.security.cipher.Cipher;
 import team.catgirl.collar.security.cipher.CipherException;
 import team.catgirl.collar.security.cipher.CipherException.InvalidCipherSessionException;
-import team.catgirl.collar.security.mojang.MinecraftPlayer;
-import team.catgirl.collar.security.mojang.Mojang;
+import team.catgirl.collar.server.configuration.Configuration;
 import team.catgirl.collar.server.protocol.*;
-import team.catgirl.collar.server.services.profiles.ProfileCache;
+import team.catgirl.collar.server.session.HandshakeAdmission;
+import team.catgirl.collar.server.session.OutboundScheduler;
+import team.catgirl.collar.server.session.SessionExecutor;
+import team.catgirl.collar.server.session.SessionPinger;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -56,21 +49,48 @@ import java.util.logging.Logger;
 @WebSocket
 public class CollarServer {
     private static final Logger LOGGER = Logger.getLogger(CollarServer.class.getName());
+    /** Time a handshake can take before it stops counting towards the handshake limit, e.g. while registering a device **/
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 30000;
+    /** Time queued requests have to finish when the server stops **/
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
 
     private final List<ProtocolHandler> protocolHandlers;
     private final BiConsumer<ClientIdentity, Player> sessionStarted;
     private final BiConsumer<ClientIdentity, Player> sessionStopped;
     private final ConcurrentMap<Session, Bucket> buckets = new ConcurrentHashMap<>();
+    /** Outbound packets are encoded into these buffers and returned once Jetty has written them **/
+    private final BufferPool buffers = new BufferPool(Short.MAX_VALUE, 256);
+    private final ProtocolRequestDispatcher dispatcher;
+    /** Requests are processed off the socket thread, in order per session **/
+    private final SessionExecutor executor = new SessionExecutor(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), 256);
+    /** Responses are written to each session one at a time, and only encoded when they are written **/
+    private final OutboundScheduler outbound;
+    /** Encodes and writes the responses queued behind a written response, so Jetty's I/O threads never encrypt **/
+    private final ExecutorService outboundDrainer;
+    /** Limits the number of sessions handshaking at once so that reconnect storms are spread out **/
+    private final HandshakeAdmission admission;
+    private final long handshakeRetryAfterMillis;
+    /** Checks sessions are alive with WebSocket pings and measures their round trip time **/
+    private final SessionPinger pinger;
     private final Services services;
-    private final ProfileCache profileCache;
 
-    public CollarServer(Services services) {
+    public CollarServer(Services services, Configuration configuration) {
         this.services = services;
-        this.profileCache = services.profileCache;
+        AtomicInteger drainerThreadCount = new AtomicInteger();
+        this.outboundDrainer = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "collar-outbound-" + drainerThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.outbound = new OutboundScheduler(this::write, outboundDrainer, configuration.outboundMaxBytes, configuration.outboundOverBudgetMillis, session -> rejectSession(session, "Too many responses queued"));
+        this.admission = new HandshakeAdmission(configuration.maxHandshakes, configuration.maxQueuedHandshakes, configuration.handshakeQueueMillis, HANDSHAKE_TIMEOUT_MILLIS, this::turnAway);
+        this.handshakeRetryAfterMillis = configuration.handshakeRetryAfterMillis;
+        this.pinger = new SessionPinger(configuration.pingIntervalMillis, configuration.peerTimeoutMillis, this::ping, this::disconnect);
         this.protocolHandlers = new ArrayList<>();
         this.sessionStarted = (identity, player) -> protocolHandlers.forEach(protocolHandler -> protocolHandler.onSessionStarted(identity, player, this::send));
         this.sessionStopped = (identity, player) -> protocolHandlers.forEach(protocolHandler -> protocolHandler.onSessionStopping(identity, player, this::send));
 
+        protocolHandlers.add(new HandshakeProtocolHandler(services));
         protocolHandlers.add(new GroupsProtocolHandler(services.groups));
         protocolHandlers.add(new LocationProtocolHandler(services.playerLocations, services.waypoints, services.identityStore.getIdentity()));
         protocolHandlers.add(new TexturesProtocolHandler(services.identityStore.getIdentity(), services.profileCache, services.sessions, services.textures));
@@ -78,6 +98,12 @@ public class CollarServer {
         protocolHandlers.add(new MessagingProtocolHandler(services.sessions, services.groups, services.identityStore.getIdentity()));
         protocolHandlers.add(new SDHTProtocolHandler(services.groups, services.sessions, services.identityStore.getIdentity()));
         protocolHandlers.add(new FriendsProtocolHandler(services.identityStore.getIdentity(), services.profileCache, services.friends, services.sessions));
+        this.dispatcher = new ProtocolRequestDispatcher(protocolHandlers);
+        services.sessions.start(this::send);
+        services.locationRelay.start(response -> send(null, response));
+        services.nearbyGroupLifecycle.start(result -> services.groups.updateNearbyGroups(result).ifPresent(response -> send(null, response)));
+        admission.start();
+        pinger.start();
     }
 
     @OnWebSocketConnect
@@ -87,109 +113,171 @@ public class CollarServer {
                 .addLimit(Bandwidth.simple(18000, Duration.ofSeconds(3600)))
                 .addLimit(Bandwidth.simple(50, Duration.ofSeconds(1)))
                 .build());
+        outbound.add(session);
+        executor.add(session);
+        pinger.add(session);
+        admission.connected(session);
     }
 
     @OnWebSocketClose
     public void closed(Session session, int statusCode, String reason) {
         LOGGER.log(Level.INFO, "Session closed " + statusCode + " " + reason);
-        services.sessions.stopSession(session, reason, null, sessionStopped);
-        services.deviceRegistration.onSessionClosed(session);
         buckets.remove(session);
+        outbound.remove(session);
+        admission.closed(session);
+        pinger.remove(session);
+        executor.close(session, () -> {
+            Optional<ClientIdentity> identity = services.sessions.getIdentity(session);
+            services.sessions.stopSession(session, reason, null, sessionStopped);
+            identity.ifPresent(services.identityStore::sessionClosed);
+            // A client that disconnected on purpose will not resume. Dropped connections keep their ticket
+            if (statusCode == StatusCode.NORMAL) {
+                identity.ifPresent(services.sessionTickets::revoke);
+            }
+            services.deviceRegistration.onSessionClosed(session);
+            services.sessions.forgetBinaryCodec(session);
+        });
     }
 
     @OnWebSocketError
     public void onError(Session session, Throwable e) {
         LOGGER.log(Level.SEVERE, "Unrecoverable error " + e.getMessage(), e);
-        services.sessions.stopSession(session, "Unrecoverable error", null, sessionStopped);
+        executor.close(session, () -> services.sessions.stopSession(session, "Unrecoverable error", null, sessionStopped));
+    }
+
+    @OnWebSocketFrame
+    public void frame(Session session, Frame frame) {
+        if (frame.getType() == Frame.Type.PONG) {
+            pinger.pong(session, frame.getPayload() == null ? ByteBuffer.allocate(0) : frame.getPayload());
+        }
     }
 
     @OnWebSocketMessage
-    public void message(Session session, InputStream is) throws IOException {
+    public void message(Session session, byte[] bytes, int offset, int length) {
         Bucket bucket = buckets.get(session);
-        if (bucket.tryConsume(1)) {
-            processMessage(session, is);
-        } else {
-            services.sessions.stopSession(session, "Too many requests sent", null, sessionStopped);
+        if (bucket == null) {
+            // Session is being stopped
+            return;
+        }
+        // Any message shows the session is alive, so clients that send KeepAliveRequest but never answer pings stay connected
+        pinger.heard(session);
+        if (!bucket.tryConsume(1)) {
+            rejectSession(session, "Too many requests sent");
+            return;
+        }
+        // Jetty allocates a new array for each whole message so it is safe to read it on another thread
+        ByteBuffer message = ByteBuffer.wrap(bytes, offset, length);
+        // Requests from sessions waiting for a handshake slot are held until the session is admitted
+        if (!admission.execute(session, () -> execute(session, message))) {
+            LOGGER.log(Level.WARNING, "Too many requests held for session " + session.getRemoteAddress());
+            rejectSession(session, "Too many requests queued");
+        }
+    }
+
+    private void execute(Session session, ByteBuffer message) {
+        if (!executor.execute(session, () -> processMessage(session, message))) {
+            LOGGER.log(Level.WARNING, "Could not queue request for session " + session.getRemoteAddress() + " as it has closed or has too many requests queued");
+            rejectSession(session, "Too many requests queued");
+        }
+    }
+
+    /**
+     * Tell a session that could not be admitted for handshaking when to retry, then close it
+     */
+    private void turnAway(Session session) {
+        LOGGER.log(Level.INFO, "Turning away session " + session.getRemoteAddress() + " as too many sessions are handshaking");
+        buckets.remove(session);
+        sendPlain(session, new ServerBusyResponse(services.identityStore.getIdentity(), handshakeRetryAfterMillis));
+        // The session has not been sent anything else, so the response is handed to Jetty before the close frame
+        session.close(StatusCode.TRY_AGAIN_LATER, "Server busy");
+    }
+
+    /**
+     * Stop the session once its queued requests have been processed and drop any further messages from it
+     */
+    private void rejectSession(Session session, String reason) {
+        if (buckets.remove(session) != null) {
+            executor.close(session, () -> services.sessions.stopSession(session, reason, null, sessionStopped));
         }
     }
 
-    private void processMessage(Session session, InputStream is) {
-        Optional<ProtocolRequest> requestOptional = read(session, is);
+    private void processMessage(Session session, ByteBuffer message) {
+        Optional<ProtocolRequest> requestOptional = read(session, message);
         requestOptional.ifPresent(req -> {
             LOGGER.log(Level.FINE, req.getClass().getSimpleName() + " from " + req.identity);
-            ServerIdentity serverIdentity = services.identityStore.getIdentity();
-            if (req instanceof KeepAliveRequest) {
-                LOGGER.log(Level.FINE, "KeepAliveRequest received. Sending KeepAliveRequest.");
-                sendPlain(session, new KeepAliveResponse(serverIdentity));
-            } else if (req instanceof IdentifyRequest) {
-                IdentifyRequest request = (IdentifyRequest)req;
-                if (request.identity == null) {
-                    LOGGER.log(Level.FINE, "Signaling client to register");
-                    String token = services.deviceRegistration.createDeviceRegistrationToken(session);
-                    String url = services.urlProvider.deviceVerificationUrl(token);
-                    sendPlain(session, new RegisterDeviceResponse(serverIdentity, url, token));
-                } else {
-                    profileCache.getById(req.identity.id()).ifPresentOrElse(profile -> {
-                        if (processPrivateIdentityToken(profile, request)) {
-                            LOGGER.log(Level.FINE, "Profile found for " + req.identity.id());
-                            sendPlain(session, new IdentifyResponse(serverIdentity, profile.toPublic(), Mojang.serverPublicKey(), TokenGenerator.byteToken(16)));
-                        } else {
-                            sendPlain(session, new PrivateIdentityMismatchResponse(serverIdentity, services.urlProvider.resetPrivateIdentity()));
-                        }
-                    }, () -> {
-                        LOGGER.log(Level.SEVERE, "Profile " + request.identity.id() + " does not exist but the client thinks it should.");
-                        sendPlain(session, new IsUntrustedRelationshipResponse(serverIdentity));
-                        services.sessions.stopSession(session, "Identity " + request.identity.id() + " was not found", null, null);
-                    });
-                }
-            } else if (req instanceof SendPreKeysRequest) {
-                SendPreKeysRequest request = (SendPreKeysRequest) req;
-                services.identityStore.trustIdentity(request);
-                SendPreKeysResponse response = services.identityStore.createSendPreKeysResponse();
-                sendPlain(session, response);
-            } else if (req instanceof StartSessionRequest) {
-                LOGGER.log(Level.INFO, "Starting session with " + req.identity);
-                StartSessionRequest request = (StartSessionRequest)req;
-                if (services.minecraftSessionVerifier.verify(request)) {
-                    MinecraftPlayer minecraftPlayer = request.session.toPlayer();
-                    services.sessions.identify(session, req.identity, minecraftPlayer);
-                    services.profiles.updateProfile(RequestContext.SERVER, UpdateProfileRequest.addMinecraftAccount(req.identity.id(), request.session.id));
-                    sendPlain(session, new StartSessionResponse(serverIdentity));
-                } else {
-                    sendPlain(session, new MojangVerificationFailedResponse(serverIdentity, ((StartSessionRequest) req).session));
-                    services.sessions.stopSession(session, "Minecraft session invalid", null, sessionStopped);
-                }
-            } else if (req instanceof CheckTrustRelationshipRequest) {
-                LOGGER.log(Level.INFO, "Checking if client/server have a trusted relationship");
-                if (services.identityStore.isTrustedIdentity(req.identity)) {
-                    LOGGER.log(Level.INFO, req.identity + " is trusted. Signaling client to start encryption. ");
-                    CheckTrustRelationshipResponse response = new IsTrustedRelationshipResponse(serverIdentity);
-                    sendPlain(session, response);
-                    services.sessions.findPlayer(req.identity).ifPresent(player -> {
-                        sessionStarted.accept(req.identity, new Player(req.identity.id(), player.minecraftPlayer));
-                    });
-                } else {
-                    LOGGER.log(Level.INFO, req.identity + " is NOT trusted. Signaling client to restart registration.");
-                    CheckTrustRelationshipResponse response = new IsUntrustedRelationshipResponse(serverIdentity);
-                    sendPlain(session, response);
-                    services.sessions.stopSession(session, req.identity + " identity is not trusted", null, null);
-                }
-            } else {
-                for (ProtocolHandler handler : protocolHandlers) {
-                    if (handler.handleRequest(this, req, createSender())) {
-                        break;
-                    }
-                }
-            }
+            dispatcher.dispatch(this, session, req, createSender());
         });
     }
 
-    private boolean processPrivateIdentityToken(Profile profile, IdentifyRequest req) {
-        if (profile.privateIdentityToken == null || profile.privateIdentityToken.length == 0) {
-            services.profiles.updateProfile(RequestContext.SERVER, UpdateProfileRequest.privateIdentityToken(profile.id, req.privateIdentityToken));
-            return true;
+    /**
+     * Notifies protocol handlers that a session has started
+     * @param identity of the session
+     * @param player of the session
+     */
+    public void sessionStarted(ClientIdentity identity, Player player) {
+        services.sessions.getSession(identity).ifPresent(admission::started);
+        sessionStarted.accept(identity, player);
+    }
+
+    /**
+     * Stops the session and notifies protocol handlers that it is stopping
+     * @param session to stop
+     * @param reason for stopping
+     */
+    public void stopSession(Session session, String reason) {
+        services.sessions.stopSession(session, reason, null, sessionStopped);
+    }
+
+    /**
+     * Stop the server's background threads and finish processing queued requests
+     */
+    public void close() {
+        admission.close();
+        pinger.close();
+        services.locationRelay.close();
+        services.nearbyGroupLifecycle.close();
+        try {
+            executor.shutdown(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return Arrays.equals(profile.privateIdentityToken, req.privateIdentityToken);
+        // Connections are closed by now so there is nothing left to write
+        outboundDrainer.shutdown();
+    }
+
+    /**
+     * @return metrics of the executor processing requests
+     */
+    public SessionExecutor.Metrics executorMetrics() {
+        return executor.metrics();
+    }
+
+    /**
+     * @return metrics of the responses queued for sessions
+     */
+    public OutboundScheduler.Metrics outboundMetrics() {
+        return outbound.metrics();
+    }
+
+    /**
+     * @return metrics of the sessions waiting for or doing a handshake
+     */
+    public HandshakeAdmission.Metrics admissionMetrics() {
+        return admission.metrics();
+    }
+
+    /**
+     * @return metrics of the pings sent to sessions, including their round trip times
+     */
+    public SessionPinger.Metrics pingMetrics() {
+        return pinger.metrics();
+    }
+
+    /**
+     * @return number of requests received per request class that had no handler
+     */
+    public Map<Class<?>, Long> unhandledRequests() {
+        return dispatcher.unhandledRequests();
     }
 
     private BiConsumer<ClientIdentity, ProtocolResponse> createSender() {
@@ -205,11 +293,14 @@ public class CollarServer {
     }
 
     @Nonnull
-    public Optional<ProtocolRequest> read(@Nonnull Session session, @Nonnull InputStream message) {
+    public Optional<ProtocolRequest> read(@Nonnull Session session, @Nonnull ByteBuffer buffer) {
         PacketIO packetIO = new PacketIO(services.packetMapper, services.identityStore.createCypher());
         ClientIdentity identity = services.sessions.getIdentity(session).orElse(null);
         try {
-            ProtocolRequest packet = packetIO.decode(identity, message, ProtocolRequest.class);
+            if (PacketIO.isBinary(buffer)) {
+                services.sessions.usesBinaryCodec(session);
+            }
+            ProtocolRequest packet = packetIO.decode(identity, buffer, ProtocolRequest.class);
             if (packet.identity != null && identity != null && !packet.identity.equals(identity)) {
                 throw new IllegalStateException("Identity associated with this session was different to decoded packet");
             }
@@ -228,51 +319,138 @@ public class CollarServer {
         }
         if (resp instanceof BatchProtocolResponse) {
             BatchProtocolResponse batchResponse = (BatchProtocolResponse)resp;
-            batchResponse.responses.forEach((response, identity) -> {
-                services.sessions.getSession(identity).ifPresent(anotherSession -> {
-                    send(anotherSession, response);
-                });
-            });
+            batchResponse.responses.forEach(this::multicast);
         } else {
             LOGGER.log(Level.INFO, "Sending " + resp.getClass().getSimpleName());
             if (session == null) {
                 throw new IllegalStateException("Session cannot be null");
             }
-            PacketIO packetIO = new PacketIO(services.packetMapper, services.identityStore.createCypher());
-            byte[] bytes;
+            PacketIO packetIO = new PacketIO(services.packetMapper, services.identityStore.createCypher(), services.sessions.isBinaryCodec(session));
+            ClientIdentity identity = null;
             if (services.sessions.isIdentified(session)) {
-                try {
-                    ClientIdentity identity = services.sessions.getIdentity(session).orElseThrow(() -> new IllegalStateException("Could not find identity"));
-                    bytes = packetIO.encodeEncrypted(identity, resp);
-                } catch (IOException | CipherException e) {
-                    throw new IllegalStateException(e);
-                }
-            } else {
-                try {
-                    bytes = packetIO.encodePlain(resp);
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
-                }
+                identity = services.sessions.getIdentity(session).orElseThrow(() -> new IllegalStateException("Could not find identity"));
+            }
+            byte[] payload;
+            try {
+                payload = packetIO.serialize(resp);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
             }
-            sendBytes(session, bytes);
+            enqueue(session, OutboundScheduler.conflationKey(resp), packetIO, identity, payload);
         }
     }
 
+    /**
+     * Send a response to many recipients. The response is serialized once per codec in use by the recipients
+     * and only the transport encryption is done for each recipient.
+     * @param resp to send
+     * @param identities of recipients
+     */
+    private void multicast(ProtocolResponse resp, Set<ClientIdentity> identities) {
+        Map<ClientIdentity, Session> recipients = new LinkedHashMap<>();
+        boolean anyBinary = false;
+        boolean anyMapper = false;
+        for (ClientIdentity identity : identities) {
+            Optional<Session> recipientSession = services.sessions.getSession(identity).filter(Session::isOpen);
+            if (recipientSession.isPresent()) {
+                boolean binary = services.sessions.isBinaryCodec(recipientSession.get());
+                anyBinary |= binary;
+                anyMapper |= !binary;
+                recipients.put(identity, recipientSession.get());
+            }
+        }
+        if (recipients.isEmpty()) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Sending " + resp.getClass().getSimpleName() + " to " + recipients.size() + " recipients");
+        Cipher cipher = services.identityStore.createCypher();
+        PacketIO mapperPacketIO = new PacketIO(services.packetMapper, cipher, false);
+        PacketIO binaryPacketIO = new PacketIO(services.packetMapper, cipher, true);
+        byte[] mapperPayload;
+        byte[] binaryPayload;
+        try {
+            mapperPayload = anyMapper ? mapperPacketIO.serialize(resp) : null;
+            binaryPayload = anyBinary ? binaryPacketIO.serialize(resp) : null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        Object key = OutboundScheduler.conflationKey(resp);
+        // Only queued here, each recipient's frame is encrypted when its outbox writes it
+        recipients.forEach((recipient, recipientSession) -> {
+            boolean binary = services.sessions.isBinaryCodec(recipientSession);
+            PacketIO packetIO = binary ? binaryPacketIO : mapperPacketIO;
+            byte[] payload = binary ? binaryPayload : mapperPayload;
+            if (payload == null) {
+                // Recipient switched codec since the payloads were serialized
+                send(recipientSession, resp);
+                return;
+            }
+            ClientIdentity identity = services.sessions.isIdentified(recipientSession) ? recipient : null;
+            enqueue(recipientSession, key, packetIO, identity, payload);
+        });
+    }
+
     public void sendPlain(@Nonnull Session session, @Nonnull ProtocolResponse resp) {
         if (!session.isOpen()) {
             return;
         }
-        PacketIO packetIO = new PacketIO(services.packetMapper, null);
-        byte[] bytes;
+        PacketIO packetIO = new PacketIO(services.packetMapper, null, services.sessions.isBinaryCodec(session));
+        byte[] payload;
         try {
-            bytes = packetIO.encodePlain(resp);
+            payload = packetIO.serialize(resp);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
-        sendBytes(session, bytes);
+        enqueue(session, OutboundScheduler.conflationKey(resp), packetIO, null, payload);
     }
 
-    private void sendBytes(@Nonnull Session session, @Nonnull byte[] bytes) {
-        session.getRemote().sendBytesByFuture(ByteBuffer.wrap(bytes));
+    /**
+     * Queue a serialized response for the session. It is framed, and encrypted for the recipient if there is one,
+     * when it is written.
+     */
+    private void enqueue(@Nonnull Session session, Object key, @Nonnull PacketIO packetIO, ClientIdentity recipient, @Nonnull byte[] payload) {
+        outbound.send(session, key, payload.length, () -> {
+            if (recipient == null) {
+                return packetIO.encodePlainPayload(payload, buffers);
+            }
+            try {
+                return packetIO.encodeEncryptedPayload(recipient, payload, buffers);
+            } catch (CipherException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private void ping(@Nonnull Session session, @Nonnull ByteBuffer payload) {
+        try {
+            session.getRemote().sendPing(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void disconnect(@Nonnull Session session) {
+        try {
+            session.disconnect();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not disconnect session", e);
+        }
+    }
+
+    private void write(@Nonnull Session session, @Nonnull ByteBuffer buffer, @Nonnull Runnable done) {
+        session.getRemote().sendBytes(buffer, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                buffers.release(buffer);
+                LOGGER.log(Level.FINE, "Could not write to session", x);
+                done.run();
+            }
+
+            @Override
+            public void writeSuccess() {
+                buffers.release(buffer);
+                done.run();
+            }
+        });
     }
 }
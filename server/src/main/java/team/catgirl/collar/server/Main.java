@@ -11,6 +11,7 @@ public class Main {
     public static void main(String[] args) {
         Configuration configuration = args.length > 0 && "environment".equals(args[0]) ? Configuration.fromEnvironment() : Configuration.defaultConfiguration();
         WebServer webServer = new WebServer(configuration);
+        Runtime.getRuntime().addShutdownHook(new Thread(webServer::stop, "collar-shutdown"));
         webServer.start((services) -> LOGGER.info("Do you want to play a block game game?"));
     }
 }
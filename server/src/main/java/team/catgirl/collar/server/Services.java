@@ -15,6 +15,9 @@ import team.catgirl.collar.server.services.devices.DeviceService;
 import team.catgirl.collar.server.services.friends.FriendsService;
 import team.catgirl.collar.server.services.groups.GroupService;
 import team.catgirl.collar.server.services.groups.GroupStore;
+import team.catgirl.collar.server.services.location.LocationRelay;
+import team.catgirl.collar.server.services.location.LocationSharingRegistry;
+import team.catgirl.collar.server.services.location.NearbyGroupLifecycle;
 import team.catgirl.collar.server.services.location.PlayerLocationService;
 import team.catgirl.collar.server.services.location.WaypointService;
 import team.catgirl.collar.server.services.profiles.ProfileCache;
@@ -23,6 +26,7 @@ import team.catgirl.collar.server.services.profiles.storage.ProfileStorage;
 import team.catgirl.collar.server.services.textures.TextureService;
 import team.catgirl.collar.server.session.DeviceRegistrationService;
 import team.catgirl.collar.server.session.SessionManager;
+import team.catgirl.collar.server.session.SessionTickets;
 import team.catgirl.collar.utils.Utils;
 
 public final class Services {
@@ -31,6 +35,7 @@ public final class Services {
     public final AppUrlProvider urlProvider;
     public final ServerIdentityStore identityStore;
     public final SessionManager sessions;
+    public final SessionTickets sessionTickets;
     public final PasswordHashing passwordHashing;
     public final ProfileService profiles;
     public final ProfileStorage profileStorage;
@@ -40,6 +45,9 @@ public final class Services {
     public final MinecraftSessionVerifier minecraftSessionVerifier;
     public final GroupService groups;
     public final GroupStore groupStore;
+    public final LocationSharingRegistry locationSharing;
+    public final LocationRelay locationRelay;
+    public final NearbyGroupLifecycle nearbyGroupLifecycle;
     public final PlayerLocationService playerLocations;
     public final TextureService textures;
     public final FriendsService friends;
@@ -51,8 +59,8 @@ public final class Services {
         this.jsonMapper = Utils.jsonMapper();
         this.packetMapper = Utils.messagePackMapper();
         this.urlProvider = configuration.appUrlProvider;
-        this.identityStore = new SignalServerIdentityStore(configuration.database);
-        this.sessions = new SessionManager(packetMapper, identityStore);
+        this.identityStore = new SignalServerIdentityStore(configuration.database, configuration.preKeyBundlePoolSize, configuration.preKeyBundleRefillPerSecond);
+        this.sessions = new SessionManager(identityStore);
         this.deviceRegistration = new DeviceRegistrationService(sessions);
         this.passwordHashing = configuration.passwordHashing;
         this.profiles = new ProfileServiceServer(configuration.database, passwordHashing);
@@ -60,13 +68,24 @@ public final class Services {
         this.profileStorage = new ProfileStorage(configuration.database);
         this.devices = new DeviceService(configuration.database);
         this.tokenCrypter = configuration.tokenCrypter;
+        this.sessionTickets = new SessionTickets(configuration.sessionTicketSecret, configuration.sessionTicketMillis);
         this.auth = new ServerAuthenticationService(profiles, passwordHashing, tokenCrypter, configuration.email, urlProvider);
         this.minecraftSessionVerifier = configuration.minecraftSessionVerifier;
-        this.groupStore = new GroupStore(profileCache, sessions, configuration.database);
-        this.groups = new GroupService(groupStore, identityStore.getIdentity(), profileCache, sessions);
-        this.playerLocations = new PlayerLocationService(sessions, profileCache, groups, identityStore.getIdentity());
+        this.groupStore = new GroupStore(profileCache, sessions, configuration.database, configuration.ephemeralGroupTypes);
+        this.locationSharing = new LocationSharingRegistry(groupStore::findGroup);
+        this.groups = new GroupService(groupStore, identityStore.getIdentity(), profileCache, sessions, locationSharing);
+        this.locationRelay = new LocationRelay(identityStore.getIdentity(), sessions::getIdentity, sessions::isBinaryCodec, configuration.locationBroadcastIntervalMillis);
+        this.nearbyGroupLifecycle = new NearbyGroupLifecycle(configuration.nearbyGroupEnterMillis, configuration.nearbyGroupExitMillis);
+        this.playerLocations = new PlayerLocationService(sessions, profileCache, groups, locationSharing, locationRelay, nearbyGroupLifecycle, identityStore.getIdentity());
         this.textures = new TextureService(configuration.database);
         this.friends = new FriendsService(configuration.database, profileCache, sessions);
         this.waypoints = new WaypointService(profileStorage);
     }
+
+    /**
+     * Persist state held in memory, once the server is no longer processing requests
+     */
+    public void close() {
+        identityStore.close();
+    }
 }
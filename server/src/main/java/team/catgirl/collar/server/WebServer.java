@@ -3,6 +3,7 @@ package team.catgirl.collar.server;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableList;
 import spark.Request;
+import spark.Spark;
 import team.catgirl.collar.api.authentication.AuthenticationService.*;
 import team.catgirl.collar.api.groups.Group;
 import team.catgirl.collar.api.groups.GroupType;
@@ -17,6 +18,7 @@ import team.catgirl.collar.api.profiles.PublicProfile;
 import team.catgirl.collar.api.profiles.Role;
 import team.catgirl.collar.api.session.Player;
 import team.catgirl.collar.api.textures.TextureType;
+import team.catgirl.collar.protocol.codec.BinaryPacketCodec;
 import team.catgirl.collar.server.common.ServerVersion;
 import team.catgirl.collar.server.configuration.Configuration;
 import team.catgirl.collar.server.http.ApiToken;
@@ -38,7 +40,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,6 +53,8 @@ public class WebServer {
     private static final Logger LOGGER = Logger.getLogger(WebServer.class.getName());
 
     private final Configuration configuration;
+    private Services services;
+    private CollarServer collarServer;
 
     public WebServer(Configuration configuration) {
         this.configuration = configuration;
@@ -62,11 +65,13 @@ public class WebServer {
         // Set http port
         port(configuration.httpPort);
         // Services
-        Services services = new Services(configuration);
+        services = new Services(configuration);
 
         // Setup WebSockets
-        webSocketIdleTimeoutMillis((int) TimeUnit.SECONDS.toMillis(60));
-        webSocket("/api/1/listen", new CollarServer(services));
+        // Dead peers are found by SessionPinger. The idle timeout only closes connections that stop being pinged
+        webSocketIdleTimeoutMillis((int) (configuration.peerTimeoutMillis + configuration.pingIntervalMillis));
+        collarServer = new CollarServer(services, configuration);
+        webSocket("/api/1/listen", collarServer);
 
         // Always serialize objects returned as JSON
         exception(HttpException.class, (e, request, response) -> {
@@ -271,8 +276,13 @@ public class WebServer {
             List<CollarFeature> features = new ArrayList<>();
             features.add(new CollarFeature("auth:verification_scheme", configuration.minecraftSessionVerifier.getName()));
             features.add(new CollarFeature("groups:locations", true));
+            features.add(new CollarFeature("groups:nearby_delta", true));
+            features.add(new CollarFeature("groups:location_subscriptions", true));
+            features.add(new CollarFeature("groups:update_locations", true));
+            features.add(new CollarFeature("groups:location_v2", true));
             features.add(new CollarFeature("groups:waypoints", true));
             features.add(new CollarFeature("profile:friends", true));
+            features.add(new CollarFeature("protocol:binary_codec", BinaryPacketCodec.VERSION));
             return new DiscoverResponse(versions, features);
         }, services.jsonMapper::writeValueAsString);
 
@@ -281,6 +291,23 @@ public class WebServer {
         LOGGER.info(services.urlProvider.homeUrl());
     }
 
+    /**
+     * Stop accepting connections then stop the server's background threads
+     */
+    public void stop() {
+        LOGGER.info("Stopping Collar server...");
+        Spark.stop();
+        Spark.awaitStop();
+        if (collarServer != null) {
+            collarServer.close();
+        }
+        if (services != null) {
+            // Ratchet state written behind by the session store is lost if it is not flushed here
+            services.close();
+        }
+        LOGGER.info("Collar server stopped.");
+    }
+
     public static RequestContext from(Request req) {
         return req.attribute("requestContext");
     }
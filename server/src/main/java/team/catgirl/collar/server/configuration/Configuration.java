@@ -1,7 +1,10 @@
 package team.catgirl.collar.server.configuration;
 
+import com.google.common.io.BaseEncoding;
 import com.mongodb.client.MongoDatabase;
+import team.catgirl.collar.api.groups.GroupType;
 import team.catgirl.collar.http.HttpClient;
+import team.catgirl.collar.security.TokenGenerator;
 import team.catgirl.collar.server.http.AppUrlProvider;
 import team.catgirl.collar.server.http.CollarWebAppUrlProvider;
 import team.catgirl.collar.server.http.DefaultAppUrlProvider;
@@ -15,8 +18,11 @@ import team.catgirl.collar.server.security.mojang.MojangMinecraftSessionVerifier
 import team.catgirl.collar.server.security.mojang.NojangMinecraftSessionVerifier;
 import team.catgirl.collar.server.services.authentication.TokenCrypter;
 
+import java.util.Arrays;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class Configuration {
     private static final Logger LOGGER = Logger.getLogger(Configuration.class.getName());
@@ -31,6 +37,38 @@ public class Configuration {
     public final int httpPort;
     public final Email email;
     public final HttpClient http;
+    /** Number of pre-key bundles generated ahead of handshakes **/
+    public final int preKeyBundlePoolSize;
+    /** Maximum number of pre-key bundles generated per second when refilling the pool **/
+    public final int preKeyBundleRefillPerSecond;
+    /** Interval between broadcasts of player locations **/
+    public final long locationBroadcastIntervalMillis;
+    /** Time players must be nearby before their nearby group is created **/
+    public final long nearbyGroupEnterMillis;
+    /** Time players must be apart before their nearby group is deleted **/
+    public final long nearbyGroupExitMillis;
+    /** Types of groups that are only kept in memory rather than stored in the database **/
+    public final Set<GroupType> ephemeralGroupTypes;
+    /** Bytes that may be queued for a session before ephemeral responses to it are dropped **/
+    public final int outboundMaxBytes;
+    /** Time a session may stay over {@link #outboundMaxBytes} before it is disconnected **/
+    public final long outboundOverBudgetMillis;
+    /** Time a session ticket can be used to resume a session for after it is issued **/
+    public final long sessionTicketMillis;
+    /** Secret used to sign session tickets **/
+    public final String sessionTicketSecret;
+    /** Number of sessions that can be handshaking at once **/
+    public final int maxHandshakes;
+    /** Number of sessions that can wait for a handshake slot before new sessions are turned away **/
+    public final int maxQueuedHandshakes;
+    /** Time a session can wait for a handshake slot before it is turned away **/
+    public final long handshakeQueueMillis;
+    /** Time sessions that were turned away are told to wait before reconnecting **/
+    public final long handshakeRetryAfterMillis;
+    /** Interval between WebSocket pings sent to each session **/
+    public final long pingIntervalMillis;
+    /** Time a session can go without answering a ping before it is disconnected **/
+    public final long peerTimeoutMillis;
 
     public Configuration(MongoDatabase database,
                          AppUrlProvider appUrlProvider,
@@ -41,7 +79,23 @@ public class Configuration {
                          boolean enableWeb,
                          int httpPort,
                          Email email,
-                         HttpClient http
+                         HttpClient http,
+                         int preKeyBundlePoolSize,
+                         int preKeyBundleRefillPerSecond,
+                         long locationBroadcastIntervalMillis,
+                         long nearbyGroupEnterMillis,
+                         long nearbyGroupExitMillis,
+                         Set<GroupType> ephemeralGroupTypes,
+                         int outboundMaxBytes,
+                         long outboundOverBudgetMillis,
+                         long sessionTicketMillis,
+                         String sessionTicketSecret,
+                         int maxHandshakes,
+                         int maxQueuedHandshakes,
+                         long handshakeQueueMillis,
+                         long handshakeRetryAfterMillis,
+                         long pingIntervalMillis,
+                         long peerTimeoutMillis
     ) {
         this.database = database;
         this.appUrlProvider = appUrlProvider;
@@ -53,6 +107,22 @@ public class Configuration {
         this.httpPort = httpPort;
         this.email = email;
         this.http = http;
+        this.preKeyBundlePoolSize = preKeyBundlePoolSize;
+        this.preKeyBundleRefillPerSecond = preKeyBundleRefillPerSecond;
+        this.locationBroadcastIntervalMillis = locationBroadcastIntervalMillis;
+        this.nearbyGroupEnterMillis = nearbyGroupEnterMillis;
+        this.nearbyGroupExitMillis = nearbyGroupExitMillis;
+        this.ephemeralGroupTypes = ephemeralGroupTypes;
+        this.outboundMaxBytes = outboundMaxBytes;
+        this.outboundOverBudgetMillis = outboundOverBudgetMillis;
+        this.sessionTicketMillis = sessionTicketMillis;
+        this.sessionTicketSecret = sessionTicketSecret;
+        this.maxHandshakes = maxHandshakes;
+        this.maxQueuedHandshakes = maxQueuedHandshakes;
+        this.handshakeQueueMillis = handshakeQueueMillis;
+        this.handshakeRetryAfterMillis = handshakeRetryAfterMillis;
+        this.pingIntervalMillis = pingIntervalMillis;
+        this.peerTimeoutMillis = peerTimeoutMillis;
         LOGGER.log(Level.INFO, "Using Email type " + email.getClass().getSimpleName());
     }
 
@@ -83,6 +153,10 @@ public class Configuration {
         if (mailgunApiKey == null) {
             throw new IllegalStateException("MAILGUN_API_KEY not set");
         }
+        String sessionTicketSecret = System.getenv("COLLAR_SESSION_TICKET_SECRET");
+        if (sessionTicketSecret == null) {
+            throw new IllegalStateException("COLLAR_SESSION_TICKET_SECRET not set");
+        }
         AppUrlProvider appUrlProvider = new CollarWebAppUrlProvider(baseUrl);
         HttpClient http = new HttpClient(null);
         return new Configuration(
@@ -95,7 +169,23 @@ public class Configuration {
                 enableWeb,
                 httpPort(),
                 new MailGunEmail(http, appUrlProvider, mailgunDomain, mailgunApiKey),
-                http
+                http,
+                intFromEnvironment("COLLAR_PREKEY_BUNDLE_POOL_SIZE", 512),
+                intFromEnvironment("COLLAR_PREKEY_BUNDLE_REFILL_PER_SECOND", 100),
+                intFromEnvironment("COLLAR_LOCATION_BROADCAST_INTERVAL_MILLIS", 100),
+                intFromEnvironment("COLLAR_NEARBY_GROUP_ENTER_MILLIS", 2000),
+                intFromEnvironment("COLLAR_NEARBY_GROUP_EXIT_MILLIS", 60000),
+                groupTypesFromEnvironment("COLLAR_EPHEMERAL_GROUP_TYPES", Set.of(GroupType.NEARBY)),
+                intFromEnvironment("COLLAR_OUTBOUND_MAX_BYTES", 1024 * 1024),
+                intFromEnvironment("COLLAR_OUTBOUND_OVER_BUDGET_MILLIS", 10000),
+                intFromEnvironment("COLLAR_SESSION_TICKET_MILLIS", 10 * 60 * 1000),
+                sessionTicketSecret,
+                intFromEnvironment("COLLAR_MAX_HANDSHAKES", 64),
+                intFromEnvironment("COLLAR_MAX_QUEUED_HANDSHAKES", 1024),
+                intFromEnvironment("COLLAR_HANDSHAKE_QUEUE_MILLIS", 10000),
+                intFromEnvironment("COLLAR_HANDSHAKE_RETRY_AFTER_MILLIS", 5000),
+                intFromEnvironment("COLLAR_PING_INTERVAL_MILLIS", 10000),
+                intFromEnvironment("COLLAR_PEER_TIMEOUT_MILLIS", 30000)
         );
     }
 
@@ -112,7 +202,23 @@ public class Configuration {
                 true,
                 httpPort(),
                 new LocalEmail(appUrlProvider),
-                new HttpClient(null));
+                new HttpClient(null),
+                64,
+                50,
+                100,
+                2000,
+                60000,
+                Set.of(GroupType.NEARBY),
+                1024 * 1024,
+                10000,
+                10 * 60 * 1000,
+                randomSecret(),
+                64,
+                1024,
+                10000,
+                5000,
+                10000,
+                30000);
     }
 
     public static Configuration testConfiguration(MongoDatabase db, MinecraftSessionVerifier sessionVerifier) {
@@ -128,11 +234,53 @@ public class Configuration {
                 false,
                 3001,
                 new LocalEmail(appUrlProvider),
-                new HttpClient(null));
+                new HttpClient(null),
+                16,
+                50,
+                50,
+                0,
+                0,
+                Set.of(GroupType.NEARBY),
+                1024 * 1024,
+                10000,
+                10 * 60 * 1000,
+                randomSecret(),
+                64,
+                1024,
+                10000,
+                5000,
+                10000,
+                30000);
+    }
+
+    /**
+     * @return secret that is only known to this process
+     */
+    private static String randomSecret() {
+        return BaseEncoding.base64().encode(TokenGenerator.byteToken(32));
     }
 
     private static int httpPort() {
-        String portValue = System.getenv("PORT");
-        return portValue != null ? Integer.parseInt(portValue) : 4000;
+        return intFromEnvironment("PORT", 4000);
+    }
+
+    /**
+     * @return comma separated group types, e.g. NEARBY,PARTY
+     */
+    private static Set<GroupType> groupTypesFromEnvironment(String name, Set<GroupType> defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(type -> !type.isEmpty())
+                .map(GroupType::valueOf)
+                .collect(Collectors.toSet());
+    }
+
+    private static int intFromEnvironment(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
     }
 }
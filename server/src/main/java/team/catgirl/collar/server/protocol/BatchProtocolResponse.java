@@ -1,39 +1,47 @@
 package team.catgirl.collar.server.protocol;
 
-import com.google.common.collect.ImmutableMap;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
 
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
+/**
+ * Responses to send to many clients. Each response is sent to every recipient added for it, so the same response
+ * instance can be added for many recipients and will only be serialized once when sent.
+ */
 public final class BatchProtocolResponse extends ProtocolResponse {
-    public final Map<ProtocolResponse, ClientIdentity> responses;
+    /** Response to its recipients, in the order the responses were added **/
+    public final Map<ProtocolResponse, Set<ClientIdentity>> responses = new LinkedHashMap<>();
 
-    public BatchProtocolResponse(ServerIdentity identity, Map<ProtocolResponse, ClientIdentity> responses) {
+    public BatchProtocolResponse(ServerIdentity identity) {
         super(identity);
-        this.responses = responses;
     }
 
-    public BatchProtocolResponse(ServerIdentity identity) {
-        this(identity, new LinkedHashMap<>());
+    public BatchProtocolResponse add(ClientIdentity identity, ProtocolResponse response) {
+        responses.computeIfAbsent(response, theResponse -> new LinkedHashSet<>()).add(identity);
+        return this;
     }
 
-    public BatchProtocolResponse add(ClientIdentity identity, ProtocolResponse response) {
-        responses.put(response, identity);
+    public BatchProtocolResponse add(Collection<ClientIdentity> identities, ProtocolResponse response) {
+        if (!identities.isEmpty()) {
+            responses.computeIfAbsent(response, theResponse -> new LinkedHashSet<>()).addAll(identities);
+        }
         return this;
     }
 
     public BatchProtocolResponse concat(BatchProtocolResponse response) {
-        responses.putAll(response.responses);
+        response.responses.forEach((theResponse, identities) -> add(identities, theResponse));
         return this;
     }
 
     public static BatchProtocolResponse one(ClientIdentity identity, ProtocolResponse response) {
-        return new BatchProtocolResponse(response.identity, ImmutableMap.of(response, identity));
+        return new BatchProtocolResponse(response.identity).add(identity, response);
     }
 
     public Optional<BatchProtocolResponse> optional() {
@@ -6,12 +6,10 @@ import team.catgirl.collar.api.friends.Status;
 import team.catgirl.collar.api.http.RequestContext;
 import team.catgirl.collar.api.profiles.PublicProfile;
 import team.catgirl.collar.api.session.Player;
-import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.friends.*;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
-import team.catgirl.collar.server.CollarServer;
 import team.catgirl.collar.server.services.friends.FriendsService;
 import team.catgirl.collar.server.services.friends.FriendsService.CreateFriendRequest;
 import team.catgirl.collar.server.services.friends.FriendsService.DeleteFriendRequest;
@@ -41,34 +39,32 @@ public class FriendsProtocolHandler extends ProtocolHandler {
         this.profiles = profiles;
         this.friends = friends;
         this.sessions = sessions;
+        handle(AddFriendRequest.class, (collar, session, req, sender) -> addFriend(req, sender));
+        handle(RemoveFriendRequest.class, (collar, session, req, sender) -> removeFriend(req, sender));
+        handle(GetFriendListRequest.class, (collar, session, req, sender) -> getFriendList(req, sender));
     }
 
-    @Override
-    public boolean handleRequest(CollarServer collar, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
-        if (req instanceof AddFriendRequest) {
-            AddFriendRequest request = (AddFriendRequest) req;
-            findFriendProfileId(request.profile, request.player).ifPresentOrElse(friendProfileId -> {
-                Friend friend = friends.createFriend(RequestContext.from(req.identity), new CreateFriendRequest(request.identity.owner, friendProfileId)).friend;
-                sender.accept(req.identity, new AddFriendResponse(serverIdentity, friend));
-            }, () -> {
-                LOGGER.log(Level.SEVERE, "Could not add friend with profileId " + request.profile  + " or playerId " + request.player);
-            });
-            return true;
-        } else if (req instanceof RemoveFriendRequest) {
-            RemoveFriendRequest request = (RemoveFriendRequest) req;
-            findFriendProfileId(request.profile, request.player).ifPresentOrElse(friendProfileId -> {
-                UUID deletedFriend = friends.deleteFriend(RequestContext.from(req.identity), new DeleteFriendRequest(req.identity.owner, friendProfileId)).friend;
-                sender.accept(req.identity, new RemoveFriendResponse(serverIdentity, deletedFriend));
-            }, () -> {
-                LOGGER.log(Level.SEVERE, "Could not add friend with profileId " + request.profile + " or playerId " + request.player);
-            });
-            return true;
-        } else if (req instanceof GetFriendListRequest) {
-            List<Friend> friends = this.friends.getFriends(RequestContext.from(req.identity), new GetFriendsRequest(req.identity.owner, null)).friends;
-            sender.accept(req.identity, new GetFriendListResponse(serverIdentity, friends));
-            return true;
-        }
-        return false;
+    private void addFriend(AddFriendRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
+        findFriendProfileId(req.profile, req.player).ifPresentOrElse(friendProfileId -> {
+            Friend friend = friends.createFriend(RequestContext.from(req.identity), new CreateFriendRequest(req.identity.owner, friendProfileId)).friend;
+            sender.accept(req.identity, new AddFriendResponse(serverIdentity, friend));
+        }, () -> {
+            LOGGER.log(Level.SEVERE, "Could not add friend with profileId " + req.profile  + " or playerId " + req.player);
+        });
+    }
+
+    private void removeFriend(RemoveFriendRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
+        findFriendProfileId(req.profile, req.player).ifPresentOrElse(friendProfileId -> {
+            UUID deletedFriend = friends.deleteFriend(RequestContext.from(req.identity), new DeleteFriendRequest(req.identity.owner, friendProfileId)).friend;
+            sender.accept(req.identity, new RemoveFriendResponse(serverIdentity, deletedFriend));
+        }, () -> {
+            LOGGER.log(Level.SEVERE, "Could not add friend with profileId " + req.profile + " or playerId " + req.player);
+        });
+    }
+
+    private void getFriendList(GetFriendListRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
+        List<Friend> friends = this.friends.getFriends(RequestContext.from(req.identity), new GetFriendsRequest(req.identity.owner, null)).friends;
+        sender.accept(req.identity, new GetFriendListResponse(serverIdentity, friends));
     }
 
     private Optional<UUID> findFriendProfileId(UUID profile, UUID player) {
@@ -6,7 +6,6 @@ import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.groups.*;
 import team.catgirl.collar.security.ClientIdentity;
-import team.catgirl.collar.server.CollarServer;
 import team.catgirl.collar.server.services.groups.GroupService;
 
 import java.util.Optional;
@@ -21,46 +20,32 @@ public final class GroupsProtocolHandler extends ProtocolHandler {
 
     public GroupsProtocolHandler(GroupService groups) {
         this.groups = groups;
-    }
-
-    @Override
-    public boolean handleRequest(CollarServer collar, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
-        Optional<? extends ProtocolResponse> resp;
-        if (req instanceof CreateGroupRequest) {
+        handle(CreateGroupRequest.class, (collar, session, req, sender) -> {
             LOGGER.log(Level.INFO, "CreateGroupRequest received from " + req.identity);
-            CreateGroupRequest request = (CreateGroupRequest)req;
-            resp = groups.createGroup(request);
-        } else if (req instanceof JoinGroupRequest) {
+            reply(req, groups.createGroup(req), sender);
+        });
+        handle(JoinGroupRequest.class, (collar, session, req, sender) -> {
             LOGGER.log(Level.INFO, "AcceptGroupMembershipRequest received from " + req.identity);
-            JoinGroupRequest request = (JoinGroupRequest) req;
-            resp = groups.acceptMembership(request);
-        } else if (req instanceof LeaveGroupRequest) {
+            reply(req, groups.acceptMembership(req), sender);
+        });
+        handle(LeaveGroupRequest.class, (collar, session, req, sender) -> {
             LOGGER.log(Level.INFO, "LeaveGroupRequest received from " + req.identity);
-            LeaveGroupRequest request = (LeaveGroupRequest)req;
-            resp = groups.leaveGroup(request);
-        } else if (req instanceof GroupInviteRequest) {
+            reply(req, groups.leaveGroup(req), sender);
+        });
+        handle(GroupInviteRequest.class, (collar, session, req, sender) -> {
             LOGGER.log(Level.INFO, "GroupInviteRequest received from " + req.identity);
-            GroupInviteRequest request = (GroupInviteRequest)req;
-            resp = groups.invite(request);
-        } else if (req instanceof EjectGroupMemberRequest) {
-            EjectGroupMemberRequest request = (EjectGroupMemberRequest) req;
-            resp = groups.ejectMember(request);
-        } else if (req instanceof AcknowledgedGroupJoinedRequest) {
-            AcknowledgedGroupJoinedRequest request = (AcknowledgedGroupJoinedRequest) req;
-            resp = groups.acknowledgeJoin(request);
-        } else if (req instanceof DeleteGroupRequest) {
-            DeleteGroupRequest request = (DeleteGroupRequest) req;
-            resp = groups.delete(request);
-        } else if (req instanceof TransferGroupOwnershipRequest) {
-            TransferGroupOwnershipRequest request = (TransferGroupOwnershipRequest) req;
-            resp = groups.transferOwnership(request);
-        } else {
-            resp = Optional.empty();
-        }
+            reply(req, groups.invite(req), sender);
+        });
+        handle(EjectGroupMemberRequest.class, (collar, session, req, sender) -> reply(req, groups.ejectMember(req), sender));
+        handle(AcknowledgedGroupJoinedRequest.class, (collar, session, req, sender) -> reply(req, groups.acknowledgeJoin(req), sender));
+        handle(DeleteGroupRequest.class, (collar, session, req, sender) -> reply(req, groups.delete(req), sender));
+        handle(TransferGroupOwnershipRequest.class, (collar, session, req, sender) -> reply(req, groups.transferOwnership(req), sender));
+    }
+
+    private static void reply(ProtocolRequest req, Optional<? extends ProtocolResponse> resp, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
         resp.ifPresent(protocolResponse -> {
             sender.accept(req.identity, protocolResponse);
         });
-        return resp.isPresent();
     }
 
     @Override
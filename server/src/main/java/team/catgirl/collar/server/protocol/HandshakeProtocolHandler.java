@@ -0,0 +1,182 @@
+package team.catgirl.collar.server.protocol;
+
+import org.eclipse.jetty.websocket.api.Session;
+import team.catgirl.collar.api.http.RequestContext;
+import team.catgirl.collar.api.profiles.Profile;
+import team.catgirl.collar.api.profiles.ProfileService.UpdateProfileRequest;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.protocol.devices.RegisterDeviceResponse;
+import team.catgirl.collar.protocol.identity.IdentifyRequest;
+import team.catgirl.collar.protocol.identity.IdentifyResponse;
+import team.catgirl.collar.protocol.keepalive.KeepAliveRequest;
+import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
+import team.catgirl.collar.protocol.session.SessionFailedResponse.MojangVerificationFailedResponse;
+import team.catgirl.collar.protocol.session.SessionFailedResponse.PrivateIdentityMismatchResponse;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.protocol.session.RenewSessionTicketRequest;
+import team.catgirl.collar.protocol.session.ResumeSessionChallengeResponse;
+import team.catgirl.collar.protocol.session.ResumeSessionFailedResponse;
+import team.catgirl.collar.protocol.session.ResumeSessionRequest;
+import team.catgirl.collar.protocol.session.ResumeSessionResponse;
+import team.catgirl.collar.protocol.session.SessionTicketResponse;
+import team.catgirl.collar.protocol.session.StartSessionRequest;
+import team.catgirl.collar.protocol.session.StartSessionResponse;
+import team.catgirl.collar.protocol.signal.SendPreKeysRequest;
+import team.catgirl.collar.protocol.signal.SendPreKeysResponse;
+import team.catgirl.collar.protocol.trust.CheckTrustRelationshipRequest;
+import team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse;
+import team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse.IsTrustedRelationshipResponse;
+import team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse.IsUntrustedRelationshipResponse;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.ServerIdentity;
+import team.catgirl.collar.security.TokenGenerator;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+import team.catgirl.collar.security.mojang.Mojang;
+import team.catgirl.collar.server.CollarServer;
+import team.catgirl.collar.server.Services;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles the requests used to establish a session, which are sent before the session is encrypted
+ */
+public final class HandshakeProtocolHandler extends ProtocolHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(HandshakeProtocolHandler.class.getName());
+
+    private final Services services;
+    private final ServerIdentity serverIdentity;
+
+    public HandshakeProtocolHandler(Services services) {
+        this.services = services;
+        this.serverIdentity = services.identityStore.getIdentity();
+        // Clients now rely on WebSocket pings. Older clients still send KeepAliveRequest and expect an answer
+        handle(KeepAliveRequest.class, (collar, session, req, sender) -> {
+            LOGGER.log(Level.FINE, "KeepAliveRequest received. Sending KeepAliveRequest.");
+            collar.sendPlain(session, new KeepAliveResponse(serverIdentity));
+        });
+        handle(IdentifyRequest.class, (collar, session, req, sender) -> identify(collar, session, req));
+        handle(SendPreKeysRequest.class, (collar, session, req, sender) -> {
+            services.identityStore.trustIdentity(req);
+            SendPreKeysResponse response = services.identityStore.createSendPreKeysResponse();
+            collar.sendPlain(session, response);
+        });
+        handle(StartSessionRequest.class, (collar, session, req, sender) -> startSession(collar, session, req));
+        handle(CheckTrustRelationshipRequest.class, (collar, session, req, sender) -> checkTrustRelationship(collar, session, req));
+        handle(ResumeSessionRequest.class, (collar, session, req, sender) -> resumeSession(collar, session, req));
+        handle(RenewSessionTicketRequest.class, (collar, session, req, sender) -> {
+            services.sessions.findMinecraftPlayer(req.identity).ifPresent(player -> sender.accept(req.identity, sessionTicket(req.identity, player)));
+        });
+    }
+
+    @Override
+    public void onSessionStarted(ClientIdentity identity, Player player, BiConsumer<Session, ProtocolResponse> sender) {
+        services.sessions.getSession(identity).ifPresent(session -> sender.accept(session, sessionTicket(identity, player.minecraftPlayer)));
+    }
+
+    private void identify(CollarServer collar, Session session, IdentifyRequest req) {
+        if (req.identity == null) {
+            LOGGER.log(Level.FINE, "Signaling client to register");
+            String token = services.deviceRegistration.createDeviceRegistrationToken(session);
+            String url = services.urlProvider.deviceVerificationUrl(token);
+            collar.sendPlain(session, new RegisterDeviceResponse(serverIdentity, url, token));
+        } else {
+            services.profileCache.getById(req.identity.id()).ifPresentOrElse(profile -> {
+                if (processPrivateIdentityToken(profile, req)) {
+                    LOGGER.log(Level.FINE, "Profile found for " + req.identity.id());
+                    collar.sendPlain(session, new IdentifyResponse(serverIdentity, profile.toPublic(), Mojang.serverPublicKey(), TokenGenerator.byteToken(16)));
+                } else {
+                    collar.sendPlain(session, new PrivateIdentityMismatchResponse(serverIdentity, services.urlProvider.resetPrivateIdentity()));
+                }
+            }, () -> {
+                LOGGER.log(Level.SEVERE, "Profile " + req.identity.id() + " does not exist but the client thinks it should.");
+                collar.sendPlain(session, new IsUntrustedRelationshipResponse(serverIdentity));
+                services.sessions.stopSession(session, "Identity " + req.identity.id() + " was not found", null, null);
+            });
+        }
+    }
+
+    private void startSession(CollarServer collar, Session session, StartSessionRequest req) {
+        LOGGER.log(Level.INFO, "Starting session with " + req.identity);
+        if (services.minecraftSessionVerifier.verify(req)) {
+            MinecraftPlayer minecraftPlayer = req.session.toPlayer();
+            services.sessions.identify(session, req.identity, minecraftPlayer);
+            services.profiles.updateProfile(RequestContext.SERVER, UpdateProfileRequest.addMinecraftAccount(req.identity.id(), req.session.id));
+            collar.sendPlain(session, new StartSessionResponse(serverIdentity));
+        } else {
+            collar.sendPlain(session, new MojangVerificationFailedResponse(serverIdentity, req.session));
+            collar.stopSession(session, "Minecraft session invalid");
+        }
+    }
+
+    private void checkTrustRelationship(CollarServer collar, Session session, CheckTrustRelationshipRequest req) {
+        LOGGER.log(Level.INFO, "Checking if client/server have a trusted relationship");
+        if (services.identityStore.isTrustedIdentity(req.identity)) {
+            LOGGER.log(Level.INFO, req.identity + " is trusted. Signaling client to start encryption. ");
+            CheckTrustRelationshipResponse response = new IsTrustedRelationshipResponse(serverIdentity);
+            collar.sendPlain(session, response);
+            services.sessions.findPlayer(req.identity).ifPresent(player -> {
+                collar.sessionStarted(req.identity, new Player(req.identity.id(), player.minecraftPlayer));
+            });
+        } else {
+            LOGGER.log(Level.INFO, req.identity + " is NOT trusted. Signaling client to restart registration.");
+            CheckTrustRelationshipResponse response = new IsUntrustedRelationshipResponse(serverIdentity);
+            collar.sendPlain(session, response);
+            services.sessions.stopSession(session, req.identity + " identity is not trusted", null, null);
+        }
+    }
+
+    /**
+     * Restores the session the ticket was issued for, skipping the Mojang check that was done when the ticket was issued.
+     * The client is first asked to sign a challenge with its identity key, so only the holder of the identity can redeem it.
+     * The client starts sharing its location again itself once the session has resumed.
+     */
+    private void resumeSession(CollarServer collar, Session session, ResumeSessionRequest req) {
+        if (req.challenge == null || req.signature == null) {
+            services.sessionTickets.challenge(req.identity, req.ticket).ifPresentOrElse(
+                    challenge -> collar.sendPlain(session, new ResumeSessionChallengeResponse(serverIdentity, challenge)),
+                    () -> resumeSessionFailed(collar, session, req));
+            return;
+        }
+        if (!services.identityStore.verifySignature(req.identity, req.challenge, req.signature) || !services.identityStore.isTrustedIdentity(req.identity)) {
+            resumeSessionFailed(collar, session, req);
+            return;
+        }
+        Optional<MinecraftPlayer> minecraftPlayer = services.sessionTickets.redeem(req.identity, req.ticket, req.challenge);
+        if (minecraftPlayer.isEmpty()) {
+            resumeSessionFailed(collar, session, req);
+            return;
+        }
+        LOGGER.log(Level.INFO, "Resuming session with " + req.identity);
+        // The previous connection may not have closed yet. Its session state is handed over without
+        // telling anyone the player went offline
+        services.sessions.getSession(req.identity).filter(previous -> !previous.equals(session)).ifPresent(previous -> {
+            services.sessions.stopSession(previous, "Session resumed on another connection", null, null);
+            previous.close(1000, "Session resumed on another connection");
+        });
+        services.sessions.identify(session, req.identity, minecraftPlayer.get());
+        collar.sendPlain(session, new ResumeSessionResponse(serverIdentity));
+        collar.sessionStarted(req.identity, new Player(req.identity.id(), minecraftPlayer.get()));
+    }
+
+    private void resumeSessionFailed(CollarServer collar, Session session, ResumeSessionRequest req) {
+        LOGGER.log(Level.INFO, "Could not resume session for " + req.identity);
+        collar.sendPlain(session, new ResumeSessionFailedResponse(serverIdentity));
+    }
+
+    private SessionTicketResponse sessionTicket(ClientIdentity identity, MinecraftPlayer player) {
+        return new SessionTicketResponse(serverIdentity, services.sessionTickets.issue(identity, player), services.sessionTickets.lifetimeMillis());
+    }
+
+    private boolean processPrivateIdentityToken(Profile profile, IdentifyRequest req) {
+        if (profile.privateIdentityToken == null || profile.privateIdentityToken.length == 0) {
+            services.profiles.updateProfile(RequestContext.SERVER, UpdateProfileRequest.privateIdentityToken(profile.id, req.privateIdentityToken));
+            return true;
+        }
+        return Arrays.equals(profile.privateIdentityToken, req.privateIdentityToken);
+    }
+}
@@ -6,12 +6,10 @@ import team.catgirl.collar.api.http.RequestContext;
 import team.catgirl.collar.api.profiles.ProfileService;
 import team.catgirl.collar.api.profiles.PublicProfile;
 import team.catgirl.collar.api.session.Player;
-import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.identity.*;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
-import team.catgirl.collar.server.CollarServer;
 import team.catgirl.collar.server.session.SessionManager;
 
 import java.util.function.BiConsumer;
@@ -28,35 +26,25 @@ public class IdentityProtocolHandler extends ProtocolHandler {
         this.sessions = sessions;
         this.profiles = profiles;
         this.serverIdentity = serverIdentity;
-    }
-
-    @Override
-    public boolean handleRequest(CollarServer collar,
-                                 ProtocolRequest req,
-                                 BiConsumer<ClientIdentity, ProtocolResponse> sender) {
-        if (req instanceof GetIdentityRequest) {
-            GetIdentityRequest request = (GetIdentityRequest) req;
-            sessions.getIdentityByMinecraftPlayerId(request.player).ifPresentOrElse(identity -> {
-                sender.accept(request.identity, new GetIdentityResponse(serverIdentity, request.id, identity));
+        handle(GetIdentityRequest.class, (collar, session, req, sender) -> {
+            sessions.getIdentityByMinecraftPlayerId(req.player).ifPresentOrElse(identity -> {
+                sender.accept(req.identity, new GetIdentityResponse(serverIdentity, req.id, identity));
             }, () -> {
-                sender.accept(request.identity, new GetIdentityResponse(serverIdentity, request.id, null));
+                sender.accept(req.identity, new GetIdentityResponse(serverIdentity, req.id, null));
             });
-            return true;
-        } else if (req instanceof CreateTrustRequest) {
-            CreateTrustRequest request = (CreateTrustRequest) req;
-            sender.accept(request.recipient, new CreateTrustResponse(serverIdentity, request.id, request.preKeyBundle, request.identity));
-            return true;
-        } else if (req instanceof GetProfileRequest) {
-            GetProfileRequest request = (GetProfileRequest) req;
+        });
+        handle(CreateTrustRequest.class, (collar, session, req, sender) -> {
+            sender.accept(req.recipient, new CreateTrustResponse(serverIdentity, req.id, req.preKeyBundle, req.identity));
+        });
+        handle(GetProfileRequest.class, (collar, session, req, sender) -> {
             PublicProfile profile;
             try {
-                profile = profiles.getProfile(RequestContext.SERVER, ProfileService.GetProfileRequest.byId(request.profile)).profile.toPublic();
+                profile = profiles.getProfile(RequestContext.SERVER, ProfileService.GetProfileRequest.byId(req.profile)).profile.toPublic();
             } catch (HttpException.NotFoundException e) {
                 profile = null;
             }
-            sender.accept(request.identity, new GetProfileResponse(serverIdentity, request.profile, profile));
-        }
-        return false;
+            sender.accept(req.identity, new GetProfileResponse(serverIdentity, req.profile, profile));
+        });
     }
 
     @Override
@@ -3,11 +3,14 @@ package team.catgirl.collar.server.protocol;
 import org.eclipse.jetty.websocket.api.Session;
 import team.catgirl.collar.api.session.Player;
 import team.catgirl.collar.api.waypoints.EncryptedWaypoint;
-import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.location.StartSharingLocationRequest;
 import team.catgirl.collar.protocol.location.StopSharingLocationRequest;
+import team.catgirl.collar.protocol.location.SubscribeToLocationsRequest;
+import team.catgirl.collar.protocol.location.UnsubscribeFromLocationsRequest;
 import team.catgirl.collar.protocol.location.UpdateLocationRequest;
+import team.catgirl.collar.protocol.location.UpdateLocationsRequest;
+import team.catgirl.collar.protocol.location.UpdateNearbyDeltaRequest;
 import team.catgirl.collar.protocol.location.UpdateNearbyRequest;
 import team.catgirl.collar.protocol.waypoints.CreateWaypointRequest;
 import team.catgirl.collar.protocol.waypoints.GetWaypointsRequest;
@@ -15,7 +18,6 @@ import team.catgirl.collar.protocol.waypoints.GetWaypointsResponse;
 import team.catgirl.collar.protocol.waypoints.RemoveWaypointRequest;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
-import team.catgirl.collar.server.CollarServer;
 import team.catgirl.collar.server.services.location.PlayerLocationService;
 import team.catgirl.collar.server.services.location.WaypointService;
 
@@ -32,48 +34,35 @@ public class LocationProtocolHandler extends ProtocolHandler {
         this.playerLocations = playerLocations;
         this.waypoints = waypoints;
         this.serverIdentity = serverIdentity;
-    }
-
-    @Override
-    public boolean handleRequest(CollarServer collar, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
-        if (req instanceof StartSharingLocationRequest) {
-            StartSharingLocationRequest request = (StartSharingLocationRequest)req;
-            playerLocations.startSharing(request);
-            return true;
-        } else if (req instanceof StopSharingLocationRequest) {
-            StopSharingLocationRequest request = (StopSharingLocationRequest) req;
-            playerLocations.stopSharing(request).ifPresent(response -> sender.accept(null, response));
-            return true;
-        } else if (req instanceof UpdateLocationRequest) {
-            UpdateLocationRequest request = (UpdateLocationRequest) req;
-            playerLocations.updateLocation(request).ifPresent(response -> sender.accept(request.identity, response));
-            return true;
-        } else if (req instanceof UpdateNearbyRequest) {
-            UpdateNearbyRequest request = (UpdateNearbyRequest) req;
-            playerLocations.updateNearbyGroups(request).ifPresent(response -> sender.accept(null, response));
-            return true;
-        } else if (req instanceof CreateWaypointRequest) {
-            CreateWaypointRequest request = (CreateWaypointRequest) req;
-            waypoints.createWaypoint(request);
-            return true;
-        } else if (req instanceof RemoveWaypointRequest) {
-            RemoveWaypointRequest request = (RemoveWaypointRequest) req;
-            waypoints.removeWaypoint(request);
-            return true;
-        } else if (req instanceof GetWaypointsRequest) {
-            GetWaypointsRequest request = (GetWaypointsRequest) req;
-            List<EncryptedWaypoint> waypoints = this.waypoints.getWaypoints(request);
-            sender.accept(req.identity, new GetWaypointsResponse(serverIdentity, waypoints));
-            return true;
-        }
-        return false;
+        handle(StartSharingLocationRequest.class, (collar, session, req, sender) -> playerLocations.startSharing(req));
+        handle(StopSharingLocationRequest.class, (collar, session, req, sender) -> playerLocations.stopSharing(req));
+        handle(UpdateLocationRequest.class, (collar, session, req, sender) -> {
+            playerLocations.updateLocation(req).ifPresent(response -> sender.accept(req.identity, response));
+        });
+        handle(UpdateLocationsRequest.class, (collar, session, req, sender) -> {
+            playerLocations.updateLocations(req).forEach(response -> sender.accept(req.identity, response));
+        });
+        handle(SubscribeToLocationsRequest.class, (collar, session, req, sender) -> {
+            playerLocations.subscribe(req).ifPresent(response -> sender.accept(null, response));
+        });
+        handle(UnsubscribeFromLocationsRequest.class, (collar, session, req, sender) -> playerLocations.unsubscribe(req));
+        handle(UpdateNearbyRequest.class, (collar, session, req, sender) -> {
+            playerLocations.updateNearbyGroups(req).ifPresent(response -> sender.accept(null, response));
+        });
+        handle(UpdateNearbyDeltaRequest.class, (collar, session, req, sender) -> {
+            playerLocations.updateNearbyGroups(req).ifPresent(response -> sender.accept(null, response));
+        });
+        handle(CreateWaypointRequest.class, (collar, session, req, sender) -> waypoints.createWaypoint(req));
+        handle(RemoveWaypointRequest.class, (collar, session, req, sender) -> waypoints.removeWaypoint(req));
+        handle(GetWaypointsRequest.class, (collar, session, req, sender) -> {
+            List<EncryptedWaypoint> waypointList = waypoints.getWaypoints(req);
+            sender.accept(req.identity, new GetWaypointsResponse(serverIdentity, waypointList));
+        });
     }
 
     @Override
     public void onSessionStopping(ClientIdentity identity, Player player, BiConsumer<Session, ProtocolResponse> sender) {
-        playerLocations.stopSharing(player).ifPresent(response -> {
-            sender.accept(null, response);
-        });
+        playerLocations.stopSharing(player);
         playerLocations.removePlayerState(player);
     }
 }
@@ -7,20 +7,36 @@ import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.server.CollarServer;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.BiConsumer;
 
 /**
  * Extensible protocol packet listener and sender
  */
 public abstract class ProtocolHandler {
+
+    private final Map<Class<? extends ProtocolRequest>, RequestHandler<?>> requestHandlers = new HashMap<>();
+
+    /**
+     * Registers the handler for a request type. Should be called from the constructor of the protocol handler.
+     * @param type of request
+     * @param handler to process the request
+     * @param <T> request type
+     */
+    protected final <T extends ProtocolRequest> void handle(Class<T> type, RequestHandler<T> handler) {
+        if (requestHandlers.putIfAbsent(type, handler) != null) {
+            throw new IllegalStateException(type.getName() + " is already handled by " + getClass().getSimpleName());
+        }
+    }
+
     /**
-     * Handles a request coming from a client and processes it
-     * @param collar server
-     * @param req request received
-     * @param sender to send a response
-     * @return if packet handled
+     * @return request handlers registered by this protocol handler
      */
-    public abstract boolean handleRequest(CollarServer collar, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender);
+    public final Map<Class<? extends ProtocolRequest>, RequestHandler<?>> requestHandlers() {
+        return Collections.unmodifiableMap(requestHandlers);
+    }
 
     /**
      * Fired when the session has started and all the session information is available
@@ -37,4 +53,20 @@ public abstract class ProtocolHandler {
      * @param sender to send responses to clients
      */
     public void onSessionStopping(ClientIdentity identity, Player player, BiConsumer<Session, ProtocolResponse> sender) {}
+
+    /**
+     * Handles a single request type coming from a client
+     * @param <T> request type
+     */
+    @FunctionalInterface
+    public interface RequestHandler<T extends ProtocolRequest> {
+        /**
+         * Handles a request coming from a client and processes it
+         * @param collar server
+         * @param session the request was received on
+         * @param req request received
+         * @param sender to send a response
+         */
+        void handle(CollarServer collar, Session session, T req, BiConsumer<ClientIdentity, ProtocolResponse> sender);
+    }
 }
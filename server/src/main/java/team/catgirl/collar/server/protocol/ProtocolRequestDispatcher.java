@@ -0,0 +1,83 @@
+package team.catgirl.collar.server.protocol;
+
+import org.eclipse.jetty.websocket.api.Session;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.server.CollarServer;
+import team.catgirl.collar.server.protocol.ProtocolHandler.RequestHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes requests to the {@link RequestHandler} registered for their class.
+ * The table is built once from the protocol handlers when the server starts. Lookups per request class are cached by
+ * a {@link ClassValue} so dispatching does not depend on how many request types are registered.
+ */
+public final class ProtocolRequestDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ProtocolRequestDispatcher.class.getName());
+
+    private final Map<Class<? extends ProtocolRequest>, RequestHandler<?>> handlers;
+    private final ConcurrentMap<Class<?>, LongAdder> unhandled = new ConcurrentHashMap<>();
+
+    private final ClassValue<RequestHandler<ProtocolRequest>> dispatchTable = new ClassValue<>() {
+        @Override
+        protected RequestHandler<ProtocolRequest> computeValue(Class<?> type) {
+            return findHandler(type);
+        }
+    };
+
+    public ProtocolRequestDispatcher(List<ProtocolHandler> protocolHandlers) {
+        Map<Class<? extends ProtocolRequest>, RequestHandler<?>> handlers = new HashMap<>();
+        protocolHandlers.forEach(protocolHandler -> protocolHandler.requestHandlers().forEach((type, handler) -> {
+            if (handlers.putIfAbsent(type, handler) != null) {
+                throw new IllegalStateException(type.getName() + " is handled by more than one protocol handler");
+            }
+        }));
+        this.handlers = Map.copyOf(handlers);
+    }
+
+    /**
+     * Dispatch the request to its handler
+     * @param collar server
+     * @param session the request was received on
+     * @param req to dispatch
+     * @param sender to send responses
+     */
+    public void dispatch(CollarServer collar, Session session, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
+        dispatchTable.get(req.getClass()).handle(collar, session, req, sender);
+    }
+
+    /**
+     * @return number of requests received per request class that had no handler
+     */
+    public Map<Class<?>, Long> unhandledRequests() {
+        Map<Class<?>, Long> counts = new HashMap<>();
+        unhandled.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RequestHandler<ProtocolRequest> findHandler(Class<?> type) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            RequestHandler<?> handler = handlers.get(current);
+            if (handler != null) {
+                return (RequestHandler<ProtocolRequest>) handler;
+            }
+        }
+        return (collar, session, req, sender) -> {
+            LongAdder count = unhandled.computeIfAbsent(type, key -> {
+                LOGGER.log(Level.WARNING, "No handler registered for " + type.getName());
+                return new LongAdder();
+            });
+            count.increment();
+        };
+    }
+}
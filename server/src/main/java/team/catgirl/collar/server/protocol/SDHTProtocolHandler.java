@@ -5,14 +5,12 @@ import team.catgirl.collar.api.groups.Group;
 import team.catgirl.collar.api.groups.Member;
 import team.catgirl.collar.api.groups.MembershipState;
 import team.catgirl.collar.api.session.Player;
-import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.sdht.SDHTEventRequest;
 import team.catgirl.collar.protocol.sdht.SDHTEventResponse;
 import team.catgirl.collar.sdht.events.*;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
-import team.catgirl.collar.server.CollarServer;
 import team.catgirl.collar.server.services.groups.GroupService;
 import team.catgirl.collar.server.session.SessionManager;
 
@@ -32,45 +30,39 @@ public class SDHTProtocolHandler extends ProtocolHandler {
         this.groups = groups;
         this.sessions = sessions;
         this.serverIdentity = serverIdentity;
+        handle(SDHTEventRequest.class, (collar, session, req, sender) -> handleEvent(req, sender));
     }
 
-    @Override
-    public boolean handleRequest(CollarServer collar, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
-        if (req instanceof SDHTEventRequest) {
-            SDHTEventRequest request = (SDHTEventRequest) req;
-            AbstractSDHTEvent e = request.event;
-            if (e instanceof CreateEntryEvent) {
-                CreateEntryEvent event = (CreateEntryEvent) e;
-                findListeners(req.identity, event.record.key.namespace).forEach(identity -> {
-                    CreateEntryEvent newEvent = new CreateEntryEvent(req.identity, null, event.record, event.content);
-                    SDHTEventResponse response = new SDHTEventResponse(serverIdentity, newEvent);
-                    sender.accept(identity, response);
-                });
-                return true;
-            } else if (e instanceof DeleteRecordEvent) {
-                DeleteRecordEvent event = (DeleteRecordEvent) e;
-                findListeners(req.identity, event.delete.key.namespace).forEach(identity -> {
-                    SDHTEventResponse response = new SDHTEventResponse(serverIdentity, event);
-                    sender.accept(identity, response);
-                });
-            } else if (e instanceof PublishRecordsEvent) {
-                PublishRecordsEvent event = (PublishRecordsEvent) e;
+    private void handleEvent(SDHTEventRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
+        AbstractSDHTEvent e = req.event;
+        if (e instanceof CreateEntryEvent) {
+            CreateEntryEvent event = (CreateEntryEvent) e;
+            findListeners(req.identity, event.record.key.namespace).forEach(identity -> {
+                CreateEntryEvent newEvent = new CreateEntryEvent(req.identity, null, event.record, event.content);
+                SDHTEventResponse response = new SDHTEventResponse(serverIdentity, newEvent);
+                sender.accept(identity, response);
+            });
+        } else if (e instanceof DeleteRecordEvent) {
+            DeleteRecordEvent event = (DeleteRecordEvent) e;
+            findListeners(req.identity, event.delete.key.namespace).forEach(identity -> {
                 SDHTEventResponse response = new SDHTEventResponse(serverIdentity, event);
-                sender.accept(event.recipient, response);
-            } else if (e instanceof SyncRecordsEvent) {
-                SyncRecordsEvent event = (SyncRecordsEvent) e;
-                SDHTEventResponse response = new SDHTEventResponse(serverIdentity, new SyncRecordsEvent(req.identity, event.namespace));
-                findListeners(req.identity, event.namespace).forEach(identity -> {
-                    sender.accept(identity, response);
-                });
-            } else if (e instanceof SyncContentEvent) {
-                SyncContentEvent event = (SyncContentEvent) e;
-                SDHTEventResponse response = new SDHTEventResponse(serverIdentity, new SyncContentEvent(req.identity, event.recipient, event.record));
-                sender.accept(event.recipient, response);
-            }
-            return true;
+                sender.accept(identity, response);
+            });
+        } else if (e instanceof PublishRecordsEvent) {
+            PublishRecordsEvent event = (PublishRecordsEvent) e;
+            SDHTEventResponse response = new SDHTEventResponse(serverIdentity, event);
+            sender.accept(event.recipient, response);
+        } else if (e instanceof SyncRecordsEvent) {
+            SyncRecordsEvent event = (SyncRecordsEvent) e;
+            SDHTEventResponse response = new SDHTEventResponse(serverIdentity, new SyncRecordsEvent(req.identity, event.namespace));
+            findListeners(req.identity, event.namespace).forEach(identity -> {
+                sender.accept(identity, response);
+            });
+        } else if (e instanceof SyncContentEvent) {
+            SyncContentEvent event = (SyncContentEvent) e;
+            SDHTEventResponse response = new SDHTEventResponse(serverIdentity, new SyncContentEvent(req.identity, event.recipient, event.record));
+            sender.accept(event.recipient, response);
         }
-        return false;
     }
 
     private Set<ClientIdentity> findListeners(ClientIdentity sender, UUID namespace) {
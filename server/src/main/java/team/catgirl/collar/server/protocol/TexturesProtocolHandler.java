@@ -6,13 +6,11 @@ import team.catgirl.collar.api.http.RequestContext;
 import team.catgirl.collar.api.profiles.PublicProfile;
 import team.catgirl.collar.api.session.Player;
 import team.catgirl.collar.api.textures.TextureType;
-import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.textures.GetTextureResponse;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
 import team.catgirl.collar.security.mojang.MinecraftPlayer;
-import team.catgirl.collar.server.CollarServer;
 import team.catgirl.collar.server.services.profiles.ProfileCache;
 import team.catgirl.collar.server.services.textures.TextureService;
 import team.catgirl.collar.server.services.textures.TextureService.GetTextureRequest;
@@ -37,53 +35,48 @@ public class TexturesProtocolHandler extends ProtocolHandler {
         this.profiles = profiles;
         this.sessions = sessions;
         this.textures = textures;
+        handle(team.catgirl.collar.protocol.textures.GetTextureRequest.class, (collar, session, req, sender) -> getTexture(req, sender));
     }
 
-    @Override
-    public boolean handleRequest(CollarServer collar, ProtocolRequest req, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
-        if (req instanceof team.catgirl.collar.protocol.textures.GetTextureRequest) {
-            team.catgirl.collar.protocol.textures.GetTextureRequest request = (team.catgirl.collar.protocol.textures.GetTextureRequest) req;
-            if (request.player != null) {
-                sessions.getSessionStateByPlayer(request.player).ifPresentOrElse(sessionState -> {
-                    GetTextureResponse response;
-                    try {
-                        Texture texture = null;
-                        // If asking for a cape, lookup the default cape first
-                        if (request.type == TextureType.CAPE) {
-                            texture = findDefaultCape(request, sessionState);
-                        }
-                        // otherwise fall back to fetching any cape cape the player owns
-                        if (texture == null) {
-                            texture = textures.getTexture(RequestContext.ANON, new GetTextureRequest(null, sessionState.identity.owner, request.group, request.type)).texture;
-                        }
-                        response = new GetTextureResponse(serverIdentity, texture.id, null, sessionState.toPlayer(), texture.url, texture.type);
-                    } catch (NotFoundException ignored) {
-                        LOGGER.log(Level.INFO, "Could not find texture " + request.type + " for player " + request.player);
-                        response = new GetTextureResponse(serverIdentity, null, null, sessionState.toPlayer(), null, request.type);
-                    }
-                    sender.accept(request.identity, response);
-                }, () -> {
-                    sessions.findPlayer(req.identity).ifPresent(player -> {
-                        Player requestedPlayer = new Player(null, new MinecraftPlayer(request.player, player.minecraftPlayer.server, player.minecraftPlayer.networkId));
-                        // Send this back to complete any futures on the client
-                        sender.accept(req.identity, new GetTextureResponse(serverIdentity, null, null, requestedPlayer, null, request.type));
-                        LOGGER.log(Level.INFO, "Could not find player " + request.player + " when fetching texture " + request.type);
-                    });
-                });
-            } else if (request.group != null) {
+    private void getTexture(team.catgirl.collar.protocol.textures.GetTextureRequest request, BiConsumer<ClientIdentity, ProtocolResponse> sender) {
+        if (request.player != null) {
+            sessions.getSessionStateByPlayer(request.player).ifPresentOrElse(sessionState -> {
                 GetTextureResponse response;
                 try {
-                    Texture texture = textures.getTexture(RequestContext.ANON, new GetTextureRequest(null,null, request.group, request.type)).texture;
-                    response = new GetTextureResponse(serverIdentity, texture.id, texture.group, null, texture.url, texture.type);
+                    Texture texture = null;
+                    // If asking for a cape, lookup the default cape first
+                    if (request.type == TextureType.CAPE) {
+                        texture = findDefaultCape(request, sessionState);
+                    }
+                    // otherwise fall back to fetching any cape cape the player owns
+                    if (texture == null) {
+                        texture = textures.getTexture(RequestContext.ANON, new GetTextureRequest(null, sessionState.identity.owner, request.group, request.type)).texture;
+                    }
+                    response = new GetTextureResponse(serverIdentity, texture.id, null, sessionState.toPlayer(), texture.url, texture.type);
                 } catch (NotFoundException ignored) {
-                    LOGGER.log(Level.INFO, "Could not find texture " + request.type + " for group " + request.group);
-                    response = new GetTextureResponse(serverIdentity, null, request.group, null, null, request.type);
+                    LOGGER.log(Level.INFO, "Could not find texture " + request.type + " for player " + request.player);
+                    response = new GetTextureResponse(serverIdentity, null, null, sessionState.toPlayer(), null, request.type);
                 }
                 sender.accept(request.identity, response);
+            }, () -> {
+                sessions.findPlayer(request.identity).ifPresent(player -> {
+                    Player requestedPlayer = new Player(null, new MinecraftPlayer(request.player, player.minecraftPlayer.server, player.minecraftPlayer.networkId));
+                    // Send this back to complete any futures on the client
+                    sender.accept(request.identity, new GetTextureResponse(serverIdentity, null, null, requestedPlayer, null, request.type));
+                    LOGGER.log(Level.INFO, "Could not find player " + request.player + " when fetching texture " + request.type);
+                });
+            });
+        } else if (request.group != null) {
+            GetTextureResponse response;
+            try {
+                Texture texture = textures.getTexture(RequestContext.ANON, new GetTextureRequest(null,null, request.group, request.type)).texture;
+                response = new GetTextureResponse(serverIdentity, texture.id, texture.group, null, texture.url, texture.type);
+            } catch (NotFoundException ignored) {
+                LOGGER.log(Level.INFO, "Could not find texture " + request.type + " for group " + request.group);
+                response = new GetTextureResponse(serverIdentity, null, request.group, null, null, request.type);
             }
-            return true;
+            sender.accept(request.identity, response);
         }
-        return false;
     }
 
     private Texture findDefaultCape(team.catgirl.collar.protocol.textures.GetTextureRequest request, SessionManager.SessionState sessionState) {
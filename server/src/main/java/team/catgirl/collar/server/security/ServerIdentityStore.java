@@ -27,6 +27,15 @@ public interface ServerIdentityStore {
      */
     boolean isTrustedIdentity(ClientIdentity identity);
 
+    /**
+     * Tests if the message was signed with the identity's key
+     * @param identity that signed the message
+     * @param message that was signed
+     * @param signature of the message
+     * @return signed by the identity or not
+     */
+    boolean verifySignature(ClientIdentity identity, byte[] message, byte[] signature);
+
     /**
      * @return creates a new {@link Cipher}
      */
@@ -35,4 +44,15 @@ public interface ServerIdentityStore {
     SendPreKeysResponse createSendPreKeysResponse();
 
     UUID findIdentity(ClientIdentity identity, int deviceId);
+
+    /**
+     * Persists any cipher state held in memory for the client
+     * @param identity of the client whose session closed
+     */
+    void sessionClosed(ClientIdentity identity);
+
+    /**
+     * Stops background work and persists all cipher state held in memory
+     */
+    void close();
 }
@@ -0,0 +1,211 @@
+package team.catgirl.collar.server.security.signal;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the session records of connected clients in memory so that encrypting and decrypting a packet does not need
+ * a round trip to the database. Stored records are written to {@link Storage} in batches by a background thread and
+ * immediately when a client's session is closed with {@link #flush(String)}.
+ *
+ * Crash safety: records stored since the last flush are lost if the server stops without calling {@link #close()}.
+ * At most one flush interval of ratchet state is lost. A client whose ratchet is ahead of the persisted record will
+ * fail to decrypt with the server, which is already handled by the server asking the client to resend its pre-keys
+ * and establishing a new session. Deletes are written through immediately so a deleted session never comes back.
+ */
+public final class CachedSessionStore implements SessionStore {
+
+    private static final Logger LOGGER = Logger.getLogger(CachedSessionStore.class.getName());
+
+    private final Storage storage;
+    private final ConcurrentMap<SignalProtocolAddress, CachedRecord> records = new ConcurrentHashMap<>();
+    /** Writes are ordered by this lock so that an older record can never overwrite a newer one **/
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param storage to persist records to
+     * @param flushIntervalMillis how often dirty records are written to storage
+     */
+    public CachedSessionStore(Storage storage, long flushIntervalMillis) {
+        this.storage = storage;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collar-session-store-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+        byte[] record = records.computeIfAbsent(address, theAddress -> new CachedRecord(storage.findRecord(theAddress).orElse(null), false)).record;
+        if (record == null) {
+            return new SessionRecord();
+        }
+        // libsignal mutates loaded records, so always hand out a copy
+        try {
+            return new SessionRecord(record);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not load session record " + address, e);
+        }
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+        List<Integer> deviceIds = new ArrayList<>(storage.getSubDeviceSessions(name));
+        records.forEach((address, record) -> {
+            if (address.getName().equals(name) && record.record != null && !deviceIds.contains(address.getDeviceId())) {
+                deviceIds.add(address.getDeviceId());
+            }
+        });
+        Collections.sort(deviceIds);
+        return deviceIds;
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        records.put(address, new CachedRecord(record.serialize(), true));
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+        CachedRecord record = records.get(address);
+        return record == null ? storage.containsSession(address) : record.record != null;
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+        synchronized (writeLock) {
+            records.remove(address);
+            storage.deleteSession(address);
+        }
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+        synchronized (writeLock) {
+            records.keySet().removeIf(address -> address.getName().equals(name));
+            storage.deleteAllSessions(name);
+        }
+    }
+
+    /**
+     * Write all dirty records to storage
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            Map<SignalProtocolAddress, CachedRecord> dirty = new LinkedHashMap<>();
+            records.forEach((address, record) -> {
+                if (record.dirty) {
+                    dirty.put(address, record);
+                }
+            });
+            write(dirty);
+        }
+    }
+
+    /**
+     * Write the records of a client to storage and stop caching them. Call when the client's session closes.
+     * @param name of the client
+     */
+    public void flush(String name) {
+        synchronized (writeLock) {
+            Map<SignalProtocolAddress, CachedRecord> dirty = new LinkedHashMap<>();
+            records.forEach((address, record) -> {
+                if (address.getName().equals(name) && record.dirty) {
+                    dirty.put(address, record);
+                }
+            });
+            write(dirty);
+            // Only evict records that were not replaced while writing
+            records.entrySet().removeIf(entry -> entry.getKey().getName().equals(name) && !entry.getValue().dirty);
+        }
+    }
+
+    /**
+     * Stop the background flush and write all dirty records
+     */
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    /**
+     * @return number of records held in memory
+     */
+    public int size() {
+        return records.size();
+    }
+
+    private void write(Map<SignalProtocolAddress, CachedRecord> dirty) {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Map<SignalProtocolAddress, byte[]> batch = new LinkedHashMap<>();
+        dirty.forEach((address, record) -> batch.put(address, record.record));
+        storage.storeRecords(batch);
+        // Records are replaced rather than mutated, so a record stored while writing stays dirty
+        dirty.forEach((address, record) -> records.replace(address, record, new CachedRecord(record.record, false)));
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Could not flush session records. Will retry.", e);
+        }
+    }
+
+    private static final class CachedRecord {
+        /** Serialized record or null if there is no session **/
+        final byte[] record;
+        final boolean dirty;
+
+        CachedRecord(byte[] record, boolean dirty) {
+            this.record = record;
+            this.dirty = dirty;
+        }
+    }
+
+    /**
+     * Persistent storage for session records
+     */
+    public interface Storage {
+        /**
+         * @param address of the session
+         * @return serialized record or empty if there is no session
+         */
+        Optional<byte[]> findRecord(SignalProtocolAddress address);
+
+        /**
+         * Write serialized records in one batch
+         * @param records to write
+         */
+        void storeRecords(Map<SignalProtocolAddress, byte[]> records);
+
+        List<Integer> getSubDeviceSessions(String name);
+
+        boolean containsSession(SignalProtocolAddress address);
+
+        void deleteSession(SignalProtocolAddress address);
+
+        void deleteAllSessions(String name);
+    }
+}
@@ -0,0 +1,245 @@
+package team.catgirl.collar.server.security.signal;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.Medium;
+import team.catgirl.collar.security.signal.PreKeys;
+import team.catgirl.collar.utils.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of server pre-key bundles generated ahead of time so that a handshake does not have to generate keys and wait
+ * for them to be written. The pool is refilled in the background and the records of each refill are written in bulk.
+ * If the pool runs dry a bundle is generated on the caller's thread.
+ */
+public final class PreKeyBundlePool {
+
+    private static final Logger LOGGER = Logger.getLogger(PreKeyBundlePool.class.getName());
+
+    /** Refills happen this often, generating a share of the refill rate each time **/
+    private static final long REFILL_INTERVAL_MILLIS = 100;
+
+    private final ServerSignalProtocolStore store;
+    private final SignalProtocolAddress address;
+    private final int size;
+    private final int lowWaterMark;
+    private final int refillBatchSize;
+    private final ArrayBlockingQueue<Bundle> bundles;
+    private final ScheduledExecutorService refiller;
+    private final AtomicBoolean belowLowWaterMark = new AtomicBoolean();
+    private final List<IntConsumer> lowWaterMarkListeners = new CopyOnWriteArrayList<>();
+    private final LongAdder taken = new LongAdder();
+    private final LongAdder generatedOnDemand = new LongAdder();
+    private final LongAdder lowWaterMarkEvents = new LongAdder();
+
+    /**
+     * @param store to persist the bundle's keys to
+     * @param address of the server
+     * @param size of the pool
+     * @param refillPerSecond maximum number of bundles generated per second when refilling
+     */
+    public PreKeyBundlePool(ServerSignalProtocolStore store, SignalProtocolAddress address, int size, int refillPerSecond) {
+        if (size < 1 || refillPerSecond < 1) {
+            throw new IllegalArgumentException("size and refillPerSecond must be positive");
+        }
+        this.store = store;
+        this.address = address;
+        this.size = size;
+        this.lowWaterMark = Math.max(1, size / 4);
+        this.refillBatchSize = (int) Math.max(1, refillPerSecond * REFILL_INTERVAL_MILLIS / TimeUnit.SECONDS.toMillis(1));
+        this.bundles = new ArrayBlockingQueue<>(size);
+        // Every bundle is for the server's own address, so its identity only needs saving once
+        store.saveIdentity(address, store.getIdentityKeyPair().getPublicKey());
+        this.refiller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collar-prekey-bundle-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refiller.scheduleWithFixedDelay(this::refillQuietly, 0, REFILL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take a bundle from the pool, or generate one if the pool is empty
+     * @return serialized {@link PreKeyBundle}
+     */
+    public byte[] take() {
+        Bundle bundle = bundles.poll();
+        int available = bundles.size();
+        if (available < lowWaterMark && belowLowWaterMark.compareAndSet(false, true)) {
+            lowWaterMarkEvents.increment();
+            LOGGER.log(Level.WARNING, "Pre-key bundle pool is below its low water mark with " + available + " of " + size + " bundles available");
+            lowWaterMarkListeners.forEach(listener -> listener.accept(available));
+        }
+        if (bundle == null) {
+            generatedOnDemand.increment();
+            return generateAndStore(1).get(0).bytes;
+        }
+        taken.increment();
+        return bundle.bytes;
+    }
+
+    /**
+     * Listen for the pool dropping below its low water mark. Called once each time the pool drops below it.
+     * @param listener accepting the number of bundles available
+     */
+    public void onLowWaterMark(IntConsumer listener) {
+        lowWaterMarkListeners.add(listener);
+    }
+
+    /**
+     * @return snapshot of the pool's metrics
+     */
+    public Metrics metrics() {
+        return new Metrics(size, lowWaterMark, bundles.size(), taken.sum(), generatedOnDemand.sum(), lowWaterMarkEvents.sum());
+    }
+
+    /**
+     * Stop refilling the pool and remove the keys of bundles that were never taken, so they do not pile up in the
+     * store across restarts
+     */
+    public void close() {
+        refiller.shutdown();
+        try {
+            if (!refiller.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.WARNING, "Pre-key bundle pool refill did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Bundle> untaken = new ArrayList<>(size);
+        bundles.drainTo(untaken);
+        if (untaken.isEmpty()) {
+            return;
+        }
+        List<Integer> preKeyIds = new ArrayList<>(untaken.size());
+        List<Integer> signedPreKeyIds = new ArrayList<>(untaken.size());
+        for (Bundle bundle : untaken) {
+            preKeyIds.add(bundle.preKeyId);
+            signedPreKeyIds.add(bundle.signedPreKeyId);
+        }
+        store.preKeyStore.removePreKeys(preKeyIds);
+        store.signedPreKeyStore.removeSignedPreKeys(signedPreKeyIds);
+        LOGGER.log(Level.INFO, "Removed " + untaken.size() + " untaken pre-key bundles");
+    }
+
+    private void refillQuietly() {
+        try {
+            int missing = size - bundles.size();
+            if (missing > 0) {
+                for (Bundle bundle : generateAndStore(Math.min(missing, refillBatchSize))) {
+                    if (!bundles.offer(bundle)) {
+                        break;
+                    }
+                }
+            }
+            if (bundles.size() >= lowWaterMark) {
+                belowLowWaterMark.set(false);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Could not refill pre-key bundle pool", e);
+        }
+    }
+
+    /**
+     * Generates the same keys as {@link PreKeys#generate(SignalProtocolAddress, org.whispersystems.libsignal.state.SignalProtocolStore)}
+     * but writes the records of all bundles at once
+     */
+    private List<Bundle> generateAndStore(int count) {
+        List<PreKeyBundle> generated = new ArrayList<>(count);
+        List<SignedPreKeyRecord> signedPreKeys = new ArrayList<>(count);
+        List<PreKeyRecord> preKeys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ECKeyPair signedPreKey = Curve.generateKeyPair();
+            int signedPreKeyId = Utils.secureRandom().nextInt(Medium.MAX_VALUE);
+            ECKeyPair unsignedPreKey = Curve.generateKeyPair();
+            int unsignedPreKeyId = Utils.secureRandom().nextInt(Medium.MAX_VALUE);
+            byte[] signature;
+            try {
+                signature = Curve.calculateSignature(store.getIdentityKeyPair().getPrivateKey(), signedPreKey.getPublicKey().serialize());
+            } catch (InvalidKeyException e) {
+                throw new IllegalStateException("invalid key");
+            }
+            generated.add(new PreKeyBundle(
+                    store.getLocalRegistrationId(),
+                    address.getDeviceId(),
+                    unsignedPreKeyId,
+                    unsignedPreKey.getPublicKey(),
+                    signedPreKeyId,
+                    signedPreKey.getPublicKey(),
+                    signature,
+                    store.getIdentityKeyPair().getPublicKey()));
+            signedPreKeys.add(new SignedPreKeyRecord(signedPreKeyId, System.currentTimeMillis(), signedPreKey, signature));
+            preKeys.add(new PreKeyRecord(unsignedPreKeyId, unsignedPreKey));
+        }
+        store.signedPreKeyStore.storeSignedPreKeys(signedPreKeys);
+        store.preKeyStore.storePreKeys(preKeys);
+        List<Bundle> serialized = new ArrayList<>(count);
+        for (PreKeyBundle bundle : generated) {
+            try {
+                serialized.add(new Bundle(PreKeys.preKeyBundleToBytes(bundle), bundle.getPreKeyId(), bundle.getSignedPreKeyId()));
+            } catch (IOException e) {
+                throw new IllegalStateException("could not generate PreKeyBundle", e);
+            }
+        }
+        return serialized;
+    }
+
+    /** Serialized bundle and the ids of the key records written for it **/
+    private static final class Bundle {
+        final byte[] bytes;
+        final int preKeyId;
+        final int signedPreKeyId;
+
+        Bundle(byte[] bytes, int preKeyId, int signedPreKeyId) {
+            this.bytes = bytes;
+            this.preKeyId = preKeyId;
+            this.signedPreKeyId = signedPreKeyId;
+        }
+    }
+
+    public static final class Metrics {
+        public final int size;
+        public final int lowWaterMark;
+        /** Bundles ready to be taken **/
+        public final int available;
+        /** Bundles taken from the pool **/
+        public final long taken;
+        /** Bundles generated on the caller's thread because the pool was empty **/
+        public final long generatedOnDemand;
+        /** Times the pool dropped below its low water mark **/
+        public final long lowWaterMarkEvents;
+
+        public Metrics(int size, int lowWaterMark, int available, long taken, long generatedOnDemand, long lowWaterMarkEvents) {
+            this.size = size;
+            this.lowWaterMark = lowWaterMark;
+            this.available = available;
+            this.taken = taken;
+            this.generatedOnDemand = generatedOnDemand;
+            this.lowWaterMarkEvents = lowWaterMarkEvents;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + " lowWaterMark=" + lowWaterMark + " available=" + available + " taken=" + taken
+                    + " generatedOnDemand=" + generatedOnDemand + " lowWaterMarkEvents=" + lowWaterMarkEvents;
+        }
+    }
+}
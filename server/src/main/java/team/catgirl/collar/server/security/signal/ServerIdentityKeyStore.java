@@ -1,5 +1,9 @@
 package team.catgirl.collar.server.security.signal;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
@@ -16,14 +20,26 @@ import org.whispersystems.libsignal.util.KeyHelper;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 
+/**
+ * Stores the identity keys of clients. Lookups are cached as they happen on every handshake. Identities are never
+ * deleted and are only written through {@link #saveIdentity(SignalProtocolAddress, IdentityKey)}, which updates the
+ * caches, so cached results only become stale if another server writes to the same collection.
+ */
 public class ServerIdentityKeyStore implements IdentityKeyStore {
 
+    private static final int MAXIMUM_CACHED_IDENTITIES = 50_000;
+    private static final int EXPIRE_AFTER_ACCESS_MINUTES = 10;
+
     // Key store fields
     private static final String NAME = "name";
     private static final String DEVICE_ID = "deviceId";
@@ -40,6 +56,12 @@ public class ServerIdentityKeyStore implements IdentityKeyStore {
     private final MongoCollection<Document> docs;
     private final UUID serverId;
 
+    /** Trust results keyed by {@link #trustKey(SignalProtocolAddress, IdentityKey)} **/
+    private final Cache<String, Boolean> trusted = newCache();
+    private final Cache<SignalProtocolAddress, Optional<IdentityKey>> identities = newCache();
+    /** Client names keyed by {@link #nameKey(IdentityKey, int)} **/
+    private final Cache<String, Optional<String>> names = newCache();
+
     public ServerIdentityKeyStore(MongoDatabase db, Consumer<ServerIdentityKeyStore> onInstall) {
         docs = db.getCollection("signal_key_store");
         Map<String, Object> index = new HashMap<>();
@@ -89,26 +111,70 @@ public class ServerIdentityKeyStore implements IdentityKeyStore {
 
     @Override
     public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-        return docs.replaceOne(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()), eq(FINGERPRINT, identityKey.getFingerprint())), map(address, identityKey), new ReplaceOptions().upsert(true)).wasAcknowledged();
+        boolean acknowledged = docs.replaceOne(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()), eq(FINGERPRINT, identityKey.getFingerprint())), map(address, identityKey), new ReplaceOptions().upsert(true)).wasAcknowledged();
+        trusted.put(trustKey(address, identityKey), true);
+        identities.invalidate(address);
+        names.invalidate(nameKey(identityKey, address.getDeviceId()));
+        return acknowledged;
     }
 
     @Override
     public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
-        return docs.find(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()), eq(FINGERPRINT, identityKey.getFingerprint()))).iterator().hasNext();
+        return load(trusted, trustKey(address, identityKey), () -> docs.find(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()), eq(FINGERPRINT, identityKey.getFingerprint()))).first() != null);
     }
 
     @Override
     public IdentityKey getIdentity(SignalProtocolAddress address) {
-        Document first = docs.find(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()))).first();
+        return load(identities, address, () -> {
+            Document first = docs.find(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()))).first();
+            try {
+                return first == null ? Optional.<IdentityKey>empty() : Optional.of(new IdentityKey(first.get(IDENTITY_KEY, Binary.class).getData(), 0));
+            } catch (InvalidKeyException e) {
+                throw new IllegalStateException(e);
+            }
+        }).orElse(null);
+    }
+
+    public String findNameBy(IdentityKey identityKey, int deviceId) {
+        return load(names, nameKey(identityKey, deviceId), () -> Optional.ofNullable(docs.find(and(eq(FINGERPRINT, identityKey.getFingerprint()), eq(DEVICE_ID, deviceId))).map(document -> document.getString(NAME)).first())).orElse(null);
+    }
+
+    /**
+     * @return hit and miss statistics of the trust cache
+     */
+    public CacheStats trustCacheStats() {
+        return trusted.stats();
+    }
+
+    /**
+     * @return hit and miss statistics of the identity and name caches
+     */
+    public CacheStats identityCacheStats() {
+        return identities.stats().plus(names.stats());
+    }
+
+    private static <K, V> Cache<K, V> newCache() {
+        return CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_CACHED_IDENTITIES)
+                .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    private static <K, V> V load(Cache<K, V> cache, K key, Callable<V> loader) {
         try {
-            return first == null ? null : new IdentityKey(first.get(IDENTITY_KEY, Binary.class).getData(), 0);
-        } catch (InvalidKeyException e) {
-            throw new IllegalStateException(e);
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("could not load " + key, e.getCause());
         }
     }
 
-    public String findNameBy(IdentityKey identityKey, int deviceId) {
-        return docs.find(and(eq(FINGERPRINT, identityKey.getFingerprint()), eq(DEVICE_ID, deviceId))).map(document -> document.getString(NAME)).first();
+    private static String trustKey(SignalProtocolAddress address, IdentityKey identityKey) {
+        return address.getName() + '/' + address.getDeviceId() + '/' + identityKey.getFingerprint();
+    }
+
+    private static String nameKey(IdentityKey identityKey, int deviceId) {
+        return identityKey.getFingerprint() + '/' + deviceId;
     }
 
     private static Document map(SignalProtocolAddress address, IdentityKey identityKey) {
@@ -1,7 +1,10 @@
 package team.catgirl.collar.server.security.signal;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
@@ -11,16 +14,35 @@ import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.PreKeyStore;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 
+/**
+ * Stores one-time pre-keys. Records are cached by id, including ids that do not exist or were removed,
+ * so that repeated lookups of the same key during a handshake do not go to the database.
+ */
 public class ServerPreKeyStore implements PreKeyStore {
     private static final String PRE_KEY_ID = "preKeyId";
     private static final String RECORD = "record";
 
+    private static final int MAXIMUM_CACHED_PRE_KEYS = 10_000;
+    private static final int EXPIRE_AFTER_ACCESS_MINUTES = 10;
+
     private final MongoCollection<Document> docs;
+    /** Serialized records by id. libsignal mutates records, so a new one is deserialized on every load **/
+    private final Cache<Integer, Optional<byte[]>> records = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_CACHED_PRE_KEYS)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
 
     public ServerPreKeyStore(MongoDatabase db) {
         this.docs = db.getCollection("signal_prekey_store");
@@ -31,16 +53,11 @@ public class ServerPreKeyStore implements PreKeyStore {
 
     @Override
     public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-        MongoCursor<Document> cursor = docs.find(eq(PRE_KEY_ID, preKeyId)).iterator();
-        if (cursor.hasNext()) {
-            Document next = cursor.next();
-            try {
-                return new PreKeyRecord(next.get(RECORD, Binary.class).getData());
-            } catch (IOException e) {
-                throw new IllegalStateException("could not load key", e);
-            }
-        } else {
-            throw new InvalidKeyIdException("could not load key " + preKeyId);
+        byte[] record = findRecord(preKeyId).orElseThrow(() -> new InvalidKeyIdException("could not load key " + preKeyId));
+        try {
+            return new PreKeyRecord(record);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not load key", e);
         }
     }
 
@@ -48,17 +65,67 @@ public class ServerPreKeyStore implements PreKeyStore {
     public void storePreKey(int preKeyId, PreKeyRecord record) {
         Map<String, Object> state = new HashMap<>();
         state.put(PRE_KEY_ID, preKeyId);
-        state.put(RECORD, new Binary(record.serialize()));
+        byte[] serialized = record.serialize();
+        state.put(RECORD, new Binary(serialized));
         docs.insertOne(new Document(state));
+        records.put(preKeyId, Optional.of(serialized));
+    }
+
+    /**
+     * Store many pre-keys with one write
+     * @param preKeys to store
+     */
+    public void storePreKeys(List<PreKeyRecord> preKeys) {
+        List<Document> documents = new ArrayList<>(preKeys.size());
+        for (PreKeyRecord preKey : preKeys) {
+            Map<String, Object> state = new HashMap<>();
+            state.put(PRE_KEY_ID, preKey.getId());
+            state.put(RECORD, new Binary(preKey.serialize()));
+            documents.add(new Document(state));
+        }
+        docs.insertMany(documents);
+        for (PreKeyRecord preKey : preKeys) {
+            records.put(preKey.getId(), Optional.of(preKey.serialize()));
+        }
     }
 
     @Override
     public boolean containsPreKey(int preKeyId) {
-        return docs.find(eq(PRE_KEY_ID, preKeyId)).iterator().hasNext();
+        return findRecord(preKeyId).isPresent();
     }
 
     @Override
     public void removePreKey(int preKeyId) {
         docs.deleteOne(eq(PRE_KEY_ID, preKeyId));
+        records.put(preKeyId, Optional.empty());
+    }
+
+    /**
+     * Remove many pre-keys with one write
+     * @param preKeyIds to remove
+     */
+    public void removePreKeys(List<Integer> preKeyIds) {
+        docs.deleteMany(in(PRE_KEY_ID, preKeyIds));
+        for (Integer preKeyId : preKeyIds) {
+            records.put(preKeyId, Optional.empty());
+        }
+    }
+
+    /**
+     * @return hit and miss statistics of the pre-key cache
+     */
+    public CacheStats cacheStats() {
+        return records.stats();
+    }
+
+    private Optional<byte[]> findRecord(int preKeyId) {
+        try {
+            return records.get(preKeyId, () -> {
+                Document first = docs.find(eq(PRE_KEY_ID, preKeyId)).first();
+                return first == null ? Optional.empty() : Optional.of(first.get(RECORD, Binary.class).getData());
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("could not load key " + preKeyId, e.getCause());
+        }
     }
 }
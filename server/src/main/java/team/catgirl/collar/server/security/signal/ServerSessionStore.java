@@ -3,7 +3,10 @@ package team.catgirl.collar.server.security.signal;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReplaceOneModel;
 import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
@@ -13,16 +16,18 @@ import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionStore;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 
-public class ServerSessionStore implements SessionStore {
+public class ServerSessionStore implements SessionStore, CachedSessionStore.Storage {
 
     private static final String NAME = "name";
     private static final String DEVICE_ID = "deviceId";
@@ -53,6 +58,28 @@ public class ServerSessionStore implements SessionStore {
         }
     }
 
+    @Override
+    public Optional<byte[]> findRecord(SignalProtocolAddress address) {
+        Document doc = docs.find(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId()))).first();
+        return doc == null ? Optional.empty() : Optional.of(doc.get(RECORD, Binary.class).getData());
+    }
+
+    @Override
+    public void storeRecords(Map<SignalProtocolAddress, byte[]> records) {
+        List<ReplaceOneModel<Document>> writes = new ArrayList<>(records.size());
+        records.forEach((address, record) -> {
+            Map<String, Object> state = new HashMap<>();
+            state.put(NAME, address.getName());
+            state.put(DEVICE_ID, address.getDeviceId());
+            state.put(RECORD, record);
+            writes.add(new ReplaceOneModel<>(and(eq(NAME, address.getName()), eq(DEVICE_ID, address.getDeviceId())), new Document(state), new ReplaceOptions().upsert(true)));
+        });
+        BulkWriteResult result = docs.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        if (!result.wasAcknowledged()) {
+            throw new IllegalStateException("did not save " + records.size() + " sessions");
+        }
+    }
+
     @Override
     public List<Integer> getSubDeviceSessions(String name) {
         return StreamSupport.stream(docs.find(eq(NAME, name)).map(document -> document.getInteger(DEVICE_ID)).spliterator(), false).collect(Collectors.toList());
@@ -1,5 +1,6 @@
 package team.catgirl.collar.server.security.signal;
 
+import com.google.common.cache.CacheStats;
 import com.mongodb.client.MongoDatabase;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
@@ -11,15 +12,17 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import team.catgirl.collar.security.signal.PreKeys;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ServerSignalProtocolStore implements SignalProtocolStore {
     final ServerIdentityKeyStore identityKeyStore;
     final ServerPreKeyStore preKeyStore;
-    final ServerSessionStore sessionStore;
+    final CachedSessionStore sessionStore;
     final ServerSignedPreKeyStore signedPreKeyStore;
 
-    private ServerSignalProtocolStore(ServerIdentityKeyStore identityKeyStore, ServerPreKeyStore preKeyStore, ServerSessionStore sessionStore, ServerSignedPreKeyStore signedPreKeyStore) {
+    private ServerSignalProtocolStore(ServerIdentityKeyStore identityKeyStore, ServerPreKeyStore preKeyStore, CachedSessionStore sessionStore, ServerSignedPreKeyStore signedPreKeyStore) {
         this.identityKeyStore = identityKeyStore;
         this.preKeyStore = preKeyStore;
         this.sessionStore = sessionStore;
@@ -30,10 +33,22 @@ public class ServerSignalProtocolStore implements SignalProtocolStore {
         ServerPreKeyStore preKeyStore = new ServerPreKeyStore(db);
         ServerSignedPreKeyStore signedPreKeyStore = new ServerSignedPreKeyStore(db);
         ServerIdentityKeyStore identityKeyStore = new ServerIdentityKeyStore(db, serverIdentityKeyStore -> PreKeys.generate(serverIdentityKeyStore, preKeyStore, signedPreKeyStore));
-        ServerSessionStore sessionStore = new ServerSessionStore(db);
+        CachedSessionStore sessionStore = new CachedSessionStore(new ServerSessionStore(db), 500);
         return new ServerSignalProtocolStore(identityKeyStore, preKeyStore, sessionStore, signedPreKeyStore);
     }
 
+    /**
+     * @return hit and miss statistics of each key cache by name
+     */
+    public Map<String, CacheStats> cacheStats() {
+        Map<String, CacheStats> stats = new LinkedHashMap<>();
+        stats.put("trust", identityKeyStore.trustCacheStats());
+        stats.put("identity", identityKeyStore.identityCacheStats());
+        stats.put("preKey", preKeyStore.cacheStats());
+        stats.put("signedPreKey", signedPreKeyStore.cacheStats());
+        return stats;
+    }
+
     @Override
     public IdentityKeyPair getIdentityKeyPair() {
         return identityKeyStore.getIdentityKeyPair();
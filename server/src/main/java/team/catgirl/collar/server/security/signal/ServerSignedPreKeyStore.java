@@ -1,7 +1,10 @@
 package team.catgirl.collar.server.security.signal;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
@@ -11,19 +14,36 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 
+/**
+ * Stores signed pre-keys. Records are cached by id, including ids that do not exist or were removed.
+ */
 public class ServerSignedPreKeyStore implements SignedPreKeyStore {
     private static final String ID = "id";
     private static final String RECORD = "record";
 
+    private static final int MAXIMUM_CACHED_SIGNED_PRE_KEYS = 1_000;
+    private static final int EXPIRE_AFTER_ACCESS_MINUTES = 10;
+
     private final MongoCollection<Document> docs;
+    /** Serialized records by id. libsignal mutates records, so a new one is deserialized on every load **/
+    private final Cache<Integer, Optional<byte[]>> records = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_CACHED_SIGNED_PRE_KEYS)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
 
     public ServerSignedPreKeyStore(MongoDatabase db) {
         this.docs = db.getCollection("signal_signed_prekey_store");
@@ -34,16 +54,11 @@ public class ServerSignedPreKeyStore implements SignedPreKeyStore {
 
     @Override
     public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-        MongoCursor<Document> cursor = docs.find(eq(ID, signedPreKeyId)).iterator();
-        if (cursor.hasNext()) {
-            Document doc = cursor.next();
-            try {
-                return new SignedPreKeyRecord(doc.get(RECORD, Binary.class).getData());
-            } catch (IOException e) {
-                throw new IllegalStateException("Could not read " + signedPreKeyId);
-            }
-        } else {
-            throw new InvalidKeyIdException("could not find key " + signedPreKeyId);
+        byte[] record = findRecord(signedPreKeyId).orElseThrow(() -> new InvalidKeyIdException("could not find key " + signedPreKeyId));
+        try {
+            return new SignedPreKeyRecord(record);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + signedPreKeyId);
         }
     }
 
@@ -62,17 +77,67 @@ public class ServerSignedPreKeyStore implements SignedPreKeyStore {
     public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
         Map<String, Object> state = new HashMap<>();
         state.put(ID, signedPreKeyId);
-        state.put(RECORD, new Binary(record.serialize()));
+        byte[] serialized = record.serialize();
+        state.put(RECORD, new Binary(serialized));
         docs.insertOne(new Document(state));
+        records.put(signedPreKeyId, Optional.of(serialized));
+    }
+
+    /**
+     * Store many signed pre-keys with one write
+     * @param signedPreKeys to store
+     */
+    public void storeSignedPreKeys(List<SignedPreKeyRecord> signedPreKeys) {
+        List<Document> documents = new ArrayList<>(signedPreKeys.size());
+        for (SignedPreKeyRecord signedPreKey : signedPreKeys) {
+            Map<String, Object> state = new HashMap<>();
+            state.put(ID, signedPreKey.getId());
+            state.put(RECORD, new Binary(signedPreKey.serialize()));
+            documents.add(new Document(state));
+        }
+        docs.insertMany(documents);
+        for (SignedPreKeyRecord signedPreKey : signedPreKeys) {
+            records.put(signedPreKey.getId(), Optional.of(signedPreKey.serialize()));
+        }
     }
 
     @Override
     public boolean containsSignedPreKey(int signedPreKeyId) {
-        return docs.find(eq(ID, signedPreKeyId)).iterator().hasNext();
+        return findRecord(signedPreKeyId).isPresent();
     }
 
     @Override
     public void removeSignedPreKey(int signedPreKeyId) {
         docs.deleteMany(eq(ID, signedPreKeyId));
+        records.put(signedPreKeyId, Optional.empty());
+    }
+
+    /**
+     * Remove many signed pre-keys with one write
+     * @param signedPreKeyIds to remove
+     */
+    public void removeSignedPreKeys(List<Integer> signedPreKeyIds) {
+        docs.deleteMany(in(ID, signedPreKeyIds));
+        for (Integer signedPreKeyId : signedPreKeyIds) {
+            records.put(signedPreKeyId, Optional.empty());
+        }
+    }
+
+    /**
+     * @return hit and miss statistics of the signed pre-key cache
+     */
+    public CacheStats cacheStats() {
+        return records.stats();
+    }
+
+    private Optional<byte[]> findRecord(int signedPreKeyId) {
+        try {
+            return records.get(signedPreKeyId, () -> {
+                Document first = docs.find(eq(ID, signedPreKeyId)).first();
+                return first == null ? Optional.empty() : Optional.of(first.get(RECORD, Binary.class).getData());
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("could not load key " + signedPreKeyId, e.getCause());
+        }
     }
 }
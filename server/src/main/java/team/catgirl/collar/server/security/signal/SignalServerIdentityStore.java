@@ -1,8 +1,10 @@
 package team.catgirl.collar.server.security.signal;
 
 import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheStats;
 import com.mongodb.client.MongoDatabase;
 import org.whispersystems.libsignal.*;
+import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.state.PreKeyBundle;
 import org.whispersystems.libsignal.state.SessionRecord;
 import team.catgirl.collar.protocol.signal.SendPreKeysRequest;
@@ -16,6 +18,7 @@ import team.catgirl.collar.server.security.ServerCipher;
 import team.catgirl.collar.server.security.ServerIdentityStore;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.UUID;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -27,8 +30,14 @@ public class SignalServerIdentityStore implements ServerIdentityStore {
 
     private final ServerSignalProtocolStore store;
     private final Supplier<ServerIdentity> serverIdentitySupplier;
+    private final PreKeyBundlePool preKeyBundles;
 
-    public SignalServerIdentityStore(MongoDatabase db) {
+    /**
+     * @param db to store keys in
+     * @param preKeyBundlePoolSize number of pre-key bundles generated ahead of handshakes
+     * @param preKeyBundleRefillPerSecond maximum number of pre-key bundles generated per second when refilling the pool
+     */
+    public SignalServerIdentityStore(MongoDatabase db, int preKeyBundlePoolSize, int preKeyBundleRefillPerSecond) {
         this.store = ServerSignalProtocolStore.from(db);
         this.serverIdentitySupplier = Suppliers.memoize(() -> {
             IdentityKey publicKey = store.getIdentityKeyPair().getPublicKey();
@@ -37,6 +46,8 @@ public class SignalServerIdentityStore implements ServerIdentityStore {
                 store.identityKeyStore.getServerId()
             );
         });
+        ServerIdentity identity = getIdentity();
+        this.preKeyBundles = new PreKeyBundlePool(store, new SignalProtocolAddress(identity.id().toString(), identity.deviceId()), preKeyBundlePoolSize, preKeyBundleRefillPerSecond);
     }
 
     @Override
@@ -69,6 +80,16 @@ public class SignalServerIdentityStore implements ServerIdentityStore {
         return store.isTrustedIdentity(signalProtocolAddressFrom(clientIdentity), identityKeyFrom(clientIdentity), null);
     }
 
+    @Override
+    public boolean verifySignature(ClientIdentity identity, byte[] message, byte[] signature) {
+        try {
+            return Curve.verifySignature(identityKeyFrom(identity).getPublicKey(), message, signature);
+        } catch (InvalidKeyException | IllegalStateException e) {
+            LOGGER.log(Level.FINE, "Could not verify signature of " + identity, e);
+            return false;
+        }
+    }
+
     @Override
     public Cipher createCypher() {
         return new ServerCipher(store);
@@ -76,12 +97,14 @@ public class SignalServerIdentityStore implements ServerIdentityStore {
 
     @Override
     public SendPreKeysResponse createSendPreKeysResponse() {
-        PreKeyBundle bundle = PreKeys.generate(getIdentity(), store);
-        try {
-            return new SendPreKeysResponse(getIdentity(), PreKeys.preKeyBundleToBytes(bundle));
-        } catch (IOException e) {
-            throw new IllegalStateException("could not generate PreKeyBundle");
-        }
+        return new SendPreKeysResponse(getIdentity(), preKeyBundles.take());
+    }
+
+    /**
+     * @return pool of pre-key bundles used by {@link #createSendPreKeysResponse()}
+     */
+    public PreKeyBundlePool preKeyBundles() {
+        return preKeyBundles;
     }
 
     @Override
@@ -90,6 +113,24 @@ public class SignalServerIdentityStore implements ServerIdentityStore {
         return name == null ? null : UUID.fromString(name);
     }
 
+    /**
+     * @return hit and miss statistics of the Signal key caches by name
+     */
+    public Map<String, CacheStats> cacheStats() {
+        return store.cacheStats();
+    }
+
+    @Override
+    public void sessionClosed(ClientIdentity identity) {
+        store.sessionStore.flush(signalProtocolAddressFrom(identity).getName());
+    }
+
+    @Override
+    public void close() {
+        preKeyBundles.close();
+        store.sessionStore.close();
+    }
+
     private static IdentityKey identityKeyFrom(ClientIdentity clientIdentity) {
         IdentityKey identityKey;
         try {
@@ -14,6 +14,7 @@ import team.catgirl.collar.protocol.messaging.SendMessageResponse;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
 import team.catgirl.collar.server.protocol.BatchProtocolResponse;
+import team.catgirl.collar.server.services.location.LocationSharingRegistry;
 import team.catgirl.collar.server.services.location.NearbyGroups;
 import team.catgirl.collar.server.services.profiles.ProfileCache;
 import team.catgirl.collar.server.session.SessionManager;
@@ -33,12 +34,14 @@ public final class GroupService {
     private final ServerIdentity serverIdentity;
     private final ProfileCache profiles;
     private final SessionManager sessions;
+    private final LocationSharingRegistry sharing;
 
-    public GroupService(GroupStore store, ServerIdentity serverIdentity, ProfileCache profiles, SessionManager sessions) {
+    public GroupService(GroupStore store, ServerIdentity serverIdentity, ProfileCache profiles, SessionManager sessions, LocationSharingRegistry sharing) {
         this.store = store;
         this.serverIdentity = serverIdentity;
         this.profiles = profiles;
         this.sessions = sessions;
+        this.sharing = sharing;
     }
 
     /**
@@ -95,7 +98,8 @@ public final class GroupService {
                 if (theGroup.getRole(player) != MembershipRole.OWNER) {
                     throw new IllegalStateException(req.identity + " is not owner of group " + theGroup.id);
                 }
-                store.delete(theGroup.id);
+                store.delete(theGroup.id, theGroup.type);
+                sharing.groupRemoved(theGroup.id);
                 return createMemberMessages(theGroup, member -> true, (identity, thePlayer, updatedMember) -> new LeaveGroupResponse(serverIdentity, theGroup.id, null, null));
             });
         }
@@ -296,15 +300,17 @@ public final class GroupService {
                 createGroupMembershipRequests(null, memberEntry.getKey(), memberEntry.getValue()).ifPresent(theResponse -> response.concat(response));
             }
             store.upsert(group);
+            sharing.groupUpdated(group);
         });
 
-        // TODO: delay group removal by 1 minute
-        result.remove.forEach((groupId, nearbyGroup) -> store.findGroup(groupId).ifPresent(group -> {
+        // Removals are delayed by NearbyGroupLifecycle so players briefly out of view keep their group
+        result.remove.forEach((groupId, nearbyGroup) -> store.findGroup(groupId, GroupType.NEARBY).ifPresent(group -> {
             for (MemberSource source : nearbyGroup.players) {
                 sessions.getIdentity(source.player).ifPresent(identity -> response.add(identity, new LeaveGroupResponse(serverIdentity, groupId, null, source.player)));
                 group = group.removeMember(source.player);
             }
-            store.delete(group.id);
+            store.delete(group.id, GroupType.NEARBY);
+            sharing.groupRemoved(group.id);
         }));
         return response.optional();
     }
@@ -372,29 +378,36 @@ public final class GroupService {
                         return new UpdateGroupMemberResponse(serverIdentity, groupId, currentPlayer.get(), profile, null, MembershipRole.MEMBER);
                     });
 
+            updateState(group);
             return removeOldOwnerMessages.concat(addNewOwnerMessages);
         });
     }
 
     private void updateState(Group group) {
-        if (group != null && group.members.isEmpty()) {
+        if (group == null) {
+            return;
+        }
+        if (group.members.isEmpty()) {
             LOGGER.log(Level.INFO, "Removed group " + group.id + " as it has no members.");
-            store.delete(group.id);
+            store.delete(group.id, group.type);
+            sharing.groupRemoved(group.id);
+        } else {
+            sharing.groupUpdated(group);
         }
     }
 
     public BatchProtocolResponse createMemberMessages(Group group, Predicate<Member> filter, MessageCreator messageCreator) {
-        final Map<ProtocolResponse, ClientIdentity> responses = new HashMap<>();
+        BatchProtocolResponse responses = new BatchProtocolResponse(serverIdentity);
         for (Member member : group.members) {
             if (!filter.test(member) && member.player != null) {
                 continue;
             }
             sessions.getIdentity(member.player).ifPresent(clientIdentity -> {
                 ProtocolResponse resp = messageCreator.create(clientIdentity, member.player, member);
-                responses.put(resp, clientIdentity);
+                responses.add(clientIdentity, resp);
             });
         }
-        return new BatchProtocolResponse(serverIdentity, responses);
+        return responses;
     }
 
     public Optional<Group> findGroup(UUID groupId) {
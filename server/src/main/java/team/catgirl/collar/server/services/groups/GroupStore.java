@@ -1,7 +1,13 @@
 package team.catgirl.collar.server.services.groups;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.UpdateOptions;
@@ -15,13 +21,35 @@ import team.catgirl.collar.server.services.profiles.ProfileCache;
 import team.catgirl.collar.server.session.SessionManager;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Updates.*;
 
+/**
+ * Stores groups in mongo and keeps a write-through cache of them in memory.
+ *
+ * Groups are cached by id and an index of profile to group ids is kept so that location updates, SDHT events and
+ * group messages can resolve groups without querying the database. All mutations go through this class, write to
+ * mongo first and then update the cached group in place. Members are stored without their {@link Player} so that
+ * the minecraft player is always resolved from the current session when the group is read.
+ *
+ * Groups and memberships that are no longer read (e.g. when all their members are offline) are evicted after
+ * {@link #EXPIRE_AFTER_ACCESS_MINUTES} or once the cache holds more than {@link #MAXIMUM_CACHED_GROUPS} entries, and
+ * are loaded again from mongo on the next read.
+ *
+ * Groups of an ephemeral type (e.g. {@link GroupType#NEARBY}) are recreated from live client state and are never
+ * written to mongo. They are only kept in memory, are not evicted and are lost when the server restarts. Callers that
+ * know the type of a group pass it so that an ephemeral group that does not exist is never looked up in mongo.
+ */
 public final class GroupStore {
 
     private static final String FIELD_ID = "id";
@@ -32,14 +60,65 @@ public final class GroupStore {
     private static final String FIELD_MEMBER_STATE = "state";
     private static final String FIELD_MEMBER_PROFILE_ID = "profileId";
 
+    private static final int MAXIMUM_CACHED_GROUPS = 50_000;
+    private static final int MAXIMUM_CACHED_MEMBERSHIPS = 50_000;
+    private static final int EXPIRE_AFTER_ACCESS_MINUTES = 10;
+
     private final ProfileCache profiles;
     private final SessionManager sessions;
     private final MongoCollection<Document> docs;
+    private final Set<GroupType> ephemeralTypes;
+
+    /**
+     * Group id to group. Deleted groups are cached as empty so that a load racing with the delete cannot resurrect it
+     */
+    private final Cache<UUID, Optional<CachedGroup>> groups = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_CACHED_GROUPS)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /**
+     * Profile id to the ids of every group the profile is a member of
+     */
+    private final Cache<UUID, Set<UUID>> memberships = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_CACHED_MEMBERSHIPS)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /**
+     * Mutations of a group are serialized by group id. Membership changes and membership loads are serialized by
+     * profile id so that a load from mongo cannot overwrite a membership change made while it was in flight.
+     */
+    private final Striped<Lock> groupLocks = Striped.lock(64);
+    private final Striped<Lock> profileLocks = Striped.lock(64);
+
+    /**
+     * Group id to group of an ephemeral type
+     */
+    private final ConcurrentMap<UUID, CachedGroup> ephemeralGroups = new ConcurrentHashMap<>();
+
+    /**
+     * Profile id to the ids of every group of an ephemeral type the profile is a member of
+     */
+    private final ConcurrentMap<UUID, Set<UUID>> ephemeralMemberships = new ConcurrentHashMap<>();
 
     public GroupStore(ProfileCache profiles, SessionManager sessions, MongoDatabase database) {
+        this(profiles, sessions, database, Set.of(GroupType.NEARBY));
+    }
+
+    /**
+     * @param ephemeralTypes of groups that are only kept in memory
+     */
+    public GroupStore(ProfileCache profiles, SessionManager sessions, MongoDatabase database, Set<GroupType> ephemeralTypes) {
+        if (ephemeralTypes.contains(GroupType.GROUP)) {
+            throw new IllegalStateException("groups of type " + GroupType.GROUP + " must be persisted");
+        }
         this.profiles = profiles;
         this.sessions = sessions;
         this.docs = database.getCollection("groups");
+        this.ephemeralTypes = Set.copyOf(ephemeralTypes);
     }
 
     /**
@@ -47,11 +126,19 @@ public final class GroupStore {
      * @param group to store
      */
     public void upsert(Group group) {
-        Document document = mapToDocument(group);
-        UpdateResult result = docs.replaceOne(eq(FIELD_ID, group.id), document, new ReplaceOptions().upsert(true));
-        if (!result.wasAcknowledged()) {
-            throw new IllegalStateException("group " + group.id + " could not be upserted");
-        }
+        CachedGroup cachedGroup = new CachedGroup(group.id, group.name, group.type, group.members.stream()
+                .map(member -> new CachedMember(member.player.profile, member.membershipRole, member.membershipState, resolveProfile(member.player.profile)))
+                .collect(ImmutableList.toImmutableList()));
+        mutate(group.id, group.type, true, current -> {
+            if (isPersisted(group.type)) {
+                Document document = mapToDocument(group);
+                UpdateResult result = docs.replaceOne(eq(FIELD_ID, group.id), document, new ReplaceOptions().upsert(true));
+                if (!result.wasAcknowledged()) {
+                    throw new IllegalStateException("group " + group.id + " could not be upserted");
+                }
+            }
+            return Optional.of(cachedGroup);
+        });
     }
 
     /**
@@ -60,49 +147,84 @@ public final class GroupStore {
      * @return group
      */
     public Optional<Group> findGroup(UUID groupId) {
-        Document first = docs.find(eq(FIELD_ID, groupId)).first();
-        return first == null ? Optional.empty() : Optional.of(mapFromDocument(first));
+        return loadGroup(groupId, null).map(this::toGroup);
+    }
+
+    /**
+     * Get group by id when the type of the group is known
+     * @param groupId to get
+     * @param type of the group
+     * @return group
+     */
+    public Optional<Group> findGroup(UUID groupId, GroupType type) {
+        return loadGroup(groupId, type).map(this::toGroup);
     }
 
+    /**
+     * Get groups by id. Groups that are not cached are loaded from mongo together
+     * @param uuids of the groups
+     * @return groups that exist
+     */
     public Stream<Group> findGroups(Set<UUID> uuids) {
-        MongoCursor<Group> iterator = docs.find(in(FIELD_ID, uuids)).map(this::mapFromDocument).batchSize(100).iterator();
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+        return loadGroups(uuids).map(this::toGroup);
     }
 
     public Stream<Group> findGroupsContaining(Player player) {
-        MongoCursor<Group> iterator = docs.find(eq(FIELD_MEMBERS + "." + FIELD_MEMBER_PROFILE_ID, player.profile)).map(this::mapFromDocument).batchSize(100).iterator();
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+        return findGroupsContaining(player.profile);
     }
 
     public Stream<Group> findGroupsContaining(PublicProfile profile) {
-        MongoCursor<Group> iterator = docs.find(eq(FIELD_MEMBERS + "." + FIELD_MEMBER_PROFILE_ID, profile.id)).map(this::mapFromDocument).batchSize(100).iterator();
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+        return findGroupsContaining(profile.id);
+    }
+
+    private Stream<Group> findGroupsContaining(UUID profile) {
+        Set<UUID> ephemeral = ephemeralMemberships.getOrDefault(profile, Set.of());
+        return Stream.concat(findGroups(loadMemberships(profile)), ephemeral.stream().map(ephemeralGroups::get).filter(Objects::nonNull).map(this::toGroup));
     }
 
     public Optional<Group> addMembers(UUID id, List<MemberSource> memberSources, MembershipRole role, MembershipState state) {
-        List<Document> members = mapToMembersList(memberSources.stream().map(source -> new Member(source.player, source.profile, role, state)).collect(Collectors.toList()));
-        UpdateResult result = docs.updateOne(eq(FIELD_ID, id), pushEach(FIELD_MEMBERS, members));
-        if (!result.wasAcknowledged() && result.getModifiedCount() != 1) {
-            throw new IllegalStateException("failed to add members to group " + id);
-        }
-        return findGroup(id);
+        return mutate(id, null, false, current -> {
+            if (isPersisted(current)) {
+                List<Document> members = mapToMembersList(memberSources.stream().map(source -> new Member(source.player, source.profile, role, state)).collect(Collectors.toList()));
+                UpdateResult result = docs.updateOne(eq(FIELD_ID, id), pushEach(FIELD_MEMBERS, members));
+                if (!result.wasAcknowledged() && result.getModifiedCount() != 1) {
+                    throw new IllegalStateException("failed to add members to group " + id);
+                }
+            }
+            List<CachedMember> added = memberSources.stream()
+                    .map(source -> new CachedMember(source.player.profile, role, state, resolveProfile(source.player.profile)))
+                    .collect(Collectors.toList());
+            return current.map(group -> group.withMembers(ImmutableList.<CachedMember>builder().addAll(group.members).addAll(added).build()));
+        }).map(this::toGroup);
     }
 
     public Optional<Group> updateMember(UUID id, UUID profile, MembershipRole role, MembershipState state) {
-        UpdateOptions updateOptions = new UpdateOptions().arrayFilters(List.of(new Document("item." + FIELD_MEMBER_PROFILE_ID, profile)));
-        UpdateResult result = docs.updateOne(eq(FIELD_ID, id), set(FIELD_MEMBERS + ".$[item]", mapMember(profile, role, state)), updateOptions);
-        if (!result.wasAcknowledged() && result.getModifiedCount() != 1) {
-            throw new IllegalStateException("could not remove member " + profile + " from group " + id);
-        }
-        return findGroup(id);
+        return mutate(id, null, false, current -> {
+            if (isPersisted(current)) {
+                UpdateOptions updateOptions = new UpdateOptions().arrayFilters(List.of(new Document("item." + FIELD_MEMBER_PROFILE_ID, profile)));
+                UpdateResult result = docs.updateOne(eq(FIELD_ID, id), set(FIELD_MEMBERS + ".$[item]", mapMember(profile, role, state)), updateOptions);
+                if (!result.wasAcknowledged() && result.getModifiedCount() != 1) {
+                    throw new IllegalStateException("could not remove member " + profile + " from group " + id);
+                }
+            }
+            return current.map(group -> group.withMembers(group.members.stream()
+                    .map(member -> member.profileId.equals(profile) ? new CachedMember(profile, role, state, member.profile) : member)
+                    .collect(ImmutableList.toImmutableList())));
+        }).map(this::toGroup);
     }
 
     public Optional<Group> removeMember(UUID id, UUID profile) {
-        UpdateResult result = docs.updateOne(eq(FIELD_ID, id), pull(FIELD_MEMBERS, new Document(Map.of(FIELD_MEMBER_PROFILE_ID, profile))));
-        if (!result.wasAcknowledged() && result.getModifiedCount() != 1) {
-            throw new IllegalStateException("could not remove member " + profile + " from group " + id);
-        }
-        return findGroup(id);
+        return mutate(id, null, false, current -> {
+            if (isPersisted(current)) {
+                UpdateResult result = docs.updateOne(eq(FIELD_ID, id), pull(FIELD_MEMBERS, new Document(Map.of(FIELD_MEMBER_PROFILE_ID, profile))));
+                if (!result.wasAcknowledged() && result.getModifiedCount() != 1) {
+                    throw new IllegalStateException("could not remove member " + profile + " from group " + id);
+                }
+            }
+            return current.map(group -> group.withMembers(group.members.stream()
+                    .filter(member -> !member.profileId.equals(profile))
+                    .collect(ImmutableList.toImmutableList())));
+        }).map(this::toGroup);
     }
 
     /**
@@ -111,11 +233,30 @@ public final class GroupStore {
      * @return deleted
      */
     public boolean delete(UUID group) {
-        DeleteResult result = docs.deleteOne(eq(FIELD_ID, group));
-        if (!result.wasAcknowledged()) {
-            throw new IllegalStateException("group " + group + " could not be deleted");
-        }
-        return result.getDeletedCount() == 1;
+        return delete(group, null);
+    }
+
+    /**
+     * Delete a group when the type of the group is known
+     * @param group to delete
+     * @param type of the group or null if it is not known
+     * @return deleted
+     */
+    public boolean delete(UUID group, GroupType type) {
+        AtomicBoolean deleted = new AtomicBoolean();
+        mutate(group, type, true, current -> {
+            if (isPersisted(current, type)) {
+                DeleteResult result = docs.deleteOne(eq(FIELD_ID, group));
+                if (!result.wasAcknowledged()) {
+                    throw new IllegalStateException("group " + group + " could not be deleted");
+                }
+                deleted.set(result.getDeletedCount() == 1);
+            } else {
+                deleted.set(current.isPresent());
+            }
+            return Optional.empty();
+        });
+        return deleted.get();
     }
 
     /**
@@ -124,21 +265,242 @@ public final class GroupStore {
      * @return number of groups deleted
      */
     public long delete(GroupType groupType) {
+        if (!isPersisted(groupType)) {
+            long deleted = 0;
+            for (CachedGroup group : List.copyOf(ephemeralGroups.values())) {
+                if (group.type == groupType && delete(group.id, groupType)) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        }
         DeleteResult result = docs.deleteMany(and(eq(FIELD_TYPE, groupType.name())));
         if (!result.wasAcknowledged()) {
             throw new IllegalStateException("groups with type " + groupType + " could not be deleted");
         }
+        groups.invalidateAll();
+        memberships.invalidateAll();
         return result.getDeletedCount();
     }
 
-    private Group mapFromDocument(Document doc) {
-        Set<Member> members = doc.getList(FIELD_MEMBERS, Document.class, new ArrayList<>()).stream()
+    /**
+     * @return hit and miss statistics of the group cache
+     */
+    public CacheStats groupCacheStats() {
+        return groups.stats();
+    }
+
+    /**
+     * @return hit and miss statistics of the profile to group membership index
+     */
+    public CacheStats membershipCacheStats() {
+        return memberships.stats();
+    }
+
+    /**
+     * @return number of groups of an ephemeral type held in memory
+     */
+    public int ephemeralGroupCount() {
+        return ephemeralGroups.size();
+    }
+
+    private boolean isPersisted(GroupType type) {
+        return !ephemeralTypes.contains(type);
+    }
+
+    /**
+     * Groups that do not exist yet are treated as persisted so that mutations behave as they do for mongo
+     */
+    private boolean isPersisted(Optional<CachedGroup> group) {
+        return isPersisted(group, null);
+    }
+
+    /**
+     * @param type of the group if it is known, used when the group does not exist
+     */
+    private boolean isPersisted(Optional<CachedGroup> group, GroupType type) {
+        return group.map(theGroup -> isPersisted(theGroup.type)).orElse(type == null || isPersisted(type));
+    }
+
+    /**
+     * Applies a mutation to mongo and the cached group while holding the group lock and the locks of every profile
+     * whose membership may change.
+     * @param groupId to mutate
+     * @param type of the group or null if it is not known
+     * @param createIfAbsent whether to run the mutation when the group does not exist
+     * @param mutation writing to mongo and returning the updated group
+     * @return updated group
+     */
+    private Optional<CachedGroup> mutate(UUID groupId, GroupType type, boolean createIfAbsent, Function<Optional<CachedGroup>, Optional<CachedGroup>> mutation) {
+        Lock groupLock = groupLocks.get(groupId);
+        groupLock.lock();
+        try {
+            Optional<CachedGroup> current = loadGroup(groupId, type);
+            if (current.isEmpty() && !createIfAbsent) {
+                return Optional.empty();
+            }
+            Optional<CachedGroup> updated = mutation.apply(current);
+            boolean persisted = isPersisted(updated.isPresent() ? updated : current, type);
+            Set<UUID> before = current.map(CachedGroup::profileIds).orElse(Set.of());
+            Set<UUID> after = updated.map(CachedGroup::profileIds).orElse(Set.of());
+            Set<UUID> changed = new HashSet<>();
+            before.stream().filter(profile -> !after.contains(profile)).forEach(changed::add);
+            after.stream().filter(profile -> !before.contains(profile)).forEach(changed::add);
+            List<Lock> locks = ImmutableList.copyOf(profileLocks.bulkGet(changed));
+            locks.forEach(Lock::lock);
+            try {
+                if (persisted) {
+                    groups.put(groupId, updated);
+                } else if (updated.isPresent()) {
+                    ephemeralGroups.put(groupId, updated.get());
+                } else {
+                    ephemeralGroups.remove(groupId);
+                }
+                for (UUID profile : changed) {
+                    if (!persisted) {
+                        ephemeralMemberships.compute(profile, (key, groupIds) -> {
+                            Set<UUID> newGroupIds = groupIds == null ? new HashSet<>() : new HashSet<>(groupIds);
+                            if (after.contains(profile)) {
+                                newGroupIds.add(groupId);
+                            } else {
+                                newGroupIds.remove(groupId);
+                            }
+                            return newGroupIds.isEmpty() ? null : ImmutableSet.copyOf(newGroupIds);
+                        });
+                        continue;
+                    }
+                    memberships.asMap().computeIfPresent(profile, (key, groupIds) -> {
+                        Set<UUID> newGroupIds = new HashSet<>(groupIds);
+                        if (after.contains(profile)) {
+                            newGroupIds.add(groupId);
+                        } else {
+                            newGroupIds.remove(groupId);
+                        }
+                        return ImmutableSet.copyOf(newGroupIds);
+                    });
+                }
+            } finally {
+                locks.forEach(Lock::unlock);
+            }
+            return updated;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /**
+     * @param type of the group or null if it is not known. Groups of an ephemeral type are never loaded from mongo.
+     */
+    private Optional<CachedGroup> loadGroup(UUID groupId, GroupType type) {
+        CachedGroup ephemeral = ephemeralGroups.get(groupId);
+        if (ephemeral != null || (type != null && !isPersisted(type))) {
+            return Optional.ofNullable(ephemeral);
+        }
+        try {
+            return groups.get(groupId, () -> {
+                Document first = docs.find(eq(FIELD_ID, groupId)).first();
+                return first == null ? Optional.empty() : Optional.of(mapFromDocument(first));
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("could not load group " + groupId, e.getCause());
+        }
+    }
+
+    private Stream<CachedGroup> loadGroups(Set<UUID> groupIds) {
+        Map<UUID, Optional<CachedGroup>> loaded = new HashMap<>();
+        List<UUID> misses = new ArrayList<>();
+        for (UUID groupId : groupIds) {
+            CachedGroup ephemeral = ephemeralGroups.get(groupId);
+            Optional<CachedGroup> group = ephemeral == null ? groups.getIfPresent(groupId) : Optional.of(ephemeral);
+            if (group == null) {
+                misses.add(groupId);
+            } else {
+                loaded.put(groupId, group);
+            }
+        }
+        if (!misses.isEmpty()) {
+            loaded.putAll(loadMissingGroups(misses));
+        }
+        return groupIds.stream().map(loaded::get).flatMap(Optional::stream);
+    }
+
+    /**
+     * Loads groups that were not cached with a single query. The group locks are held so that a mutation cannot be
+     * cached in between the query and the loaded groups being cached
+     */
+    private Map<UUID, Optional<CachedGroup>> loadMissingGroups(List<UUID> groupIds) {
+        List<Lock> locks = ImmutableList.copyOf(groupLocks.bulkGet(groupIds));
+        locks.forEach(Lock::lock);
+        try {
+            Map<UUID, Optional<CachedGroup>> loaded = new HashMap<>();
+            List<UUID> misses = new ArrayList<>();
+            for (UUID groupId : groupIds) {
+                Optional<CachedGroup> group = groups.getIfPresent(groupId);
+                if (group == null) {
+                    misses.add(groupId);
+                } else {
+                    loaded.put(groupId, group);
+                }
+            }
+            if (misses.isEmpty()) {
+                return loaded;
+            }
+            for (Document document : docs.find(in(FIELD_ID, misses)).batchSize(100)) {
+                CachedGroup group = mapFromDocument(document);
+                loaded.put(group.id, Optional.of(group));
+            }
+            for (UUID groupId : misses) {
+                groups.put(groupId, loaded.computeIfAbsent(groupId, id -> Optional.empty()));
+            }
+            return loaded;
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    private Set<UUID> loadMemberships(UUID profile) {
+        Set<UUID> groupIds = memberships.getIfPresent(profile);
+        if (groupIds != null) {
+            return groupIds;
+        }
+        Lock lock = profileLocks.get(profile);
+        lock.lock();
+        try {
+            groupIds = memberships.getIfPresent(profile);
+            if (groupIds == null) {
+                Iterable<UUID> ids = docs.find(eq(FIELD_MEMBERS + "." + FIELD_MEMBER_PROFILE_ID, profile))
+                        .projection(new Document(FIELD_ID, 1))
+                        .map(document -> document.get(FIELD_ID, UUID.class))
+                        .batchSize(100);
+                groupIds = ImmutableSet.copyOf(ids);
+                memberships.put(profile, groupIds);
+            }
+            return groupIds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Group toGroup(CachedGroup group) {
+        Set<Member> members = group.members.stream().map(member -> {
+            Player player = sessions.findPlayerByProfile(member.profileId).orElse(new Player(member.profileId, null));
+            return new Member(player, member.profile, member.role, member.state);
+        }).collect(Collectors.toSet());
+        return new Group(group.id, group.name, group.type, members);
+    }
+
+    private PublicProfile resolveProfile(UUID profileId) {
+        return profiles.getById(profileId).orElseThrow(() -> new IllegalStateException("could not find profile " + profileId)).toPublic();
+    }
+
+    private CachedGroup mapFromDocument(Document doc) {
+        List<CachedMember> members = doc.getList(FIELD_MEMBERS, Document.class, new ArrayList<>()).stream()
                 .map(this::mapMemberFrom)
-                .collect(Collectors.toSet());
+                .collect(ImmutableList.toImmutableList());
         UUID groupId = doc.get(FIELD_ID, UUID.class);
         GroupType groupType = GroupType.valueOf(doc.getString(FIELD_TYPE));
         String name = doc.getString(FIELD_NAME);
-        return new Group(groupId, name, groupType, members);
+        return new CachedGroup(groupId, name, groupType, members);
     }
 
     static Document mapToDocument(Group group) {
@@ -156,13 +518,11 @@ public final class GroupStore {
                 .collect(Collectors.toList());
     }
 
-    private Member mapMemberFrom(Document document) {
+    private CachedMember mapMemberFrom(Document document) {
         UUID profileId = document.get(FIELD_MEMBER_PROFILE_ID, UUID.class);
-        Player player = sessions.findPlayerByProfile(profileId).orElse(new Player(profileId, null));
         MembershipRole role = MembershipRole.valueOf(document.getString(FIELD_MEMBER_ROLE));
         MembershipState state = MembershipState.valueOf(document.getString(FIELD_MEMBER_STATE));
-        PublicProfile profile = profiles.getById(profileId).orElseThrow(() -> new IllegalStateException("could not find profile " + profileId)).toPublic();
-        return new Member(player, profile, role, state);
+        return new CachedMember(profileId, role, state, resolveProfile(profileId));
     }
 
     private static Map<String, Object> mapMember(Member member) {
@@ -180,4 +540,40 @@ public final class GroupStore {
                 FIELD_MEMBER_PROFILE_ID, profile
         );
     }
+
+    private static final class CachedGroup {
+        final UUID id;
+        final String name;
+        final GroupType type;
+        final List<CachedMember> members;
+
+        CachedGroup(UUID id, String name, GroupType type, List<CachedMember> members) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.members = members;
+        }
+
+        CachedGroup withMembers(List<CachedMember> members) {
+            return new CachedGroup(id, name, type, members);
+        }
+
+        Set<UUID> profileIds() {
+            return members.stream().map(member -> member.profileId).collect(Collectors.toSet());
+        }
+    }
+
+    private static final class CachedMember {
+        final UUID profileId;
+        final MembershipRole role;
+        final MembershipState state;
+        final PublicProfile profile;
+
+        CachedMember(UUID profileId, MembershipRole role, MembershipState state, PublicProfile profile) {
+            this.profileId = profileId;
+            this.role = role;
+            this.state = state;
+            this.profile = profile;
+        }
+    }
 }
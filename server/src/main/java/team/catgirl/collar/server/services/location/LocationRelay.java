@@ -0,0 +1,225 @@
+package team.catgirl.collar.server.services.location;
+
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.ServerIdentity;
+import team.catgirl.collar.server.protocol.BatchProtocolResponse;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relays location updates to their recipients on a fixed broadcast interval rather than as they arrive.
+ * Only the latest update from each player for each group is kept between broadcasts, and each recipient is sent
+ * one {@link LocationsUpdatedResponse} holding every update addressed to them. Recipients that cannot decode
+ * {@link LocationsUpdatedResponse}, such as older clients, are sent each update on its own instead.
+ */
+public final class LocationRelay {
+
+    private static final Logger LOGGER = Logger.getLogger(LocationRelay.class.getName());
+
+    private final ServerIdentity serverIdentity;
+    private final Function<Player, Optional<ClientIdentity>> identities;
+    private final Predicate<ClientIdentity> batching;
+    private final long broadcastIntervalMillis;
+    /** Latest update from each player for each group since the last broadcast **/
+    private final ConcurrentMap<Key, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService broadcaster;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder responsesSent = new LongAdder();
+    private final LongAdder updatesSent = new LongAdder();
+    private boolean started;
+
+    /**
+     * @param serverIdentity of the server
+     * @param identities to find the identity of recipients when broadcasting
+     * @param batching tests if a recipient can decode {@link LocationsUpdatedResponse}
+     * @param broadcastIntervalMillis between broadcasts
+     */
+    public LocationRelay(ServerIdentity serverIdentity, Function<Player, Optional<ClientIdentity>> identities, Predicate<ClientIdentity> batching, long broadcastIntervalMillis) {
+        if (broadcastIntervalMillis < 1) {
+            throw new IllegalArgumentException("broadcastIntervalMillis must be positive");
+        }
+        this.serverIdentity = serverIdentity;
+        this.identities = identities;
+        this.batching = batching;
+        this.broadcastIntervalMillis = broadcastIntervalMillis;
+        this.broadcaster = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collar-location-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start broadcasting
+     * @param sender to send each broadcast
+     */
+    public synchronized void start(Consumer<BatchProtocolResponse> sender) {
+        if (started) {
+            throw new IllegalStateException("relay already started");
+        }
+        started = true;
+        broadcaster.scheduleAtFixedRate(() -> {
+            try {
+                flush().ifPresent(sender);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Could not broadcast locations", e);
+            }
+        }, broadcastIntervalMillis, broadcastIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publish a location update, replacing any update from the same player for the same group that has not been broadcast yet
+     * @param update to publish
+     * @param recipients to send the update to
+     */
+    public void publish(LocationUpdatedResponse update, Set<Player> recipients) {
+        published.increment();
+        if (pending.put(new Key(update.player, update.group, false), new Pending(update, recipients)) != null) {
+            replaced.increment();
+        }
+    }
+
+    /**
+     * Publish a one-off notice, such as a player having stopped sharing with some recipients, that is sent alongside
+     * any location update from the same player for the same group rather than replacing it.
+     * Notices from the same player for the same group that have not been broadcast yet are merged.
+     * @param notice to publish
+     * @param recipients to send the notice to
+     */
+    public void publishNotice(LocationUpdatedResponse notice, Set<Player> recipients) {
+        published.increment();
+        pending.merge(new Key(notice.player, notice.group, true), new Pending(notice, recipients), (current, next) -> {
+            replaced.increment();
+            Set<Player> merged = new HashSet<>(current.recipients);
+            merged.addAll(next.recipients);
+            return new Pending(next.update, merged);
+        });
+    }
+
+    /**
+     * Take all pending updates and bundle them for each recipient
+     * @return responses to send or empty if there was nothing to send
+     */
+    public Optional<BatchProtocolResponse> flush() {
+        broadcasts.increment();
+        Map<Player, Optional<ClientIdentity>> recipientIdentities = new HashMap<>();
+        Map<ClientIdentity, List<LocationUpdatedResponse>> updatesByRecipient = new LinkedHashMap<>();
+        for (Key key : pending.keySet()) {
+            Pending entry = pending.remove(key);
+            if (entry == null) {
+                continue;
+            }
+            for (Player recipient : entry.recipients) {
+                recipientIdentities.computeIfAbsent(recipient, identities)
+                        .ifPresent(identity -> updatesByRecipient.computeIfAbsent(identity, theIdentity -> new ArrayList<>()).add(entry.update));
+            }
+        }
+        BatchProtocolResponse responses = new BatchProtocolResponse(serverIdentity);
+        updatesByRecipient.forEach((identity, updates) -> {
+            if (batching.test(identity)) {
+                responses.add(identity, new LocationsUpdatedResponse(serverIdentity, updates));
+                responsesSent.increment();
+            } else {
+                // Each update is the same instance for all of its recipients, so it is still only serialized once
+                updates.forEach(update -> responses.add(identity, update));
+                responsesSent.add(updates.size());
+            }
+            updatesSent.add(updates.size());
+        });
+        return responses.optional();
+    }
+
+    /**
+     * @return snapshot of the relay's metrics
+     */
+    public Metrics metrics() {
+        return new Metrics(pending.size(), published.sum(), replaced.sum(), broadcasts.sum(), responsesSent.sum(), updatesSent.sum());
+    }
+
+    /**
+     * Stop broadcasting
+     */
+    public void close() {
+        broadcaster.shutdown();
+    }
+
+    private static final class Key {
+        private final Player player;
+        private final UUID group;
+        private final boolean notice;
+
+        Key(Player player, UUID group, boolean notice) {
+            this.player = player;
+            this.group = group;
+            this.notice = notice;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return notice == key.notice && player.equals(key.player) && Objects.equals(group, key.group);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(player, group, notice);
+        }
+    }
+
+    private static final class Pending {
+        private final LocationUpdatedResponse update;
+        private final Set<Player> recipients;
+
+        Pending(LocationUpdatedResponse update, Set<Player> recipients) {
+            this.update = update;
+            this.recipients = recipients;
+        }
+    }
+
+    public static final class Metrics {
+        /** Updates waiting for the next broadcast **/
+        public final int pending;
+        /** Updates published **/
+        public final long published;
+        /** Updates replaced by a newer update before being broadcast **/
+        public final long replaced;
+        public final long broadcasts;
+        /** Responses sent to recipients, either bundled or a single update for recipients that do not batch **/
+        public final long responsesSent;
+        /** Updates sent to recipients, counted once per recipient **/
+        public final long updatesSent;
+
+        public Metrics(int pending, long published, long replaced, long broadcasts, long responsesSent, long updatesSent) {
+            this.pending = pending;
+            this.published = published;
+            this.replaced = replaced;
+            this.broadcasts = broadcasts;
+            this.responsesSent = responsesSent;
+            this.updatesSent = updatesSent;
+        }
+
+        @Override
+        public String toString() {
+            return "pending=" + pending + " published=" + published + " replaced=" + replaced + " broadcasts=" + broadcasts
+                    + " responsesSent=" + responsesSent + " updatesSent=" + updatesSent;
+        }
+    }
+}
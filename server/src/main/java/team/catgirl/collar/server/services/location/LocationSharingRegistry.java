@@ -0,0 +1,223 @@
+package team.catgirl.collar.server.services.location;
+
+import team.catgirl.collar.api.groups.Group;
+import team.catgirl.collar.api.groups.MembershipState;
+import team.catgirl.collar.api.location.LocationFanOut;
+import team.catgirl.collar.api.session.Player;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Two-way index of which players are sharing their location with which groups, along with the accepted members of
+ * every group that someone is sharing with. Location updates find their recipients from this index rather than
+ * loading groups from the {@link team.catgirl.collar.server.services.groups.GroupStore}.
+ *
+ * Groups are loaded once when the first player starts sharing with them and dropped when the last player stops.
+ * In between, {@link #groupUpdated(Group)} and {@link #groupRemoved(UUID)} keep their members current.
+ */
+public final class LocationSharingRegistry {
+
+    private final Function<UUID, Optional<Group>> groupLoader;
+    /** Player to the groups they are sharing with and who in each group receives their location **/
+    private final ConcurrentMap<Player, ConcurrentMap<UUID, LocationFanOut>> groupsBySharer = new ConcurrentHashMap<>();
+    /** Group to the players sharing with it **/
+    private final ConcurrentMap<UUID, Set<Player>> sharersByGroup = new ConcurrentHashMap<>();
+    /** Group to its accepted members. Sets are immutable and replaced when the group changes **/
+    private final ConcurrentMap<UUID, Set<Player>> membersByGroup = new ConcurrentHashMap<>();
+
+    /**
+     * @param groupLoader to load a group the first time someone shares with it
+     */
+    public LocationSharingRegistry(Function<UUID, Optional<Group>> groupLoader) {
+        this.groupLoader = groupLoader;
+    }
+
+    /**
+     * Start sharing the player's location with every member of a group
+     * @param player sharing
+     * @param groupId to share with
+     * @return true if sharing started or false if the group does not exist
+     */
+    public boolean startSharing(Player player, UUID groupId) {
+        return startSharing(player, groupId, LocationFanOut.ALL);
+    }
+
+    /**
+     * Start sharing the player's location with a group, or change who in the group receives it
+     * @param player sharing
+     * @param groupId to share with
+     * @param fanOut members of the group that receive the location
+     * @return true if sharing started or false if the group does not exist
+     */
+    public boolean startSharing(Player player, UUID groupId, LocationFanOut fanOut) {
+        // Members are always modified inside of a sharersByGroup mapping so that a group cannot lose its members
+        // while a player is starting to share with it
+        boolean[] started = new boolean[1];
+        sharersByGroup.compute(groupId, (id, sharers) -> {
+            Set<Player> members = membersByGroup.computeIfAbsent(id, theId -> groupLoader.apply(theId).map(LocationSharingRegistry::acceptedMembers).orElse(null));
+            if (members == null) {
+                return sharers;
+            }
+            sharers = sharers == null ? ConcurrentHashMap.newKeySet() : sharers;
+            sharers.add(player);
+            started[0] = true;
+            return sharers;
+        });
+        if (started[0]) {
+            groupsBySharer.computeIfAbsent(player, thePlayer -> new ConcurrentHashMap<>()).put(groupId, fanOut);
+        }
+        return started[0];
+    }
+
+    /**
+     * Stop sharing the player's location with a group
+     * @param player sharing
+     * @param groupId shared with
+     * @return true if the player was sharing with the group
+     */
+    public boolean stopSharing(Player player, UUID groupId) {
+        groupsBySharer.computeIfPresent(player, (thePlayer, groups) -> {
+            groups.remove(groupId);
+            return groups.isEmpty() ? null : groups;
+        });
+        return removeSharer(groupId, player);
+    }
+
+    /**
+     * Stop sharing the player's location with all groups
+     * @param player sharing
+     * @return groups the player was sharing with
+     */
+    public Set<UUID> stopSharing(Player player) {
+        Map<UUID, LocationFanOut> groups = groupsBySharer.remove(player);
+        if (groups == null) {
+            return Set.of();
+        }
+        groups.keySet().forEach(groupId -> removeSharer(groupId, player));
+        return groups.keySet();
+    }
+
+    /**
+     * @param player sharing
+     * @return groups the player is sharing with
+     */
+    public Set<UUID> groupsSharedBy(Player player) {
+        Map<UUID, LocationFanOut> groups = groupsBySharer.get(player);
+        return groups == null ? Set.of() : Collections.unmodifiableSet(groups.keySet());
+    }
+
+    /**
+     * @param player sharing
+     * @return groups the player is sharing with and who in each group receives their location
+     */
+    public Map<UUID, LocationFanOut> sharesOf(Player player) {
+        Map<UUID, LocationFanOut> groups = groupsBySharer.get(player);
+        return groups == null ? Map.of() : Collections.unmodifiableMap(groups);
+    }
+
+    /**
+     * @param groupId shared with
+     * @return accepted members of the group if anyone is sharing with it
+     */
+    public Set<Player> membersOf(UUID groupId) {
+        Set<Player> members = membersByGroup.get(groupId);
+        return members == null ? Set.of() : members;
+    }
+
+    /**
+     * @param groupId shared with
+     * @return players sharing with the group
+     */
+    public Set<Player> sharersOf(UUID groupId) {
+        Set<Player> sharers = sharersByGroup.get(groupId);
+        return sharers == null ? Set.of() : Collections.unmodifiableSet(sharers);
+    }
+
+    /**
+     * @param player sharing
+     * @return accepted members of every group the player is sharing with, not including the player
+     */
+    public Set<Player> recipients(Player player) {
+        Map<UUID, LocationFanOut> groups = groupsBySharer.get(player);
+        if (groups == null) {
+            return Set.of();
+        }
+        Set<Player> recipients = new HashSet<>();
+        for (UUID groupId : groups.keySet()) {
+            Set<Player> members = membersByGroup.get(groupId);
+            if (members != null) {
+                recipients.addAll(members);
+            }
+        }
+        recipients.remove(player);
+        return recipients;
+    }
+
+    /**
+     * Update the members of a group if anyone is sharing with it. Players that are no longer members stop sharing.
+     * @param group that changed
+     */
+    public void groupUpdated(Group group) {
+        Set<Player> removed = new HashSet<>();
+        sharersByGroup.computeIfPresent(group.id, (id, sharers) -> {
+            membersByGroup.put(id, acceptedMembers(group));
+            for (Player sharer : sharers) {
+                if (!group.containsPlayer(sharer)) {
+                    removed.add(sharer);
+                }
+            }
+            sharers.removeAll(removed);
+            if (sharers.isEmpty()) {
+                membersByGroup.remove(id);
+                return null;
+            }
+            return sharers;
+        });
+        removed.forEach(player -> groupsBySharer.computeIfPresent(player, (thePlayer, groups) -> {
+            groups.remove(group.id);
+            return groups.isEmpty() ? null : groups;
+        }));
+    }
+
+    /**
+     * Stop everyone sharing with a group that no longer exists
+     * @param groupId removed
+     */
+    public void groupRemoved(UUID groupId) {
+        Set<Player> removed = new HashSet<>();
+        sharersByGroup.computeIfPresent(groupId, (id, sharers) -> {
+            removed.addAll(sharers);
+            membersByGroup.remove(id);
+            return null;
+        });
+        removed.forEach(player -> groupsBySharer.computeIfPresent(player, (thePlayer, groups) -> {
+            groups.remove(groupId);
+            return groups.isEmpty() ? null : groups;
+        }));
+    }
+
+    private boolean removeSharer(UUID groupId, Player player) {
+        boolean[] removed = new boolean[1];
+        sharersByGroup.computeIfPresent(groupId, (id, sharers) -> {
+            removed[0] = sharers.remove(player);
+            if (sharers.isEmpty()) {
+                membersByGroup.remove(id);
+                return null;
+            }
+            return sharers;
+        });
+        return removed[0];
+    }
+
+    private static Set<Player> acceptedMembers(Group group) {
+        return group.members.stream()
+                .filter(member -> member.membershipState == MembershipState.ACCEPTED)
+                .map(member -> member.player)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+}
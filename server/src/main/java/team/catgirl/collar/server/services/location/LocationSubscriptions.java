@@ -0,0 +1,53 @@
+package team.catgirl.collar.server.services.location;
+
+import team.catgirl.collar.api.session.Player;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Which groups players want to receive locations from.
+ * Players that have never subscribed, such as older clients, receive locations from every group they are a member of.
+ */
+public final class LocationSubscriptions {
+
+    /** Players that have subscribed to locations and the groups they are subscribed to **/
+    private final ConcurrentMap<Player, Set<UUID>> groupsBySubscriber = new ConcurrentHashMap<>();
+
+    /**
+     * @param player subscribing
+     * @param groupId to receive locations from
+     */
+    public void subscribe(Player player, UUID groupId) {
+        groupsBySubscriber.computeIfAbsent(player, thePlayer -> ConcurrentHashMap.newKeySet()).add(groupId);
+    }
+
+    /**
+     * The player keeps only receiving locations from groups they are subscribed to, even if this was the last one
+     * @param player unsubscribing
+     * @param groupId to stop receiving locations from
+     */
+    public void unsubscribe(Player player, UUID groupId) {
+        groupsBySubscriber.computeIfAbsent(player, thePlayer -> ConcurrentHashMap.newKeySet()).remove(groupId);
+    }
+
+    /**
+     * @param player receiving
+     * @param groupId sending
+     * @return whether the player receives locations shared with the group
+     */
+    public boolean isSubscribed(Player player, UUID groupId) {
+        Set<UUID> groups = groupsBySubscriber.get(player);
+        return groups == null || groups.contains(groupId);
+    }
+
+    /**
+     * Forget the player's subscriptions when their session ends
+     * @param player to remove
+     */
+    public void remove(Player player) {
+        groupsBySubscriber.remove(player);
+    }
+}
@@ -0,0 +1,235 @@
+package team.catgirl.collar.server.services.location;
+
+import team.catgirl.collar.api.groups.MemberSource;
+import team.catgirl.collar.api.session.Player;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sits between {@link NearbyGroups} and the groups that are created for players, so that players walking in and out
+ * of view of each other do not create and delete a group every time.
+ *
+ * A group is only created once its players have been nearby for the enter threshold, and only deleted once they have
+ * been apart for the exit grace period. Players that come back together during the grace period keep their group.
+ */
+public final class NearbyGroupLifecycle {
+
+    private static final Logger LOGGER = Logger.getLogger(NearbyGroupLifecycle.class.getName());
+    private static final long TICK_MILLIS = 250;
+
+    private final long enterMillis;
+    private final long exitMillis;
+    private final LongSupplier clock;
+    private final Map<NearbyGroup, State> states = new HashMap<>();
+    private final ScheduledExecutorService ticker;
+    private long created;
+    private long deleted;
+    private long createsAvoided;
+    private long deletesAvoided;
+    private boolean started;
+
+    /**
+     * @param enterMillis players must be nearby for before their group is created
+     * @param exitMillis players must be apart for before their group is deleted
+     */
+    public NearbyGroupLifecycle(long enterMillis, long exitMillis) {
+        this(enterMillis, exitMillis, System::currentTimeMillis);
+    }
+
+    NearbyGroupLifecycle(long enterMillis, long exitMillis, LongSupplier clock) {
+        if (enterMillis < 0 || exitMillis < 0) {
+            throw new IllegalArgumentException("enterMillis and exitMillis must not be negative");
+        }
+        this.enterMillis = enterMillis;
+        this.exitMillis = exitMillis;
+        this.clock = clock;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collar-nearby-groups");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start creating and deleting groups whose thresholds have passed
+     * @param sender to apply groups to create and delete
+     */
+    public synchronized void start(Consumer<NearbyGroups.Result> sender) {
+        if (started) {
+            throw new IllegalStateException("lifecycle already started");
+        }
+        started = true;
+        ticker.scheduleWithFixedDelay(() -> {
+            try {
+                NearbyGroups.Result result = tick();
+                if (!result.add.isEmpty() || !result.remove.isEmpty()) {
+                    sender.accept(result);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Could not update nearby groups", e);
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply the groups players formed or left
+     * @param result of {@link NearbyGroups}
+     * @return groups to create or delete now
+     */
+    public synchronized NearbyGroups.Result update(NearbyGroups.Result result) {
+        long now = clock.getAsLong();
+        result.remove.forEach((id, group) -> apart(group, now));
+        result.add.forEach((id, group) -> {
+            State state = states.get(group);
+            if (state == null) {
+                states.put(group, new State(id, group, Phase.ENTERING, now));
+            } else if (state.phase == Phase.LEAVING) {
+                state.phase = Phase.ACTIVE;
+                deletesAvoided++;
+            }
+        });
+        return expire(now);
+    }
+
+    /**
+     * Players that disconnect are apart from everyone, but keep their groups during the grace period in case they reconnect.
+     * The player is forgotten by {@link NearbyGroups} in the same step, so their groups form again when they come back.
+     * @param nearbyGroups to remove the player from
+     * @param player that left
+     */
+    public synchronized void playerLeft(NearbyGroups nearbyGroups, Player player) {
+        nearbyGroups.removePlayerState(player);
+        MemberSource source = new MemberSource(player, null);
+        long now = clock.getAsLong();
+        for (State state : List.copyOf(states.values())) {
+            if (state.group.players.contains(source)) {
+                apart(state.group, now);
+            }
+        }
+    }
+
+    /**
+     * @return groups whose thresholds have passed
+     */
+    public synchronized NearbyGroups.Result tick() {
+        return expire(clock.getAsLong());
+    }
+
+    /**
+     * @return snapshot of the lifecycle's metrics
+     */
+    public synchronized Metrics metrics() {
+        int entering = 0;
+        int active = 0;
+        int leaving = 0;
+        for (State state : states.values()) {
+            switch (state.phase) {
+                case ENTERING -> entering++;
+                case ACTIVE -> active++;
+                case LEAVING -> leaving++;
+            }
+        }
+        return new Metrics(entering, active, leaving, created, deleted, createsAvoided, deletesAvoided);
+    }
+
+    /**
+     * Stop creating and deleting groups
+     */
+    public void close() {
+        ticker.shutdown();
+    }
+
+    private void apart(NearbyGroup group, long now) {
+        State state = states.get(group);
+        if (state == null) {
+            return;
+        }
+        if (state.phase == Phase.ENTERING) {
+            states.remove(group);
+            createsAvoided++;
+        } else if (state.phase == Phase.ACTIVE) {
+            state.phase = Phase.LEAVING;
+            state.since = now;
+        }
+    }
+
+    private NearbyGroups.Result expire(long now) {
+        Map<UUID, NearbyGroup> add = new HashMap<>();
+        Map<UUID, NearbyGroup> remove = new HashMap<>();
+        Iterator<State> iterator = states.values().iterator();
+        while (iterator.hasNext()) {
+            State state = iterator.next();
+            if (state.phase == Phase.ENTERING && now - state.since >= enterMillis) {
+                state.phase = Phase.ACTIVE;
+                add.put(state.id, state.group);
+                created++;
+            } else if (state.phase == Phase.LEAVING && now - state.since >= exitMillis) {
+                iterator.remove();
+                remove.put(state.id, state.group);
+                deleted++;
+            }
+        }
+        return new NearbyGroups.Result(add, remove);
+    }
+
+    private enum Phase {
+        /** Players are nearby but their group has not been created yet **/
+        ENTERING,
+        /** Players are nearby and their group has been created **/
+        ACTIVE,
+        /** Players are apart but their group has not been deleted yet **/
+        LEAVING
+    }
+
+    private static final class State {
+        /** Id of the group, kept when players come back together before it is deleted **/
+        private final UUID id;
+        private final NearbyGroup group;
+        private Phase phase;
+        private long since;
+
+        State(UUID id, NearbyGroup group, Phase phase, long since) {
+            this.id = id;
+            this.group = group;
+            this.phase = phase;
+            this.since = since;
+        }
+    }
+
+    public static final class Metrics {
+        /** Groups waiting for the enter threshold **/
+        public final int entering;
+        public final int active;
+        /** Groups waiting for the exit grace period **/
+        public final int leaving;
+        public final long created;
+        public final long deleted;
+        /** Groups that were never created because players were apart before the enter threshold **/
+        public final long createsAvoided;
+        /** Groups that were never deleted because players came back together during the exit grace period **/
+        public final long deletesAvoided;
+
+        public Metrics(int entering, int active, int leaving, long created, long deleted, long createsAvoided, long deletesAvoided) {
+            this.entering = entering;
+            this.active = active;
+            this.leaving = leaving;
+            this.created = created;
+            this.deleted = deleted;
+            this.createsAvoided = createsAvoided;
+            this.deletesAvoided = deletesAvoided;
+        }
+
+        @Override
+        public String toString() {
+            return "entering=" + entering + " active=" + active + " leaving=" + leaving + " created=" + created
+                    + " deleted=" + deleted + " createsAvoided=" + createsAvoided + " deletesAvoided=" + deletesAvoided;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package team.catgirl.collar.server.services.location;
 
-import com.google.common.collect.Sets;
 import team.catgirl.collar.api.groups.MemberSource;
 import team.catgirl.collar.api.session.Player;
 
@@ -11,12 +10,22 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * State machine for managing dynamically created {@link team.catgirl.collar.api.groups.Group}'s based on hashing
  * every players player entity list and comparing them.
+ *
+ * Players are indexed by each of their entity hashes, partitioned by the server they are playing on, so an update
+ * only looks at the players that share a hash with the updating player and the groups the updating player is already in.
+ * The cost of an update depends on how many players are nearby rather than on how many players are online.
  */
 public final class NearbyGroups {
 
     private final ConcurrentMap<MemberSource, Set<String>> playerHashes = new ConcurrentHashMap<>();
+    /** The first source seen for each player in {@link #playerHashes}, which is the one its server is taken from **/
+    private final ConcurrentMap<MemberSource, MemberSource> playerKeys = new ConcurrentHashMap<>();
     private final ConcurrentMap<NearbyGroup, UUID> nearbyGroups = new ConcurrentHashMap<>();
+    /** Groups formed or left by the player when they sent an update **/
     private final ConcurrentMap<MemberSource, Set<NearbyGroup>> playerToGroups = new ConcurrentHashMap<>();
+    /** Every group in {@link #nearbyGroups} by each of its members **/
+    private final ConcurrentMap<MemberSource, Set<NearbyGroup>> groupsByMember = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ServerIndex> servers = new ConcurrentHashMap<>();
 
     /**
      * Calculates any nearby groups for the minecraft player and anyone in the calculated group
@@ -26,33 +35,59 @@ public final class NearbyGroups {
      * @return result delta
      */
     public Result updateNearbyGroups(MemberSource source, Set<String> hashes) {
+        Set<String> previous = playerHashes.get(source);
         playerHashes.compute(source, (thePlayer, strings) -> hashes);
+        MemberSource indexed = playerKeys.computeIfAbsent(source, theSource -> source);
+        ServerIndex index = serverIndex(indexed.player.minecraftPlayer.server);
+        synchronized (index) {
+            index.update(indexed, previous, hashes);
+        }
+
         Map<UUID, NearbyGroup> add = new HashMap<>();
         Map<UUID, NearbyGroup> remove = new HashMap<>();
-        playerHashes.keySet().stream()
-                .filter(anotherPlayer ->
-                        anotherPlayer.player.minecraftPlayer.inServerWith(source.player.minecraftPlayer)
-                        && !anotherPlayer.equals(source)
-                ).forEach(anotherPlayer -> {
+        ServerIndex sourceServer = serverIndex(source.player.minecraftPlayer.server);
+        Set<MemberSource> candidates;
+        synchronized (sourceServer) {
+            candidates = sourceServer.candidates(hashes);
+        }
+        for (MemberSource anotherPlayer : candidates) {
             Set<String> otherPlayersHashes = playerHashes.get(anotherPlayer);
+            if (anotherPlayer.equals(source) || otherPlayersHashes == null || !otherPlayersHashes.containsAll(hashes)) {
+                continue;
+            }
             NearbyGroup group = new NearbyGroup(Set.of(source, anotherPlayer));
-            if (Sets.difference(hashes, otherPlayersHashes).isEmpty()) {
-                nearbyGroups.compute(group, (nearbyGroup, uuid) -> {
-                    if (uuid == null) {
-                        uuid = UUID.randomUUID();
-                        add.put(uuid, group);
-                    }
-                    return uuid;
-                });
-                playerToGroups.compute(source, (thePlayer, playersGroups) -> {
-                    playersGroups = playersGroups == null ? new HashSet<>() : playersGroups;
-                    playersGroups.add(group);
-                    return playersGroups;
-                });
-            } else {
-                UUID groupId = nearbyGroups.get(group);
+            nearbyGroups.compute(group, (nearbyGroup, uuid) -> {
+                if (uuid == null) {
+                    uuid = UUID.randomUUID();
+                    add.put(uuid, group);
+                    addToMember(source, group);
+                    addToMember(anotherPlayer, group);
+                }
+                return uuid;
+            });
+            playerToGroups.compute(source, (thePlayer, playersGroups) -> {
+                playersGroups = playersGroups == null ? new HashSet<>() : playersGroups;
+                playersGroups.add(group);
+                return playersGroups;
+            });
+        }
+
+        // Groups the player is in with someone who no longer sees everything the player sees
+        Set<NearbyGroup> memberOf = groupsByMember.get(source);
+        if (memberOf != null) {
+            for (NearbyGroup group : Set.copyOf(memberOf)) {
+                MemberSource anotherPlayer = playerKeys.get(otherMember(group, source));
+                Set<String> otherPlayersHashes = anotherPlayer == null ? null : playerHashes.get(anotherPlayer);
+                if (otherPlayersHashes == null
+                        || !anotherPlayer.player.minecraftPlayer.inServerWith(source.player.minecraftPlayer)
+                        || otherPlayersHashes.containsAll(hashes)) {
+                    continue;
+                }
+                // Forget the group so that it can form again if the players come back together
+                UUID groupId = nearbyGroups.remove(group);
                 if (groupId != null) {
-                    remove.put(groupId, group);
+                    group.players.forEach(member -> removeFromMember(member, group));
+                    remove.put(groupId, new NearbyGroup(Set.of(source, anotherPlayer)));
                     playerToGroups.compute(source, (thePlayer, playersGroups) -> {
                         playersGroups = playersGroups == null ? new HashSet<>() : playersGroups;
                         playersGroups.remove(group);
@@ -60,19 +95,137 @@ public final class NearbyGroups {
                     });
                 }
             }
-        });
+        }
         return new Result(add, remove);
     }
 
     /**
-     * Returns the groups to leave
+     * Changes the player's hashes then calculates nearby groups as {@link #updateNearbyGroups(MemberSource, Set)} does
+     * @param source to update state for
+     * @param added hashes the player can now see
+     * @param removed hashes the player can no longer see
+     * @return result delta
+     */
+    public Result updateNearbyGroups(MemberSource source, Set<String> added, Set<String> removed) {
+        Set<String> hashes = new HashSet<>(playerHashes.getOrDefault(source, Set.of()));
+        hashes.removeAll(removed);
+        hashes.addAll(added);
+        return updateNearbyGroups(source, Collections.unmodifiableSet(hashes));
+    }
+
+    /**
+     * Forgets the player and every group they are in, so that the groups form again if the player comes back
      * @param player to remove
+     * @return the groups the player left
      */
-    public void removePlayerState(Player player) {
-        playerHashes.remove(new MemberSource(player, null));
-        Set<NearbyGroup> groups = playerToGroups.remove(new MemberSource(player, null));
-        if (groups != null) {
-            groups.forEach(nearbyGroups::remove);
+    public Result removePlayerState(Player player) {
+        MemberSource source = new MemberSource(player, null);
+        Set<String> hashes = playerHashes.remove(source);
+        MemberSource indexed = playerKeys.remove(source);
+        if (hashes != null && indexed != null) {
+            ServerIndex index = serverIndex(indexed.player.minecraftPlayer.server);
+            synchronized (index) {
+                index.remove(indexed, hashes);
+            }
+        }
+        // Includes groups formed by the other player, which are not in the player's own groups
+        Set<NearbyGroup> groups = new HashSet<>(playerToGroups.getOrDefault(source, Set.of()));
+        groups.addAll(groupsByMember.getOrDefault(source, Set.of()));
+        playerToGroups.remove(source);
+        Map<UUID, NearbyGroup> remove = new HashMap<>();
+        for (NearbyGroup group : groups) {
+            UUID groupId = nearbyGroups.remove(group);
+            if (groupId != null) {
+                remove.put(groupId, group);
+                group.players.forEach(member -> {
+                    removeFromMember(member, group);
+                    playerToGroups.computeIfPresent(member, (theMember, playersGroups) -> {
+                        playersGroups.remove(group);
+                        return playersGroups.isEmpty() ? null : playersGroups;
+                    });
+                });
+            }
+        }
+        return new Result(Map.of(), remove);
+    }
+
+    private ServerIndex serverIndex(String server) {
+        return servers.computeIfAbsent(server, theServer -> new ServerIndex());
+    }
+
+    private void addToMember(MemberSource member, NearbyGroup group) {
+        groupsByMember.computeIfAbsent(member, theMember -> ConcurrentHashMap.newKeySet()).add(group);
+    }
+
+    private void removeFromMember(MemberSource member, NearbyGroup group) {
+        groupsByMember.computeIfPresent(member, (theMember, groups) -> {
+            groups.remove(group);
+            return groups.isEmpty() ? null : groups;
+        });
+    }
+
+    private static MemberSource otherMember(NearbyGroup group, MemberSource source) {
+        for (MemberSource member : group.players) {
+            if (!member.equals(source)) {
+                return member;
+            }
+        }
+        throw new IllegalStateException("group does not have another member");
+    }
+
+    /**
+     * Players on a server by each of their entity hashes
+     */
+    private static final class ServerIndex {
+        private final Map<String, Set<MemberSource>> playersByHash = new HashMap<>();
+        private final Set<MemberSource> players = new HashSet<>();
+
+        /**
+         * Only the hashes that changed are indexed or removed
+         */
+        void update(MemberSource source, Set<String> previous, Set<String> hashes) {
+            if (previous != null) {
+                for (String hash : previous) {
+                    if (!hashes.contains(hash)) {
+                        playersByHash.computeIfPresent(hash, (theHash, players) -> {
+                            players.remove(source);
+                            return players.isEmpty() ? null : players;
+                        });
+                    }
+                }
+            }
+            for (String hash : hashes) {
+                if (previous == null || !previous.contains(hash)) {
+                    playersByHash.computeIfAbsent(hash, theHash -> new HashSet<>()).add(source);
+                }
+            }
+            players.add(source);
+        }
+
+        void remove(MemberSource source, Set<String> hashes) {
+            update(source, hashes, Set.of());
+            players.remove(source);
+        }
+
+        /**
+         * Players that may see every one of the hashes. Anyone who sees them all is indexed under the least common one.
+         * An empty set of hashes is seen by everyone on the server.
+         */
+        Set<MemberSource> candidates(Set<String> hashes) {
+            if (hashes.isEmpty()) {
+                return new HashSet<>(players);
+            }
+            Set<MemberSource> smallest = null;
+            for (String hash : hashes) {
+                Set<MemberSource> players = playersByHash.get(hash);
+                if (players == null) {
+                    return Set.of();
+                }
+                if (smallest == null || players.size() < smallest.size()) {
+                    smallest = players;
+                }
+            }
+            return new HashSet<>(smallest);
         }
     }
 
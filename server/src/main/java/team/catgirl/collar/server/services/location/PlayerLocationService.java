@@ -1,12 +1,11 @@
 package team.catgirl.collar.server.services.location;
 
-import com.google.common.collect.ArrayListMultimap;
-import team.catgirl.collar.api.groups.Group;
-import team.catgirl.collar.api.groups.Member;
+import com.google.common.io.BaseEncoding;
 import team.catgirl.collar.api.groups.MemberSource;
-import team.catgirl.collar.api.groups.MembershipState;
+import team.catgirl.collar.api.location.LocationFanOut;
 import team.catgirl.collar.api.profiles.PublicProfile;
 import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.location.*;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.ServerIdentity;
@@ -16,81 +15,140 @@ import team.catgirl.collar.server.services.profiles.ProfileCache;
 import team.catgirl.collar.server.session.SessionManager;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 public class PlayerLocationService {
 
     private static final Logger LOGGER = Logger.getLogger(PlayerLocationService.class.getName());
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    /** Clients send up to 200 nearby players **/
+    private static final int MAX_NEARBY_HASHES = 200;
 
     private final SessionManager sessions;
     private final ProfileCache profiles;
     private final GroupService groups;
     private final ServerIdentity serverIdentity;
+    private final LocationSharingRegistry sharing;
+    private final LocationRelay relay;
+    private final NearbyGroupLifecycle nearbyGroupLifecycle;
     private final NearbyGroups nearbyGroups = new NearbyGroups();
+    /** Sharer to the members on other servers that have been told the sharer stopped sharing with them **/
+    private final ConcurrentMap<Player, Set<Player>> toldStopped = new ConcurrentHashMap<>();
+    private final LocationSubscriptions subscriptions = new LocationSubscriptions();
+    /** Sharer to the groups they have been told nobody is listening to. Only sharers whose client can decode {@link LocationSubscribersResponse} are told **/
+    private final ConcurrentMap<Player, Set<UUID>> unheardGroups = new ConcurrentHashMap<>();
 
-    private final ArrayListMultimap<UUID, Player> playersSharing = ArrayListMultimap.create();
-
-    public PlayerLocationService(SessionManager sessions, ProfileCache profiles, GroupService groups, ServerIdentity serverIdentity) {
+    public PlayerLocationService(SessionManager sessions, ProfileCache profiles, GroupService groups, LocationSharingRegistry sharing, LocationRelay relay, NearbyGroupLifecycle nearbyGroupLifecycle, ServerIdentity serverIdentity) {
         this.sessions = sessions;
         this.profiles = profiles;
         this.groups = groups;
+        this.sharing = sharing;
+        this.relay = relay;
+        this.nearbyGroupLifecycle = nearbyGroupLifecycle;
         this.serverIdentity = serverIdentity;
     }
 
     public void startSharing(StartSharingLocationRequest req) {
         sessions.findPlayer(req.identity).ifPresent(player -> {
-            synchronized (playersSharing) {
-                playersSharing.put(req.groupId, player);
+            if (sharing.startSharing(player, req.groupId, req.fanOut)) {
+                LOGGER.log(Level.INFO,"Player " + player + " started sharing location with group " + req.groupId + " fan out " + req.fanOut);
+            } else {
+                LOGGER.log(Level.INFO,"Player " + player + " could not share location with missing group " + req.groupId);
             }
-            LOGGER.log(Level.INFO,"Player " + player + " started sharing location with group " + req.groupId);
         });
     }
 
-    public Optional<BatchProtocolResponse> stopSharing(StopSharingLocationRequest req) {
-        return sessions.findPlayer(req.identity)
-                .flatMap(player -> stopSharing(req.groupId, req.identity, player));
+    public void stopSharing(StopSharingLocationRequest req) {
+        sessions.findPlayer(req.identity).ifPresent(player -> stopSharing(req.groupId, req.identity, player));
     }
 
-    public Optional<BatchProtocolResponse> stopSharing(Player player) {
-        return sessions.getIdentity(player)
-                .map(identity -> {
-                    BatchProtocolResponse responses = new BatchProtocolResponse(serverIdentity);
-                    List<BatchProtocolResponse> allResponses = playersSharing.asMap().entrySet().stream()
-                            .filter(candidate -> candidate.getValue().contains(player))
-                            .map(Map.Entry::getKey)
-                            .map(uuid -> stopSharing(uuid, identity, player))
-                            .filter(Optional::isPresent)
-                            .map(Optional::get)
-                            .collect(Collectors.toList());
-
-                    for (BatchProtocolResponse response : allResponses) {
-                        responses.concat(response);
-                    }
-                    return responses;
+    public void stopSharing(Player player) {
+        toldStopped.remove(player);
+        unheardGroups.remove(player);
+        sessions.getIdentity(player).ifPresent(identity -> {
+            for (UUID groupId : Set.copyOf(sharing.groupsSharedBy(player))) {
+                stopSharing(groupId, identity, player);
+            }
         });
     }
 
     /**
-     * Updates other players with the senders location if they have sharing enabled for these groups
+     * Relays the senders location to the other players in the group it was sent to
      * @param req of the location
-     * @return {@link LocationUpdatedResponse} responses to send to clients
+     * @return {@link LocationSubscribersResponse} to send to the sender when whether anyone is listening changed
      */
-    public Optional<BatchProtocolResponse> updateLocation(UpdateLocationRequest req) {
-        return sessions.findPlayer(req.identity).flatMap(player -> createLocationResponses(player, new LocationUpdatedResponse(serverIdentity, req.identity, req.group, player, req.location)));
+    public Optional<ProtocolResponse> updateLocation(UpdateLocationRequest req) {
+        return sessions.findPlayer(req.identity).flatMap(player -> updateLocation(player, req.identity, req.group, req.location));
     }
 
-    private Optional<BatchProtocolResponse> stopSharing(UUID groupId, ClientIdentity identity, Player player) {
-        LOGGER.log(Level.INFO,"Player " + player + " started sharing location with group " + groupId);
-        LocationUpdatedResponse locationUpdatedResponse = new LocationUpdatedResponse(serverIdentity, identity, groupId, player, null);
-        Optional<BatchProtocolResponse> responses = createLocationResponses(player, locationUpdatedResponse);
-        synchronized (playersSharing) {
-            playersSharing.remove(groupId, player);
+    /**
+     * Relays the senders location to the other players in each of the groups it was sent to
+     * @param req of the locations
+     * @return {@link LocationSubscribersResponse} responses to send to the sender when whether anyone is listening changed
+     */
+    public List<ProtocolResponse> updateLocations(UpdateLocationsRequest req) {
+        if (req.locations.size() > UpdateLocationsRequest.MAX_GROUPS) {
+            throw new IllegalStateException("location sent to too many groups " + req.locations.size());
+        }
+        Optional<Player> player = sessions.findPlayer(req.identity);
+        if (player.isEmpty()) {
+            return List.of();
         }
+        List<ProtocolResponse> responses = new ArrayList<>();
+        req.locations.forEach((groupId, location) -> updateLocation(player.get(), req.identity, groupId, location).ifPresent(responses::add));
         return responses;
     }
 
+    private Optional<ProtocolResponse> updateLocation(Player player, ClientIdentity identity, UUID groupId, byte[] location) {
+        if (!sharing.groupsSharedBy(player).contains(groupId)) {
+            return Optional.empty();
+        }
+        boolean listening = publish(player, new LocationUpdatedResponse(serverIdentity, identity, groupId, player, location));
+        // Older clients cannot decode LocationSubscribersResponse
+        return sessions.isBinaryCodec(identity) ? listening(player, groupId, listening) : Optional.empty();
+    }
+
+    /**
+     * Start receiving locations shared with a group
+     * @param req to subscribe
+     * @return {@link LocationSubscribersResponse} responses to players sharing with the group who were told nobody was listening
+     */
+    public Optional<BatchProtocolResponse> subscribe(SubscribeToLocationsRequest req) {
+        return sessions.findPlayer(req.identity).flatMap(player -> {
+            subscriptions.subscribe(player, req.groupId);
+            if (!sharing.membersOf(req.groupId).contains(player)) {
+                return Optional.empty();
+            }
+            // Sharers that were told nobody is listening can speed up again
+            BatchProtocolResponse responses = new BatchProtocolResponse(serverIdentity);
+            for (Player sharer : sharing.sharersOf(req.groupId)) {
+                Set<UUID> groups = unheardGroups.get(sharer);
+                if (!sharer.equals(player) && groups != null && groups.remove(req.groupId)) {
+                    sessions.getIdentity(sharer).ifPresent(identity -> responses.add(identity, new LocationSubscribersResponse(serverIdentity, req.groupId, true)));
+                }
+            }
+            return responses.optional();
+        });
+    }
+
+    /**
+     * Stop receiving locations shared with a group
+     * @param req to unsubscribe
+     */
+    public void unsubscribe(UnsubscribeFromLocationsRequest req) {
+        sessions.findPlayer(req.identity).ifPresent(player -> subscriptions.unsubscribe(player, req.groupId));
+    }
+
+    private void stopSharing(UUID groupId, ClientIdentity identity, Player player) {
+        LOGGER.log(Level.INFO,"Player " + player + " stopped sharing location with group " + groupId);
+        // Published through the relay so that it replaces any location from this player that is yet to be sent
+        publish(player, new LocationUpdatedResponse(serverIdentity, identity, groupId, player, null));
+        sharing.stopSharing(player, groupId);
+    }
+
     public Optional<BatchProtocolResponse> updateNearbyGroups(UpdateNearbyRequest req) {
         Optional<Player> player = sessions.findPlayer(req.identity);
         if (player.isEmpty()) {
@@ -98,38 +156,101 @@ public class PlayerLocationService {
         }
         PublicProfile profile = profiles.getById(player.get().profile).orElseThrow(() -> new IllegalStateException("could not find profile " + player.get().profile)).toPublic();
         NearbyGroups.Result result = this.nearbyGroups.updateNearbyGroups(new MemberSource(player.get(), profile), req.nearbyHashes);
-        return groups.updateNearbyGroups(result);
-    }
-
-    private Optional<BatchProtocolResponse> createLocationResponses(Player player, LocationUpdatedResponse resp) {
-        BatchProtocolResponse responses = new BatchProtocolResponse(serverIdentity);
-        // Find all the groups the requesting player is a member of
-        Set<UUID> sharingWithGroups = playersSharing.entries().stream().filter(entry -> player.equals(entry.getValue()))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toSet());
-        Set<Group> memberGroups = groups.findGroups(sharingWithGroups);
-        // Keep track of players we have sent to, so we do not send them duplicate messages (e.g. if they share membership of 2 or more groups)
-        HashSet<Player> uniquePlayers = new HashSet<>();
-        for (Group group : memberGroups) {
-            for (Member member : group.members) {
-                Player memberPlayer = member.player;
-                // Do not send to self
-                if (memberPlayer.equals(player)) {
-                    continue;
-                }
-                if (uniquePlayers.contains(memberPlayer) || member.membershipState != MembershipState.ACCEPTED) {
-                    continue;
+        return groups.updateNearbyGroups(nearbyGroupLifecycle.update(result));
+    }
+
+    public Optional<BatchProtocolResponse> updateNearbyGroups(UpdateNearbyDeltaRequest req) {
+        Optional<Player> player = sessions.findPlayer(req.identity);
+        if (player.isEmpty()) {
+            return Optional.empty();
+        }
+        PublicProfile profile = profiles.getById(player.get().profile).orElseThrow(() -> new IllegalStateException("could not find profile " + player.get().profile)).toPublic();
+        NearbyGroups.Result result = this.nearbyGroups.updateNearbyGroups(new MemberSource(player.get(), profile), decodeHashes(req.added), decodeHashes(req.removed));
+        return groups.updateNearbyGroups(nearbyGroupLifecycle.update(result));
+    }
+
+    /**
+     * Publishes the location to the members of the group it was sent to that are subscribed to the group.
+     * With {@link LocationFanOut#SAME_SERVER} only members on the same server receive it.
+     * @return whether any online member receives the location
+     */
+    private boolean publish(Player player, LocationUpdatedResponse resp) {
+        LocationFanOut fanOut = sharing.sharesOf(player).get(resp.group);
+        if (fanOut == null) {
+            return false;
+        }
+        Set<Player> recipients = new HashSet<>();
+        Set<Player> elsewhere = new HashSet<>();
+        for (Player member : sharing.membersOf(resp.group)) {
+            if (member.equals(player)) {
+                continue;
+            }
+            if (resp.location == null) {
+                // Everyone is told that the player stopped sharing
+                recipients.add(member);
+            } else if (subscriptions.isSubscribed(member, resp.group)) {
+                if (fanOut == LocationFanOut.ALL || onServerWith(player, member)) {
+                    recipients.add(member);
+                } else {
+                    elsewhere.add(member);
                 }
-                sessions.getIdentity(memberPlayer).ifPresent(identity -> {
-                    uniquePlayers.add(memberPlayer);
-                    responses.add(identity, resp);
-                });
             }
         }
-        return responses.optional();
+        if (!recipients.isEmpty()) {
+            relay.publish(resp, recipients);
+        }
+        if (fanOut == LocationFanOut.SAME_SERVER && resp.location != null) {
+            // Members on other servers are told once that the player stopped sharing, rather than sent every update
+            Set<Player> told = toldStopped.computeIfAbsent(player, thePlayer -> ConcurrentHashMap.newKeySet());
+            told.removeAll(recipients);
+            elsewhere.removeIf(member -> !told.add(member));
+            if (!elsewhere.isEmpty()) {
+                relay.publishNotice(new LocationUpdatedResponse(serverIdentity, resp.sender, resp.group, player, null), elsewhere);
+            }
+        }
+        return recipients.stream().anyMatch(member -> sessions.getIdentity(member).isPresent());
+    }
+
+    /**
+     * @return response telling the player whether anyone is listening to their location if it changed since they were last told
+     */
+    private Optional<ProtocolResponse> listening(Player player, UUID groupId, boolean listening) {
+        Set<UUID> groups = unheardGroups.computeIfAbsent(player, thePlayer -> ConcurrentHashMap.newKeySet());
+        boolean changed = listening ? groups.remove(groupId) : groups.add(groupId);
+        return changed ? Optional.of(new LocationSubscribersResponse(serverIdentity, groupId, listening)) : Optional.empty();
+    }
+
+    private boolean onServerWith(Player player, Player member) {
+        return player.minecraftPlayer != null && sessions.findPlayerByProfile(member.profile)
+                .map(current -> current.minecraftPlayer != null && current.minecraftPlayer.inServerWith(player.minecraftPlayer))
+                .orElse(false);
     }
 
     public void removePlayerState(Player player) {
-        this.nearbyGroups.removePlayerState(player);
+        this.nearbyGroupLifecycle.playerLeft(nearbyGroups, player);
+        this.toldStopped.remove(player);
+        this.unheardGroups.remove(player);
+        this.subscriptions.remove(player);
+    }
+
+    /**
+     * Decodes back to back sha256 digests into the hex strings sent by {@link UpdateNearbyRequest}
+     */
+    private static Set<String> decodeHashes(byte[] hashes) {
+        if (hashes == null) {
+            return Set.of();
+        }
+        if (hashes.length % UpdateNearbyDeltaRequest.HASH_LENGTH != 0) {
+            throw new IllegalStateException("hashes must be " + UpdateNearbyDeltaRequest.HASH_LENGTH + " bytes long");
+        }
+        int count = hashes.length / UpdateNearbyDeltaRequest.HASH_LENGTH;
+        if (count > MAX_NEARBY_HASHES) {
+            throw new IllegalStateException("too many nearby hashes " + count);
+        }
+        Set<String> decoded = new HashSet<>(count);
+        for (int i = 0; i < count; i++) {
+            decoded.add(HEX.encode(hashes, i * UpdateNearbyDeltaRequest.HASH_LENGTH, UpdateNearbyDeltaRequest.HASH_LENGTH));
+        }
+        return decoded;
     }
 }
@@ -0,0 +1,348 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many sessions can be handshaking at once, so that when every client reconnects after a restart the
+ * pre-key, Mojang and database work is spread out rather than done all at once.
+ *
+ * Sessions that connect while the limit is reached wait in a bounded queue and their requests are held until they
+ * are admitted. Sessions that cannot be queued, or wait too long, are turned away and told when to retry.
+ * A handshake stops counting towards the limit once its session has started, closed, or taken longer than the
+ * handshake timeout, such as when the player is registering their device.
+ *
+ * Sessions that are not handshaking are looked up without taking the admission lock, so only sessions that are still
+ * handshaking pay for it.
+ */
+public final class HandshakeAdmission {
+
+    private static final Logger LOGGER = Logger.getLogger(HandshakeAdmission.class.getName());
+    private static final long TICK_MILLIS = 250;
+    /** Requests held for a queued session before it is turned away **/
+    private static final int MAX_HELD_REQUESTS = 16;
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final long handshakeTimeoutMillis;
+    private final Consumer<Session> turnAway;
+    private final LongSupplier clock;
+    /**
+     * Only changed while holding the admission lock, but read without it. A handshake that finishes while its held
+     * requests are still running stays until they have run, so that later requests are held behind them
+     **/
+    private final Map<Session, Handshake> handshakes = new ConcurrentHashMap<>();
+    private final Deque<Handshake> queue = new ArrayDeque<>();
+    private final ScheduledExecutorService ticker;
+    private int inFlight;
+    private long admitted;
+    private long queued;
+    private long turnedAway;
+    private long timedOut;
+    private int highestQueued;
+    /** When handshakes first had to wait or be turned away, or -1 if every handshake is being admitted straight away **/
+    private long busySince = -1;
+    private long lastRecoveryMillis = -1;
+
+    /**
+     * @param maxInFlight number of sessions that can be handshaking at once
+     * @param maxQueued number of sessions that can wait to start handshaking
+     * @param maxWaitMillis a session can wait before it is turned away
+     * @param handshakeTimeoutMillis a handshake can take before it stops counting towards maxInFlight
+     * @param turnAway called for each session that was turned away
+     */
+    public HandshakeAdmission(int maxInFlight, int maxQueued, long maxWaitMillis, long handshakeTimeoutMillis, Consumer<Session> turnAway) {
+        this(maxInFlight, maxQueued, maxWaitMillis, handshakeTimeoutMillis, turnAway, System::currentTimeMillis);
+    }
+
+    HandshakeAdmission(int maxInFlight, int maxQueued, long maxWaitMillis, long handshakeTimeoutMillis, Consumer<Session> turnAway, LongSupplier clock) {
+        if (maxInFlight <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive and maxQueued must not be negative");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.turnAway = turnAway;
+        this.clock = clock;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collar-handshake-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start turning away sessions that waited too long
+     */
+    public void start() {
+        ticker.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Could not expire handshakes", e);
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Admit or queue a newly connected session
+     * @param session that connected
+     */
+    public void connected(Session session) {
+        boolean admit;
+        synchronized (this) {
+            long now = clock.getAsLong();
+            Handshake handshake = new Handshake(session, now);
+            if (inFlight < maxInFlight && queue.isEmpty()) {
+                admit(handshake, now);
+                // Nothing can have been held for the session before it was added
+                handshake.released = true;
+                handshakes.put(session, handshake);
+                return;
+            }
+            busy(now);
+            admit = queue.size() < maxQueued;
+            if (admit) {
+                queue.add(handshake);
+                handshakes.put(session, handshake);
+                queued++;
+                highestQueued = Math.max(highestQueued, queue.size());
+            } else {
+                turnedAway++;
+            }
+        }
+        if (!admit) {
+            turnAway.accept(session);
+        }
+    }
+
+    /**
+     * Run work for the session now, or once it has been admitted if it is queued
+     * @param session to run work for
+     * @param task to run
+     * @return false if the session has held too many requests while queued and the task was rejected
+     */
+    public boolean execute(Session session, Runnable task) {
+        Handshake handshake = handshakes.get(session);
+        if (handshake != null) {
+            synchronized (handshake) {
+                if (!handshake.released) {
+                    if (handshake.held.size() >= MAX_HELD_REQUESTS) {
+                        return false;
+                    }
+                    handshake.held.add(task);
+                    return true;
+                }
+            }
+        }
+        task.run();
+        return true;
+    }
+
+    /**
+     * The session has finished handshaking
+     * @param session that started
+     */
+    public void started(Session session) {
+        remove(session);
+    }
+
+    /**
+     * The session has closed, whether or not it finished handshaking
+     * @param session that closed
+     */
+    public void closed(Session session) {
+        remove(session);
+    }
+
+    /**
+     * Turn away sessions that have waited too long and stop counting handshakes that are taking too long
+     */
+    void tick() {
+        List<Session> expired = new ArrayList<>();
+        List<Handshake> admittedHandshakes;
+        synchronized (this) {
+            long now = clock.getAsLong();
+            Iterator<Handshake> iterator = handshakes.values().iterator();
+            while (iterator.hasNext()) {
+                Handshake handshake = iterator.next();
+                if (handshake.finished) {
+                    continue;
+                }
+                if (handshake.admitted && now - handshake.since >= handshakeTimeoutMillis) {
+                    finish(handshake);
+                    timedOut++;
+                } else if (!handshake.admitted && now - handshake.since >= maxWaitMillis) {
+                    iterator.remove();
+                    queue.remove(handshake);
+                    expired.add(handshake.session);
+                    turnedAway++;
+                }
+            }
+            admittedHandshakes = admitQueued(now);
+        }
+        admittedHandshakes.forEach(this::release);
+        expired.forEach(turnAway);
+    }
+
+    /**
+     * @return snapshot of the admission metrics
+     */
+    public synchronized Metrics metrics() {
+        return new Metrics(inFlight, queue.size(), highestQueued, admitted, queued, turnedAway, timedOut, lastRecoveryMillis);
+    }
+
+    /**
+     * Stop turning away sessions
+     */
+    public void close() {
+        ticker.shutdown();
+    }
+
+    private void remove(Session session) {
+        List<Handshake> admittedHandshakes;
+        synchronized (this) {
+            Handshake handshake = handshakes.get(session);
+            if (handshake == null || handshake.finished) {
+                return;
+            }
+            if (handshake.admitted) {
+                finish(handshake);
+            } else {
+                handshakes.remove(session);
+                queue.remove(handshake);
+            }
+            admittedHandshakes = admitQueued(clock.getAsLong());
+        }
+        admittedHandshakes.forEach(this::release);
+    }
+
+    /**
+     * Stop counting an admitted handshake. It is forgotten straight away unless its held requests are still running,
+     * in which case {@link #release(Handshake)} forgets it once they have all run
+     */
+    private void finish(Handshake handshake) {
+        inFlight--;
+        synchronized (handshake) {
+            handshake.finished = true;
+            if (handshake.released) {
+                handshakes.remove(handshake.session, handshake);
+            }
+        }
+    }
+
+    /**
+     * @return handshakes that were admitted and must be released once the admission lock is no longer held
+     */
+    private List<Handshake> admitQueued(long now) {
+        List<Handshake> admittedHandshakes = new ArrayList<>();
+        while (inFlight < maxInFlight && !queue.isEmpty()) {
+            Handshake handshake = queue.poll();
+            admit(handshake, now);
+            admittedHandshakes.add(handshake);
+        }
+        if (busySince != -1 && queue.isEmpty() && inFlight == 0) {
+            lastRecoveryMillis = now - busySince;
+            busySince = -1;
+            LOGGER.log(Level.INFO, "Handshake backlog cleared after " + lastRecoveryMillis + "ms");
+        }
+        return admittedHandshakes;
+    }
+
+    private void admit(Handshake handshake, long now) {
+        handshake.admitted = true;
+        handshake.since = now;
+        inFlight++;
+        admitted++;
+    }
+
+    /**
+     * Run the requests held for an admitted session, without holding any lock, then let its requests through
+     */
+    private void release(Handshake handshake) {
+        while (true) {
+            List<Runnable> tasks;
+            synchronized (handshake) {
+                if (handshake.held.isEmpty()) {
+                    handshake.released = true;
+                    if (handshake.finished) {
+                        handshakes.remove(handshake.session, handshake);
+                    }
+                    return;
+                }
+                tasks = new ArrayList<>(handshake.held);
+                handshake.held.clear();
+            }
+            // Requests arriving while these run are held behind them so they cannot overtake
+            tasks.forEach(Runnable::run);
+        }
+    }
+
+    private void busy(long now) {
+        if (busySince == -1) {
+            busySince = now;
+        }
+    }
+
+    private static final class Handshake {
+        private final Session session;
+        private final List<Runnable> held = new ArrayList<>();
+        /** When the session was queued, or admitted once it has been **/
+        private long since;
+        private boolean admitted;
+        /** Held requests have been run and new requests are run straight away, guarded by the handshake itself **/
+        private boolean released;
+        /** Started, closed or timed out, and no longer counted. Guarded by the handshake itself **/
+        private boolean finished;
+
+        Handshake(Session session, long since) {
+            this.session = session;
+            this.since = since;
+        }
+    }
+
+    public static final class Metrics {
+        /** Sessions handshaking **/
+        public final int inFlight;
+        /** Sessions waiting to start handshaking **/
+        public final int queued;
+        public final int highestQueued;
+        public final long totalAdmitted;
+        public final long totalQueued;
+        /** Sessions that could not be queued or waited too long **/
+        public final long turnedAway;
+        /** Handshakes that took longer than the handshake timeout **/
+        public final long timedOut;
+        /** Time it took to clear the last backlog of handshakes, or -1 if there has not been one **/
+        public final long lastRecoveryMillis;
+
+        public Metrics(int inFlight, int queued, int highestQueued, long totalAdmitted, long totalQueued, long turnedAway, long timedOut, long lastRecoveryMillis) {
+            this.inFlight = inFlight;
+            this.queued = queued;
+            this.highestQueued = highestQueued;
+            this.totalAdmitted = totalAdmitted;
+            this.totalQueued = totalQueued;
+            this.turnedAway = turnedAway;
+            this.timedOut = timedOut;
+            this.lastRecoveryMillis = lastRecoveryMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "inFlight=" + inFlight + " queued=" + queued + " highestQueued=" + highestQueued
+                    + " totalAdmitted=" + totalAdmitted + " totalQueued=" + totalQueued + " turnedAway=" + turnedAway
+                    + " timedOut=" + timedOut + " lastRecoveryMillis=" + lastRecoveryMillis;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues the frames sent to each session and writes them one at a time, so that a slow client backs up here rather
+ * than in Jetty's buffers. Frames are only encoded when they are written, which keeps the Signal ratchet in the order
+ * the client receives them and means frames that are never written were never encrypted.
+ * Encoding is never done on the thread that completed the previous write, which is one of Jetty's I/O threads.
+ * Frames are encoded by the thread that queued them when the session is idle, otherwise writing carries on with
+ * the drain executor.
+ *
+ * Ephemeral frames, such as location updates, are given a conflation key. A queued ephemeral frame is replaced by a
+ * newer frame with the same key, which is queued behind every frame sent before it so that it is never written ahead
+ * of them. New ephemeral frames are dropped while the session is over its byte budget.
+ * Every other frame is always written. Sessions that stay over their byte budget for longer than the grace period
+ * are handed to the over budget callback to be disconnected.
+ */
+public final class OutboundScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(OutboundScheduler.class.getName());
+
+    private final Writer writer;
+    private final Executor drainer;
+    private final long maxQueuedBytes;
+    private final long overBudgetMillis;
+    private final Consumer<Session> overBudget;
+    private final LongSupplier clock;
+    private final ConcurrentMap<Session, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final AtomicLong highestQueuedBytes = new AtomicLong();
+
+    /**
+     * @param writer to write frames to sessions
+     * @param drainer encodes and writes the frames queued behind a frame once it has been written
+     * @param maxQueuedBytes a session may have queued or being written before ephemeral frames are dropped
+     * @param overBudgetMillis a session may stay over maxQueuedBytes before it is disconnected
+     * @param overBudget called once for each session that stayed over budget
+     */
+    public OutboundScheduler(Writer writer, Executor drainer, long maxQueuedBytes, long overBudgetMillis, Consumer<Session> overBudget) {
+        this(writer, drainer, maxQueuedBytes, overBudgetMillis, overBudget, System::currentTimeMillis);
+    }
+
+    OutboundScheduler(Writer writer, Executor drainer, long maxQueuedBytes, long overBudgetMillis, Consumer<Session> overBudget, LongSupplier clock) {
+        if (maxQueuedBytes <= 0 || overBudgetMillis < 0) {
+            throw new IllegalArgumentException("maxQueuedBytes must be positive and overBudgetMillis must not be negative");
+        }
+        this.writer = writer;
+        this.drainer = drainer;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.overBudgetMillis = overBudgetMillis;
+        this.overBudget = overBudget;
+        this.clock = clock;
+    }
+
+    /**
+     * Start queueing frames for the session
+     * @param session that connected
+     */
+    public void add(Session session) {
+        outboxes.putIfAbsent(session, new Outbox(session));
+    }
+
+    /**
+     * Queue a frame for the session. Frames sent to a session that was not added, or has been removed, are dropped
+     * @param session to write to
+     * @param key to conflate the frame with queued frames or null if the frame must always be written
+     * @param size of the frame in bytes, used for the session's byte budget
+     * @param frame encodes the frame when it is written
+     */
+    public void send(Session session, Object key, int size, Supplier<ByteBuffer> frame) {
+        Outbox outbox = outboxes.get(session);
+        if (outbox != null && outbox.offer(key, size, frame)) {
+            outbox.drain();
+        }
+    }
+
+    /**
+     * Forget the session and any frames that were queued for it
+     * @param session that closed
+     */
+    public void remove(Session session) {
+        Outbox outbox = outboxes.remove(session);
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * @return snapshot of the scheduler's metrics
+     */
+    public Metrics metrics() {
+        long queuedBytes = 0;
+        for (Outbox outbox : outboxes.values()) {
+            queuedBytes += outbox.queuedBytes();
+        }
+        return new Metrics(outboxes.size(), queuedBytes, highestQueuedBytes.get(), queued.sum(), written.sum(), conflated.sum(), dropped.sum(), failed.sum(), disconnected.sum());
+    }
+
+    /**
+     * Classifies a response sent to a single session
+     * @param resp to classify
+     * @return the key to conflate the response by, or null if it must always be written
+     */
+    public static Object conflationKey(ProtocolResponse resp) {
+        if (resp instanceof KeepAliveResponse) {
+            return KeepAliveResponse.class;
+        }
+        if (resp instanceof LocationUpdatedResponse) {
+            LocationUpdatedResponse update = (LocationUpdatedResponse) resp;
+            // Stop markers tell the client to forget the player, so are never dropped
+            return update.location == null ? null : Arrays.asList(LocationUpdatedResponse.class, update.player, update.group);
+        }
+        if (resp instanceof LocationsUpdatedResponse) {
+            // Only replaced by a broadcast holding the latest location of every player and group in this one
+            Set<List<Object>> subjects = new HashSet<>();
+            for (LocationUpdatedResponse update : ((LocationsUpdatedResponse) resp).updates) {
+                if (update.location == null) {
+                    // Stop markers are never dropped
+                    return null;
+                }
+                subjects.add(Arrays.asList(update.player, update.group));
+            }
+            return Arrays.asList(LocationsUpdatedResponse.class, subjects);
+        }
+        return null;
+    }
+
+    /**
+     * Writes frames to a session
+     */
+    public interface Writer {
+        /**
+         * @param session to write to
+         * @param frame to write
+         * @param done must be called once the frame was written or could not be written
+         */
+        void write(Session session, ByteBuffer frame, Runnable done);
+    }
+
+    private static final class Frame {
+        private final Object key;
+        private final int size;
+        private final Supplier<ByteBuffer> encoder;
+        /** Replaced by a newer frame, so it is skipped when it reaches the head of the queue **/
+        private boolean replaced;
+
+        Frame(Object key, int size, Supplier<ByteBuffer> encoder) {
+            this.key = key;
+            this.size = size;
+            this.encoder = encoder;
+        }
+    }
+
+    private final class Outbox {
+        private final Session session;
+        private final Deque<Frame> pending = new ArrayDeque<>();
+        /** Queued ephemeral frames by their conflation key **/
+        private final Map<Object, Frame> ephemeral = new HashMap<>();
+        /** Bytes queued and being written **/
+        private long queuedBytes;
+        /** When the session went over budget or -1 if it is within budget **/
+        private long overBudgetSince = -1;
+        private boolean writing;
+        private boolean draining;
+        private boolean closed;
+
+        Outbox(Session session) {
+            this.session = session;
+        }
+
+        synchronized long queuedBytes() {
+            return queuedBytes;
+        }
+
+        /**
+         * @return true if the frame was queued
+         */
+        boolean offer(Object key, int size, Supplier<ByteBuffer> encoder) {
+            boolean disconnect;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                Frame queuedFrame = key == null ? null : ephemeral.get(key);
+                if (queuedFrame == null && key != null && queuedBytes + size > maxQueuedBytes) {
+                    dropped.increment();
+                } else {
+                    if (queuedFrame != null) {
+                        // The replacement goes to the back of the queue so it is not written before frames sent after the frame it replaces
+                        queuedFrame.replaced = true;
+                        queuedBytes -= queuedFrame.size;
+                        conflated.increment();
+                    } else {
+                        queued.increment();
+                    }
+                    Frame frame = new Frame(key, size, encoder);
+                    pending.add(frame);
+                    if (key != null) {
+                        ephemeral.put(key, frame);
+                    }
+                    queuedBytes += size;
+                    highestQueuedBytes.accumulateAndGet(queuedBytes, Math::max);
+                }
+                disconnect = checkBudget();
+            }
+            if (disconnect) {
+                LOGGER.log(Level.WARNING, "Session " + session.getRemoteAddress() + " stayed over its outbound budget of " + maxQueuedBytes + " bytes");
+                disconnected.increment();
+                overBudget.accept(session);
+            }
+            return true;
+        }
+
+        /**
+         * Write queued frames until one is still being written
+         */
+        void drain() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    if (draining || writing || closed) {
+                        return;
+                    }
+                    do {
+                        frame = pending.poll();
+                    } while (frame != null && frame.replaced);
+                    if (frame == null) {
+                        return;
+                    }
+                    if (frame.key != null) {
+                        ephemeral.remove(frame.key, frame);
+                    }
+                    writing = true;
+                    draining = true;
+                }
+                try {
+                    write(frame);
+                } finally {
+                    synchronized (this) {
+                        draining = false;
+                    }
+                }
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            pending.clear();
+            ephemeral.clear();
+        }
+
+        private void write(Frame frame) {
+            ByteBuffer buffer;
+            try {
+                buffer = frame.encoder.get();
+            } catch (RuntimeException e) {
+                failed.increment();
+                LOGGER.log(Level.SEVERE, "Could not encode frame for session " + session.getRemoteAddress(), e);
+                written(frame);
+                return;
+            }
+            try {
+                writer.write(session, buffer, () -> {
+                    written.increment();
+                    // When written on this thread the drain loop carries on, otherwise start draining again
+                    if (written(frame)) {
+                        drainLater();
+                    }
+                });
+            } catch (RuntimeException e) {
+                failed.increment();
+                LOGGER.log(Level.FINE, "Could not write to session " + session.getRemoteAddress(), e);
+                written(frame);
+            }
+        }
+
+        /**
+         * @return true if no thread is draining the outbox
+         */
+        private synchronized boolean written(Frame frame) {
+            writing = false;
+            queuedBytes -= frame.size;
+            checkBudget();
+            return !draining;
+        }
+
+        private void drainLater() {
+            try {
+                drainer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                LOGGER.log(Level.FINE, "Could not drain session " + session.getRemoteAddress() + " as the server is stopping", e);
+            }
+        }
+
+        /**
+         * @return true if the session has just been over budget for longer than the grace period
+         */
+        private boolean checkBudget() {
+            if (queuedBytes <= maxQueuedBytes) {
+                overBudgetSince = -1;
+                return false;
+            }
+            long now = clock.getAsLong();
+            if (overBudgetSince == -1) {
+                overBudgetSince = now;
+                return false;
+            }
+            if (now - overBudgetSince >= overBudgetMillis && !closed) {
+                // Stop queueing for the session while it is disconnected
+                closed = true;
+                pending.clear();
+                ephemeral.clear();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public static final class Metrics {
+        /** Sessions with an outbox **/
+        public final int sessions;
+        /** Bytes queued or being written across all sessions **/
+        public final long queuedBytes;
+        /** Most bytes any session has had queued **/
+        public final long highestQueuedBytes;
+        public final long queued;
+        public final long written;
+        /** Ephemeral frames replaced by a newer frame before they were written **/
+        public final long conflated;
+        /** Ephemeral frames dropped because their session was over budget **/
+        public final long dropped;
+        /** Frames that could not be encoded **/
+        public final long failed;
+        /** Sessions disconnected for staying over budget **/
+        public final long disconnected;
+
+        public Metrics(int sessions, long queuedBytes, long highestQueuedBytes, long queued, long written, long conflated, long dropped, long failed, long disconnected) {
+            this.sessions = sessions;
+            this.queuedBytes = queuedBytes;
+            this.highestQueuedBytes = highestQueuedBytes;
+            this.queued = queued;
+            this.written = written;
+            this.conflated = conflated;
+            this.dropped = dropped;
+            this.failed = failed;
+            this.disconnected = disconnected;
+        }
+
+        @Override
+        public String toString() {
+            return "sessions=" + sessions + " queuedBytes=" + queuedBytes + " highestQueuedBytes=" + highestQueuedBytes
+                    + " queued=" + queued + " written=" + written + " conflated=" + conflated + " dropped=" + dropped
+                    + " failed=" + failed + " disconnected=" + disconnected;
+        }
+    }
+}
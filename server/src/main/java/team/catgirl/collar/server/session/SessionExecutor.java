@@ -0,0 +1,228 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs work for each session in the order it was submitted, on a shared pool of worker threads.
+ * Work for one session never runs concurrently, which keeps the Signal ratchet in order, while different
+ * sessions run in parallel. Each session has a bounded queue so that one client cannot build an unbounded backlog.
+ * A session's queue is created when it is added and closed by {@link #close(Session, Runnable)}, after which only
+ * more closing work is accepted. The queue is removed once that work has run.
+ */
+public final class SessionExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionExecutor.class.getName());
+
+    /** Tasks run for a session before its worker is handed back to the pool so busy sessions can't starve others **/
+    private static final int BATCH_SIZE = 16;
+
+    private final ExecutorService workers;
+    private final int maxQueueDepth;
+    private final ConcurrentMap<Session, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicInteger highestQueueDepth = new AtomicInteger();
+
+    /**
+     * @param threads number of worker threads shared by all sessions
+     * @param maxQueueDepth maximum number of tasks waiting to run for a single session
+     */
+    public SessionExecutor(int threads, int maxQueueDepth) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "collar-session-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * Start accepting work for the session
+     * @param session that connected
+     */
+    public void add(Session session) {
+        queues.putIfAbsent(session, new SerialQueue(session));
+    }
+
+    /**
+     * Queue work for the session
+     * @param session to run the task for
+     * @param task to run
+     * @return false if the session was not added, has been closed or already has too much work queued, and the task was rejected
+     */
+    public boolean execute(Session session, Runnable task) {
+        SerialQueue queue = queues.get(session);
+        boolean accepted = queue != null && queue.offer(task, true);
+        if (!accepted) {
+            rejected.increment();
+        }
+        return accepted;
+    }
+
+    /**
+     * Queue the last piece of work for the session, ignoring the queue bound. No more work is accepted from
+     * {@link #execute(Session, Runnable)}, but closing can be queued more than once.
+     * The task runs after everything already queued for the session, then the session's queue is removed if nothing
+     * else was queued to close it.
+     * @param session that closed
+     * @param task to run
+     */
+    public void close(Session session, Runnable task) {
+        queues.compute(session, (theSession, queue) -> {
+            // A queue that was already removed has run all of its work, so closing work can start on a new one
+            SerialQueue closing = queue == null ? new SerialQueue(theSession) : queue;
+            closing.offer(() -> {
+                try {
+                    task.run();
+                } finally {
+                    queues.computeIfPresent(theSession, (key, current) -> current == closing && closing.isDrained() ? null : current);
+                }
+            }, false);
+            return closing;
+        });
+    }
+
+    /**
+     * @return snapshot of the executor's metrics
+     */
+    public Metrics metrics() {
+        int queued = 0;
+        for (SerialQueue queue : queues.values()) {
+            queued += queue.depth.get();
+        }
+        return new Metrics(queues.size(), queued, highestQueueDepth.get(), submitted.sum(), completed.sum(), rejected.sum(), failed.sum());
+    }
+
+    /**
+     * Stop accepting work and wait for queued work to finish
+     * @param timeout to wait
+     * @param unit of timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(timeout, unit)) {
+            LOGGER.log(Level.WARNING, "Session workers did not finish within " + timeout + " " + unit);
+        }
+    }
+
+    private final class SerialQueue implements Runnable {
+        private final Session session;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** Only closing work is accepted, guarded by the queue itself **/
+        private boolean closed;
+
+        SerialQueue(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * @param task to run
+         * @param bounded false if the task closes the queue, which is never rejected
+         * @return true if the task was queued
+         */
+        boolean offer(Runnable task, boolean bounded) {
+            int newDepth;
+            synchronized (this) {
+                if (bounded && closed) {
+                    return false;
+                }
+                newDepth = depth.incrementAndGet();
+                if (bounded && newDepth > maxQueueDepth) {
+                    depth.decrementAndGet();
+                    return false;
+                }
+                closed |= !bounded;
+                tasks.add(task);
+            }
+            submitted.increment();
+            highestQueueDepth.accumulateAndGet(newDepth, Math::max);
+            schedule();
+            return true;
+        }
+
+        /**
+         * @return true if the queue is closed and has no work waiting to run
+         */
+        synchronized boolean isDrained() {
+            return closed && depth.get() == 0;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                depth.decrementAndGet();
+                try {
+                    task.run();
+                    completed.increment();
+                } catch (Throwable e) {
+                    failed.increment();
+                    LOGGER.log(Level.SEVERE, "Task for session " + session + " failed", e);
+                }
+            }
+            scheduled.set(false);
+            // A task added while we were finishing could not schedule us, so check again
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    public static final class Metrics {
+        /** Sessions with a queue **/
+        public final int sessions;
+        /** Tasks waiting to run across all sessions **/
+        public final int queued;
+        /** Deepest any session's queue has been **/
+        public final int highestQueueDepth;
+        public final long submitted;
+        public final long completed;
+        /** Tasks rejected because the session was closed or its queue was full **/
+        public final long rejected;
+        /** Tasks that threw **/
+        public final long failed;
+
+        public Metrics(int sessions, int queued, int highestQueueDepth, long submitted, long completed, long rejected, long failed) {
+            this.sessions = sessions;
+            this.queued = queued;
+            this.highestQueueDepth = highestQueueDepth;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.rejected = rejected;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return "sessions=" + sessions + " queued=" + queued + " highestQueueDepth=" + highestQueueDepth
+                    + " submitted=" + submitted + " completed=" + completed + " rejected=" + rejected + " failed=" + failed;
+        }
+    }
+}
@@ -1,51 +1,65 @@
 package team.catgirl.collar.server.session;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.eclipse.jetty.websocket.api.Session;
 import team.catgirl.collar.api.session.Player;
-import team.catgirl.collar.protocol.PacketIO;
 import team.catgirl.collar.protocol.ProtocolResponse;
 import team.catgirl.collar.protocol.session.SessionFailedResponse.SessionErrorResponse;
 import team.catgirl.collar.security.ClientIdentity;
 import team.catgirl.collar.security.mojang.MinecraftPlayer;
-import team.catgirl.collar.security.cipher.CipherException;
 import team.catgirl.collar.server.security.ServerIdentityStore;
 
 import javax.annotation.Nonnull;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.UUID;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
+/**
+ * Registry of identified sessions.
+ * Sessions are indexed by identity, profile, minecraft player and minecraft server so that lookups done for every
+ * recipient of a packet do not have to scan every connected session.
+ */
 public final class SessionManager {
 
     private static final Logger LOGGER = Logger.getLogger(SessionManager.class.getName());
 
     private final ConcurrentMap<Session, SessionState> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ClientIdentity, SessionState> sessionsByIdentity = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, Set<SessionState>> sessionsByOwner = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, Set<SessionState>> sessionsByMinecraftPlayer = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<SessionState>> sessionsByServer = new ConcurrentHashMap<>();
+    /**
+     * Sessions whose client sends packets with {@link team.catgirl.collar.protocol.codec.BinaryPacketCodec}.
+     * These clients also understand the responses added alongside the codec, so older clients are never sent them.
+     **/
+    private final Set<Session> binaryCodecSessions = ConcurrentHashMap.newKeySet();
 
-    private final ObjectMapper messagePack;
     private final ServerIdentityStore store;
+    /** Queues responses behind the responses already sent to the session **/
+    private volatile BiConsumer<Session, ProtocolResponse> sender = (session, resp) -> LOGGER.log(Level.WARNING, "Dropped " + resp.getClass().getSimpleName() + " sent before the server started");
 
-    public SessionManager(ObjectMapper messagePack, ServerIdentityStore store) {
-        this.messagePack = messagePack;
+    public SessionManager(ServerIdentityStore store) {
         this.store = store;
     }
 
+    /**
+     * Start sending responses through the server
+     * @param sender to queue responses for sessions with
+     */
+    public void start(BiConsumer<Session, ProtocolResponse> sender) {
+        this.sender = sender;
+    }
+
     public void identify(Session session, ClientIdentity identity, MinecraftPlayer player) {
         SessionState state = new SessionState(session, identity, player);
         sessions.compute(session, (theSession, sessionState) -> {
             if (sessionState != null) {
                 throw new IllegalStateException("session cannot be identified more than once");
             }
+            index(state);
             return state;
         });
     }
@@ -54,6 +68,36 @@ public final class SessionManager {
         return getIdentity(session).isPresent();
     }
 
+    /**
+     * @param session whose client sent a packet with the binary codec
+     */
+    public void usesBinaryCodec(Session session) {
+        binaryCodecSessions.add(session);
+    }
+
+    /**
+     * @param session to test
+     * @return whether the session's client sends packets with the binary codec
+     */
+    public boolean isBinaryCodec(Session session) {
+        return binaryCodecSessions.contains(session);
+    }
+
+    /**
+     * @param identity to test
+     * @return whether the identity has a session whose client sends packets with the binary codec
+     */
+    public boolean isBinaryCodec(ClientIdentity identity) {
+        return getSession(identity).map(binaryCodecSessions::contains).orElse(false);
+    }
+
+    /**
+     * @param session that closed
+     */
+    public void forgetBinaryCodec(Session session) {
+        binaryCodecSessions.remove(session);
+    }
+
 
     public void stopSession(Session session,
                             String reason,
@@ -68,27 +112,23 @@ public final class SessionManager {
         LOGGER.log(e == null ? Level.INFO : Level.SEVERE, reason, e);
         SessionState sessionState = sessions.remove(session);
         if (sessionState != null) {
+            unindex(sessionState);
             if (session.isOpen()) {
-                try {
-                    send(session, sessionState.identity, new SessionErrorResponse(store.getIdentity(), reason));
-                } catch (IOException | CipherException ex) {
-                    throw new IllegalStateException("Couldn't send SessionErrorResponse", ex);
-                }
+                send(session, new SessionErrorResponse(store.getIdentity(), reason));
             }
         } else {
             session.close(1000, "Session stopped");
         }
     }
 
-    public void send(Session session, ClientIdentity recipient, ProtocolResponse resp) throws IOException, CipherException {
-        PacketIO packetIO = new PacketIO(messagePack, store.createCypher());
-        ByteBuffer buffer;
-        if (isIdentified(session)) {
-            buffer = ByteBuffer.wrap(packetIO.encodeEncrypted(recipient, resp));
-        } else {
-            buffer = ByteBuffer.wrap(packetIO.encodePlain(resp));
-        }
-        session.getRemote().sendBytes(buffer);
+    /**
+     * Queue a response for the session behind the responses already sent to it.
+     * It is encrypted if the session is identified when it is written.
+     * @param session to send to
+     * @param resp to send
+     */
+    public void send(Session session, ProtocolResponse resp) {
+        sender.accept(session, resp);
     }
 
     public Optional<ClientIdentity> getIdentity(Session session) {
@@ -103,8 +143,8 @@ public final class SessionManager {
         if (player == null) {
             return Optional.empty();
         }
-        return sessions.values().stream().filter(sessionState -> sessionState.minecraftPlayer.equals(player))
-                .findFirst()
+        return first(sessionsByMinecraftPlayer, player.id)
+                .filter(sessionState -> player.equals(sessionState.minecraftPlayer))
                 .map(sessionState -> sessionState.identity);
     }
 
@@ -113,71 +153,121 @@ public final class SessionManager {
             return new ArrayList<>();
         }
         MinecraftPlayer player = findMinecraftPlayer(identity).orElseThrow(() -> new IllegalStateException("cannot find player for " + identity));
-        return sessions.values().stream()
-                .filter(sessionState -> sessionState.minecraftPlayer.inServerWith(player))
-                .filter(sessionState -> players.contains(sessionState.minecraftPlayer.id))
-                .map(SessionState::toPlayer)
-                .collect(Collectors.toList());
+        List<Player> found = new ArrayList<>();
+        for (UUID playerId : new LinkedHashSet<>(players)) {
+            Set<SessionState> states = sessionsByMinecraftPlayer.get(playerId);
+            if (states == null) {
+                continue;
+            }
+            for (SessionState sessionState : states) {
+                if (sessionState.minecraftPlayer.inServerWith(player)) {
+                    found.add(sessionState.toPlayer());
+                }
+            }
+        }
+        return found;
     }
 
     public Optional<MinecraftPlayer> findMinecraftPlayer(ClientIdentity identity) {
-        if (identity == null) {
-            return Optional.empty();
-        }
-        return sessions.values().stream()
-                .filter(sessionState -> sessionState.identity.equals(identity))
-                .findFirst()
-                .map(sessionState -> sessionState.minecraftPlayer);
+        return getSessionState(identity).map(sessionState -> sessionState.minecraftPlayer);
     }
 
     public Optional<Player> findPlayer(ClientIdentity identity) {
-        if (identity == null) {
-            return Optional.empty();
-        }
-        return sessions.values().stream()
-                .filter(sessionState -> sessionState.identity.equals(identity))
-                .findFirst()
-                .map(SessionState::toPlayer);
+        return getSessionState(identity).map(SessionState::toPlayer);
     }
 
     public Optional<Session> getSession(ClientIdentity identity) {
+        return getSessionState(identity).map(sessionState -> sessionState.session);
+    }
+
+    public Optional<SessionState> getSessionState(ClientIdentity identity) {
         if (identity == null) {
             return Optional.empty();
         }
-        return sessions.values().stream()
-                .filter(sessionState -> sessionState.identity.equals(identity))
-                .findFirst()
-                .map(sessionState -> sessionState.session);
+        return Optional.ofNullable(sessionsByIdentity.get(identity));
     }
 
     public Optional<SessionState> getSessionStateByOwner(UUID owner) {
-        return sessions.values().stream()
-                .filter(sessionState -> sessionState.identity.owner.equals(owner))
-                .findFirst();
+        return first(sessionsByOwner, owner);
     }
 
     public Optional<SessionState> getSessionStateByPlayer(UUID player) {
-        return sessions.values().stream()
-                .filter(sessionState -> sessionState.minecraftPlayer.id.equals(player))
-                .findFirst();
+        return first(sessionsByMinecraftPlayer, player);
+    }
+
+    /**
+     * @param server address of the minecraft server
+     * @return all sessions playing on the server
+     */
+    public Set<SessionState> getSessionStatesByServer(String server) {
+        if (server == null) {
+            return Set.of();
+        }
+        Set<SessionState> states = sessionsByServer.get(server);
+        return states == null ? Set.of() : Collections.unmodifiableSet(states);
     }
 
     public Optional<ClientIdentity> getIdentity(Player player) {
-        return sessions.values().stream().filter(sessionState -> sessionState.identity.owner.equals(player.profile))
-                .findAny()
-                .map(sessionState -> sessionState.identity);
+        return first(sessionsByOwner, player.profile).map(sessionState -> sessionState.identity);
     }
 
     public Optional<ClientIdentity> getIdentityByMinecraftPlayerId(UUID playerId) {
-        return sessions.values().stream().filter(sessionState -> sessionState.minecraftPlayer.id.equals(playerId))
-                .findAny()
-                .map(sessionState -> sessionState.identity);
+        return first(sessionsByMinecraftPlayer, playerId).map(sessionState -> sessionState.identity);
     }
 
     public Optional<Player> findPlayerByProfile(UUID profile) {
-        return sessions.values().stream().filter(sessionState -> sessionState.identity.owner.equals(profile))
-                .findFirst()
-                .map(SessionState::toPlayer);
+        return first(sessionsByOwner, profile).map(SessionState::toPlayer);
+    }
+
+    private void index(SessionState state) {
+        sessionsByIdentity.put(state.identity, state);
+        addToIndex(sessionsByOwner, state.identity.owner, state);
+        if (state.minecraftPlayer != null) {
+            addToIndex(sessionsByMinecraftPlayer, state.minecraftPlayer.id, state);
+            addToIndex(sessionsByServer, state.minecraftPlayer.server, state);
+        }
+    }
+
+    private void unindex(SessionState state) {
+        sessionsByIdentity.remove(state.identity, state);
+        removeFromIndex(sessionsByOwner, state.identity.owner, state);
+        if (state.minecraftPlayer != null) {
+            removeFromIndex(sessionsByMinecraftPlayer, state.minecraftPlayer.id, state);
+            removeFromIndex(sessionsByServer, state.minecraftPlayer.server, state);
+        }
+    }
+
+    private static <K> void addToIndex(ConcurrentMap<K, Set<SessionState>> index, K key, SessionState state) {
+        if (key == null) {
+            return;
+        }
+        index.compute(key, (theKey, states) -> {
+            states = states == null ? ConcurrentHashMap.newKeySet() : states;
+            states.add(state);
+            return states;
+        });
+    }
+
+    private static <K> void removeFromIndex(ConcurrentMap<K, Set<SessionState>> index, K key, SessionState state) {
+        if (key == null) {
+            return;
+        }
+        index.computeIfPresent(key, (theKey, states) -> {
+            states.remove(state);
+            return states.isEmpty() ? null : states;
+        });
+    }
+
+    private static <K> Optional<SessionState> first(ConcurrentMap<K, Set<SessionState>> index, K key) {
+        if (key == null) {
+            return Optional.empty();
+        }
+        Set<SessionState> states = index.get(key);
+        if (states == null) {
+            return Optional.empty();
+        }
+        Iterator<SessionState> iterator = states.iterator();
+        return iterator.hasNext() ? Optional.of(iterator.next()) : Optional.empty();
     }
 
     public static final class SessionState {
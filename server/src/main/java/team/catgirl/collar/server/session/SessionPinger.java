@@ -0,0 +1,199 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks sessions are alive with WebSocket ping frames rather than encrypted keep alive packets.
+ * Each ping carries the time it was sent so the round trip time can be measured from the pong.
+ * Sessions that have sent nothing, not even a pong, within the peer timeout are disconnected. Older clients
+ * that never answer pings stay connected as long as they keep sending requests, such as KeepAliveRequest.
+ */
+public final class SessionPinger {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionPinger.class.getName());
+
+    private final long intervalMillis;
+    private final long peerTimeoutMillis;
+    private final BiConsumer<Session, ByteBuffer> ping;
+    private final Consumer<Session> deadPeer;
+    private final LongSupplier clock;
+    /** Time each session last answered a ping, sent a message, or connected **/
+    private final Map<Session, Long> lastHeard = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder pongs = new LongAdder();
+    private final LongAdder totalRttMillis = new LongAdder();
+    private final LongAccumulator maxRttMillis = new LongAccumulator(Math::max, 0);
+    private final LongAdder deadPeers = new LongAdder();
+    private volatile long lastRttMillis = -1;
+
+    /**
+     * @param intervalMillis between pings
+     * @param peerTimeoutMillis a session can go without answering a ping or sending a message before it is disconnected
+     * @param ping sends a ping frame with the payload to the session
+     * @param deadPeer called for each session that stopped answering
+     */
+    public SessionPinger(long intervalMillis, long peerTimeoutMillis, BiConsumer<Session, ByteBuffer> ping, Consumer<Session> deadPeer) {
+        this(intervalMillis, peerTimeoutMillis, ping, deadPeer, System::currentTimeMillis);
+    }
+
+    SessionPinger(long intervalMillis, long peerTimeoutMillis, BiConsumer<Session, ByteBuffer> ping, Consumer<Session> deadPeer, LongSupplier clock) {
+        if (intervalMillis <= 0 || peerTimeoutMillis <= intervalMillis) {
+            throw new IllegalArgumentException("intervalMillis must be positive and less than peerTimeoutMillis");
+        }
+        this.intervalMillis = intervalMillis;
+        this.peerTimeoutMillis = peerTimeoutMillis;
+        this.ping = ping;
+        this.deadPeer = deadPeer;
+        this.clock = clock;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collar-ping");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start pinging sessions
+     */
+    public void start() {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Could not ping sessions", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param session to start pinging
+     */
+    public void add(Session session) {
+        lastHeard.put(session, clock.getAsLong());
+    }
+
+    /**
+     * @param session to stop pinging
+     */
+    public void remove(Session session) {
+        lastHeard.remove(session);
+    }
+
+    /**
+     * Record that the session is alive because it sent a message
+     * @param session that sent the message
+     */
+    public void heard(Session session) {
+        lastHeard.replace(session, clock.getAsLong());
+    }
+
+    /**
+     * Record a pong from the session
+     * @param session that sent the pong
+     * @param payload of the pong
+     */
+    public void pong(Session session, ByteBuffer payload) {
+        long now = clock.getAsLong();
+        if (lastHeard.replace(session, now) == null || payload.remaining() != Long.BYTES) {
+            // Unsolicited pongs are allowed but are not answers to our pings
+            return;
+        }
+        long rtt = now - payload.getLong(payload.position());
+        if (rtt < 0) {
+            return;
+        }
+        pongs.increment();
+        totalRttMillis.add(rtt);
+        maxRttMillis.accumulate(rtt);
+        lastRttMillis = rtt;
+    }
+
+    /**
+     * Disconnect sessions that have not been heard from and ping the rest
+     */
+    void tick() {
+        long now = clock.getAsLong();
+        List<Session> dead = new ArrayList<>();
+        lastHeard.forEach((session, heard) -> {
+            if (now - heard >= peerTimeoutMillis) {
+                dead.add(session);
+                return;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(Long.BYTES).putLong(0, now);
+            try {
+                ping.accept(session, payload);
+                pings.increment();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Could not ping session", e);
+            }
+        });
+        for (Session session : dead) {
+            if (lastHeard.remove(session) != null) {
+                LOGGER.log(Level.INFO, "Session " + session.getRemoteAddress() + " sent nothing for " + peerTimeoutMillis + "ms");
+                deadPeers.increment();
+                deadPeer.accept(session);
+            }
+        }
+    }
+
+    /**
+     * @return snapshot of ping metrics
+     */
+    public Metrics metrics() {
+        long answered = pongs.sum();
+        return new Metrics(lastHeard.size(), pings.sum(), answered, answered == 0 ? -1 : totalRttMillis.sum() / answered, maxRttMillis.get(), lastRttMillis, deadPeers.sum());
+    }
+
+    /**
+     * Stop pinging sessions
+     */
+    public void close() {
+        scheduler.shutdown();
+    }
+
+    public static final class Metrics {
+        public final int sessions;
+        public final long pings;
+        public final long pongs;
+        /** Mean round trip time of all pongs, or -1 if none were received **/
+        public final long meanRttMillis;
+        public final long maxRttMillis;
+        /** Round trip time of the latest pong, or -1 if none were received **/
+        public final long lastRttMillis;
+        /** Sessions disconnected for not answering pings **/
+        public final long deadPeers;
+
+        public Metrics(int sessions, long pings, long pongs, long meanRttMillis, long maxRttMillis, long lastRttMillis, long deadPeers) {
+            this.sessions = sessions;
+            this.pings = pings;
+            this.pongs = pongs;
+            this.meanRttMillis = meanRttMillis;
+            this.maxRttMillis = maxRttMillis;
+            this.lastRttMillis = lastRttMillis;
+            this.deadPeers = deadPeers;
+        }
+
+        @Override
+        public String toString() {
+            return "sessions=" + sessions + " pings=" + pings + " pongs=" + pongs + " meanRttMillis=" + meanRttMillis
+                    + " maxRttMillis=" + maxRttMillis + " lastRttMillis=" + lastRttMillis + " deadPeers=" + deadPeers;
+        }
+    }
+}
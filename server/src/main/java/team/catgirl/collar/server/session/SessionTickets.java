@@ -0,0 +1,284 @@
+package team.catgirl.collar.server.session;
+
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.TokenGenerator;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Issues and redeems tickets that let a client resume its session on a new connection without identifying and
+ * verifying its Minecraft session again.
+ * Tickets are signed by the server and hold everything needed to restore the session, so redeeming one does not
+ * touch the database or Mojang. A ticket is only a claim to a session: before it is redeemed the client must sign a
+ * {@link #challenge(ClientIdentity, byte[])} with its identity key, so a captured ticket is useless on its own.
+ * Only the most recent ticket issued to an identity can be redeemed, and only once. The server remembers which
+ * ticket that is in memory, so tickets issued before a restart are rejected.
+ */
+public final class SessionTickets {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionTickets.class.getName());
+    private static final int VERSION = 2;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_LENGTH = 32;
+    private static final int NONCE_LENGTH = 16;
+    /** Time the client has to sign a challenge **/
+    private static final long CHALLENGE_LIFETIME_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final SecretKeySpec key;
+    private final long lifetimeMillis;
+    private final LongSupplier clock;
+    /** Id and expiry of the only ticket each identity can redeem **/
+    private final ConcurrentMap<ClientIdentity, Issued> current = new ConcurrentHashMap<>();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder redeemed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param secret to sign tickets with
+     * @param lifetimeMillis tickets can be redeemed for after they are issued
+     */
+    public SessionTickets(String secret, long lifetimeMillis) {
+        this(secret, lifetimeMillis, System::currentTimeMillis);
+    }
+
+    SessionTickets(String secret, long lifetimeMillis, LongSupplier clock) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.lifetimeMillis = lifetimeMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @return time a ticket can be redeemed for after it is issued
+     */
+    public long lifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    /**
+     * Issue a ticket for the session, replacing any ticket issued to the identity before
+     * @param identity of the session
+     * @param player of the session
+     * @return ticket
+     */
+    public byte[] issue(ClientIdentity identity, MinecraftPlayer player) {
+        long now = clock.getAsLong();
+        Issued ticketIssued = new Issued(TokenGenerator.longToken(), now + lifetimeMillis);
+        // Tickets of sessions that dropped and never resumed are only forgotten once they expire
+        current.values().removeIf(existing -> now >= existing.expiresAt);
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            try (DataOutputStream dataStream = new DataOutputStream(outputStream)) {
+                dataStream.write(VERSION);
+                dataStream.writeLong(ticketIssued.id);
+                dataStream.writeLong(ticketIssued.expiresAt);
+                writeUUID(dataStream, identity.owner);
+                dataStream.writeInt(identity.publicKey.key.length);
+                dataStream.write(identity.publicKey.key);
+                dataStream.writeInt(identity.deviceId);
+                writeUUID(dataStream, player.id);
+                dataStream.writeUTF(player.server);
+                dataStream.writeInt(player.networkId);
+            }
+            byte[] contents = outputStream.toByteArray();
+            byte[] ticket = Arrays.copyOf(contents, contents.length + SIGNATURE_LENGTH);
+            System.arraycopy(sign(contents), 0, ticket, contents.length, SIGNATURE_LENGTH);
+            current.put(identity, ticketIssued);
+            issued.increment();
+            return ticket;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create the challenge the client must sign with its identity key before the ticket can be redeemed.
+     * The challenge is bound to the ticket and expires after 30 seconds
+     * @param identity presenting the ticket
+     * @param ticket to redeem
+     * @return challenge, or empty if the ticket could not be redeemed by the identity
+     */
+    public Optional<byte[]> challenge(ClientIdentity identity, byte[] ticket) {
+        if (identity == null || ticket == null || read(identity, ticket).filter(redeemable -> redeemable.issued.equals(current.get(identity))).isEmpty()) {
+            rejected.increment();
+            return Optional.empty();
+        }
+        byte[] contents = Arrays.copyOf(TokenGenerator.byteToken(NONCE_LENGTH), NONCE_LENGTH + Long.BYTES);
+        ByteBuffer.wrap(contents, NONCE_LENGTH, Long.BYTES).putLong(clock.getAsLong() + CHALLENGE_LIFETIME_MILLIS);
+        byte[] challenge = Arrays.copyOf(contents, contents.length + SIGNATURE_LENGTH);
+        System.arraycopy(sign(contents, ticket), 0, challenge, contents.length, SIGNATURE_LENGTH);
+        return Optional.of(challenge);
+    }
+
+    /**
+     * Redeem a ticket. The caller must have checked that the challenge was signed by the identity's key.
+     * The ticket cannot be redeemed again.
+     * @param identity presenting the ticket
+     * @param ticket to redeem
+     * @param challenge from {@link #challenge(ClientIdentity, byte[])} that the identity signed
+     * @return the player of the session the ticket was issued for, or empty if the ticket was not issued to the identity,
+     * has expired, was replaced, revoked or already redeemed, or the challenge was not created for it
+     */
+    public Optional<MinecraftPlayer> redeem(ClientIdentity identity, byte[] ticket, byte[] challenge) {
+        Optional<MinecraftPlayer> player = identity == null || ticket == null || challenge == null || !isValidChallenge(challenge, ticket)
+                ? Optional.empty()
+                : read(identity, ticket).filter(redeemable -> current.remove(identity, redeemable.issued)).map(redeemable -> redeemable.player);
+        if (player.isPresent()) {
+            redeemed.increment();
+        } else {
+            rejected.increment();
+        }
+        return player;
+    }
+
+    /**
+     * Stop the ticket last issued to the identity from being redeemed
+     * @param identity whose session ended
+     */
+    public void revoke(ClientIdentity identity) {
+        current.remove(identity);
+    }
+
+    /**
+     * @return snapshot of the ticket metrics
+     */
+    public Metrics metrics() {
+        return new Metrics(issued.sum(), redeemed.sum(), rejected.sum());
+    }
+
+    private boolean isValidChallenge(byte[] challenge, byte[] ticket) {
+        if (challenge.length != NONCE_LENGTH + Long.BYTES + SIGNATURE_LENGTH) {
+            return false;
+        }
+        byte[] contents = Arrays.copyOf(challenge, NONCE_LENGTH + Long.BYTES);
+        byte[] signature = Arrays.copyOfRange(challenge, contents.length, challenge.length);
+        long expiresAt = ByteBuffer.wrap(contents, NONCE_LENGTH, Long.BYTES).getLong();
+        return MessageDigest.isEqual(sign(contents, ticket), signature) && clock.getAsLong() < expiresAt;
+    }
+
+    /**
+     * @return the ticket if it was issued to the identity and has not expired. It may have been replaced, revoked or redeemed
+     */
+    private Optional<Redeemable> read(ClientIdentity identity, byte[] ticket) {
+        if (ticket.length <= SIGNATURE_LENGTH) {
+            return Optional.empty();
+        }
+        byte[] bytes = Arrays.copyOf(ticket, ticket.length - SIGNATURE_LENGTH);
+        byte[] signature = Arrays.copyOfRange(ticket, bytes.length, ticket.length);
+        if (!MessageDigest.isEqual(sign(bytes), signature)) {
+            LOGGER.log(Level.FINE, "Session ticket for " + identity + " has an invalid signature");
+            return Optional.empty();
+        }
+        try (DataInputStream dataStream = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int version = dataStream.read();
+            if (version != VERSION) {
+                return Optional.empty();
+            }
+            long id = dataStream.readLong();
+            long expiresAt = dataStream.readLong();
+            UUID owner = readUUID(dataStream);
+            byte[] key = new byte[dataStream.readInt()];
+            dataStream.readFully(key);
+            int deviceId = dataStream.readInt();
+            MinecraftPlayer player = new MinecraftPlayer(readUUID(dataStream), dataStream.readUTF(), dataStream.readInt());
+            ClientIdentity ticketIdentity = new ClientIdentity(owner, new PublicKey(key), deviceId);
+            if (clock.getAsLong() >= expiresAt || !ticketIdentity.equals(identity)) {
+                return Optional.empty();
+            }
+            return Optional.of(new Redeemable(new Issued(id, expiresAt), player));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not read session ticket for " + identity, e);
+            return Optional.empty();
+        }
+    }
+
+    private byte[] sign(byte[]... contents) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            for (byte[] part : contents) {
+                mac.update(part);
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeUUID(DataOutputStream dataStream, UUID uuid) throws IOException {
+        dataStream.writeLong(uuid.getMostSignificantBits());
+        dataStream.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream dataStream) throws IOException {
+        return new UUID(dataStream.readLong(), dataStream.readLong());
+    }
+
+    private static final class Issued {
+        final long id;
+        final long expiresAt;
+
+        Issued(long id, long expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Issued issued = (Issued) o;
+            return id == issued.id && expiresAt == issued.expiresAt;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, expiresAt);
+        }
+    }
+
+    private static final class Redeemable {
+        final Issued issued;
+        final MinecraftPlayer player;
+
+        Redeemable(Issued issued, MinecraftPlayer player) {
+            this.issued = issued;
+            this.player = player;
+        }
+    }
+
+    public static final class Metrics {
+        public final long issued;
+        public final long redeemed;
+        /** Tickets that were invalid, expired, already used or presented by another identity **/
+        public final long rejected;
+
+        public Metrics(long issued, long redeemed, long rejected) {
+            this.issued = issued;
+            this.redeemed = redeemed;
+            this.rejected = rejected;
+        }
+
+        @Override
+        public String toString() {
+            return "issued=" + issued + " redeemed=" + redeemed + " rejected=" + rejected;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package team.catgirl.collar.server.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.ServerIdentity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+public class BatchProtocolResponseTest {
+
+    private final ServerIdentity server = new ServerIdentity(new PublicKey(new byte[33]), UUID.randomUUID());
+    private final ClientIdentity alice = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[]{1}), 1);
+    private final ClientIdentity bob = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[]{2}), 2);
+    private final ClientIdentity eve = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[]{3}), 3);
+
+    @Test
+    public void sameResponseIsSentToEveryRecipient() {
+        KeepAliveResponse response = new KeepAliveResponse(server);
+        BatchProtocolResponse batch = new BatchProtocolResponse(server)
+                .add(alice, response)
+                .add(bob, response)
+                .add(bob, response);
+        Assert.assertEquals(1, batch.responses.size());
+        Assert.assertEquals(Set.of(alice, bob), batch.responses.get(response));
+    }
+
+    @Test
+    public void concatMergesRecipientsAndKeepsOrder() {
+        KeepAliveResponse first = new KeepAliveResponse(server);
+        KeepAliveResponse second = new KeepAliveResponse(server);
+        BatchProtocolResponse batch = new BatchProtocolResponse(server).add(alice, first);
+        batch.concat(new BatchProtocolResponse(server).add(bob, first).add(List.of(alice, eve), second));
+        List<ProtocolResponse> order = new ArrayList<>(batch.responses.keySet());
+        Assert.assertEquals(List.of(first, second), order);
+        Assert.assertEquals(Set.of(alice, bob), batch.responses.get(first));
+        Assert.assertEquals(Set.of(alice, eve), batch.responses.get(second));
+        Assert.assertFalse(new BatchProtocolResponse(server).add(List.of(), first).optional().isPresent());
+    }
+}
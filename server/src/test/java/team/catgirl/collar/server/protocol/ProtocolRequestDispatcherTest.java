@@ -0,0 +1,61 @@
+package team.catgirl.collar.server.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.protocol.ProtocolRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ProtocolRequestDispatcherTest {
+
+    @Test
+    public void dispatchesByRequestClass() {
+        List<String> handled = new ArrayList<>();
+        ProtocolHandler handler = new ProtocolHandler() {{
+            handle(PingRequest.class, (collar, session, req, sender) -> handled.add("ping"));
+            handle(PongRequest.class, (collar, session, req, sender) -> handled.add("pong"));
+        }};
+        ProtocolRequestDispatcher dispatcher = new ProtocolRequestDispatcher(List.of(handler));
+        dispatcher.dispatch(null, null, new PingRequest(), null);
+        dispatcher.dispatch(null, null, new PongRequest(), null);
+        dispatcher.dispatch(null, null, new LoudPingRequest(), null);
+        Assert.assertEquals(List.of("ping", "pong", "ping"), handled);
+        Assert.assertTrue(dispatcher.unhandledRequests().isEmpty());
+    }
+
+    @Test
+    public void countsUnhandledRequests() {
+        ProtocolRequestDispatcher dispatcher = new ProtocolRequestDispatcher(List.of());
+        dispatcher.dispatch(null, null, new PingRequest(), null);
+        dispatcher.dispatch(null, null, new PingRequest(), null);
+        dispatcher.dispatch(null, null, new PongRequest(), null);
+        Assert.assertEquals(Map.of(PingRequest.class, 2L, PongRequest.class, 1L), dispatcher.unhandledRequests());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requestCanOnlyHaveOneHandler() {
+        ProtocolHandler first = new ProtocolHandler() {{
+            handle(PingRequest.class, (collar, session, req, sender) -> {});
+        }};
+        ProtocolHandler second = new ProtocolHandler() {{
+            handle(PingRequest.class, (collar, session, req, sender) -> {});
+        }};
+        new ProtocolRequestDispatcher(List.of(first, second));
+    }
+
+    private static class PingRequest extends ProtocolRequest {
+        PingRequest() {
+            super(null);
+        }
+    }
+
+    private static class LoudPingRequest extends PingRequest {}
+
+    private static class PongRequest extends ProtocolRequest {
+        PongRequest() {
+            super(null);
+        }
+    }
+}
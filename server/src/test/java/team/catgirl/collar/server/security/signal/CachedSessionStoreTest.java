@@ -0,0 +1,228 @@
+package team.catgirl.collar.server.security.signal;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+public class CachedSessionStoreTest {
+
+    private static final Logger LOGGER = Logger.getLogger(CachedSessionStoreTest.class.getName());
+
+    private final FakeStorage storage = new FakeStorage(0);
+    private final CachedSessionStore store = new CachedSessionStore(storage, TimeUnit.HOURS.toMillis(1));
+
+    @After
+    public void close() {
+        store.close();
+    }
+
+    @Test
+    public void storesAreWrittenBehindInBatches() {
+        SignalProtocolAddress alice = new SignalProtocolAddress("alice", 1);
+        SignalProtocolAddress bob = new SignalProtocolAddress("bob", 1);
+        Assert.assertFalse(store.containsSession(alice));
+        SessionRecord record = store.loadSession(alice);
+        store.storeSession(alice, record);
+        store.storeSession(bob, store.loadSession(bob));
+        store.storeSession(alice, record);
+        Assert.assertTrue(store.containsSession(alice));
+        Assert.assertEquals(List.of(1), store.getSubDeviceSessions("alice"));
+        Assert.assertEquals(0, storage.records.size());
+        Assert.assertEquals(2, storage.loads.get());
+
+        store.flush();
+        Assert.assertEquals(1, storage.batches.get());
+        Assert.assertEquals(2, storage.records.size());
+        store.flush();
+        Assert.assertEquals("clean records are not written again", 1, storage.batches.get());
+
+        store.loadSession(alice);
+        Assert.assertEquals("loads are served from memory", 2, storage.loads.get());
+    }
+
+    @Test
+    public void closingSessionFlushesAndEvicts() {
+        SignalProtocolAddress alice = new SignalProtocolAddress("alice", 1);
+        SignalProtocolAddress bob = new SignalProtocolAddress("bob", 1);
+        store.storeSession(alice, new SessionRecord());
+        store.storeSession(bob, new SessionRecord());
+        store.flush("alice");
+        Assert.assertTrue(storage.records.containsKey(alice));
+        Assert.assertFalse(storage.records.containsKey(bob));
+        Assert.assertEquals(1, store.size());
+        Assert.assertTrue(store.containsSession(alice));
+    }
+
+    @Test
+    public void deletesAreWrittenThrough() {
+        SignalProtocolAddress alice1 = new SignalProtocolAddress("alice", 1);
+        SignalProtocolAddress alice2 = new SignalProtocolAddress("alice", 2);
+        store.storeSession(alice1, new SessionRecord());
+        store.flush();
+        store.storeSession(alice2, new SessionRecord());
+        Assert.assertEquals(List.of(1, 2), store.getSubDeviceSessions("alice"));
+        store.deleteSession(alice1);
+        Assert.assertFalse(storage.records.containsKey(alice1));
+        Assert.assertFalse(store.containsSession(alice1));
+        store.deleteAllSessions("alice");
+        store.flush();
+        Assert.assertTrue(storage.records.isEmpty());
+        Assert.assertTrue(store.getSubDeviceSessions("alice").isEmpty());
+    }
+
+    @Test
+    public void benchmarkAgainstUncachedStore() {
+        // Simulates a database round trip of 100us
+        FakeStorage slowStorage = new FakeStorage(TimeUnit.MICROSECONDS.toNanos(100));
+        CachedSessionStore cached = new CachedSessionStore(slowStorage, 100);
+        try {
+            long uncachedPacketsPerSecond = packetsPerSecond(new UncachedStore(slowStorage));
+            long cachedPacketsPerSecond = packetsPerSecond(cached);
+            LOGGER.info("uncached " + uncachedPacketsPerSecond + " packets/s, cached " + cachedPacketsPerSecond + " packets/s");
+            Assert.assertTrue(cachedPacketsPerSecond > uncachedPacketsPerSecond * 5);
+        } finally {
+            cached.close();
+        }
+    }
+
+    /**
+     * Each packet encrypted or decrypted by SessionCipher loads then stores the session record
+     */
+    private static long packetsPerSecond(SessionStore store) {
+        List<SignalProtocolAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            addresses.add(new SignalProtocolAddress("client" + i, 1));
+        }
+        int packets = 2_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            SignalProtocolAddress address = addresses.get(i % addresses.size());
+            store.storeSession(address, store.loadSession(address));
+        }
+        long elapsed = System.nanoTime() - start;
+        return packets * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    private static final class FakeStorage implements CachedSessionStore.Storage {
+        final Map<SignalProtocolAddress, byte[]> records = new ConcurrentHashMap<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        private final long latencyNanos;
+
+        FakeStorage(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public Optional<byte[]> findRecord(SignalProtocolAddress address) {
+            roundTrip();
+            loads.incrementAndGet();
+            return Optional.ofNullable(records.get(address));
+        }
+
+        @Override
+        public void storeRecords(Map<SignalProtocolAddress, byte[]> records) {
+            roundTrip();
+            batches.incrementAndGet();
+            this.records.putAll(records);
+        }
+
+        @Override
+        public List<Integer> getSubDeviceSessions(String name) {
+            roundTrip();
+            List<Integer> deviceIds = new ArrayList<>();
+            records.keySet().forEach(address -> {
+                if (address.getName().equals(name)) {
+                    deviceIds.add(address.getDeviceId());
+                }
+            });
+            return deviceIds;
+        }
+
+        @Override
+        public boolean containsSession(SignalProtocolAddress address) {
+            roundTrip();
+            return records.containsKey(address);
+        }
+
+        @Override
+        public void deleteSession(SignalProtocolAddress address) {
+            roundTrip();
+            records.remove(address);
+        }
+
+        @Override
+        public void deleteAllSessions(String name) {
+            roundTrip();
+            records.keySet().removeIf(address -> address.getName().equals(name));
+        }
+
+        private void roundTrip() {
+            if (latencyNanos > 0) {
+                long end = System.nanoTime() + latencyNanos;
+                while (System.nanoTime() < end) {
+                    LockSupport.parkNanos(latencyNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and writes storage on every call like {@link ServerSessionStore}
+     */
+    private static final class UncachedStore implements SessionStore {
+        private final FakeStorage storage;
+
+        UncachedStore(FakeStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public SessionRecord loadSession(SignalProtocolAddress address) {
+            try {
+                Optional<byte[]> record = storage.findRecord(address);
+                return record.isPresent() ? new SessionRecord(record.get()) : new SessionRecord();
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public List<Integer> getSubDeviceSessions(String name) {
+            return storage.getSubDeviceSessions(name);
+        }
+
+        @Override
+        public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+            storage.storeRecords(Map.of(address, record.serialize()));
+        }
+
+        @Override
+        public boolean containsSession(SignalProtocolAddress address) {
+            return storage.containsSession(address);
+        }
+
+        @Override
+        public void deleteSession(SignalProtocolAddress address) {
+            storage.deleteSession(address);
+        }
+
+        @Override
+        public void deleteAllSessions(String name) {
+            storage.deleteAllSessions(name);
+        }
+    }
+}
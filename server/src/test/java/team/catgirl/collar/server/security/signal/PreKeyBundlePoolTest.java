@@ -0,0 +1,71 @@
+package team.catgirl.collar.server.security.signal;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import team.catgirl.collar.security.signal.PreKeys;
+import team.catgirl.collar.server.junit.MongoDatabaseTestRule;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PreKeyBundlePoolTest {
+
+    @Rule
+    public MongoDatabaseTestRule dbRule = new MongoDatabaseTestRule();
+
+    @Test
+    public void bundlesArePersistedAndPoolRefills() throws Exception {
+        ServerSignalProtocolStore store = ServerSignalProtocolStore.from(dbRule.db);
+        PreKeyBundlePool pool = new PreKeyBundlePool(store, new SignalProtocolAddress("server", 1), 8, 1000);
+        try {
+            waitForAvailable(pool, 8);
+            AtomicInteger lowWaterMarks = new AtomicInteger();
+            pool.onLowWaterMark(available -> lowWaterMarks.incrementAndGet());
+            for (int i = 0; i < 8; i++) {
+                PreKeyBundle bundle = PreKeys.preKeyBundleFromBytes(pool.take());
+                Assert.assertTrue(store.containsPreKey(bundle.getPreKeyId()));
+                Assert.assertTrue(store.containsSignedPreKey(bundle.getSignedPreKeyId()));
+                Assert.assertEquals(store.getIdentityKeyPair().getPublicKey(), bundle.getIdentityKey());
+            }
+            Assert.assertTrue(lowWaterMarks.get() >= 1);
+            waitForAvailable(pool, 8);
+            PreKeyBundlePool.Metrics metrics = pool.metrics();
+            Assert.assertEquals(8, metrics.taken + metrics.generatedOnDemand);
+            Assert.assertEquals(lowWaterMarks.get(), metrics.lowWaterMarkEvents);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void closeRemovesUntakenBundles() throws Exception {
+        ServerSignalProtocolStore store = ServerSignalProtocolStore.from(dbRule.db);
+        long preKeys = dbRule.db.getCollection("signal_prekey_store").countDocuments();
+        long signedPreKeys = dbRule.db.getCollection("signal_signed_prekey_store").countDocuments();
+        PreKeyBundlePool pool = new PreKeyBundlePool(store, new SignalProtocolAddress("server", 1), 8, 1000);
+        PreKeyBundle taken;
+        try {
+            waitForAvailable(pool, 8);
+            taken = PreKeys.preKeyBundleFromBytes(pool.take());
+            waitForAvailable(pool, 8);
+        } finally {
+            pool.close();
+        }
+        Assert.assertEquals(preKeys + 1, dbRule.db.getCollection("signal_prekey_store").countDocuments());
+        Assert.assertEquals(signedPreKeys + 1, dbRule.db.getCollection("signal_signed_prekey_store").countDocuments());
+        Assert.assertTrue(store.containsPreKey(taken.getPreKeyId()));
+        Assert.assertTrue(store.containsSignedPreKey(taken.getSignedPreKeyId()));
+    }
+
+    private static void waitForAvailable(PreKeyBundlePool pool, int available) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.metrics().available < available) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("pool did not refill " + pool.metrics());
+            }
+            Thread.sleep(10);
+        }
+    }
+}
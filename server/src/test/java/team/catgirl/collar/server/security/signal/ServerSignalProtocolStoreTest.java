@@ -86,6 +86,29 @@ public class ServerSignalProtocolStoreTest {
         Assert.assertFalse(store.containsSession(address2));
     }
 
+    @Test
+    public void keyLookupsAreCached() throws Exception {
+        IdentityKeyPair identityKeyPair = KeyHelper.generateIdentityKeyPair();
+        SignalProtocolAddress address = new SignalProtocolAddress("cachedKey", 1);
+        Assert.assertFalse(store.isTrustedIdentity(address, identityKeyPair.getPublicKey(), null));
+        Assert.assertFalse(store.isTrustedIdentity(address, identityKeyPair.getPublicKey(), null));
+        Assert.assertNull(store.getIdentity(address));
+        store.saveIdentity(address, identityKeyPair.getPublicKey());
+        Assert.assertTrue(store.isTrustedIdentity(address, identityKeyPair.getPublicKey(), null));
+        Assert.assertEquals(identityKeyPair.getPublicKey(), store.getIdentity(address));
+        Assert.assertEquals("cachedKey", store.identityKeyStore.findNameBy(identityKeyPair.getPublicKey(), 1));
+        Assert.assertEquals(1, store.cacheStats().get("trust").missCount());
+        Assert.assertEquals(2, store.cacheStats().get("trust").hitCount());
+
+        PreKeyRecord preKey = KeyHelper.generatePreKeys(5000, 1).get(0);
+        store.storePreKey(preKey.getId(), preKey);
+        Assert.assertTrue(store.containsPreKey(preKey.getId()));
+        Assert.assertArrayEquals(preKey.serialize(), store.loadPreKey(preKey.getId()).serialize());
+        store.removePreKey(preKey.getId());
+        Assert.assertFalse(store.containsPreKey(preKey.getId()));
+        Assert.assertEquals(0, store.cacheStats().get("preKey").missCount());
+    }
+
     @Test
     public void preKeyStore() throws Exception {
         List<PreKeyRecord> preKeys = KeyHelper.generatePreKeys(1000, 500);
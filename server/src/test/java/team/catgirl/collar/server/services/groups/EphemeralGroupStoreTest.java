@@ -0,0 +1,74 @@
+package team.catgirl.collar.server.services.groups;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.groups.*;
+import team.catgirl.collar.api.profiles.Profile;
+import team.catgirl.collar.api.profiles.ProfileService;
+import team.catgirl.collar.api.profiles.ProfileService.GetProfileRequest;
+import team.catgirl.collar.api.profiles.ProfileService.GetProfileResponse;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.server.services.profiles.ProfileCache;
+import team.catgirl.collar.server.session.SessionManager;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Ephemeral groups are checked against a database that fails every call, so any query or write to mongo fails the test
+ */
+public class EphemeralGroupStoreTest {
+
+    private final GroupStore store = new GroupStore(new ProfileCache(profiles()), new SessionManager(null), database(), Set.of(GroupType.NEARBY));
+
+    @Test
+    public void ephemeralGroupsNeverTouchMongo() {
+        UUID groupId = UUID.randomUUID();
+        Player owner = new Player(UUID.randomUUID(), null);
+        Player member = new Player(UUID.randomUUID(), null);
+
+        store.upsert(Group.newGroup(groupId, null, GroupType.NEARBY, new MemberSource(owner, null), List.of()));
+        store.addMembers(groupId, List.of(new MemberSource(member, null)), MembershipRole.MEMBER, MembershipState.PENDING);
+        Assert.assertEquals(2, store.findGroup(groupId, GroupType.NEARBY).map(group -> group.members.size()).orElse(0).intValue());
+        Assert.assertTrue(store.findGroup(groupId).isPresent());
+
+        Assert.assertTrue(store.delete(groupId, GroupType.NEARBY));
+        Assert.assertFalse(store.findGroup(groupId, GroupType.NEARBY).isPresent());
+        Assert.assertEquals(0, store.ephemeralGroupCount());
+    }
+
+    @Test
+    public void absentEphemeralGroupsAreNotPersisted() {
+        UUID groupId = UUID.randomUUID();
+        Assert.assertFalse(store.findGroup(groupId, GroupType.NEARBY).isPresent());
+        Assert.assertFalse(store.delete(groupId, GroupType.NEARBY));
+        Assert.assertEquals(0, store.delete(GroupType.NEARBY));
+        Assert.assertEquals(0, store.groupCacheStats().requestCount());
+    }
+
+    private static MongoDatabase database() {
+        MongoCollection<?> collection = (MongoCollection<?>) Proxy.newProxyInstance(MongoCollection.class.getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            throw new AssertionError("mongo was called with " + method.getName());
+        });
+        return (MongoDatabase) Proxy.newProxyInstance(MongoDatabase.class.getClassLoader(), new Class[]{MongoDatabase.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getCollection")) {
+                return collection;
+            }
+            throw new AssertionError("mongo was called with " + method.getName());
+        });
+    }
+
+    private static ProfileService profiles() {
+        return (ProfileService) Proxy.newProxyInstance(ProfileService.class.getClassLoader(), new Class[]{ProfileService.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getProfile")) {
+                GetProfileRequest request = (GetProfileRequest) args[1];
+                return new GetProfileResponse(new Profile(request.byId, Set.of(), null, "player", null, true, null, null, Set.of()));
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
@@ -15,10 +15,12 @@ import team.catgirl.collar.server.junit.MongoDatabaseTestRule;
 import team.catgirl.collar.server.services.profiles.ProfileCache;
 import team.catgirl.collar.server.services.profiles.ProfileServiceServer;
 import team.catgirl.collar.server.session.SessionManager;
-import team.catgirl.collar.utils.Utils;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 public class GroupStoreTest {
     @Rule
@@ -29,7 +31,7 @@ public class GroupStoreTest {
         ProfileService profiles = new ProfileServiceServer(dbRule.db, Configuration.defaultConfiguration().passwordHashing);
         ProfileCache profileCache = new ProfileCache(profiles);
         Profile ownerProfile = profiles.createProfile(RequestContext.ANON, new CreateProfileRequest("owner@example.com", "cute", "owner")).profile;
-        GroupStore store = new GroupStore(profileCache, new SessionManager(Utils.messagePackMapper(), null), dbRule.db);
+        GroupStore store = new GroupStore(profileCache, new SessionManager(null), dbRule.db);
 
         UUID groupId = UUID.randomUUID();
         Player owner = new Player(ownerProfile.id, new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 1));
@@ -77,8 +79,91 @@ public class GroupStoreTest {
         Assert.assertFalse(group.members.stream().anyMatch(member -> member.player.equals(player1)));
         Assert.assertTrue(group.members.stream().anyMatch(member -> member.player.equals(player2)));
         Assert.assertTrue(group.members.stream().anyMatch(member -> member.player.equals(owner)));
+        Assert.assertEquals(0, store.findGroupsContaining(player1).count());
+        Assert.assertEquals(groupId, store.findGroupsContaining(player2).findFirst().map(group1 -> group1.id).orElse(null));
 
         store.delete(groupId);
         Assert.assertFalse(store.findGroup(groupId).isPresent());
+        Assert.assertEquals(0, store.findGroupsContaining(player2).count());
+
+        GroupStore reloaded = new GroupStore(profileCache, new SessionManager(null), dbRule.db);
+        Assert.assertFalse(reloaded.findGroup(groupId).isPresent());
+    }
+
+    @Test
+    public void readsAreServedFromCache() {
+        ProfileService profiles = new ProfileServiceServer(dbRule.db, Configuration.defaultConfiguration().passwordHashing);
+        ProfileCache profileCache = new ProfileCache(profiles);
+        Profile ownerProfile = profiles.createProfile(RequestContext.ANON, new CreateProfileRequest("owner@example.com", "cute", "owner")).profile;
+        GroupStore store = new GroupStore(profileCache, new SessionManager(null), dbRule.db);
+        UUID groupId = UUID.randomUUID();
+        Player owner = new Player(ownerProfile.id, null);
+        store.upsert(Group.newGroup(groupId, "The Spawnmasons", GroupType.GROUP, new MemberSource(owner, null), List.of()));
+
+        long misses = store.groupCacheStats().missCount();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(store.findGroup(groupId).isPresent());
+            Assert.assertEquals(1, store.findGroupsContaining(owner).count());
+        }
+        Assert.assertEquals(misses, store.groupCacheStats().missCount());
+        Assert.assertTrue(store.groupCacheStats().hitCount() >= 20);
+        Assert.assertEquals(1, store.membershipCacheStats().missCount());
+
+        // Write through is visible to a store that has to load from mongo
+        GroupStore reloaded = new GroupStore(profileCache, new SessionManager(null), dbRule.db);
+        Assert.assertEquals("The Spawnmasons", reloaded.findGroup(groupId).map(group -> group.name).orElse(null));
+        Assert.assertEquals(1, reloaded.findGroupsContaining(owner).count());
+    }
+
+    @Test
+    public void groupsThatAreNotCachedAreLoadedTogether() {
+        ProfileService profiles = new ProfileServiceServer(dbRule.db, Configuration.defaultConfiguration().passwordHashing);
+        ProfileCache profileCache = new ProfileCache(profiles);
+        Profile ownerProfile = profiles.createProfile(RequestContext.ANON, new CreateProfileRequest("owner@example.com", "cute", "owner")).profile;
+        GroupStore store = new GroupStore(profileCache, new SessionManager(null), dbRule.db);
+        Player owner = new Player(ownerProfile.id, null);
+        Set<UUID> groupIds = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            UUID groupId = UUID.randomUUID();
+            groupIds.add(groupId);
+            store.upsert(Group.newGroup(groupId, "Group " + i, GroupType.GROUP, new MemberSource(owner, null), List.of()));
+        }
+        UUID missing = UUID.randomUUID();
+
+        GroupStore reloaded = new GroupStore(profileCache, new SessionManager(null), dbRule.db);
+        reloaded.findGroup(groupIds.iterator().next());
+        Set<UUID> requested = new HashSet<>(groupIds);
+        requested.add(missing);
+        Assert.assertEquals(groupIds, reloaded.findGroups(requested).map(group -> group.id).collect(Collectors.toSet()));
+        long misses = reloaded.groupCacheStats().missCount();
+        Assert.assertEquals(groupIds, reloaded.findGroups(requested).map(group -> group.id).collect(Collectors.toSet()));
+        Assert.assertEquals(misses, reloaded.groupCacheStats().missCount());
+    }
+
+    @Test
+    public void ephemeralGroupsAreOnlyKeptInMemory() {
+        ProfileService profiles = new ProfileServiceServer(dbRule.db, Configuration.defaultConfiguration().passwordHashing);
+        ProfileCache profileCache = new ProfileCache(profiles);
+        Profile ownerProfile = profiles.createProfile(RequestContext.ANON, new CreateProfileRequest("owner@example.com", "cute", "owner")).profile;
+        Profile player1Profile = profiles.createProfile(RequestContext.ANON, new CreateProfileRequest("player1@example.com", "cute", "player1")).profile;
+        GroupStore store = new GroupStore(profileCache, new SessionManager(null), dbRule.db, Set.of(GroupType.NEARBY));
+        UUID groupId = UUID.randomUUID();
+        Player owner = new Player(ownerProfile.id, null);
+        Player player1 = new Player(player1Profile.id, null);
+
+        store.upsert(Group.newGroup(groupId, null, GroupType.NEARBY, new MemberSource(owner, null), List.of()));
+        store.addMembers(groupId, List.of(new MemberSource(player1, null)), MembershipRole.MEMBER, MembershipState.PENDING);
+        Assert.assertEquals(2, store.findGroup(groupId).map(group -> group.members.size()).orElse(0).intValue());
+        Assert.assertEquals(groupId, store.findGroupsContaining(player1).findFirst().map(group -> group.id).orElse(null));
+        Assert.assertEquals(0, dbRule.db.getCollection("groups").countDocuments());
+        Assert.assertEquals(1, store.ephemeralGroupCount());
+
+        GroupStore reloaded = new GroupStore(profileCache, new SessionManager(null), dbRule.db, Set.of(GroupType.NEARBY));
+        Assert.assertFalse(reloaded.findGroup(groupId).isPresent());
+
+        Assert.assertTrue(store.delete(groupId));
+        Assert.assertFalse(store.findGroup(groupId).isPresent());
+        Assert.assertEquals(0, store.findGroupsContaining(player1).count());
+        Assert.assertEquals(0, store.ephemeralGroupCount());
     }
 }
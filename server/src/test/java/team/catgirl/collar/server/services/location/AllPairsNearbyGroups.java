@@ -0,0 +1,88 @@
+package team.catgirl.collar.server.services.location;
+
+import com.google.common.collect.Sets;
+import team.catgirl.collar.api.groups.MemberSource;
+import team.catgirl.collar.api.session.Player;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The original implementation of {@link NearbyGroups}, which compares the updating player with every other player.
+ * Kept as the reference that {@link NearbyGroups} must produce the same results as.
+ * Groups that are removed are forgotten, so that they can form again, as they are in {@link NearbyGroups}.
+ */
+final class AllPairsNearbyGroups {
+
+    private final ConcurrentMap<MemberSource, Set<String>> playerHashes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NearbyGroup, UUID> nearbyGroups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<MemberSource, Set<NearbyGroup>> playerToGroups = new ConcurrentHashMap<>();
+
+    /**
+     * Calculates any nearby groups for the minecraft player and anyone in the calculated group
+     * Both parties must have entity hashes in common to form one or more groups with other players
+     * @param source to create state for
+     * @param hashes the players hashes
+     * @return result delta
+     */
+    public NearbyGroups.Result updateNearbyGroups(MemberSource source, Set<String> hashes) {
+        playerHashes.compute(source, (thePlayer, strings) -> hashes);
+        Map<UUID, NearbyGroup> add = new HashMap<>();
+        Map<UUID, NearbyGroup> remove = new HashMap<>();
+        playerHashes.keySet().stream()
+                .filter(anotherPlayer ->
+                        anotherPlayer.player.minecraftPlayer.inServerWith(source.player.minecraftPlayer)
+                        && !anotherPlayer.equals(source)
+                ).forEach(anotherPlayer -> {
+            Set<String> otherPlayersHashes = playerHashes.get(anotherPlayer);
+            NearbyGroup group = new NearbyGroup(Set.of(source, anotherPlayer));
+            if (Sets.difference(hashes, otherPlayersHashes).isEmpty()) {
+                nearbyGroups.compute(group, (nearbyGroup, uuid) -> {
+                    if (uuid == null) {
+                        uuid = UUID.randomUUID();
+                        add.put(uuid, group);
+                    }
+                    return uuid;
+                });
+                playerToGroups.compute(source, (thePlayer, playersGroups) -> {
+                    playersGroups = playersGroups == null ? new HashSet<>() : playersGroups;
+                    playersGroups.add(group);
+                    return playersGroups;
+                });
+            } else {
+                UUID groupId = nearbyGroups.remove(group);
+                if (groupId != null) {
+                    remove.put(groupId, group);
+                    playerToGroups.compute(source, (thePlayer, playersGroups) -> {
+                        playersGroups = playersGroups == null ? new HashSet<>() : playersGroups;
+                        playersGroups.remove(group);
+                        return nearbyGroups.isEmpty() ? null : playersGroups;
+                    });
+                }
+            }
+        });
+        return new NearbyGroups.Result(add, remove);
+    }
+
+    /**
+     * Forgets the player and every group they are in
+     * @param player to remove
+     * @return the groups the player left
+     */
+    public NearbyGroups.Result removePlayerState(Player player) {
+        MemberSource source = new MemberSource(player, null);
+        playerHashes.remove(source);
+        playerToGroups.remove(source);
+        Map<UUID, NearbyGroup> remove = new HashMap<>();
+        nearbyGroups.entrySet().removeIf(entry -> {
+            if (!entry.getKey().players.contains(source)) {
+                return false;
+            }
+            remove.put(entry.getValue(), entry.getKey());
+            playerToGroups.values().forEach(playersGroups -> playersGroups.remove(entry.getKey()));
+            return true;
+        });
+        return new NearbyGroups.Result(Map.of(), remove);
+    }
+}
@@ -0,0 +1,127 @@
+package team.catgirl.collar.server.services.location;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.ServerIdentity;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+import team.catgirl.collar.server.protocol.BatchProtocolResponse;
+
+import java.util.*;
+
+public class LocationRelayTest {
+
+    private final ServerIdentity server = new ServerIdentity(new PublicKey(new byte[33]), UUID.randomUUID());
+    private final Player alice = player();
+    private final Player bob = player();
+    private final Player eve = player();
+    private final Map<Player, ClientIdentity> identities = Map.of(
+            alice, new ClientIdentity(alice.profile, new PublicKey(new byte[]{1}), 1),
+            bob, new ClientIdentity(bob.profile, new PublicKey(new byte[]{2}), 1),
+            eve, new ClientIdentity(eve.profile, new PublicKey(new byte[]{3}), 1));
+    /** Recipients that can not decode {@link LocationsUpdatedResponse} **/
+    private final Set<ClientIdentity> legacy = new HashSet<>();
+    private final LocationRelay relay = new LocationRelay(server, player -> Optional.ofNullable(identities.get(player)), identity -> !legacy.contains(identity), 100);
+
+    @After
+    public void close() {
+        relay.close();
+    }
+
+    @Test
+    public void latestUpdateWins() {
+        UUID group = UUID.randomUUID();
+        for (byte i = 0; i < 20; i++) {
+            relay.publish(update(alice, group, new byte[]{i}), Set.of(bob));
+        }
+        LocationsUpdatedResponse response = single(relay.flush().orElseThrow(), bob);
+        Assert.assertEquals(1, response.updates.size());
+        Assert.assertArrayEquals(new byte[]{19}, response.updates.get(0).location);
+        Assert.assertFalse("nothing is sent twice", relay.flush().isPresent());
+
+        LocationRelay.Metrics metrics = relay.metrics();
+        Assert.assertEquals(20, metrics.published);
+        Assert.assertEquals(19, metrics.replaced);
+        Assert.assertEquals(1, metrics.responsesSent);
+    }
+
+    @Test
+    public void updatesAreBundledPerRecipient() {
+        UUID friends = UUID.randomUUID();
+        UUID others = UUID.randomUUID();
+        relay.publish(update(alice, friends, new byte[]{1}), Set.of(bob, eve));
+        relay.publish(update(alice, others, new byte[]{2}), Set.of(eve));
+        relay.publish(update(bob, friends, new byte[]{3}), Set.of(alice, eve));
+        // Stopping sharing replaces the last location that was not sent yet
+        relay.publish(update(bob, friends, null), Set.of(alice, eve));
+
+        BatchProtocolResponse responses = relay.flush().orElseThrow();
+        Assert.assertEquals(3, responses.responses.size());
+        Assert.assertEquals(1, single(responses, alice).updates.size());
+        Assert.assertNull(single(responses, alice).updates.get(0).location);
+        Assert.assertEquals(1, single(responses, bob).updates.size());
+        Assert.assertEquals(3, single(responses, eve).updates.size());
+    }
+
+    @Test
+    public void noticesDoNotReplaceUpdates() {
+        UUID group = UUID.randomUUID();
+        relay.publish(update(alice, group, new byte[]{1}), Set.of(bob));
+        relay.publishNotice(update(alice, group, null), Set.of(eve));
+        relay.publishNotice(update(alice, group, null), Set.of(bob));
+
+        BatchProtocolResponse responses = relay.flush().orElseThrow();
+        Assert.assertEquals(2, single(responses, bob).updates.size());
+        Assert.assertEquals(1, single(responses, eve).updates.size());
+        Assert.assertNull(single(responses, eve).updates.get(0).location);
+    }
+
+    @Test
+    public void recipientsThatDoNotBatchAreSentEachUpdate() {
+        legacy.add(identities.get(eve));
+        UUID friends = UUID.randomUUID();
+        UUID others = UUID.randomUUID();
+        LocationUpdatedResponse first = update(alice, friends, new byte[]{1});
+        relay.publish(first, Set.of(bob, eve));
+        relay.publish(update(alice, others, new byte[]{2}), Set.of(eve));
+
+        BatchProtocolResponse responses = relay.flush().orElseThrow();
+        Assert.assertEquals(1, single(responses, bob).updates.size());
+        List<ProtocolResponse> sentToEve = new ArrayList<>();
+        responses.responses.forEach((response, recipients) -> {
+            if (recipients.contains(identities.get(eve))) {
+                sentToEve.add(response);
+            }
+        });
+        Assert.assertEquals(2, sentToEve.size());
+        Assert.assertTrue(sentToEve.stream().allMatch(response -> response instanceof LocationUpdatedResponse));
+        Assert.assertTrue("the update is not copied for each recipient", sentToEve.contains(first));
+        Assert.assertEquals(3, relay.metrics().responsesSent);
+    }
+
+    private LocationsUpdatedResponse single(BatchProtocolResponse responses, Player recipient) {
+        ClientIdentity identity = identities.get(recipient);
+        List<ProtocolResponse> found = new ArrayList<>();
+        responses.responses.forEach((response, recipients) -> {
+            if (recipients.contains(identity)) {
+                found.add(response);
+            }
+        });
+        Assert.assertEquals(1, found.size());
+        return (LocationsUpdatedResponse) found.get(0);
+    }
+
+    private LocationUpdatedResponse update(Player player, UUID group, byte[] location) {
+        return new LocationUpdatedResponse(server, identities.get(player), group, player, location);
+    }
+
+    private static Player player() {
+        return new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
+    }
+}
@@ -0,0 +1,116 @@
+package team.catgirl.collar.server.services.location;
+
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.groups.*;
+import team.catgirl.collar.api.location.LocationFanOut;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LocationSharingRegistryTest {
+
+    private final Player alice = player();
+    private final Player bob = player();
+    private final Player eve = player();
+    private final Player mallory = player();
+    private final Map<UUID, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final LocationSharingRegistry registry = new LocationSharingRegistry(groupId -> {
+        loads.incrementAndGet();
+        return Optional.ofNullable(groups.get(groupId));
+    });
+
+    @Test
+    public void recipientsAreAcceptedMembersOfSharedGroups() {
+        Group friends = group(Map.of(alice, MembershipState.ACCEPTED, bob, MembershipState.ACCEPTED, mallory, MembershipState.PENDING));
+        Group others = group(Map.of(alice, MembershipState.ACCEPTED, bob, MembershipState.ACCEPTED, eve, MembershipState.ACCEPTED));
+        Assert.assertTrue(registry.startSharing(alice, friends.id));
+        Assert.assertEquals(Set.of(bob), registry.recipients(alice));
+        Assert.assertTrue(registry.startSharing(alice, others.id));
+        Assert.assertEquals(Set.of(bob, eve), registry.recipients(alice));
+        Assert.assertTrue(registry.startSharing(bob, friends.id));
+        Assert.assertEquals("groups are only loaded by the first sharer", 2, loads.get());
+        Assert.assertEquals(Set.of(alice, bob), registry.sharersOf(friends.id));
+        Assert.assertEquals(Set.of(), registry.recipients(eve));
+
+        Assert.assertFalse(registry.startSharing(alice, UUID.randomUUID()));
+        Assert.assertEquals(Set.of(friends.id, others.id), registry.groupsSharedBy(alice));
+    }
+
+    @Test
+    public void fanOutIsKeptPerGroup() {
+        Group friends = group(Map.of(alice, MembershipState.ACCEPTED, bob, MembershipState.ACCEPTED));
+        Group community = group(Map.of(alice, MembershipState.ACCEPTED, eve, MembershipState.ACCEPTED, mallory, MembershipState.PENDING));
+        registry.startSharing(alice, friends.id);
+        registry.startSharing(alice, community.id, LocationFanOut.SAME_SERVER);
+        Assert.assertEquals(Map.of(friends.id, LocationFanOut.ALL, community.id, LocationFanOut.SAME_SERVER), registry.sharesOf(alice));
+        Assert.assertEquals(Set.of(alice, eve), registry.membersOf(community.id));
+
+        // Sharing again changes the fan out
+        registry.startSharing(alice, community.id, LocationFanOut.ALL);
+        Assert.assertEquals(LocationFanOut.ALL, registry.sharesOf(alice).get(community.id));
+        registry.stopSharing(alice, community.id);
+        Assert.assertEquals(Set.of(friends.id), registry.sharesOf(alice).keySet());
+        Assert.assertEquals(Set.of(), registry.membersOf(community.id));
+    }
+
+    @Test
+    public void stopSharing() {
+        Group friends = group(Map.of(alice, MembershipState.ACCEPTED, bob, MembershipState.ACCEPTED));
+        Group others = group(Map.of(alice, MembershipState.ACCEPTED, eve, MembershipState.ACCEPTED));
+        registry.startSharing(alice, friends.id);
+        registry.startSharing(alice, others.id);
+        registry.startSharing(bob, friends.id);
+
+        Assert.assertTrue(registry.stopSharing(alice, friends.id));
+        Assert.assertFalse(registry.stopSharing(alice, friends.id));
+        Assert.assertEquals(Set.of(eve), registry.recipients(alice));
+
+        Assert.assertEquals(Set.of(others.id), registry.stopSharing(alice));
+        Assert.assertEquals(Set.of(), registry.groupsSharedBy(alice));
+        Assert.assertEquals(Set.of(), registry.sharersOf(others.id));
+
+        // The last sharer leaving drops the group so it is loaded again next time
+        registry.stopSharing(bob);
+        registry.startSharing(bob, friends.id);
+        Assert.assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void groupChangesUpdateRecipients() {
+        Group friends = group(Map.of(alice, MembershipState.ACCEPTED, bob, MembershipState.ACCEPTED, eve, MembershipState.PENDING));
+        registry.startSharing(alice, friends.id);
+        registry.startSharing(bob, friends.id);
+        Assert.assertEquals(Set.of(bob), registry.recipients(alice));
+
+        friends = friends.updateMembershipState(eve, MembershipState.ACCEPTED);
+        registry.groupUpdated(friends);
+        Assert.assertEquals(Set.of(bob, eve), registry.recipients(alice));
+
+        friends = friends.removeMember(bob);
+        registry.groupUpdated(friends);
+        Assert.assertEquals(Set.of(eve), registry.recipients(alice));
+        Assert.assertEquals("players who left stop sharing", Set.of(), registry.groupsSharedBy(bob));
+
+        registry.groupRemoved(friends.id);
+        Assert.assertEquals(Set.of(), registry.recipients(alice));
+        Assert.assertEquals(Set.of(), registry.groupsSharedBy(alice));
+        Assert.assertEquals(1, loads.get());
+    }
+
+    private Group group(Map<Player, MembershipState> members) {
+        Set<Member> groupMembers = new HashSet<>();
+        members.forEach((player, state) -> groupMembers.add(new Member(player, null, MembershipRole.MEMBER, state)));
+        Group group = new Group(UUID.randomUUID(), "group", GroupType.GROUP, groupMembers);
+        groups.put(group.id, group);
+        return group;
+    }
+
+    private static Player player() {
+        return new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
+    }
+}
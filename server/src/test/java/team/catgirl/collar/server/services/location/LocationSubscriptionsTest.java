@@ -0,0 +1,34 @@
+package team.catgirl.collar.server.services.location;
+
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import java.util.UUID;
+
+public class LocationSubscriptionsTest {
+
+    private final LocationSubscriptions subscriptions = new LocationSubscriptions();
+    private final Player alice = new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
+
+    @Test
+    public void playersThatNeverSubscribedReceiveEveryGroup() {
+        Assert.assertTrue(subscriptions.isSubscribed(alice, UUID.randomUUID()));
+    }
+
+    @Test
+    public void subscribersOnlyReceiveSubscribedGroups() {
+        UUID friends = UUID.randomUUID();
+        UUID others = UUID.randomUUID();
+        subscriptions.subscribe(alice, friends);
+        Assert.assertTrue(subscriptions.isSubscribed(alice, friends));
+        Assert.assertFalse(subscriptions.isSubscribed(alice, others));
+
+        subscriptions.unsubscribe(alice, friends);
+        Assert.assertFalse("unsubscribing from every group receives nothing", subscriptions.isSubscribed(alice, friends));
+
+        subscriptions.remove(alice);
+        Assert.assertTrue(subscriptions.isSubscribed(alice, others));
+    }
+}
@@ -0,0 +1,124 @@
+package team.catgirl.collar.server.services.location;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.groups.MemberSource;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NearbyGroupLifecycleTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final NearbyGroupLifecycle lifecycle = new NearbyGroupLifecycle(1000, 60000, now::get);
+    private final Player alice = player();
+    private final Player bob = player();
+    private final NearbyGroup group = new NearbyGroup(Set.of(new MemberSource(alice, null), new MemberSource(bob, null)));
+
+    @After
+    public void close() {
+        lifecycle.close();
+    }
+
+    @Test
+    public void groupIsCreatedAfterEnterThreshold() {
+        UUID id = UUID.randomUUID();
+        Assert.assertTrue(lifecycle.update(formed(id)).add.isEmpty());
+        now.addAndGet(999);
+        Assert.assertTrue(lifecycle.tick().add.isEmpty());
+        now.addAndGet(1);
+        Assert.assertEquals(Map.of(id, group), lifecycle.tick().add);
+        Assert.assertEquals(1, lifecycle.metrics().active);
+    }
+
+    @Test
+    public void groupIsNotCreatedWhenPlayersPartBeforeEnterThreshold() {
+        UUID id = UUID.randomUUID();
+        lifecycle.update(formed(id));
+        now.addAndGet(500);
+        NearbyGroups.Result result = lifecycle.update(left(id));
+        Assert.assertTrue(result.add.isEmpty());
+        Assert.assertTrue(result.remove.isEmpty());
+        now.addAndGet(60000);
+        Assert.assertTrue(lifecycle.tick().add.isEmpty());
+        Assert.assertEquals(1, lifecycle.metrics().createsAvoided);
+        Assert.assertEquals(0, lifecycle.metrics().created);
+    }
+
+    @Test
+    public void groupIsKeptWhenPlayersComeBackDuringGracePeriod() {
+        UUID id = UUID.randomUUID();
+        lifecycle.update(formed(id));
+        now.addAndGet(1000);
+        lifecycle.tick();
+        for (int i = 0; i < 10; i++) {
+            now.addAndGet(30000);
+            Assert.assertTrue(lifecycle.update(left(id)).remove.isEmpty());
+            now.addAndGet(30000);
+            // NearbyGroups gives the group a new id when the players are nearby again
+            NearbyGroups.Result result = lifecycle.update(formed(UUID.randomUUID()));
+            Assert.assertTrue(result.add.isEmpty());
+            Assert.assertTrue(result.remove.isEmpty());
+        }
+        NearbyGroupLifecycle.Metrics metrics = lifecycle.metrics();
+        Assert.assertEquals(1, metrics.created);
+        Assert.assertEquals(0, metrics.deleted);
+        Assert.assertEquals(10, metrics.deletesAvoided);
+    }
+
+    @Test
+    public void groupIsDeletedAfterGracePeriod() {
+        UUID id = UUID.randomUUID();
+        lifecycle.update(formed(id));
+        now.addAndGet(1000);
+        lifecycle.tick();
+        lifecycle.playerLeft(new NearbyGroups(), bob);
+        now.addAndGet(59999);
+        Assert.assertTrue(lifecycle.tick().remove.isEmpty());
+        now.addAndGet(1);
+        Assert.assertEquals(Map.of(id, group), lifecycle.tick().remove);
+        Assert.assertEquals(0, lifecycle.metrics().leaving);
+        Assert.assertEquals(1, lifecycle.metrics().deleted);
+    }
+
+    @Test
+    public void groupIsKeptWhenPlayerLeavesAndComesBackDuringGracePeriod() {
+        NearbyGroups nearbyGroups = new NearbyGroups();
+        MemberSource aliceSource = new MemberSource(alice, null);
+        MemberSource bobSource = new MemberSource(bob, null);
+        lifecycle.update(nearbyGroups.updateNearbyGroups(aliceSource, Set.of("pig")));
+        lifecycle.update(nearbyGroups.updateNearbyGroups(bobSource, Set.of("pig")));
+        Assert.assertEquals(1, lifecycle.metrics().entering);
+        now.addAndGet(1000);
+        Assert.assertEquals(1, lifecycle.tick().add.size());
+        // Alice disconnects from the group bob formed, then reconnects and sees the same things
+        lifecycle.playerLeft(nearbyGroups, alice);
+        Assert.assertEquals(1, lifecycle.metrics().leaving);
+        now.addAndGet(30000);
+        NearbyGroups.Result result = lifecycle.update(nearbyGroups.updateNearbyGroups(aliceSource, Set.of("pig")));
+        Assert.assertTrue(result.add.isEmpty());
+        Assert.assertTrue(result.remove.isEmpty());
+        Assert.assertEquals(1, lifecycle.metrics().active);
+        now.addAndGet(60000);
+        Assert.assertTrue(lifecycle.tick().remove.isEmpty());
+        Assert.assertEquals(1, lifecycle.metrics().deletesAvoided);
+        Assert.assertEquals(0, lifecycle.metrics().deleted);
+    }
+
+    private NearbyGroups.Result formed(UUID id) {
+        return new NearbyGroups.Result(Map.of(id, group), Map.of());
+    }
+
+    private NearbyGroups.Result left(UUID id) {
+        return new NearbyGroups.Result(Map.of(), Map.of(id, group));
+    }
+
+    private static Player player() {
+        return new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
+    }
+}
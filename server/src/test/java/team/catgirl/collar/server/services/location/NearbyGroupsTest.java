@@ -6,10 +6,14 @@ import team.catgirl.collar.api.groups.MemberSource;
 import team.catgirl.collar.api.session.Player;
 import team.catgirl.collar.security.mojang.MinecraftPlayer;
 
-import java.util.Set;
-import java.util.UUID;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class NearbyGroupsTest {
+
+    private static final Logger LOGGER = Logger.getLogger(NearbyGroupsTest.class.getName());
+
     @Test
     public void calculateGroup() {
         Player alice = new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
@@ -51,4 +55,105 @@ public class NearbyGroupsTest {
         Assert.assertTrue(group.players.contains(new MemberSource(alice, null)));
         Assert.assertTrue(group.players.contains(new MemberSource(bob, null)));
     }
+
+    @Test
+    public void deltasUpdateHashes() {
+        Player alice = new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
+        Player bob = new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "cute", 1));
+        NearbyGroups groups = new NearbyGroups();
+        groups.updateNearbyGroups(new MemberSource(alice, null), Set.of("alice", "bob"));
+        NearbyGroups.Result result = groups.updateNearbyGroups(new MemberSource(bob, null), Set.of("eve"), Set.of());
+        Assert.assertTrue("alice does not see eve", result.add.isEmpty());
+        result = groups.updateNearbyGroups(new MemberSource(bob, null), Set.of("bob"), Set.of("eve"));
+        Assert.assertEquals(1, result.add.size());
+        result = groups.updateNearbyGroups(new MemberSource(alice, null), Set.of("eve"), Set.of());
+        Assert.assertEquals("bob does not see eve", 1, result.remove.size());
+    }
+
+    @Test
+    public void sameResultsAsAllPairsImplementation() {
+        Random random = new Random(42);
+        List<UUID> profiles = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            profiles.add(UUID.randomUUID());
+        }
+        List<String> servers = List.of("2b2t.org", "constantiam.net", "9b9t.com");
+        List<String> entities = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            entities.add("entity" + i);
+        }
+        NearbyGroups groups = new NearbyGroups();
+        AllPairsNearbyGroups oracle = new AllPairsNearbyGroups();
+        for (int i = 0; i < 20_000; i++) {
+            UUID profile = profiles.get(random.nextInt(profiles.size()));
+            // Players sometimes rejoin on another server
+            Player player = new Player(profile, new MinecraftPlayer(profile, servers.get(random.nextInt(servers.size())), 1));
+            if (random.nextInt(20) == 0) {
+                NearbyGroups.Result expected = oracle.removePlayerState(player);
+                NearbyGroups.Result actual = groups.removePlayerState(player);
+                // Compared by player only, as a group may have been formed while a member was on another server
+                Assert.assertEquals("left " + i, Set.copyOf(expected.remove.values()), Set.copyOf(actual.remove.values()));
+                continue;
+            }
+            Set<String> hashes = new HashSet<>();
+            int size = random.nextInt(4);
+            for (int j = 0; j < size; j++) {
+                hashes.add(entities.get(random.nextInt(entities.size())));
+            }
+            MemberSource source = new MemberSource(player, null);
+            NearbyGroups.Result expected = oracle.updateNearbyGroups(source, hashes);
+            NearbyGroups.Result actual = groups.updateNearbyGroups(source, hashes);
+            Assert.assertEquals("add " + i, describe(expected.add), describe(actual.add));
+            Assert.assertEquals("remove " + i, describe(expected.remove), describe(actual.remove));
+        }
+    }
+
+    @Test
+    public void updateCostDependsOnNearbyPlayers() {
+        long smallPopulation = nanosPerUpdate(new NearbyGroups(), 20);
+        long largePopulation = nanosPerUpdate(new NearbyGroups(), 500);
+        long allPairsLargePopulation = nanosPerUpdate(new AllPairsNearbyGroups(), 500);
+        LOGGER.info("indexed " + smallPopulation + "ns/update with 200 players, " + largePopulation + "ns/update with 5000 players, all pairs " + allPairsLargePopulation + "ns/update with 5000 players");
+        Assert.assertTrue(largePopulation * 5 < allPairsLargePopulation);
+    }
+
+    /**
+     * Players spread over servers with 10 players on each server, each player seeing the 3 closest other players
+     */
+    private static long nanosPerUpdate(Object engine, int servers) {
+        List<MemberSource> sources = new ArrayList<>();
+        List<Set<String>> hashes = new ArrayList<>();
+        for (int server = 0; server < servers; server++) {
+            for (int i = 0; i < 10; i++) {
+                UUID profile = UUID.randomUUID();
+                sources.add(new MemberSource(new Player(profile, new MinecraftPlayer(profile, "server" + server, 1)), null));
+                Set<String> seen = new HashSet<>();
+                for (int j = i; j < i + 3; j++) {
+                    seen.add(server + ":" + (j % 10));
+                }
+                hashes.add(seen);
+            }
+        }
+        int updates = Math.max(sources.size(), 20_000);
+        long start = 0;
+        for (int i = -updates; i < updates; i++) {
+            if (i == 0) {
+                // The first half warms up and gives every player state
+                start = System.nanoTime();
+            }
+            int index = Math.floorMod(i, sources.size());
+            if (engine instanceof NearbyGroups) {
+                ((NearbyGroups) engine).updateNearbyGroups(sources.get(index), hashes.get(index));
+            } else {
+                ((AllPairsNearbyGroups) engine).updateNearbyGroups(sources.get(index), hashes.get(index));
+            }
+        }
+        return (System.nanoTime() - start) / updates;
+    }
+
+    private static Set<Set<String>> describe(Map<UUID, NearbyGroup> groups) {
+        return groups.values().stream()
+                .map(group -> group.players.stream().map(source -> source.player.profile + "@" + source.player.minecraftPlayer.server).collect(Collectors.toSet()))
+                .collect(Collectors.toSet());
+    }
 }
@@ -0,0 +1,148 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HandshakeAdmissionTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<Session> turnedAway = new ArrayList<>();
+    private final HandshakeAdmission admission = new HandshakeAdmission(1, 1, 1000, 5000, turnedAway::add, now::get);
+
+    @Test
+    public void requestsAreHeldUntilSessionIsAdmitted() {
+        Session first = session();
+        Session second = session();
+        List<String> executed = new ArrayList<>();
+        admission.connected(first);
+        admission.connected(second);
+        Assert.assertTrue(admission.execute(first, () -> executed.add("first")));
+        Assert.assertTrue(admission.execute(second, () -> executed.add("second 1")));
+        Assert.assertTrue(admission.execute(second, () -> executed.add("second 2")));
+        Assert.assertEquals(List.of("first"), executed);
+        admission.started(first);
+        Assert.assertEquals(List.of("first", "second 1", "second 2"), executed);
+        Assert.assertEquals(1, admission.metrics().inFlight);
+        Assert.assertEquals(0, admission.metrics().queued);
+    }
+
+    @Test
+    public void requestsSentWhileHeldRequestsRunDoNotOvertakeThem() {
+        Session first = session();
+        Session second = session();
+        List<String> executed = new ArrayList<>();
+        admission.connected(first);
+        admission.connected(second);
+        admission.execute(second, () -> {
+            executed.add("second 1");
+            admission.execute(second, () -> executed.add("second 3"));
+        });
+        admission.execute(second, () -> executed.add("second 2"));
+        admission.started(first);
+        Assert.assertEquals(List.of("second 1", "second 2", "second 3"), executed);
+        admission.execute(second, () -> executed.add("second 4"));
+        Assert.assertEquals(List.of("second 1", "second 2", "second 3", "second 4"), executed);
+    }
+
+    @Test
+    public void requestsSentAfterStartingWhileHeldRequestsRunDoNotOvertakeThem() {
+        Session first = session();
+        Session second = session();
+        List<String> executed = new ArrayList<>();
+        admission.connected(first);
+        admission.connected(second);
+        admission.execute(second, () -> {
+            executed.add("second 1");
+            admission.started(second);
+            admission.execute(second, () -> executed.add("second 3"));
+        });
+        admission.execute(second, () -> executed.add("second 2"));
+        admission.started(first);
+        Assert.assertEquals(List.of("second 1", "second 2", "second 3"), executed);
+        Assert.assertEquals(0, admission.metrics().inFlight);
+        admission.execute(second, () -> executed.add("second 4"));
+        Assert.assertEquals(List.of("second 1", "second 2", "second 3", "second 4"), executed);
+        admission.closed(second);
+        Assert.assertEquals(0, admission.metrics().inFlight);
+    }
+
+    @Test
+    public void sessionsAreTurnedAwayWhenQueueIsFull() {
+        Session first = session();
+        Session second = session();
+        Session third = session();
+        admission.connected(first);
+        admission.connected(second);
+        admission.connected(third);
+        Assert.assertEquals(List.of(third), turnedAway);
+        Assert.assertEquals(1, admission.metrics().turnedAway);
+    }
+
+    @Test
+    public void sessionsThatWaitTooLongAreTurnedAway() {
+        Session first = session();
+        Session second = session();
+        admission.connected(first);
+        admission.connected(second);
+        now.addAndGet(999);
+        admission.tick();
+        Assert.assertTrue(turnedAway.isEmpty());
+        now.addAndGet(1);
+        admission.tick();
+        Assert.assertEquals(List.of(second), turnedAway);
+        Assert.assertEquals(0, admission.metrics().queued);
+    }
+
+    @Test
+    public void slowHandshakesStopCountingTowardsTheLimit() {
+        Session slow = session();
+        Session waiting = session();
+        admission.connected(slow);
+        now.addAndGet(4500);
+        admission.connected(waiting);
+        now.addAndGet(499);
+        admission.tick();
+        Assert.assertEquals(1, admission.metrics().queued);
+        now.addAndGet(1);
+        admission.tick();
+        Assert.assertTrue(turnedAway.isEmpty());
+        Assert.assertEquals(0, admission.metrics().queued);
+        Assert.assertEquals(1, admission.metrics().timedOut);
+    }
+
+    @Test
+    public void recoveryTimeIsMeasuredFromFirstQueuedSession() {
+        Session first = session();
+        Session second = session();
+        admission.connected(first);
+        now.addAndGet(100);
+        admission.connected(second);
+        now.addAndGet(200);
+        admission.closed(first);
+        Assert.assertEquals(-1, admission.metrics().lastRecoveryMillis);
+        now.addAndGet(300);
+        admission.started(second);
+        Assert.assertEquals(500, admission.metrics().lastRecoveryMillis);
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Session@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return null;
+            }
+        });
+    }
+}
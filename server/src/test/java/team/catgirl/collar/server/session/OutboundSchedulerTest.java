@@ -0,0 +1,192 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+public class OutboundSchedulerTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<String> writes = new ArrayList<>();
+    private final List<Runnable> pendingWrites = new ArrayList<>();
+    private final List<Runnable> pendingDrains = new ArrayList<>();
+    private final List<Session> disconnected = new ArrayList<>();
+    private final OutboundScheduler scheduler = new OutboundScheduler((session, frame, done) -> {
+        writes.add(new String(frame.array()));
+        pendingWrites.add(done);
+    }, pendingDrains::add, 10, 1000, disconnected::add, now::get);
+
+    @Test
+    public void framesAreWrittenOneAtATimeInOrder() {
+        Session session = session();
+        scheduler.send(session, null, 1, frame("a"));
+        scheduler.send(session, null, 1, frame("b"));
+        Assert.assertEquals(List.of("a"), writes);
+        completeWrite();
+        Assert.assertEquals(List.of("a", "b"), writes);
+        completeWrite();
+        Assert.assertEquals(0, scheduler.metrics().queuedBytes);
+    }
+
+    @Test
+    public void framesAreNotEncodedOnTheThreadThatCompletedTheWrite() {
+        Session session = session();
+        List<String> encoded = new ArrayList<>();
+        scheduler.send(session, null, 1, () -> {
+            encoded.add("a");
+            return ByteBuffer.wrap("a".getBytes());
+        });
+        scheduler.send(session, null, 1, () -> {
+            encoded.add("b");
+            return ByteBuffer.wrap("b".getBytes());
+        });
+        pendingWrites.remove(0).run();
+        Assert.assertEquals(List.of("a"), encoded);
+        Assert.assertEquals(1, pendingDrains.size());
+        pendingDrains.remove(0).run();
+        Assert.assertEquals(List.of("a", "b"), encoded);
+        Assert.assertEquals(List.of("a", "b"), writes);
+    }
+
+    @Test
+    public void framesForSessionsThatWereRemovedAreDropped() {
+        Session session = session();
+        scheduler.remove(session);
+        scheduler.send(session, null, 1, frame("late"));
+        Assert.assertTrue(writes.isEmpty());
+        Assert.assertEquals(0, scheduler.metrics().sessions);
+        Assert.assertEquals(0, scheduler.metrics().queued);
+    }
+
+    @Test
+    public void queuedEphemeralFramesAreReplacedByNewerFrames() {
+        Session session = session();
+        scheduler.send(session, null, 1, frame("first"));
+        scheduler.send(session, "alice", 1, frame("alice 1"));
+        scheduler.send(session, "bob", 1, frame("bob 1"));
+        scheduler.send(session, "alice", 1, frame("alice 2"));
+        completeWrite();
+        completeWrite();
+        completeWrite();
+        Assert.assertEquals(List.of("first", "bob 1", "alice 2"), writes);
+        Assert.assertEquals(1, scheduler.metrics().conflated);
+        Assert.assertEquals(0, scheduler.metrics().queuedBytes);
+    }
+
+    @Test
+    public void replacementsAreNotWrittenBeforeLaterFrames() {
+        Session session = session();
+        scheduler.send(session, null, 1, frame("first"));
+        scheduler.send(session, "alice", 1, frame("alice 1"));
+        scheduler.send(session, null, 1, frame("alice left"));
+        scheduler.send(session, "alice", 1, frame("alice 2"));
+        completeWrite();
+        completeWrite();
+        completeWrite();
+        Assert.assertEquals(List.of("first", "alice left", "alice 2"), writes);
+        Assert.assertTrue(pendingWrites.isEmpty());
+    }
+
+    @Test
+    public void broadcastsAreOnlyReplacedByBroadcastsOfTheSamePlayers() {
+        UUID group = UUID.randomUUID();
+        Player alice = new Player(UUID.randomUUID(), null);
+        Player bob = new Player(UUID.randomUUID(), null);
+        Object aliceOnly = OutboundScheduler.conflationKey(broadcast(update(alice, group, new byte[]{1})));
+        Object bobOnly = OutboundScheduler.conflationKey(broadcast(update(bob, group, new byte[]{2})));
+        Assert.assertNotEquals(aliceOnly, bobOnly);
+        Assert.assertEquals(aliceOnly, OutboundScheduler.conflationKey(broadcast(update(alice, group, new byte[]{3}))));
+        Assert.assertEquals(
+                OutboundScheduler.conflationKey(broadcast(update(alice, group, new byte[]{1}), update(bob, group, new byte[]{2}))),
+                OutboundScheduler.conflationKey(broadcast(update(bob, group, new byte[]{4}), update(alice, group, new byte[]{3}))));
+        Assert.assertNull(OutboundScheduler.conflationKey(broadcast(update(alice, group, new byte[]{1}), update(bob, group, null))));
+    }
+
+    @Test
+    public void ephemeralFramesAreDroppedOverBudgetButReliableFramesAreNot() {
+        Session session = session();
+        scheduler.send(session, null, 8, frame("reliable 1"));
+        scheduler.send(session, "location", 4, frame("location"));
+        scheduler.send(session, null, 4, frame("reliable 2"));
+        completeWrite();
+        completeWrite();
+        Assert.assertEquals(List.of("reliable 1", "reliable 2"), writes);
+        Assert.assertEquals(1, scheduler.metrics().dropped);
+    }
+
+    @Test
+    public void sessionThatStaysOverBudgetIsDisconnected() {
+        Session slow = session();
+        Session fast = session();
+        scheduler.send(slow, null, 20, frame("big"));
+        scheduler.send(fast, null, 1, frame("small"));
+        now.addAndGet(999);
+        scheduler.send(slow, null, 1, frame("still waiting"));
+        Assert.assertTrue(disconnected.isEmpty());
+        now.addAndGet(1);
+        scheduler.send(slow, null, 1, frame("too late"));
+        Assert.assertEquals(List.of(slow), disconnected);
+        Assert.assertEquals(1, scheduler.metrics().disconnected);
+        scheduler.remove(slow);
+        Assert.assertEquals(1, scheduler.metrics().sessions);
+    }
+
+    @Test
+    public void sessionThatCatchesUpIsNotDisconnected() {
+        Session session = session();
+        scheduler.send(session, null, 20, frame("big"));
+        scheduler.send(session, null, 1, frame("small"));
+        now.addAndGet(500);
+        completeWrite();
+        now.addAndGet(1000);
+        scheduler.send(session, null, 1, frame("later"));
+        Assert.assertTrue(disconnected.isEmpty());
+    }
+
+    private void completeWrite() {
+        pendingWrites.remove(0).run();
+        while (!pendingDrains.isEmpty()) {
+            pendingDrains.remove(0).run();
+        }
+    }
+
+    private static Supplier<ByteBuffer> frame(String value) {
+        return () -> ByteBuffer.wrap(value.getBytes());
+    }
+
+    private static LocationsUpdatedResponse broadcast(LocationUpdatedResponse... updates) {
+        return new LocationsUpdatedResponse(null, List.of(updates));
+    }
+
+    private static LocationUpdatedResponse update(Player player, UUID group, byte[] location) {
+        return new LocationUpdatedResponse(null, null, group, player, location);
+    }
+
+    private Session session() {
+        Session session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Session@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return null;
+            }
+        });
+        scheduler.add(session);
+        return session;
+    }
+}
@@ -0,0 +1,148 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SessionExecutorTest {
+
+    private final SessionExecutor executor = new SessionExecutor(4, 1000);
+
+    @After
+    public void shutdown() throws InterruptedException {
+        executor.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void tasksForASessionRunInOrder() throws InterruptedException {
+        List<Session> sessions = new ArrayList<>();
+        List<List<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Session session = session();
+            executor.add(session);
+            sessions.add(session);
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        CountDownLatch done = new CountDownLatch(sessions.size());
+        for (int task = 0; task < 500; task++) {
+            for (int i = 0; i < sessions.size(); i++) {
+                List<Integer> result = results.get(i);
+                int value = task;
+                Assert.assertTrue(executor.execute(sessions.get(i), () -> result.add(value)));
+            }
+        }
+        for (Session session : sessions) {
+            executor.close(session, done::countDown);
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> result : results) {
+            Assert.assertEquals(500, result.size());
+            for (int i = 0; i < result.size(); i++) {
+                Assert.assertEquals(i, (int) result.get(i));
+            }
+        }
+        SessionExecutor.Metrics metrics = executor.metrics();
+        Assert.assertEquals(0, metrics.sessions);
+        Assert.assertEquals(metrics.submitted, metrics.completed);
+    }
+
+    @Test
+    public void slowSessionDoesNotBlockOthers() throws InterruptedException {
+        Session slow = session();
+        Session fast = session();
+        executor.add(slow);
+        executor.add(fast);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastRan = new CountDownLatch(1);
+        executor.execute(slow, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(fast, fastRan::countDown);
+        Assert.assertTrue(fastRan.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void rejectsWhenSessionQueueIsFull() throws InterruptedException {
+        SessionExecutor bounded = new SessionExecutor(1, 2);
+        Session session = session();
+        bounded.add(session);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        bounded.execute(session, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(bounded.execute(session, () -> {}));
+        Assert.assertTrue(bounded.execute(session, () -> {}));
+        Assert.assertFalse(bounded.execute(session, () -> {}));
+        // Closing is never rejected
+        CountDownLatch closed = new CountDownLatch(1);
+        bounded.close(session, closed::countDown);
+        release.countDown();
+        Assert.assertTrue(closed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, bounded.metrics().rejected);
+        bounded.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void workIsRejectedOnceSessionIsClosed() throws InterruptedException {
+        Session session = session();
+        executor.add(session);
+        CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(executor.execute(session, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        CountDownLatch closed = new CountDownLatch(2);
+        executor.close(session, closed::countDown);
+        Assert.assertFalse(executor.execute(session, () -> Assert.fail("ran after close")));
+        // Closing can still be queued, such as when a session errors and then closes
+        executor.close(session, closed::countDown);
+        release.countDown();
+        Assert.assertTrue(closed.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(executor.execute(session, () -> Assert.fail("ran after close")));
+        Assert.assertEquals(2, executor.metrics().rejected);
+    }
+
+    @Test
+    public void workForSessionsThatWereNotAddedIsRejected() {
+        Assert.assertFalse(executor.execute(session(), () -> Assert.fail("ran without being added")));
+        Assert.assertEquals(0, executor.metrics().sessions);
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Session@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public class SessionManagerTest {
+
+    @Test
+    public void lookupsFollowIdentifyAndStop() {
+        SessionManager sessions = new SessionManager(null);
+        Session aliceSession = session();
+        ClientIdentity alice = identity(1);
+        MinecraftPlayer aliceMinecraftPlayer = new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 1);
+        Session bobSession = session();
+        ClientIdentity bob = identity(2);
+        MinecraftPlayer bobMinecraftPlayer = new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 2);
+
+        sessions.identify(aliceSession, alice, aliceMinecraftPlayer);
+        sessions.identify(bobSession, bob, bobMinecraftPlayer);
+
+        Assert.assertEquals(aliceSession, sessions.getSession(alice).orElseThrow());
+        Assert.assertEquals(alice, sessions.getIdentity(aliceSession).orElseThrow());
+        Assert.assertEquals(alice, sessions.getIdentity(aliceMinecraftPlayer).orElseThrow());
+        Assert.assertEquals(alice, sessions.getIdentity(new Player(alice.owner, null)).orElseThrow());
+        Assert.assertEquals(alice, sessions.getIdentityByMinecraftPlayerId(aliceMinecraftPlayer.id).orElseThrow());
+        Assert.assertEquals(aliceMinecraftPlayer, sessions.findMinecraftPlayer(alice).orElseThrow());
+        Assert.assertEquals(new Player(alice.owner, aliceMinecraftPlayer), sessions.findPlayer(alice).orElseThrow());
+        Assert.assertEquals(new Player(alice.owner, aliceMinecraftPlayer), sessions.findPlayerByProfile(alice.owner).orElseThrow());
+        Assert.assertEquals(aliceSession, sessions.getSessionStateByOwner(alice.owner).orElseThrow().session);
+        Assert.assertEquals(aliceSession, sessions.getSessionStateByPlayer(aliceMinecraftPlayer.id).orElseThrow().session);
+        Assert.assertEquals(2, sessions.getSessionStatesByServer("2b2t.org").size());
+        Assert.assertEquals(List.of(new Player(bob.owner, bobMinecraftPlayer)), sessions.findPlayers(alice, List.of(bobMinecraftPlayer.id, UUID.randomUUID())));
+
+        sessions.stopSession(bobSession, "bye", null, null);
+
+        Assert.assertTrue(sessions.getSession(bob).isEmpty());
+        Assert.assertTrue(sessions.findPlayerByProfile(bob.owner).isEmpty());
+        Assert.assertTrue(sessions.getIdentityByMinecraftPlayerId(bobMinecraftPlayer.id).isEmpty());
+        Assert.assertEquals(1, sessions.getSessionStatesByServer("2b2t.org").size());
+        Assert.assertTrue(sessions.findPlayers(alice, List.of(bobMinecraftPlayer.id)).isEmpty());
+        Assert.assertTrue(sessions.getSession(alice).isPresent());
+    }
+
+    @Test
+    public void reconnectingIdentityIsNotRemovedByStaleSession() {
+        SessionManager sessions = new SessionManager(null);
+        ClientIdentity alice = identity(1);
+        MinecraftPlayer minecraftPlayer = new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 1);
+        Session oldSession = session();
+        Session newSession = session();
+        sessions.identify(oldSession, alice, minecraftPlayer);
+        sessions.identify(newSession, alice, minecraftPlayer);
+        sessions.stopSession(oldSession, "stale", null, null);
+        Assert.assertEquals(newSession, sessions.getSession(alice).orElseThrow());
+        Assert.assertTrue(sessions.findPlayerByProfile(alice.owner).isPresent());
+        Assert.assertTrue(sessions.getSessionStateByPlayer(minecraftPlayer.id).isPresent());
+    }
+
+    @Test
+    public void indexesStayConsistentWithManySessions() {
+        SessionManager sessions = new SessionManager(null);
+        int sessionCount = 10_000;
+        List<Session> sockets = new ArrayList<>();
+        List<ClientIdentity> identities = new ArrayList<>();
+        List<MinecraftPlayer> players = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            Session session = session();
+            ClientIdentity identity = identity(i);
+            MinecraftPlayer player = new MinecraftPlayer(UUID.randomUUID(), "server" + (i / 2 % 10), i);
+            sockets.add(session);
+            identities.add(identity);
+            players.add(player);
+            sessions.identify(session, identity, player);
+        }
+        Assert.assertEquals(sessionCount / 10, sessions.getSessionStatesByServer("server3").size());
+        // Stop every other session
+        for (int i = 0; i < sessionCount; i += 2) {
+            sessions.stopSession(sockets.get(i), "bye", null, null);
+        }
+        for (int i = 0; i < sessionCount; i++) {
+            ClientIdentity identity = identities.get(i);
+            boolean stopped = i % 2 == 0;
+            Assert.assertEquals(stopped ? Optional.empty() : Optional.of(sockets.get(i)), sessions.getSession(identity));
+            Assert.assertEquals(!stopped, sessions.findPlayerByProfile(identity.owner).isPresent());
+            Assert.assertEquals(!stopped, sessions.getSessionStateByPlayer(players.get(i).id).isPresent());
+        }
+        Assert.assertEquals(sessionCount / 20, sessions.getSessionStatesByServer("server3").size());
+    }
+
+    private static ClientIdentity identity(int deviceId) {
+        return new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[]{(byte) deviceId, (byte) (deviceId >> 8), (byte) (deviceId >> 16)}), deviceId);
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Session@" + Integer.toHexString(System.identityHashCode(proxy));
+                case "isOpen":
+                    return false;
+                default:
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package team.catgirl.collar.server.session;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionPingerTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private final Map<Session, ByteBuffer> pinged = new HashMap<>();
+    private final List<Session> dead = new ArrayList<>();
+    private final SessionPinger pinger = new SessionPinger(100, 300, pinged::put, dead::add, now::get);
+
+    @Test
+    public void roundTripTimeIsMeasuredFromPongs() {
+        Session session = session();
+        pinger.add(session);
+        pinger.tick();
+        now.addAndGet(40);
+        pinger.pong(session, pinged.get(session));
+        SessionPinger.Metrics metrics = pinger.metrics();
+        Assert.assertEquals(1, metrics.pings);
+        Assert.assertEquals(1, metrics.pongs);
+        Assert.assertEquals(40, metrics.lastRttMillis);
+        Assert.assertEquals(40, metrics.meanRttMillis);
+    }
+
+    @Test
+    public void unsolicitedPongsAreNotMeasured() {
+        Session session = session();
+        pinger.add(session);
+        pinger.pong(session, ByteBuffer.allocate(0));
+        pinger.pong(session(), ByteBuffer.allocate(Long.BYTES));
+        Assert.assertEquals(0, pinger.metrics().pongs);
+        Assert.assertEquals(-1, pinger.metrics().meanRttMillis);
+    }
+
+    @Test
+    public void sessionsThatStopAnsweringAreDisconnected() {
+        Session answering = session();
+        Session silent = session();
+        pinger.add(answering);
+        pinger.add(silent);
+        for (int i = 0; i < 3; i++) {
+            pinger.tick();
+            now.addAndGet(100);
+            pinger.pong(answering, pinged.get(answering));
+        }
+        pinger.tick();
+        Assert.assertEquals(List.of(silent), dead);
+        Assert.assertEquals(1, pinger.metrics().sessions);
+        Assert.assertEquals(1, pinger.metrics().deadPeers);
+    }
+
+    @Test
+    public void sessionsThatNeverPongButSendRequestsStayConnected() {
+        Session keepAlive = session();
+        Session silent = session();
+        pinger.add(keepAlive);
+        pinger.add(silent);
+        for (int i = 0; i < 5; i++) {
+            pinger.tick();
+            now.addAndGet(100);
+            pinger.heard(keepAlive);
+        }
+        pinger.tick();
+        Assert.assertEquals(List.of(silent), dead);
+        Assert.assertEquals(0, pinger.metrics().pongs);
+        Assert.assertEquals(1, pinger.metrics().sessions);
+    }
+
+    @Test
+    public void requestsFromRemovedSessionsAreIgnored() {
+        Session session = session();
+        pinger.heard(session);
+        Assert.assertEquals(0, pinger.metrics().sessions);
+    }
+
+    private static Session session() {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[]{Session.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Session@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package team.catgirl.collar.server.session;
+
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionTicketsTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private final SessionTickets tickets = new SessionTickets("helloworld", 60000, now::get);
+    private final ClientIdentity identity = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[] {1, 2, 3}), 1);
+    private final MinecraftPlayer player = new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 1);
+
+    @Test
+    public void roundTrip() {
+        byte[] ticket = tickets.issue(identity, player);
+        Assert.assertEquals(Optional.of(player), redeem(identity, ticket));
+        Assert.assertEquals(1, tickets.metrics().redeemed);
+    }
+
+    @Test
+    public void expiredTicketIsRejected() {
+        byte[] ticket = tickets.issue(identity, player);
+        now.addAndGet(59999);
+        byte[] challenge = tickets.challenge(identity, ticket).orElseThrow();
+        now.addAndGet(1);
+        Assert.assertTrue(tickets.redeem(identity, ticket, challenge).isEmpty());
+        Assert.assertTrue(tickets.challenge(identity, ticket).isEmpty());
+    }
+
+    @Test
+    public void ticketCanOnlyBeRedeemedOnce() {
+        byte[] ticket = tickets.issue(identity, player);
+        byte[] challenge = tickets.challenge(identity, ticket).orElseThrow();
+        byte[] anotherChallenge = tickets.challenge(identity, ticket).orElseThrow();
+        Assert.assertTrue(tickets.redeem(identity, ticket, challenge).isPresent());
+        Assert.assertTrue(tickets.redeem(identity, ticket, challenge).isEmpty());
+        Assert.assertTrue(tickets.redeem(identity, ticket, anotherChallenge).isEmpty());
+        Assert.assertTrue(tickets.challenge(identity, ticket).isEmpty());
+    }
+
+    @Test
+    public void replacedTicketIsRejected() {
+        byte[] ticket = tickets.issue(identity, player);
+        byte[] renewed = tickets.issue(identity, player);
+        Assert.assertTrue(tickets.challenge(identity, ticket).isEmpty());
+        Assert.assertEquals(Optional.of(player), redeem(identity, renewed));
+    }
+
+    @Test
+    public void revokedTicketIsRejected() {
+        byte[] ticket = tickets.issue(identity, player);
+        byte[] challenge = tickets.challenge(identity, ticket).orElseThrow();
+        tickets.revoke(identity);
+        Assert.assertTrue(tickets.redeem(identity, ticket, challenge).isEmpty());
+    }
+
+    @Test
+    public void ticketFromAnotherServerIsRejected() {
+        SessionTickets restarted = new SessionTickets("helloworld", 60000, now::get);
+        Assert.assertTrue(restarted.challenge(identity, tickets.issue(identity, player)).isEmpty());
+    }
+
+    @Test
+    public void challengeIsBoundToTicket() {
+        ClientIdentity anotherIdentity = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[] {4, 5, 6}), 1);
+        byte[] ticket = tickets.issue(identity, player);
+        byte[] anotherTicket = tickets.issue(anotherIdentity, player);
+        byte[] anotherChallenge = tickets.challenge(anotherIdentity, anotherTicket).orElseThrow();
+        Assert.assertTrue(tickets.redeem(identity, ticket, anotherChallenge).isEmpty());
+        Assert.assertEquals(Optional.of(player), redeem(identity, ticket));
+    }
+
+    @Test
+    public void expiredChallengeIsRejected() {
+        byte[] ticket = tickets.issue(identity, player);
+        byte[] challenge = tickets.challenge(identity, ticket).orElseThrow();
+        now.addAndGet(30000);
+        Assert.assertTrue(tickets.redeem(identity, ticket, challenge).isEmpty());
+        Assert.assertEquals(Optional.of(player), redeem(identity, ticket));
+    }
+
+    @Test
+    public void ticketCannotBeRedeemedByAnotherIdentity() {
+        byte[] ticket = tickets.issue(identity, player);
+        ClientIdentity anotherDevice = new ClientIdentity(identity.owner, identity.publicKey, 2);
+        Assert.assertTrue(tickets.challenge(anotherDevice, ticket).isEmpty());
+        byte[] challenge = tickets.challenge(identity, ticket).orElseThrow();
+        Assert.assertTrue(tickets.redeem(anotherDevice, ticket, challenge).isEmpty());
+    }
+
+    @Test
+    public void tamperedTicketIsRejected() {
+        byte[] ticket = tickets.issue(identity, player);
+        ticket[ticket.length / 2] ^= 1;
+        Assert.assertTrue(tickets.challenge(identity, ticket).isEmpty());
+        Assert.assertTrue(new SessionTickets("another", 60000).challenge(identity, tickets.issue(identity, player)).isEmpty());
+        Assert.assertEquals(1, tickets.metrics().rejected);
+    }
+
+    @Test
+    public void tamperedChallengeIsRejected() {
+        byte[] ticket = tickets.issue(identity, player);
+        byte[] challenge = tickets.challenge(identity, ticket).orElseThrow();
+        challenge[0] ^= 1;
+        Assert.assertTrue(tickets.redeem(identity, ticket, challenge).isEmpty());
+    }
+
+    private Optional<MinecraftPlayer> redeem(ClientIdentity identity, byte[] ticket) {
+        return tickets.challenge(identity, ticket).flatMap(challenge -> tickets.redeem(identity, ticket, challenge));
+    }
+}
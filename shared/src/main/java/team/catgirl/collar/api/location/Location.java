@@ -5,9 +5,25 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import java.io.*;
 import java.util.Objects;
 
+/**
+ * A player or waypoint location.
+ *
+ * {@link #serialize()} writes a version 1 record, which every client can read: an int version, x, y and z as doubles
+ * and the {@link Dimension} name.
+ * {@link #serializeCompact(byte[])} writes a version 2 record of {@link #COMPACT_SERIALIZED_SIZE} bytes: a version
+ * byte, x, y and z as ints in 1/{@link #UNITS_PER_BLOCK} of a block and the {@link Dimension} ordinal. New dimensions
+ * must be added to the end of {@link Dimension}. Clients from before version 2 cannot read it, so it is only sent
+ * when the server says every client can.
+ */
 public final class Location {
 
     private static final int VERSION = 1;
+    private static final byte COMPACT_VERSION = 2;
+    /** Coordinates are kept to a 16th of a block **/
+    private static final int UNITS_PER_BLOCK = 16;
+    /** Length of a location serialized by {@link #serializeCompact(byte[])} in bytes **/
+    public static final int COMPACT_SERIALIZED_SIZE = 1 + 3 * Integer.BYTES + 1;
+    private static final Dimension[] DIMENSIONS = Dimension.values();
     public static final Location UNKNOWN = new Location(Double.MIN_VALUE, Double.MIN_VALUE , Double.MIN_VALUE, Dimension.UNKNOWN);
 
     @JsonProperty("x")
@@ -20,11 +36,35 @@ public final class Location {
     public final Dimension dimension;
 
     public Location(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("empty Location");
+        }
+        if (bytes[0] == COMPACT_VERSION) {
+            if (bytes.length != COMPACT_SERIALIZED_SIZE) {
+                throw new IOException("Location must be " + COMPACT_SERIALIZED_SIZE + " bytes but was " + bytes.length);
+            }
+            int ordinal = bytes[1 + 3 * Integer.BYTES];
+            if (ordinal < 0 || ordinal >= DIMENSIONS.length) {
+                throw new IOException("unknown Dimension " + ordinal);
+            }
+            dimension = DIMENSIONS[ordinal];
+            if (dimension == Dimension.UNKNOWN) {
+                x = UNKNOWN.x;
+                y = UNKNOWN.y;
+                z = UNKNOWN.z;
+            } else {
+                x = (double) readInt(bytes, 1) / UNITS_PER_BLOCK;
+                y = (double) readInt(bytes, 1 + Integer.BYTES) / UNITS_PER_BLOCK;
+                z = (double) readInt(bytes, 1 + 2 * Integer.BYTES) / UNITS_PER_BLOCK;
+            }
+            return;
+        }
+        // Version 1 starts with an int version, so its first byte is always 0
         try (ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes)) {
             try (DataInputStream dataStream = new DataInputStream(inputStream)) {
                 int serializedVersion = dataStream.readInt();
                 switch (serializedVersion) {
-                    case 1:
+                    case VERSION:
                         x = dataStream.readDouble();
                         y = dataStream.readDouble();
                         z = dataStream.readDouble();
@@ -88,5 +128,45 @@ public final class Location {
             throw new IllegalStateException("Could not serialize Location " + this, e);
         }
     }
+
+    /**
+     * Serialize as a version 2 record into an existing buffer so that it can be reused
+     * @param bytes of at least {@link #COMPACT_SERIALIZED_SIZE}
+     */
+    public void serializeCompact(byte[] bytes) {
+        if (bytes.length < COMPACT_SERIALIZED_SIZE) {
+            throw new IllegalArgumentException("buffer must be at least " + COMPACT_SERIALIZED_SIZE + " bytes");
+        }
+        bytes[0] = COMPACT_VERSION;
+        writeInt(bytes, 1, quantize(x));
+        writeInt(bytes, 1 + Integer.BYTES, quantize(y));
+        writeInt(bytes, 1 + 2 * Integer.BYTES, quantize(z));
+        bytes[1 + 3 * Integer.BYTES] = (byte) dimension.ordinal();
+    }
+
+    private int quantize(Double value) {
+        if (dimension == Dimension.UNKNOWN) {
+            return 0;
+        }
+        double units = Math.rint(value * UNITS_PER_BLOCK);
+        if (units > Integer.MAX_VALUE || units < Integer.MIN_VALUE) {
+            throw new IllegalStateException("Location " + this + " is out of range");
+        }
+        return (int) units;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | (bytes[offset + 3] & 0xFF);
+    }
 }
 
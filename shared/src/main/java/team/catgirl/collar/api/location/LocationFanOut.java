@@ -0,0 +1,16 @@
+package team.catgirl.collar.api.location;
+
+/**
+ * Which members of a group a player's location is sent to
+ */
+public enum LocationFanOut {
+    /**
+     * Every accepted member of the group
+     */
+    ALL,
+    /**
+     * Only accepted members playing on the same server as the player.
+     * Members on other servers are told once that the player stopped sharing with them.
+     */
+    SAME_SERVER
+}
@@ -11,6 +11,7 @@ import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.timeout.IdleStateHandler;
 import team.catgirl.collar.api.http.HttpException;
 import team.catgirl.collar.api.http.HttpException.*;
 
@@ -61,6 +62,18 @@ public final class HttpClient implements Closeable {
      * @return WebSocket reference
      */
     public WebSocket webSocket(Request request, WebSocketListener listener) {
+        return webSocket(request, listener, 0, 0);
+    }
+
+    /**
+     * Create a WebSocket connection that detects dead peers with ping frames
+     * @param request to make
+     * @param listener to received messages from the socket
+     * @param pingIntervalMillis between pings sent when nothing else has been written, or 0 to not send pings
+     * @param peerTimeoutMillis to wait for anything from the peer before closing the socket, or 0 to wait forever
+     * @return WebSocket reference
+     */
+    public WebSocket webSocket(Request request, WebSocketListener listener, long pingIntervalMillis, long peerTimeoutMillis) {
         if (request.method != null) {
             throw new IllegalStateException("method should not be set for websocket");
         }
@@ -90,6 +103,9 @@ public final class HttpClient implements Closeable {
                         pipeline.addLast("http-codec", new HttpClientCodec());
                         pipeline.addLast("decompressor", new HttpContentDecompressor());
                         pipeline.addLast("aggregator", new HttpObjectAggregator(65536));
+                        if (pingIntervalMillis > 0 || peerTimeoutMillis > 0) {
+                            pipeline.addLast("idle", new IdleStateHandler(peerTimeoutMillis, pingIntervalMillis, 0, TimeUnit.MILLISECONDS));
+                        }
                         pipeline.addLast("ws-handler", handler);
                     }
                 });
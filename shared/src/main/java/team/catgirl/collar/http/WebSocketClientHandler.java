@@ -3,8 +3,11 @@ package team.catgirl.collar.http;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.websocketx.*;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 
 import java.nio.ByteBuffer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
@@ -69,6 +72,23 @@ class WebSocketClientHandler extends SimpleChannelInboundHandler<Object> {
             BinaryWebSocketFrame binaryFrame = (BinaryWebSocketFrame) frame;
             ByteBuffer buffer = binaryFrame.content().nioBuffer();
             listener.onMessage(webSocket, buffer);
+        } else if (frame instanceof PingWebSocketFrame) {
+            ch.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (!(evt instanceof IdleStateEvent)) {
+            super.userEventTriggered(ctx, evt);
+            return;
+        }
+        IdleState state = ((IdleStateEvent) evt).state();
+        if (state == IdleState.READER_IDLE) {
+            logger.log(Level.WARNING, "Nothing received from peer. Closing socket");
+            ctx.close();
+        } else if (state == IdleState.WRITER_IDLE && handshaker.isHandshakeComplete()) {
+            ctx.writeAndFlush(new PingWebSocketFrame());
         }
     }
 
@@ -0,0 +1,45 @@
+package team.catgirl.collar.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of fixed size heap buffers that can be reused once whatever they were handed to has finished with them
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * @param bufferSize capacity of each buffer
+     * @param maxPooled maximum number of idle buffers kept by the pool
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Take a cleared buffer from the pool or allocate a new one if the pool is empty
+     * @return buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used by the caller after it is released.
+     * @param buffer to return
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && !buffer.isReadOnly()) {
+            buffers.offer(buffer);
+        }
+    }
+}
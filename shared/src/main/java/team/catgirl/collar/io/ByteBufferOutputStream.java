@@ -0,0 +1,36 @@
+package team.catgirl.collar.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Treat a {@link ByteBuffer} like an {@link OutputStream}
+ */
+public final class ByteBufferOutputStream extends OutputStream {
+
+    private final ByteBuffer byteBuffer;
+
+    public ByteBufferOutputStream(ByteBuffer byteBuffer) {
+        this.byteBuffer = byteBuffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            byteBuffer.put((byte) b);
+        } catch (BufferOverflowException e) {
+            throw new IOException("buffer is full", e);
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        try {
+            byteBuffer.put(bytes, offset, length);
+        } catch (BufferOverflowException e) {
+            throw new IOException("buffer is full", e);
+        }
+    }
+}
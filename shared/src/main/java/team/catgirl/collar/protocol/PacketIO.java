@@ -1,105 +1,269 @@
 package team.catgirl.collar.protocol;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import team.catgirl.collar.io.ByteBufferInputStream;
+import team.catgirl.collar.io.BufferPool;
+import team.catgirl.collar.io.ByteBufferOutputStream;
+import team.catgirl.collar.protocol.codec.BinaryPacketCodec;
 import team.catgirl.collar.security.Identity;
 import team.catgirl.collar.security.cipher.Cipher;
 import team.catgirl.collar.io.IO;
 import team.catgirl.collar.security.cipher.CipherException;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 /**
  * Encodes and decodes packets for/from the wire, handling encryption and different types of signal messages
  * Packet format is int(0x22)+int(version)+int(ENCRYPTEDMODE)+int(SIGNAL_MESSAGE_TYPE)+CiphertextMessage()
+ * Version 1 packets are encoded with the Jackson mapper. Version 2 packets are encoded with {@link BinaryPacketCodec}
+ * and are only sent when the peer supports it. Both versions can always be decoded.
  */
 public final class PacketIO {
     /** UwU **/
     private static final int PACKET_MARKER = 0x22;
     private static final int VERSION = 1;
+    private static final int VERSION_BINARY = 2;
     private static final int MODE_PLAIN = 0xc001;
     private static final int MODE_ENCRYPTED = 0xba5ed;
+    private static final int HEADER_SIZE = 12;
 
     private final ObjectMapper mapper;
     private final Cipher cipher;
+    private final BinaryPacketCodec binaryCodec;
+    private final boolean encodeBinary;
 
     public PacketIO(ObjectMapper mapper, Cipher cipher) {
+        this(mapper, cipher, false);
+    }
+
+    /**
+     * @param mapper to encode and decode version 1 packets
+     * @param cipher to encrypt packets
+     * @param encodeBinary encode packets as version 2 using {@link BinaryPacketCodec}
+     */
+    public PacketIO(ObjectMapper mapper, Cipher cipher, boolean encodeBinary) {
         this.mapper = mapper;
         this.cipher = cipher;
+        this.binaryCodec = new BinaryPacketCodec(mapper);
+        this.encodeBinary = encodeBinary;
+    }
+
+    /**
+     * Reads the version of the packet without consuming the buffer
+     * @param buffer containing the packet
+     * @return true if the packet was encoded with {@link BinaryPacketCodec}
+     */
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() >= 8 && buffer.getInt(buffer.position() + 4) == VERSION_BINARY;
     }
 
     public <T> T decode(Identity sender, InputStream is, Class<T> type) throws IOException, CipherException {
         return decode(sender, IO.toByteBuffer(is), type);
     }
 
+    /**
+     * Decode a packet. Plain packets backed by an array are decoded in place without copying the payload.
+     * The buffer is consumed.
+     * @param sender of the packet
+     * @param buffer containing the packet
+     * @param type expected
+     * @param <T> type expected
+     * @return packet
+     * @throws IOException on error
+     * @throws CipherException if the packet could not be decrypted
+     */
     public <T> T decode(Identity sender, ByteBuffer buffer, Class<T> type) throws IOException, CipherException {
+        int position = buffer.position();
+        int length = buffer.remaining();
+        if (length < HEADER_SIZE) {
+            throw new IllegalStateException("not a collar packet. Size " + length + " bytes");
+        }
+        int packetMarker = buffer.getInt(position);
+        if (packetMarker != PACKET_MARKER) {
+            throw new IllegalStateException("not a collar packet " + Integer.toHexString(packetMarker));
+        }
+        int version = buffer.getInt(position + 4);
+        if (version != VERSION && version != VERSION_BINARY) {
+            throw new IllegalStateException("unknown packet version " + version);
+        }
+        int packetType = buffer.getInt(position + 8);
+        int payloadPosition = position + HEADER_SIZE;
+        int payloadLength = length - HEADER_SIZE;
         T decoded;
-        int packetType;
-        try (DataInputStream objectStream = new DataInputStream(new ByteBufferInputStream(buffer))) {
-            int packetMarker = objectStream.readInt();
-            if (packetMarker != PACKET_MARKER) {
-                throw new IllegalStateException("not a collar packet " + Integer.toHexString(packetMarker));
-            }
-            int version = objectStream.readInt();
-            if (version != VERSION) {
-                throw new IllegalStateException("unknown packet version " + version);
-            }
-            packetType = objectStream.readInt();
-            byte[] remainingBytes = IO.toByteArray(objectStream);
-            if (packetType == MODE_PLAIN) {
-                checkPacketSize(remainingBytes);
-                decoded = mapper.readValue(remainingBytes, type);
-            } else if (packetType == MODE_ENCRYPTED) {
-                if (sender == null) {
-                    throw new IllegalStateException("Cannot read encrypted packets with no sender");
-                }
-                remainingBytes = cipher.decrypt(sender, remainingBytes);
-                checkPacketSize(remainingBytes);
-                decoded = mapper.readValue(remainingBytes, type);
+        if (packetType == MODE_PLAIN) {
+            checkPacketSize(payloadLength);
+            if (buffer.hasArray()) {
+                decoded = readValue(version, buffer.array(), buffer.arrayOffset() + payloadPosition, payloadLength, type);
             } else {
-                throw new IllegalStateException("unknown packet type " + packetType);
+                byte[] payload = copy(buffer, payloadPosition, payloadLength);
+                decoded = readValue(version, payload, 0, payload.length, type);
             }
+        } else if (packetType == MODE_ENCRYPTED) {
+            if (sender == null) {
+                throw new IllegalStateException("Cannot read encrypted packets with no sender");
+            }
+            byte[] payload = cipher.decrypt(sender, copy(buffer, payloadPosition, payloadLength));
+            checkPacketSize(payload.length);
+            decoded = readValue(version, payload, 0, payload.length, type);
+        } else {
+            throw new IllegalStateException("unknown packet type " + packetType);
         }
+        buffer.position(position + length);
         return decoded;
     }
 
     public byte[] encodePlain(Object object) throws IOException {
-        byte[] rawBytes = mapper.writeValueAsBytes(object);
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            try (DataOutputStream objectStream = new DataOutputStream(outputStream)) {
-                objectStream.writeInt(PACKET_MARKER);
-                objectStream.writeInt(VERSION);
-                objectStream.writeInt(MODE_PLAIN);
-                objectStream.write(rawBytes);
-            }
-            byte[] bytes = outputStream.toByteArray();
-            checkPacketSize(bytes);
-            return bytes;
-        }
+        byte[] rawBytes = serialize(object);
+        byte[] bytes = new byte[HEADER_SIZE + rawBytes.length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        writeHeader(buffer, MODE_PLAIN);
+        buffer.put(rawBytes);
+        checkPacketSize(bytes.length);
+        return bytes;
     }
 
     public byte[] encodeEncrypted(Identity recipient, Object object) throws IOException, CipherException {
-        byte[] rawBytes = mapper.writeValueAsBytes(object);
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            try (DataOutputStream objectStream = new DataOutputStream(outputStream)) {
-                objectStream.writeInt(PACKET_MARKER);
-                objectStream.writeInt(VERSION);
-                objectStream.writeInt(MODE_ENCRYPTED);
-                if (recipient == null) {
-                    throw new IllegalArgumentException("recipient cannot be null when sending MODE_ENCRYPTED packets");
+        if (recipient == null) {
+            throw new IllegalArgumentException("recipient cannot be null when sending MODE_ENCRYPTED packets");
+        }
+        byte[] cipherText = cipher.crypt(recipient, serialize(object));
+        byte[] bytes = new byte[HEADER_SIZE + cipherText.length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        writeHeader(buffer, MODE_ENCRYPTED);
+        buffer.put(cipherText);
+        checkPacketSize(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Encode a plain packet directly into a buffer taken from the pool.
+     * The caller must release the buffer back to the pool once it has been written.
+     * @param object to encode
+     * @param pool to take the buffer from
+     * @return buffer ready to be read
+     * @throws IOException on error
+     */
+    public ByteBuffer encodePlain(Object object, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            writeHeader(buffer, MODE_PLAIN);
+            writeValue(object, buffer);
+            buffer.flip();
+            checkPacketSize(buffer.remaining());
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Encode an encrypted packet into a buffer taken from the pool.
+     * The caller must release the buffer back to the pool once it has been written.
+     * @param recipient of the packet
+     * @param object to encode
+     * @param pool to take the buffer from
+     * @return buffer ready to be read
+     * @throws IOException on error
+     * @throws CipherException if the packet could not be encrypted
+     */
+    public ByteBuffer encodeEncrypted(Identity recipient, Object object, BufferPool pool) throws IOException, CipherException {
+        return encodeEncryptedPayload(recipient, serialize(object), pool);
+    }
+
+    /**
+     * Serialize a packet without framing it, so that one payload can be encoded for many recipients
+     * using {@link #encodePlainPayload(byte[], BufferPool)} or {@link #encodeEncryptedPayload(Identity, byte[], BufferPool)}
+     * @param object to serialize
+     * @return payload
+     * @throws IOException on error
+     */
+    public byte[] serialize(Object object) throws IOException {
+        return encodeBinary ? binaryCodec.encode(object) : mapper.writeValueAsBytes(object);
+    }
+
+    /**
+     * Frame a payload created by {@link #serialize(Object)} as a plain packet in a buffer taken from the pool.
+     * The payload must have been serialized by a PacketIO using the same codec.
+     * @param payload to frame
+     * @param pool to take the buffer from
+     * @return buffer ready to be read
+     */
+    public ByteBuffer encodePlainPayload(byte[] payload, BufferPool pool) {
+        return frame(MODE_PLAIN, payload, pool);
+    }
+
+    /**
+     * Encrypt a payload created by {@link #serialize(Object)} for the recipient into a buffer taken from the pool.
+     * The payload must have been serialized by a PacketIO using the same codec.
+     * @param recipient of the packet
+     * @param payload to encrypt
+     * @param pool to take the buffer from
+     * @return buffer ready to be read
+     * @throws CipherException if the packet could not be encrypted
+     */
+    public ByteBuffer encodeEncryptedPayload(Identity recipient, byte[] payload, BufferPool pool) throws CipherException {
+        if (recipient == null) {
+            throw new IllegalArgumentException("recipient cannot be null when sending MODE_ENCRYPTED packets");
+        }
+        return frame(MODE_ENCRYPTED, cipher.crypt(recipient, payload), pool);
+    }
+
+    private ByteBuffer frame(int mode, byte[] payload, BufferPool pool) {
+        checkPacketSize(HEADER_SIZE + payload.length);
+        ByteBuffer buffer = pool.acquire();
+        try {
+            writeHeader(buffer, mode);
+            buffer.put(payload);
+            buffer.flip();
+            return buffer;
+        } catch (RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+    }
+
+    private void writeHeader(ByteBuffer buffer, int mode) {
+        buffer.putInt(PACKET_MARKER);
+        buffer.putInt(encodeBinary ? VERSION_BINARY : VERSION);
+        buffer.putInt(mode);
+    }
+
+    private <T> T readValue(int version, byte[] bytes, int offset, int length, Class<T> type) throws IOException {
+        return version == VERSION_BINARY ? binaryCodec.decode(bytes, offset, length, type) : mapper.readValue(bytes, offset, length, type);
+    }
+
+    private void writeValue(Object object, ByteBuffer buffer) throws IOException {
+        ByteBufferOutputStream outputStream = new ByteBufferOutputStream(buffer);
+        try {
+            if (encodeBinary) {
+                binaryCodec.encode(object, outputStream);
+            } else {
+                mapper.writeValue(outputStream, object);
+            }
+        } catch (IOException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof BufferOverflowException) {
+                    throw new IllegalStateException("Packet is too large. Size exceeds " + buffer.capacity() + " bytes", e);
                 }
-                objectStream.write(cipher.crypt(recipient, rawBytes));
             }
-            byte[] bytes = outputStream.toByteArray();
-            checkPacketSize(bytes);
-            return bytes;
+            throw e;
         }
     }
 
-    private void checkPacketSize(byte[] bytes) {
-        if (bytes.length > Short.MAX_VALUE) {
-            throw new IllegalStateException("Packet is too large. Size " + bytes.length + " bytes");
+    private static byte[] copy(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void checkPacketSize(int length) {
+        if (length > Short.MAX_VALUE) {
+            throw new IllegalStateException("Packet is too large. Size " + length + " bytes");
         }
     }
 }
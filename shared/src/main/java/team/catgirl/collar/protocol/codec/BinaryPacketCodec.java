@@ -0,0 +1,158 @@
+package team.catgirl.collar.protocol.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import team.catgirl.collar.protocol.keepalive.KeepAliveRequest;
+import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+import team.catgirl.collar.protocol.location.UpdateLocationRequest;
+import team.catgirl.collar.protocol.location.UpdateLocationsRequest;
+import team.catgirl.collar.protocol.location.UpdateNearbyDeltaRequest;
+import team.catgirl.collar.protocol.messaging.SendMessageRequest;
+import team.catgirl.collar.protocol.messaging.SendMessageResponse;
+import team.catgirl.collar.protocol.sdht.SDHTEventRequest;
+import team.catgirl.collar.protocol.sdht.SDHTEventResponse;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes packets as a short numeric type id followed by the packet written by its {@link PacketSerializer}.
+ * Packets without a registered serializer are written with type id {@link #TYPE_FALLBACK} followed by the packet
+ * encoded by the Jackson mapper, so every packet can be sent using this codec.
+ *
+ * Type ids are part of the wire format. Never reuse or renumber a type id. Changes to a serializer or to the type ids
+ * require {@link #VERSION} to be bumped so that clients fall back to the Jackson codec until they are updated.
+ */
+public final class BinaryPacketCodec {
+
+    /**
+     * Version of the type id registry and serializers, advertised to clients by the server
+     */
+    public static final int VERSION = 4;
+
+    private static final short TYPE_FALLBACK = 0;
+
+    private static final Map<Class<?>, Registration<?>> BY_TYPE = new HashMap<>();
+    private static final Map<Short, Registration<?>> BY_ID = new HashMap<>();
+
+    static {
+        register(1, KeepAliveRequest.class, PacketSerializers.KEEP_ALIVE_REQUEST);
+        register(2, KeepAliveResponse.class, PacketSerializers.KEEP_ALIVE_RESPONSE);
+        register(3, UpdateLocationRequest.class, PacketSerializers.UPDATE_LOCATION_REQUEST);
+        register(4, LocationUpdatedResponse.class, PacketSerializers.LOCATION_UPDATED_RESPONSE);
+        register(5, SendMessageRequest.class, PacketSerializers.SEND_MESSAGE_REQUEST);
+        register(6, SendMessageResponse.class, PacketSerializers.SEND_MESSAGE_RESPONSE);
+        register(7, SDHTEventRequest.class, PacketSerializers.SDHT_EVENT_REQUEST);
+        register(8, SDHTEventResponse.class, PacketSerializers.SDHT_EVENT_RESPONSE);
+        register(9, LocationsUpdatedResponse.class, PacketSerializers.LOCATIONS_UPDATED_RESPONSE);
+        register(10, UpdateNearbyDeltaRequest.class, PacketSerializers.UPDATE_NEARBY_DELTA_REQUEST);
+        register(11, UpdateLocationsRequest.class, PacketSerializers.UPDATE_LOCATIONS_REQUEST);
+    }
+
+    private final ObjectMapper fallback;
+    private final ObjectWriter fallbackWriter;
+
+    /**
+     * @param fallback mapper used for packets without a serializer
+     */
+    public BinaryPacketCodec(ObjectMapper fallback) {
+        this.fallback = fallback;
+        this.fallbackWriter = fallback.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * Encode packet
+     * @param packet to encode
+     * @return bytes
+     * @throws IOException on error
+     */
+    public byte[] encode(Object packet) throws IOException {
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            encode(packet, outputStream);
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * Encode packet into a stream
+     * @param packet to encode
+     * @param outputStream to write to
+     * @throws IOException on error
+     */
+    @SuppressWarnings("unchecked")
+    public void encode(Object packet, OutputStream outputStream) throws IOException {
+        Registration<Object> registration = (Registration<Object>) BY_TYPE.get(packet.getClass());
+        DataOutputStream objectStream = new DataOutputStream(outputStream);
+        if (registration == null) {
+            objectStream.writeShort(TYPE_FALLBACK);
+            objectStream.flush();
+            fallbackWriter.writeValue(outputStream, packet);
+        } else {
+            objectStream.writeShort(registration.id);
+            registration.serializer.write(objectStream, packet);
+            objectStream.flush();
+        }
+    }
+
+    /**
+     * Decode packet
+     * @param bytes to decode
+     * @param type expected
+     * @param <T> type expected
+     * @return packet
+     * @throws IOException on error
+     */
+    public <T> T decode(byte[] bytes, Class<T> type) throws IOException {
+        return decode(bytes, 0, bytes.length, type);
+    }
+
+    /**
+     * Decode packet from a region of an array without copying it
+     * @param bytes containing the packet
+     * @param offset of the packet in bytes
+     * @param length of the packet
+     * @param type expected
+     * @param <T> type expected
+     * @return packet
+     * @throws IOException on error
+     */
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) throws IOException {
+        Object decoded;
+        try (DataInputStream objectStream = new DataInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            short typeId = objectStream.readShort();
+            if (typeId == TYPE_FALLBACK) {
+                return fallback.readValue(bytes, offset + 2, length - 2, type);
+            }
+            Registration<?> registration = BY_ID.get(typeId);
+            if (registration == null) {
+                throw new IllegalStateException("unknown packet type id " + typeId);
+            }
+            decoded = registration.serializer.read(objectStream);
+        }
+        if (!type.isInstance(decoded)) {
+            throw new IllegalStateException("expected " + type.getName() + " but decoded " + decoded.getClass().getName());
+        }
+        return type.cast(decoded);
+    }
+
+    private static <T> void register(int id, Class<T> type, PacketSerializer<T> serializer) {
+        Registration<T> registration = new Registration<>((short) id, serializer);
+        if (BY_TYPE.put(type, registration) != null || BY_ID.put(registration.id, registration) != null) {
+            throw new IllegalStateException("type " + type.getName() + " with id " + id + " registered twice");
+        }
+    }
+
+    private static final class Registration<T> {
+        final short id;
+        final PacketSerializer<T> serializer;
+
+        Registration(short id, PacketSerializer<T> serializer) {
+            this.id = id;
+            this.serializer = serializer;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package team.catgirl.collar.protocol.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Hand written binary serializer for a single packet type
+ * @param <T> packet type
+ */
+public interface PacketSerializer<T> {
+    /**
+     * Write the packet to the stream
+     * @param os to write to
+     * @param packet to write
+     * @throws IOException on error
+     */
+    void write(DataOutputStream os, T packet) throws IOException;
+
+    /**
+     * Read the packet from the stream
+     * @param is to read from
+     * @return packet
+     * @throws IOException on error
+     */
+    T read(DataInputStream is) throws IOException;
+}
@@ -0,0 +1,433 @@
+package team.catgirl.collar.protocol.codec;
+
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.io.IO;
+import team.catgirl.collar.protocol.keepalive.KeepAliveRequest;
+import team.catgirl.collar.protocol.keepalive.KeepAliveResponse;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+import team.catgirl.collar.protocol.location.UpdateLocationRequest;
+import team.catgirl.collar.protocol.location.UpdateLocationsRequest;
+import team.catgirl.collar.protocol.location.UpdateNearbyDeltaRequest;
+import team.catgirl.collar.protocol.messaging.SendMessageRequest;
+import team.catgirl.collar.protocol.messaging.SendMessageResponse;
+import team.catgirl.collar.protocol.sdht.SDHTEventRequest;
+import team.catgirl.collar.protocol.sdht.SDHTEventResponse;
+import team.catgirl.collar.sdht.Key;
+import team.catgirl.collar.sdht.Record;
+import team.catgirl.collar.sdht.events.*;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.Identity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.ServerIdentity;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Serializers for packets sent frequently enough that the size and cost of the Jackson encoding matters.
+ * Packets are read before the peer is authenticated, so every length and count read is checked against the input
+ * that remains before anything is allocated for it.
+ */
+final class PacketSerializers {
+
+    private static final byte IDENTITY_NULL = 0;
+    private static final byte IDENTITY_CLIENT = 1;
+    private static final byte IDENTITY_SERVER = 2;
+
+    private static final byte EVENT_CREATE_ENTRY = 1;
+    private static final byte EVENT_DELETE_RECORD = 2;
+    private static final byte EVENT_PUBLISH_RECORDS = 3;
+    private static final byte EVENT_SYNC_RECORDS = 4;
+    private static final byte EVENT_SYNC_CONTENT = 5;
+
+    static final PacketSerializer<KeepAliveRequest> KEEP_ALIVE_REQUEST = serializer(
+            (os, packet) -> writeClientIdentity(os, packet.identity),
+            is -> new KeepAliveRequest(readClientIdentity(is)));
+
+    static final PacketSerializer<KeepAliveResponse> KEEP_ALIVE_RESPONSE = serializer(
+            (os, packet) -> writeServerIdentity(os, packet.identity),
+            is -> new KeepAliveResponse(readServerIdentity(is)));
+
+    static final PacketSerializer<UpdateLocationRequest> UPDATE_LOCATION_REQUEST = serializer(
+            (os, packet) -> {
+                writeClientIdentity(os, packet.identity);
+                writeUUID(os, packet.group);
+                writeBytes(os, packet.location);
+            },
+            is -> new UpdateLocationRequest(readClientIdentity(is), readUUID(is), readBytes(is)));
+
+    static final PacketSerializer<UpdateLocationsRequest> UPDATE_LOCATIONS_REQUEST = serializer(
+            (os, packet) -> {
+                writeClientIdentity(os, packet.identity);
+                os.writeInt(packet.locations.size());
+                for (Map.Entry<UUID, byte[]> entry : packet.locations.entrySet()) {
+                    writeUUID(os, entry.getKey());
+                    writeBytes(os, entry.getValue());
+                }
+            },
+            is -> {
+                ClientIdentity identity = readClientIdentity(is);
+                int size = readCount(is);
+                if (size > UpdateLocationsRequest.MAX_GROUPS) {
+                    throw new IOException("location sent to " + size + " groups");
+                }
+                Map<UUID, byte[]> locations = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    locations.put(readUUID(is), readBytes(is));
+                }
+                return new UpdateLocationsRequest(identity, locations);
+            });
+
+    static final PacketSerializer<LocationUpdatedResponse> LOCATION_UPDATED_RESPONSE = serializer(
+            (os, packet) -> {
+                writeServerIdentity(os, packet.identity);
+                writeClientIdentity(os, packet.sender);
+                writeUUID(os, packet.group);
+                writePlayer(os, packet.player);
+                writeBytes(os, packet.location);
+            },
+            is -> new LocationUpdatedResponse(readServerIdentity(is), readClientIdentity(is), readUUID(is), readPlayer(is), readBytes(is)));
+
+    static final PacketSerializer<LocationsUpdatedResponse> LOCATIONS_UPDATED_RESPONSE = serializer(
+            (os, packet) -> {
+                // Every update is from the same server so its identity is only written once
+                writeServerIdentity(os, packet.identity);
+                os.writeInt(packet.updates.size());
+                for (LocationUpdatedResponse update : packet.updates) {
+                    writeClientIdentity(os, update.sender);
+                    writeUUID(os, update.group);
+                    writePlayer(os, update.player);
+                    writeBytes(os, update.location);
+                }
+            },
+            is -> {
+                ServerIdentity identity = readServerIdentity(is);
+                int size = readCount(is);
+                List<LocationUpdatedResponse> updates = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    updates.add(new LocationUpdatedResponse(identity, readClientIdentity(is), readUUID(is), readPlayer(is), readBytes(is)));
+                }
+                return new LocationsUpdatedResponse(identity, updates);
+            });
+
+    static final PacketSerializer<UpdateNearbyDeltaRequest> UPDATE_NEARBY_DELTA_REQUEST = serializer(
+            (os, packet) -> {
+                writeClientIdentity(os, packet.identity);
+                writeBytes(os, packet.added);
+                writeBytes(os, packet.removed);
+            },
+            is -> new UpdateNearbyDeltaRequest(readClientIdentity(is), readBytes(is), readBytes(is)));
+
+    static final PacketSerializer<SendMessageRequest> SEND_MESSAGE_REQUEST = serializer(
+            (os, packet) -> {
+                writeClientIdentity(os, packet.identity);
+                writeClientIdentity(os, packet.recipient);
+                writeUUID(os, packet.group);
+                writeBytes(os, packet.message);
+            },
+            is -> new SendMessageRequest(readClientIdentity(is), readClientIdentity(is), readUUID(is), readBytes(is)));
+
+    static final PacketSerializer<SendMessageResponse> SEND_MESSAGE_RESPONSE = serializer(
+            (os, packet) -> {
+                writeServerIdentity(os, packet.identity);
+                writeIdentity(os, packet.sender);
+                writeUUID(os, packet.group);
+                writePlayer(os, packet.player);
+                writeBytes(os, packet.message);
+            },
+            is -> new SendMessageResponse(readServerIdentity(is), readIdentity(is), readUUID(is), readPlayer(is), readBytes(is)));
+
+    static final PacketSerializer<SDHTEventRequest> SDHT_EVENT_REQUEST = serializer(
+            (os, packet) -> {
+                writeClientIdentity(os, packet.identity);
+                writeEvent(os, packet.event);
+            },
+            is -> new SDHTEventRequest(readClientIdentity(is), readEvent(is)));
+
+    static final PacketSerializer<SDHTEventResponse> SDHT_EVENT_RESPONSE = serializer(
+            (os, packet) -> {
+                writeServerIdentity(os, packet.identity);
+                writeEvent(os, packet.event);
+            },
+            is -> new SDHTEventResponse(readServerIdentity(is), readEvent(is)));
+
+    private static void writeEvent(DataOutputStream os, AbstractSDHTEvent event) throws IOException {
+        if (event instanceof CreateEntryEvent) {
+            CreateEntryEvent e = (CreateEntryEvent) event;
+            os.writeByte(EVENT_CREATE_ENTRY);
+            writeClientIdentity(os, e.sender);
+            writeClientIdentity(os, e.recipient);
+            writeRecord(os, e.record);
+            writeBytes(os, e.content);
+        } else if (event instanceof DeleteRecordEvent) {
+            DeleteRecordEvent e = (DeleteRecordEvent) event;
+            os.writeByte(EVENT_DELETE_RECORD);
+            writeClientIdentity(os, e.sender);
+            writeRecord(os, e.delete);
+        } else if (event instanceof PublishRecordsEvent) {
+            PublishRecordsEvent e = (PublishRecordsEvent) event;
+            os.writeByte(EVENT_PUBLISH_RECORDS);
+            writeClientIdentity(os, e.sender);
+            if (e.records == null) {
+                os.writeInt(-1);
+            } else {
+                os.writeInt(e.records.size());
+                for (Record record : e.records) {
+                    writeRecord(os, record);
+                }
+            }
+            writeClientIdentity(os, e.recipient);
+        } else if (event instanceof SyncRecordsEvent) {
+            SyncRecordsEvent e = (SyncRecordsEvent) event;
+            os.writeByte(EVENT_SYNC_RECORDS);
+            writeClientIdentity(os, e.sender);
+            writeUUID(os, e.namespace);
+        } else if (event instanceof SyncContentEvent) {
+            SyncContentEvent e = (SyncContentEvent) event;
+            os.writeByte(EVENT_SYNC_CONTENT);
+            writeClientIdentity(os, e.sender);
+            writeClientIdentity(os, e.recipient);
+            writeRecord(os, e.record);
+        } else {
+            throw new IllegalStateException("unknown event " + event);
+        }
+    }
+
+    private static AbstractSDHTEvent readEvent(DataInputStream is) throws IOException {
+        byte type = is.readByte();
+        switch (type) {
+            case EVENT_CREATE_ENTRY:
+                return new CreateEntryEvent(readClientIdentity(is), readClientIdentity(is), readRecord(is), readBytes(is));
+            case EVENT_DELETE_RECORD:
+                return new DeleteRecordEvent(readClientIdentity(is), readRecord(is));
+            case EVENT_PUBLISH_RECORDS:
+                ClientIdentity sender = readClientIdentity(is);
+                int size = is.readInt();
+                Set<Record> records = null;
+                if (size != -1) {
+                    checkLength(is, size);
+                    records = new HashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        records.add(readRecord(is));
+                    }
+                }
+                return new PublishRecordsEvent(sender, records, readClientIdentity(is));
+            case EVENT_SYNC_RECORDS:
+                return new SyncRecordsEvent(readClientIdentity(is), readUUID(is));
+            case EVENT_SYNC_CONTENT:
+                return new SyncContentEvent(readClientIdentity(is), readClientIdentity(is), readRecord(is));
+            default:
+                throw new IllegalStateException("unknown event type " + type);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream os, Record record) throws IOException {
+        os.writeBoolean(record != null);
+        if (record != null) {
+            writeUUID(os, record.key.namespace);
+            writeUUID(os, record.key.id);
+            writeBytes(os, record.checksum);
+            os.writeLong(record.version);
+        }
+    }
+
+    private static Record readRecord(DataInputStream is) throws IOException {
+        if (!is.readBoolean()) {
+            return null;
+        }
+        Key key = new Key(readUUID(is), readUUID(is));
+        return new Record(key, readBytes(is), is.readLong());
+    }
+
+    private static void writeIdentity(DataOutputStream os, Identity identity) throws IOException {
+        if (identity == null) {
+            os.writeByte(IDENTITY_NULL);
+        } else if (identity instanceof ClientIdentity) {
+            os.writeByte(IDENTITY_CLIENT);
+            writeClientIdentity(os, (ClientIdentity) identity);
+        } else if (identity instanceof ServerIdentity) {
+            os.writeByte(IDENTITY_SERVER);
+            writeServerIdentity(os, (ServerIdentity) identity);
+        } else {
+            throw new IllegalStateException("unknown identity " + identity.getClass());
+        }
+    }
+
+    private static Identity readIdentity(DataInputStream is) throws IOException {
+        byte type = is.readByte();
+        switch (type) {
+            case IDENTITY_NULL:
+                return null;
+            case IDENTITY_CLIENT:
+                return readClientIdentity(is);
+            case IDENTITY_SERVER:
+                return readServerIdentity(is);
+            default:
+                throw new IllegalStateException("unknown identity type " + type);
+        }
+    }
+
+    private static void writeClientIdentity(DataOutputStream os, ClientIdentity identity) throws IOException {
+        os.writeBoolean(identity != null);
+        if (identity != null) {
+            writeUUID(os, identity.owner);
+            writeBytes(os, identity.publicKey == null ? null : identity.publicKey.key);
+            writeInteger(os, identity.deviceId);
+        }
+    }
+
+    private static ClientIdentity readClientIdentity(DataInputStream is) throws IOException {
+        if (!is.readBoolean()) {
+            return null;
+        }
+        UUID owner = readUUID(is);
+        byte[] key = readBytes(is);
+        return new ClientIdentity(owner, key == null ? null : new PublicKey(key), readInteger(is));
+    }
+
+    private static void writeServerIdentity(DataOutputStream os, ServerIdentity identity) throws IOException {
+        os.writeBoolean(identity != null);
+        if (identity != null) {
+            writeBytes(os, identity.publicKey == null ? null : identity.publicKey.key);
+            writeUUID(os, identity.serverId);
+        }
+    }
+
+    private static ServerIdentity readServerIdentity(DataInputStream is) throws IOException {
+        if (!is.readBoolean()) {
+            return null;
+        }
+        byte[] key = readBytes(is);
+        return new ServerIdentity(key == null ? null : new PublicKey(key), readUUID(is));
+    }
+
+    private static void writePlayer(DataOutputStream os, Player player) throws IOException {
+        os.writeBoolean(player != null);
+        if (player != null) {
+            writeUUID(os, player.profile);
+            MinecraftPlayer minecraftPlayer = player.minecraftPlayer;
+            os.writeBoolean(minecraftPlayer != null);
+            if (minecraftPlayer != null) {
+                writeUUID(os, minecraftPlayer.id);
+                writeString(os, minecraftPlayer.server);
+                writeInteger(os, minecraftPlayer.networkId);
+            }
+        }
+    }
+
+    private static Player readPlayer(DataInputStream is) throws IOException {
+        if (!is.readBoolean()) {
+            return null;
+        }
+        UUID profile = readUUID(is);
+        MinecraftPlayer minecraftPlayer = is.readBoolean() ? new MinecraftPlayer(readUUID(is), readString(is), readInteger(is)) : null;
+        return new Player(profile, minecraftPlayer);
+    }
+
+    private static void writeUUID(DataOutputStream os, UUID uuid) throws IOException {
+        os.writeBoolean(uuid != null);
+        if (uuid != null) {
+            IO.writeUUID(os, uuid);
+        }
+    }
+
+    private static UUID readUUID(DataInputStream is) throws IOException {
+        return is.readBoolean() ? IO.readUUID(is) : null;
+    }
+
+    private static void writeBytes(DataOutputStream os, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            os.writeInt(-1);
+        } else {
+            os.writeInt(bytes.length);
+            os.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[checkLength(is, length)];
+        is.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return count of the elements that follow
+     * @throws IOException if the count is negative or there are fewer bytes left than elements
+     */
+    private static int readCount(DataInputStream is) throws IOException {
+        return checkLength(is, is.readInt());
+    }
+
+    /**
+     * Checks a length or count read from the peer. Every byte or element takes at least one byte of the input,
+     * which is always fully buffered, so anything larger than the input that remains is malformed.
+     * @return length
+     * @throws IOException if the length is negative or larger than the input that remains
+     */
+    private static int checkLength(DataInputStream is, int length) throws IOException {
+        if (length < 0 || length > is.available()) {
+            throw new IOException("invalid length " + length + " with " + is.available() + " bytes remaining");
+        }
+        return length;
+    }
+
+    private static void writeInteger(DataOutputStream os, Integer value) throws IOException {
+        os.writeBoolean(value != null);
+        if (value != null) {
+            os.writeInt(value);
+        }
+    }
+
+    private static Integer readInteger(DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readInt() : null;
+    }
+
+    private static void writeString(DataOutputStream os, String value) throws IOException {
+        os.writeBoolean(value != null);
+        if (value != null) {
+            os.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    private static <T> PacketSerializer<T> serializer(Writer<T> writer, Reader<T> reader) {
+        return new PacketSerializer<T>() {
+            @Override
+            public void write(DataOutputStream os, T packet) throws IOException {
+                writer.write(os, packet);
+            }
+
+            @Override
+            public T read(DataInputStream is) throws IOException {
+                return reader.read(is);
+            }
+        };
+    }
+
+    private interface Writer<T> {
+        void write(DataOutputStream os, T packet) throws IOException;
+    }
+
+    private interface Reader<T> {
+        T read(DataInputStream is) throws IOException;
+    }
+
+    private PacketSerializers() {}
+}
@@ -0,0 +1,27 @@
+package team.catgirl.collar.protocol.location;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ServerIdentity;
+
+import java.util.UUID;
+
+/**
+ * Sent to a player sharing their location with a group when whether anyone is receiving it changes.
+ * Players can slow down sending their location to a group that nobody is listening to.
+ * Only sent to clients using the binary codec, as older clients cannot decode it.
+ */
+public final class LocationSubscribersResponse extends ProtocolResponse {
+    @JsonProperty("group")
+    public final UUID group;
+    @JsonProperty("listening")
+    public final boolean listening;
+
+    public LocationSubscribersResponse(@JsonProperty("identity") ServerIdentity identity,
+                                       @JsonProperty("group") UUID group,
+                                       @JsonProperty("listening") boolean listening) {
+        super(identity);
+        this.group = group;
+        this.listening = listening;
+    }
+}
@@ -0,0 +1,23 @@
+package team.catgirl.collar.protocol.location;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ServerIdentity;
+
+import java.util.List;
+
+/**
+ * Sent to a client listening for player locations with the latest location of every player that updated
+ * their location since the last broadcast
+ */
+public final class LocationsUpdatedResponse extends ProtocolResponse {
+
+    @JsonProperty("updates")
+    public final List<LocationUpdatedResponse> updates;
+
+    public LocationsUpdatedResponse(@JsonProperty("identity") ServerIdentity identity,
+                                    @JsonProperty("updates") List<LocationUpdatedResponse> updates) {
+        super(identity);
+        this.updates = updates;
+    }
+}
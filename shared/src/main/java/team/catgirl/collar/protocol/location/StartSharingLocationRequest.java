@@ -1,6 +1,7 @@
 package team.catgirl.collar.protocol.location;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.api.location.LocationFanOut;
 import team.catgirl.collar.protocol.ProtocolRequest;
 import team.catgirl.collar.security.ClientIdentity;
 
@@ -9,9 +10,17 @@ import java.util.UUID;
 public final class StartSharingLocationRequest extends ProtocolRequest {
     @JsonProperty("groupId")
     public final UUID groupId;
+    /**
+     * Members of the group to send the location to. Older clients do not send it, which means {@link LocationFanOut#ALL}
+     */
+    @JsonProperty("fanOut")
+    public final LocationFanOut fanOut;
 
-    public StartSharingLocationRequest(@JsonProperty("identity") ClientIdentity identity, @JsonProperty("groupId") UUID groupId) {
+    public StartSharingLocationRequest(@JsonProperty("identity") ClientIdentity identity,
+                                       @JsonProperty("groupId") UUID groupId,
+                                       @JsonProperty("fanOut") LocationFanOut fanOut) {
         super(identity);
         this.groupId = groupId;
+        this.fanOut = fanOut == null ? LocationFanOut.ALL : fanOut;
     }
 }
@@ -0,0 +1,22 @@
+package team.catgirl.collar.protocol.location;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.security.ClientIdentity;
+
+import java.util.UUID;
+
+/**
+ * Sent by a client when it wants to receive the locations of players sharing with a group, e.g. when its map is open.
+ * Once a client has subscribed to any group it only receives locations from the groups it is subscribed to.
+ * Clients that never subscribe receive locations from every group they are a member of.
+ */
+public final class SubscribeToLocationsRequest extends ProtocolRequest {
+    @JsonProperty("groupId")
+    public final UUID groupId;
+
+    public SubscribeToLocationsRequest(@JsonProperty("identity") ClientIdentity identity, @JsonProperty("groupId") UUID groupId) {
+        super(identity);
+        this.groupId = groupId;
+    }
+}
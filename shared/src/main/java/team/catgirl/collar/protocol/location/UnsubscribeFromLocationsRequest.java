@@ -0,0 +1,20 @@
+package team.catgirl.collar.protocol.location;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.security.ClientIdentity;
+
+import java.util.UUID;
+
+/**
+ * Sent by a client when it no longer wants to receive the locations of players sharing with a group
+ */
+public final class UnsubscribeFromLocationsRequest extends ProtocolRequest {
+    @JsonProperty("groupId")
+    public final UUID groupId;
+
+    public UnsubscribeFromLocationsRequest(@JsonProperty("identity") ClientIdentity identity, @JsonProperty("groupId") UUID groupId) {
+        super(identity);
+        this.groupId = groupId;
+    }
+}
@@ -0,0 +1,31 @@
+package team.catgirl.collar.protocol.location;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.security.ClientIdentity;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sent by the client to update the players current location in several groups at once.
+ * Each group is sent the same location encrypted for that group, as it would be by {@link UpdateLocationRequest}.
+ */
+public final class UpdateLocationsRequest extends ProtocolRequest {
+    /** Most groups a location can be sent to in one request **/
+    public static final int MAX_GROUPS = 100;
+
+    /**
+     * Group id to the location encrypted for the group
+     */
+    @JsonProperty("locations")
+    public final Map<UUID, byte[]> locations;
+
+    @JsonCreator
+    public UpdateLocationsRequest(@JsonProperty("identity") ClientIdentity identity,
+                                  @JsonProperty("locations") Map<UUID, byte[]> locations) {
+        super(identity);
+        this.locations = locations;
+    }
+}
@@ -0,0 +1,36 @@
+package team.catgirl.collar.protocol.location;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.security.ClientIdentity;
+
+/**
+ * Sent when the players the sender can see change, with only the changes since the last {@link UpdateNearbyRequest}
+ * or {@link UpdateNearbyDeltaRequest}. Hashes are the raw sha256 digests of player identity ids, back to back.
+ */
+public final class UpdateNearbyDeltaRequest extends ProtocolRequest {
+    /**
+     * Length of each hash in bytes
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * sha256 hashes of player identity ids that the sender can now see
+     */
+    @JsonProperty("added")
+    public final byte[] added;
+
+    /**
+     * sha256 hashes of player identity ids that the sender can no longer see
+     */
+    @JsonProperty("removed")
+    public final byte[] removed;
+
+    public UpdateNearbyDeltaRequest(@JsonProperty("identity") ClientIdentity identity,
+                                    @JsonProperty("added") byte[] added,
+                                    @JsonProperty("removed") byte[] removed) {
+        super(identity);
+        this.added = added;
+        this.removed = removed;
+    }
+}
@@ -0,0 +1,16 @@
+package team.catgirl.collar.protocol.session;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.security.ClientIdentity;
+
+/**
+ * Asks for a new {@link SessionTicketResponse} before the current ticket expires
+ */
+public final class RenewSessionTicketRequest extends ProtocolRequest {
+    @JsonCreator
+    public RenewSessionTicketRequest(@JsonProperty("identity") ClientIdentity identity) {
+        super(identity);
+    }
+}
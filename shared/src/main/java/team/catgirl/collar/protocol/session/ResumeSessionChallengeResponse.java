@@ -0,0 +1,25 @@
+package team.catgirl.collar.protocol.session;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ServerIdentity;
+
+/**
+ * Sent when the ticket in a {@link ResumeSessionRequest} can be redeemed. The client proves it holds the identity the
+ * ticket was issued to by sending the request again with the challenge signed by its identity key.
+ */
+public final class ResumeSessionChallengeResponse extends ProtocolResponse {
+    /**
+     * Opaque to the client
+     */
+    @JsonProperty("challenge")
+    public final byte[] challenge;
+
+    @JsonCreator
+    public ResumeSessionChallengeResponse(@JsonProperty("identity") ServerIdentity identity,
+                                          @JsonProperty("challenge") byte[] challenge) {
+        super(identity);
+        this.challenge = challenge;
+    }
+}
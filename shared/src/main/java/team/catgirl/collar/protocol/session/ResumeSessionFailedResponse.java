@@ -0,0 +1,17 @@
+package team.catgirl.collar.protocol.session;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ServerIdentity;
+
+/**
+ * Sent when the ticket in a {@link ResumeSessionRequest} was invalid, expired or already used, or the challenge was not signed by the client.
+ * The client should start the session again with {@link team.catgirl.collar.protocol.identity.IdentifyRequest}
+ */
+public final class ResumeSessionFailedResponse extends ProtocolResponse {
+    @JsonCreator
+    public ResumeSessionFailedResponse(@JsonProperty("identity") ServerIdentity identity) {
+        super(identity);
+    }
+}
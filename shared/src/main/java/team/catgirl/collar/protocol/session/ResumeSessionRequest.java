@@ -0,0 +1,44 @@
+package team.catgirl.collar.protocol.session;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.security.ClientIdentity;
+
+/**
+ * Sent instead of {@link team.catgirl.collar.protocol.identity.IdentifyRequest} when reconnecting with a ticket from
+ * {@link SessionTicketResponse} that has not expired. The server restores the session without verifying the
+ * Minecraft session again.
+ * The request is first sent with only the ticket. The server answers with a {@link ResumeSessionChallengeResponse}
+ * and the request is sent again with the challenge signed by the client's identity key.
+ * Location sharing is not restored by the server. The client sends its sharing requests again once the session has resumed.
+ */
+public final class ResumeSessionRequest extends ProtocolRequest {
+    @JsonProperty("ticket")
+    public final byte[] ticket;
+    /**
+     * Challenge from {@link ResumeSessionChallengeResponse}, or null when asking for one
+     */
+    @JsonProperty("challenge")
+    public final byte[] challenge;
+    /**
+     * Signature of the challenge made with the client's identity key
+     */
+    @JsonProperty("signature")
+    public final byte[] signature;
+
+    @JsonCreator
+    public ResumeSessionRequest(@JsonProperty("identity") ClientIdentity identity,
+                                @JsonProperty("ticket") byte[] ticket,
+                                @JsonProperty("challenge") byte[] challenge,
+                                @JsonProperty("signature") byte[] signature) {
+        super(identity);
+        this.ticket = ticket;
+        this.challenge = challenge;
+        this.signature = signature;
+    }
+
+    public ResumeSessionRequest(ClientIdentity identity, byte[] ticket) {
+        this(identity, ticket, null, null);
+    }
+}
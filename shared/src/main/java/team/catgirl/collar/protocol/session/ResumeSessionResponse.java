@@ -0,0 +1,17 @@
+package team.catgirl.collar.protocol.session;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ServerIdentity;
+
+/**
+ * Sent when a {@link ResumeSessionRequest} was accepted. The session is encrypted from here on, as it is after
+ * {@link team.catgirl.collar.protocol.trust.CheckTrustRelationshipResponse.IsTrustedRelationshipResponse}
+ */
+public final class ResumeSessionResponse extends ProtocolResponse {
+    @JsonCreator
+    public ResumeSessionResponse(@JsonProperty("identity") ServerIdentity identity) {
+        super(identity);
+    }
+}
@@ -58,4 +58,19 @@ public abstract class SessionFailedResponse extends ProtocolResponse {
             this.reason = reason;
         }
     }
+
+    /**
+     * Fired when the server is handling too many handshakes to start the session.
+     * The client should wait at least {@link #retryAfterMillis} before reconnecting
+     */
+    public static final class ServerBusyResponse extends SessionFailedResponse {
+        @JsonProperty("retryAfterMillis")
+        public final long retryAfterMillis;
+
+        @JsonCreator
+        public ServerBusyResponse(@JsonProperty("identity") ServerIdentity identity, @JsonProperty("retryAfterMillis") long retryAfterMillis) {
+            super(identity);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
 }
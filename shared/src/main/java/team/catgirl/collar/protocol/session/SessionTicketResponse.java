@@ -0,0 +1,32 @@
+package team.catgirl.collar.protocol.session;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.security.ServerIdentity;
+
+/**
+ * Ticket the client can send in a {@link ResumeSessionRequest} to restore its session after reconnecting.
+ * Sent once the session has started and in reply to {@link RenewSessionTicketRequest}
+ */
+public final class SessionTicketResponse extends ProtocolResponse {
+    /**
+     * Opaque to the client
+     */
+    @JsonProperty("ticket")
+    public final byte[] ticket;
+    /**
+     * Time from now that the ticket can be used for
+     */
+    @JsonProperty("lifetimeMillis")
+    public final long lifetimeMillis;
+
+    @JsonCreator
+    public SessionTicketResponse(@JsonProperty("identity") ServerIdentity identity,
+                                 @JsonProperty("ticket") byte[] ticket,
+                                 @JsonProperty("lifetimeMillis") long lifetimeMillis) {
+        super(identity);
+        this.ticket = ticket;
+        this.lifetimeMillis = lifetimeMillis;
+    }
+}
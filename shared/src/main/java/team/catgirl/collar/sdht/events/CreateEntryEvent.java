@@ -6,7 +6,7 @@ import team.catgirl.collar.security.ClientIdentity;
 
 public final class CreateEntryEvent extends AbstractSDHTEvent {
     @JsonProperty("recipient")
-    private final ClientIdentity recipient;
+    public final ClientIdentity recipient;
     @JsonProperty("record")
     public final Record record;
     @JsonProperty("content")
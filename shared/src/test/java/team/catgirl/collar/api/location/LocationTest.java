@@ -0,0 +1,58 @@
+package team.catgirl.collar.api.location;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class LocationTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        Location location = new Location(-29_999_984.53, 319.0, 12.97, Dimension.NETHER);
+        Assert.assertEquals(location, new Location(location.serialize()));
+    }
+
+    @Test
+    public void compactRoundTripToSixteenthOfABlock() throws IOException {
+        Location location = new Location(-29_999_984.53, 319.0, 12.97, Dimension.NETHER);
+        byte[] bytes = new byte[Location.COMPACT_SERIALIZED_SIZE];
+        location.serializeCompact(bytes);
+        Location decoded = new Location(bytes);
+        Assert.assertEquals(Dimension.NETHER, decoded.dimension);
+        Assert.assertEquals(location.x, decoded.x, 1.0 / 32);
+        Assert.assertEquals(location.y, decoded.y, 1.0 / 32);
+        Assert.assertEquals(location.z, decoded.z, 1.0 / 32);
+    }
+
+    @Test
+    public void serializeIntoReusedBuffer() throws IOException {
+        byte[] buffer = new byte[Location.COMPACT_SERIALIZED_SIZE];
+        new Location(1d, 2d, 3d, Dimension.OVERWORLD).serializeCompact(buffer);
+        new Location(4d, 5d, 6d, Dimension.END).serializeCompact(buffer);
+        Assert.assertEquals(new Location(4d, 5d, 6d, Dimension.END), new Location(buffer));
+    }
+
+    @Test
+    public void unknownRoundTrips() throws IOException {
+        Assert.assertEquals(Location.UNKNOWN, new Location(Location.UNKNOWN.serialize()));
+        byte[] bytes = new byte[Location.COMPACT_SERIALIZED_SIZE];
+        Location.UNKNOWN.serializeCompact(bytes);
+        Assert.assertEquals(Location.UNKNOWN, new Location(bytes));
+    }
+
+    @Test
+    public void readVersionOne() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (DataOutputStream dataStream = new DataOutputStream(outputStream)) {
+            dataStream.writeInt(1);
+            dataStream.writeDouble(1.25);
+            dataStream.writeDouble(64);
+            dataStream.writeDouble(-3.5);
+            dataStream.writeUTF(Dimension.END.name());
+        }
+        Assert.assertEquals(new Location(1.25, 64d, -3.5, Dimension.END), new Location(outputStream.toByteArray()));
+    }
+}
@@ -0,0 +1,116 @@
+package team.catgirl.collar.protocol;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.io.BufferPool;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.messaging.SendMessageResponse;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.ServerIdentity;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+import team.catgirl.collar.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+public class PacketIOTest {
+
+    private static final Logger LOGGER = Logger.getLogger(PacketIOTest.class.getName());
+
+    private final ObjectMapper mapper = Utils.messagePackMapper();
+    private final ClientIdentity client = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[32]), 1);
+    private final ServerIdentity server = new ServerIdentity(new PublicKey(new byte[33]), UUID.randomUUID());
+    private final Player player = new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 42));
+
+    @Test
+    public void pooledEncodeRoundTrips() throws Exception {
+        BufferPool pool = new BufferPool(Short.MAX_VALUE, 1);
+        for (boolean binary : new boolean[]{false, true}) {
+            PacketIO packetIO = new PacketIO(mapper, null, binary);
+            LocationUpdatedResponse packet = location();
+            ByteBuffer buffer = packetIO.encodePlain(packet, pool);
+            Assert.assertArrayEquals(packetIO.encodePlain(packet), toArray(buffer));
+            LocationUpdatedResponse response = packetIO.decode(null, buffer, LocationUpdatedResponse.class);
+            Assert.assertEquals(client, response.sender);
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, response.location);
+            Assert.assertFalse(buffer.hasRemaining());
+            pool.release(buffer);
+        }
+    }
+
+    @Test
+    public void decodesFromTheMiddleOfAnArray() throws Exception {
+        PacketIO packetIO = new PacketIO(mapper, null, true);
+        byte[] packet = packetIO.encodePlain(location());
+        byte[] frame = new byte[packet.length + 10];
+        System.arraycopy(packet, 0, frame, 7, packet.length);
+        ByteBuffer buffer = ByteBuffer.wrap(frame, 7, packet.length).slice();
+        Assert.assertTrue(PacketIO.isBinary(buffer));
+        LocationUpdatedResponse response = packetIO.decode(null, buffer, LocationUpdatedResponse.class);
+        Assert.assertEquals(player.minecraftPlayer, response.player.minecraftPlayer);
+    }
+
+    @Test
+    public void tooLargePacketReleasesBuffer() throws Exception {
+        BufferPool pool = new BufferPool(Short.MAX_VALUE, 1);
+        ByteBuffer pooled = pool.acquire();
+        pool.release(pooled);
+        PacketIO packetIO = new PacketIO(mapper, null);
+        try {
+            packetIO.encodePlain(new SendMessageResponse(server, server, null, player, new byte[Short.MAX_VALUE]), pool);
+            Assert.fail("packet should be too large");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Packet is too large"));
+        }
+        Assert.assertSame(pooled, pool.acquire());
+    }
+
+    @Test
+    public void allocatesLessThanCopyingPath() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        PacketIO packetIO = new PacketIO(mapper, null, true);
+        BufferPool pool = new BufferPool(Short.MAX_VALUE, 1);
+        LocationUpdatedResponse packet = location();
+        int iterations = 20_000;
+        long copying = 0;
+        long pooled = 0;
+        // first round warms up
+        for (int round = 0; round < 2; round++) {
+            long start = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < iterations; i++) {
+                byte[] bytes = packetIO.encodePlain(packet);
+                packetIO.decode(null, new ByteArrayInputStream(bytes), LocationUpdatedResponse.class);
+            }
+            copying = (allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - start) / iterations;
+            start = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < iterations; i++) {
+                ByteBuffer buffer = packetIO.encodePlain(packet, pool);
+                packetIO.decode(null, buffer, LocationUpdatedResponse.class);
+                pool.release(buffer);
+            }
+            pooled = (allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - start) / iterations;
+        }
+        LOGGER.info("allocated per packet copying " + copying + " bytes, pooled " + pooled + " bytes");
+        Assert.assertTrue("pooled path allocated " + pooled + " bytes vs " + copying + " bytes", pooled < copying);
+    }
+
+    private LocationUpdatedResponse location() {
+        return new LocationUpdatedResponse(server, client, UUID.randomUUID(), player, new byte[]{1, 2, 3});
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,214 @@
+package team.catgirl.collar.protocol.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+import team.catgirl.collar.api.session.Player;
+import team.catgirl.collar.protocol.PacketIO;
+import team.catgirl.collar.protocol.ProtocolRequest;
+import team.catgirl.collar.protocol.ProtocolResponse;
+import team.catgirl.collar.protocol.identity.IdentifyRequest;
+import team.catgirl.collar.protocol.keepalive.KeepAliveRequest;
+import team.catgirl.collar.protocol.location.LocationUpdatedResponse;
+import team.catgirl.collar.protocol.location.LocationsUpdatedResponse;
+import team.catgirl.collar.protocol.location.UpdateNearbyDeltaRequest;
+import team.catgirl.collar.protocol.location.UpdateLocationRequest;
+import team.catgirl.collar.protocol.location.UpdateLocationsRequest;
+import team.catgirl.collar.protocol.messaging.SendMessageResponse;
+import team.catgirl.collar.protocol.sdht.SDHTEventRequest;
+import team.catgirl.collar.sdht.Key;
+import team.catgirl.collar.sdht.Record;
+import team.catgirl.collar.sdht.events.CreateEntryEvent;
+import team.catgirl.collar.sdht.events.PublishRecordsEvent;
+import team.catgirl.collar.security.ClientIdentity;
+import team.catgirl.collar.security.PublicKey;
+import team.catgirl.collar.security.ServerIdentity;
+import team.catgirl.collar.security.mojang.MinecraftPlayer;
+import team.catgirl.collar.utils.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class BinaryPacketCodecTest {
+
+    private static final Logger LOGGER = Logger.getLogger(BinaryPacketCodecTest.class.getName());
+
+    private final ObjectMapper mapper = Utils.messagePackMapper();
+    private final BinaryPacketCodec codec = new BinaryPacketCodec(mapper);
+    private final ClientIdentity client = new ClientIdentity(UUID.randomUUID(), new PublicKey(new byte[32]), 1);
+    private final ServerIdentity server = new ServerIdentity(new PublicKey(new byte[33]), UUID.randomUUID());
+    private final Player player = new Player(UUID.randomUUID(), new MinecraftPlayer(UUID.randomUUID(), "2b2t.org", 42));
+
+    @Test
+    public void roundTripLocation() throws IOException {
+        UUID group = UUID.randomUUID();
+        UpdateLocationRequest request = codec.decode(codec.encode(new UpdateLocationRequest(client, group, new byte[]{1, 2, 3})), UpdateLocationRequest.class);
+        Assert.assertEquals(client, request.identity);
+        Assert.assertEquals(group, request.group);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, request.location);
+
+        UUID otherGroup = UUID.randomUUID();
+        Map<UUID, byte[]> locations = new LinkedHashMap<>();
+        locations.put(group, new byte[]{1});
+        locations.put(otherGroup, new byte[]{2, 3});
+        UpdateLocationsRequest batch = codec.decode(codec.encode(new UpdateLocationsRequest(client, locations)), UpdateLocationsRequest.class);
+        Assert.assertEquals(client, batch.identity);
+        Assert.assertEquals(Arrays.asList(group, otherGroup), new ArrayList<>(batch.locations.keySet()));
+        Assert.assertArrayEquals(new byte[]{2, 3}, batch.locations.get(otherGroup));
+
+        LocationUpdatedResponse response = codec.decode(codec.encode(new LocationUpdatedResponse(server, client, group, player, null)), LocationUpdatedResponse.class);
+        Assert.assertEquals(server, response.identity);
+        Assert.assertEquals(client, response.sender);
+        Assert.assertEquals(group, response.group);
+        Assert.assertEquals(player.minecraftPlayer, response.player.minecraftPlayer);
+        Assert.assertNull(response.location);
+
+        LocationsUpdatedResponse updates = codec.decode(codec.encode(new LocationsUpdatedResponse(server, Arrays.asList(
+                new LocationUpdatedResponse(server, client, group, player, new byte[]{4, 5}),
+                new LocationUpdatedResponse(server, client, group, player, null)))), LocationsUpdatedResponse.class);
+        Assert.assertEquals(server, updates.identity);
+        Assert.assertEquals(2, updates.updates.size());
+        Assert.assertEquals(server, updates.updates.get(0).identity);
+        Assert.assertEquals(client, updates.updates.get(0).sender);
+        Assert.assertEquals(group, updates.updates.get(0).group);
+        Assert.assertArrayEquals(new byte[]{4, 5}, updates.updates.get(0).location);
+        Assert.assertNull(updates.updates.get(1).location);
+
+        UpdateNearbyDeltaRequest delta = codec.decode(codec.encode(new UpdateNearbyDeltaRequest(client, new byte[64], null)), UpdateNearbyDeltaRequest.class);
+        Assert.assertEquals(client, delta.identity);
+        Assert.assertArrayEquals(new byte[64], delta.added);
+        Assert.assertNull(delta.removed);
+    }
+
+    @Test(expected = IOException.class)
+    public void locationsForTooManyGroupsAreRejected() throws IOException {
+        byte[] bytes = codec.encode(new UpdateLocationsRequest(null, new LinkedHashMap<>()));
+        // The group count follows the type id and the null identity
+        ByteBuffer.wrap(bytes).putInt(3, UpdateLocationsRequest.MAX_GROUPS + 1);
+        codec.decode(bytes, UpdateLocationsRequest.class);
+    }
+
+    @Test
+    public void malformedLengthsAreRejected() throws IOException {
+        // Byte array length follows the type id, the null identity and the null group
+        byte[] location = codec.encode(new UpdateLocationRequest(null, null, null));
+        assertMalformed(location, 4, Integer.MAX_VALUE, UpdateLocationRequest.class);
+        assertMalformed(location, 4, -2, UpdateLocationRequest.class);
+        assertMalformed(location, 4, 1, UpdateLocationRequest.class);
+        // Update count follows the type id and the null server identity
+        byte[] updates = codec.encode(new LocationsUpdatedResponse(null, new ArrayList<>()));
+        assertMalformed(updates, 3, Integer.MAX_VALUE, LocationsUpdatedResponse.class);
+        assertMalformed(updates, 3, -1, LocationsUpdatedResponse.class);
+        // Record count follows the type id, the null identity, the event type and the null sender
+        byte[] records = codec.encode(new SDHTEventRequest(null, new PublishRecordsEvent(null, Collections.emptySet(), null)));
+        assertMalformed(records, 5, Integer.MAX_VALUE, SDHTEventRequest.class);
+        assertMalformed(records, 5, -2, SDHTEventRequest.class);
+    }
+
+    private void assertMalformed(byte[] packet, int offset, int length, Class<?> type) {
+        byte[] bytes = packet.clone();
+        ByteBuffer.wrap(bytes).putInt(offset, length);
+        try {
+            codec.decode(bytes, type);
+            Assert.fail("decoded " + type.getSimpleName() + " with length " + length);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "rejected " + type.getSimpleName(), e);
+        }
+    }
+
+    @Test
+    public void roundTripMessagesAndKeepAlive() throws IOException {
+        SendMessageResponse message = codec.decode(codec.encode(new SendMessageResponse(server, server, null, player, new byte[]{9})), SendMessageResponse.class);
+        Assert.assertEquals(server, message.sender);
+        Assert.assertNull(message.group);
+        Assert.assertEquals(player, message.player);
+        Assert.assertArrayEquals(new byte[]{9}, message.message);
+
+        KeepAliveRequest keepAlive = codec.decode(codec.encode(new KeepAliveRequest(null)), KeepAliveRequest.class);
+        Assert.assertNull(keepAlive.identity);
+    }
+
+    @Test
+    public void roundTripSDHTEvents() throws IOException {
+        Record record = new Record(new Key(UUID.randomUUID(), UUID.randomUUID()), new byte[]{1, 2}, 3);
+        SDHTEventRequest create = codec.decode(codec.encode(new SDHTEventRequest(client, new CreateEntryEvent(client, null, record, new byte[]{4}))), SDHTEventRequest.class);
+        CreateEntryEvent createEvent = (CreateEntryEvent) create.event;
+        Assert.assertEquals(client, createEvent.sender);
+        Assert.assertNull(createEvent.recipient);
+        Assert.assertEquals(record, createEvent.record);
+        Assert.assertArrayEquals(new byte[]{4}, createEvent.content);
+
+        SDHTEventRequest publish = codec.decode(codec.encode(new SDHTEventRequest(client, new PublishRecordsEvent(client, Collections.singleton(record), client))), SDHTEventRequest.class);
+        PublishRecordsEvent publishEvent = (PublishRecordsEvent) publish.event;
+        Assert.assertEquals(Collections.singleton(record), publishEvent.records);
+        Assert.assertEquals(client, publishEvent.recipient);
+    }
+
+    @Test
+    public void unregisteredPacketsFallBackToMapper() throws IOException {
+        byte[] bytes = codec.encode(new IdentifyRequest(client, new byte[]{7}));
+        IdentifyRequest request = (IdentifyRequest) codec.decode(bytes, ProtocolRequest.class);
+        Assert.assertEquals(client, request.identity);
+        Assert.assertArrayEquals(new byte[]{7}, request.privateIdentityToken);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decodingUnexpectedTypeFails() throws IOException {
+        codec.decode(codec.encode(new KeepAliveRequest(client)), ProtocolResponse.class);
+    }
+
+    @Test
+    public void packetIODecodesBothVersions() throws Exception {
+        PacketIO binary = new PacketIO(mapper, null, true);
+        PacketIO plain = new PacketIO(mapper, null);
+        byte[] binaryBytes = binary.encodePlain(new KeepAliveRequest(client));
+        byte[] plainBytes = plain.encodePlain(new KeepAliveRequest(client));
+        Assert.assertTrue(PacketIO.isBinary(ByteBuffer.wrap(binaryBytes)));
+        Assert.assertFalse(PacketIO.isBinary(ByteBuffer.wrap(plainBytes)));
+        Assert.assertEquals(client, plain.decode(null, ByteBuffer.wrap(binaryBytes), ProtocolRequest.class).identity);
+        Assert.assertEquals(client, binary.decode(null, ByteBuffer.wrap(plainBytes), ProtocolRequest.class).identity);
+    }
+
+    @Test
+    public void benchmarkAgainstMessagePack() throws IOException {
+        LocationUpdatedResponse packet = new LocationUpdatedResponse(server, client, UUID.randomUUID(), player, new byte[64]);
+        byte[] binaryBytes = codec.encode(packet);
+        byte[] messagePackBytes = mapper.writeValueAsBytes(packet);
+        int iterations = 20_000;
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(codec.encode(packet), ProtocolResponse.class);
+            mapper.readValue(mapper.writeValueAsBytes(packet), ProtocolResponse.class);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.encode(packet);
+        }
+        long binaryEncode = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(binaryBytes, ProtocolResponse.class);
+        }
+        long binaryDecode = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            mapper.writeValueAsBytes(packet);
+        }
+        long messagePackEncode = (System.nanoTime() - start) / iterations;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            mapper.readValue(messagePackBytes, ProtocolResponse.class);
+        }
+        long messagePackDecode = (System.nanoTime() - start) / iterations;
+        LOGGER.info("LocationUpdatedResponse binary " + binaryBytes.length + " bytes encode " + binaryEncode + "ns/op decode " + binaryDecode + "ns/op");
+        LOGGER.info("LocationUpdatedResponse msgpack " + messagePackBytes.length + " bytes encode " + messagePackEncode + "ns/op decode " + messagePackDecode + "ns/op");
+        Assert.assertTrue(binaryBytes.length < messagePackBytes.length);
+    }
+}